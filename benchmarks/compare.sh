@@ -0,0 +1,58 @@
+#!/usr/bin/env bash
+# 对比两个提交的性能, 每个提交各跑一遍全部(或选中的)benchmark, 输出耗时和每次调用分配字节数的变化
+#
+# 用法: benchmarks/compare.sh <base> <target> [JMH参数...]
+# 例:   benchmarks/compare.sh HEAD~1 HEAD ParseContent -f 2
+#
+# benchmark按当前工作区的代码编译一次, 两个提交只替换classpath上的email-service.jar.
+# 旧提交里没有的API, 对应的benchmark会失败并在结果里显示 missing, 其他的照常对比.
+set -euo pipefail
+
+if [ $# -lt 2 ]; then
+  sed -n '2,8p' "$0"
+  exit 2
+fi
+BASE=$1
+TARGET=$2
+shift 2
+
+ROOT=$(git rev-parse --show-toplevel)
+MVN_SKIP="-DskipTests -Dmaven.javadoc.skip=true -Dmaven.source.skip=true -Dgpg.skip"
+WORK=$(mktemp -d)
+WORKTREES=()
+
+cleanup() {
+  for dir in "${WORKTREES[@]+"${WORKTREES[@]}"}"; do
+    git -C "$ROOT" worktree remove --force "$dir" >/dev/null 2>&1 || true
+  done
+  rm -rf "$WORK"
+}
+trap cleanup EXIT
+
+echo ">> build benchmarks.jar from working tree"
+(cd "$ROOT" && mvn -B -q install $MVN_SKIP)
+(cd "$ROOT/benchmarks" && mvn -B -q package)
+BENCH_JAR=$ROOT/benchmarks/target/benchmarks.jar
+
+OUT=$ROOT/benchmarks/target/compare/$(git -C "$ROOT" rev-parse --short "$BASE")-vs-$(git -C "$ROOT" rev-parse --short "$TARGET")
+mkdir -p "$OUT"
+
+run() {
+  local name=$1 rev=$2
+  local dir=$WORK/$name
+  echo ">> $name: $rev ($(git -C "$ROOT" rev-parse --short "$rev"))"
+  git -C "$ROOT" worktree add --detach "$dir" "$rev" >/dev/null
+  WORKTREES+=("$dir")
+  (cd "$dir" && mvn -B -q package $MVN_SKIP)
+  local jar
+  jar=$(ls "$dir"/target/email-service-*.jar | grep -v -e sources -e javadoc | head -n 1)
+  java -cp "$jar:$BENCH_JAR" com.github.emailservice.benchmark.Benchmarks "$@" \
+    -rf json -rff "$OUT/$name.json" | tee "$OUT/$name.txt"
+}
+
+run base "$BASE" "$@"
+run target "$TARGET" "$@"
+
+echo
+java -cp "$BENCH_JAR" com.github.emailservice.benchmark.CompareResults "$OUT/base.json" "$OUT/target.json" | tee "$OUT/compare.txt"
+echo ">> results in $OUT"
@@ -0,0 +1,106 @@
+package com.github.emailservice.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 对比两次JMH的json结果 (-rf json), 输出耗时和每次调用分配字节数的变化
+ * 变化超过两边误差(99.9%置信区间)之和时标记 *, 否则认为是噪声
+ * <p>
+ * 例: java -cp benchmarks/target/benchmarks.jar com.github.emailservice.benchmark.CompareResults base.json target.json
+ *
+ * @author wangzihao
+ */
+public class CompareResults {
+    private static final String ALLOC = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: CompareResults <base.json> <target.json>");
+            System.exit(2);
+        }
+        Map<String, JsonNode> base = read(new File(args[0]));
+        Map<String, JsonNode> target = read(new File(args[1]));
+
+        System.out.printf("%-72s %14s %14s %9s %12s %12s %9s%n",
+                "Benchmark", "base", "target", "time", "base B/op", "target B/op", "alloc");
+        for (Map.Entry<String, JsonNode> entry : base.entrySet()) {
+            JsonNode t = target.get(entry.getKey());
+            if (t == null) {
+                System.out.printf("%-72s (missing in target)%n", entry.getKey());
+                continue;
+            }
+            JsonNode b = entry.getValue();
+            JsonNode baseTime = b.path("primaryMetric");
+            JsonNode targetTime = t.path("primaryMetric");
+            JsonNode baseAlloc = b.path("secondaryMetrics").path(ALLOC);
+            JsonNode targetAlloc = t.path("secondaryMetrics").path(ALLOC);
+            System.out.printf("%-72s %14s %14s %9s %12s %12s %9s%n",
+                    entry.getKey(),
+                    score(baseTime), score(targetTime), delta(baseTime, targetTime),
+                    score(baseAlloc), score(targetAlloc), delta(baseAlloc, targetAlloc));
+        }
+        for (String key : target.keySet()) {
+            if (!base.containsKey(key)) {
+                System.out.printf("%-72s (missing in base)%n", key);
+            }
+        }
+    }
+
+    private static Map<String, JsonNode> read(File file) throws IOException {
+        Map<String, JsonNode> map = new LinkedHashMap<>();
+        for (JsonNode node : new ObjectMapper().readTree(file)) {
+            // com.github.emailservice.benchmark.XxxBenchmark.method -> XxxBenchmark.method
+            String benchmark = node.path("benchmark").asText();
+            StringBuilder id = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+            Iterator<Map.Entry<String, JsonNode>> params = node.path("params").fields();
+            while (params.hasNext()) {
+                Map.Entry<String, JsonNode> param = params.next();
+                id.append(id.indexOf(":") == -1 ? ':' : ',').append(param.getKey()).append('=').append(param.getValue().asText());
+            }
+            map.put(id.toString(), node);
+        }
+        return map;
+    }
+
+    private static String score(JsonNode metric) {
+        if (metric.isMissingNode()) {
+            return "-";
+        }
+        return String.format("%.3f %s", metric.path("score").asDouble(), shortUnit(metric.path("scoreUnit").asText()));
+    }
+
+    private static String shortUnit(String unit) {
+        int index = unit.indexOf('/');
+        return index != -1 ? unit.substring(0, index) : unit;
+    }
+
+    private static String delta(JsonNode base, JsonNode target) {
+        if (base.isMissingNode() || target.isMissingNode()) {
+            return "-";
+        }
+        double baseScore = base.path("score").asDouble();
+        double targetScore = target.path("score").asDouble();
+        double diff = targetScore - baseScore;
+        // 分配为0时gc profiler会给出接近0的小数
+        if (Math.abs(baseScore) < 0.001) {
+            return Math.abs(targetScore) < 0.001 ? "0.0%" : "new";
+        }
+        double percent = diff * 100 / baseScore;
+        if (Math.abs(percent) < 0.05) {
+            return "0.0%";
+        }
+        double baseError = base.path("scoreError").asDouble(Double.NaN);
+        double targetError = target.path("scoreError").asDouble(Double.NaN);
+        // 只跑一轮时没有误差, 不标记
+        boolean significant = !Double.isNaN(baseError) && !Double.isNaN(targetError)
+                && Math.abs(diff) > baseError + targetError;
+        return String.format("%+.1f%%%s", percent, significant ? "*" : "");
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.EmailExecutors;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 虚拟线程 对比 平台线程池, 一次调用是 accounts 个账号各做一次 ioMillis 的网络等待
+ * 用 sleep 模拟等待邮箱服务器返回, pinned=true 时在 synchronized 里 sleep, 模拟javamail钉住载体线程.
+ * java21+ 运行才有虚拟线程, 否则两种方式都是平台线程池
+ * <p>
+ * 例: -p accounts=2000 -p pinned=false
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmailExecutorsBenchmark {
+    @Param({"platform", "virtual"})
+    public EmailExecutors.Mode mode;
+    @Param({"false", "true"})
+    public boolean pinned;
+    @Param({"200"})
+    public int accounts;
+    /**
+     * 平台线程池的线程数, 虚拟线程的最大并发数是账号数
+     */
+    @Param({"200"})
+    public int platformThreads;
+    @Param({"10"})
+    public long ioMillis;
+
+    @Benchmark
+    public void run() throws InterruptedException {
+        ExecutorService executor = EmailExecutors.newExecutor(mode, mode == EmailExecutors.Mode.virtual ? accounts : platformThreads);
+        CountDownLatch latch = new CountDownLatch(accounts);
+        for (int i = 0; i < accounts; i++) {
+            Object connectionLock = new Object();
+            executor.execute(() -> {
+                try {
+                    if (pinned) {
+                        synchronized (connectionLock) {
+                            Thread.sleep(ioMillis);
+                        }
+                    } else {
+                        Thread.sleep(ioMillis);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.util.FileMediaType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileMediaType.valueOf, 按文件头识别类型
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileMediaTypeBenchmark {
+    @Param({"png", "pdf", "docx", "html", "text"})
+    public String type;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        switch (type) {
+            case "png":
+                bytes = Base64.getDecoder().decode("iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNkYPhfDwAChwGA60e6kgAAAABJRU5ErkJggg==");
+                break;
+            case "pdf":
+                bytes = "%PDF-1.4\n1 0 obj<</Type/Catalog/Pages 2 0 R>>endobj\n%%EOF\n".getBytes(StandardCharsets.ISO_8859_1);
+                break;
+            case "docx":
+                bytes = new byte[4096];
+                System.arraycopy(new byte[]{0x50, 0x4B, 0x03, 0x04, 0x14, 0x00, 0x06, 0x00}, 0, bytes, 0, 8);
+                break;
+            case "html":
+                bytes = Fixtures.bytes("html/newsletter.html");
+                break;
+            default:
+                bytes = "张三你好: 附件是上个月的对账单, 请查收.".getBytes(StandardCharsets.UTF_8);
+                break;
+        }
+    }
+
+    @Benchmark
+    public FileMediaType valueOf() throws IOException {
+        return FileMediaType.valueOf(new ByteArrayInputStream(bytes));
+    }
+}
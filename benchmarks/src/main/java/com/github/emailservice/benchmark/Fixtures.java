@@ -0,0 +1,40 @@
+package com.github.emailservice.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 读取 src/main/resources 下的测试数据
+ *
+ * @author wangzihao
+ */
+public class Fixtures {
+
+    public static byte[] bytes(String path) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/" + path)) {
+            if (in == null) {
+                throw new IllegalArgumentException("fixture not found " + path);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static String string(String path) {
+        return new String(bytes(path), StandardCharsets.UTF_8);
+    }
+
+    public static byte[] eml(String name) {
+        return bytes("eml/" + name + ".eml");
+    }
+}
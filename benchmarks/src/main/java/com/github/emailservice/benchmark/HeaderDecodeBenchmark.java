@@ -0,0 +1,70 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.util.MimeUtility;
+import com.github.emailservice.util.RFC2231Utility;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 邮件头和参数的解码
+ * MimeUtility.decodeText   RFC2047 encoded-word, 例 =?utf-8?b?...?=
+ * MimeUtility.decode       quoted-printable
+ * RFC2231Utility.decodeText RFC2231, 例 utf-8''%E5%8F%91
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderDecodeBenchmark {
+    private final String base64Word = "=?utf-8?b?MjAyMuW5tDPmnIjlj5Hnpag=?=";
+    private final String quotedWords = "=?gbk?Q?=C9=CF=D4=C2=B6=D4=D5=CB=B5=A5?= - =?gbk?Q?=C7=EB=B2=E9=CA=D5?=";
+    private final String plain = "Weekly report";
+    private final String rfc2231 = "utf-8''2022%E5%B9%B43%E6%9C%88%E5%8F%91%E7%A5%A8.pdf";
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+    private byte[] quotedPrintable;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            builder.append("<td class=3D\"name\">=E5=95=86=E5=93=81").append(i)
+                    .append("</td><td class=3D\"price\">=EF=BF=A5").append(i * 13).append(".00</td>=\r\n");
+        }
+        quotedPrintable = builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public String decodeTextBase64() throws UnsupportedEncodingException {
+        return MimeUtility.decodeText(base64Word);
+    }
+
+    @Benchmark
+    public String decodeTextQuoted() throws UnsupportedEncodingException {
+        return MimeUtility.decodeText(quotedWords);
+    }
+
+    @Benchmark
+    public String decodeTextPlain() throws UnsupportedEncodingException {
+        return MimeUtility.decodeText(plain);
+    }
+
+    @Benchmark
+    public int decodeQuotedPrintable() throws IOException {
+        out.reset();
+        return MimeUtility.decode(quotedPrintable, out);
+    }
+
+    @Benchmark
+    public String rfc2231DecodeText() throws UnsupportedEncodingException {
+        return RFC2231Utility.decodeText(rfc2231);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.util.HtmlQuery;
+import com.github.emailservice.util.SelectorCache;
+import org.jsoup.nodes.Document;
+import org.jsoup.select.Elements;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HtmlQuery的css选择和内联样式, html是150行商品的推广邮件
+ * parseAndSelect 包含jsoup解析, select* 复用解析好的文档
+ * jsoupSelectString 每次解析选择器, jsoupSelectCached 用 {@link SelectorCache} 里编译好的选择器
+ * inlineCss 轮流用128份不同的html (比结果缓存大), 每次都真正内联. inlineCssCached 是同一份html
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HtmlQueryBenchmark {
+    private String html;
+    private String[] htmlVariants;
+    private int index;
+    private HtmlQuery<Document> query;
+
+    @Setup
+    public void setup() {
+        html = Fixtures.string("html/newsletter.html");
+        htmlVariants = new String[128];
+        for (int i = 0; i < htmlVariants.length; i++) {
+            htmlVariants[i] = html + "<!-- " + i + " -->";
+        }
+        query = HtmlQuery.valueOf(html);
+    }
+
+    @Benchmark
+    public List<String> parseAndSelect() {
+        return HtmlQuery.valueOf(html).selectTexts("table.items td.price");
+    }
+
+    @Benchmark
+    public List<String> selectTexts() {
+        return query.selectTexts("table.items td.name");
+    }
+
+    @Benchmark
+    public List<String> selectAttrs() {
+        return query.selectAttrs("table.items a[href]", "href");
+    }
+
+    @Benchmark
+    public String selectText() {
+        return query.selectText(".footer p", 1);
+    }
+
+    @Benchmark
+    public Elements jsoupSelectString() {
+        return query.getElement().select("table.items tr:has(td.price) td:last-child");
+    }
+
+    @Benchmark
+    public Elements jsoupSelectCached() {
+        return query.getElement().select(SelectorCache.get("table.items tr:has(td.price) td:last-child"));
+    }
+
+    @Benchmark
+    public String inlineCss() {
+        String variant = htmlVariants[index++ & (htmlVariants.length - 1)];
+        return HtmlQuery.inlineCss(variant);
+    }
+
+    @Benchmark
+    public String inlineCssCached() {
+        return HtmlQuery.inlineCss(html);
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.util.HtmlTextExtractor;
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * html转纯文本, jsoup建DOM再text() 对比 HtmlTextExtractor流式提取
+ * newsletter 是150行商品的推广邮件, table 是2000行的订单表格
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HtmlTextExtractorBenchmark {
+    @Param({"newsletter", "table"})
+    public String fixture;
+
+    private String html;
+
+    @Setup
+    public void setup() {
+        if ("newsletter".equals(fixture)) {
+            html = Fixtures.string("html/newsletter.html");
+        } else {
+            StringBuilder builder = new StringBuilder("<html><head><style>td { padding: 0 }</style></head><body><table>");
+            for (int i = 0; i < 2000; i++) {
+                builder.append("<tr><td class=\"name\">商品").append(i).append("</td><td style=\"color: red\">")
+                        .append(i).append(".00&nbsp;元</td></tr>");
+            }
+            html = builder.append("</table></body></html>").toString();
+        }
+    }
+
+    @Benchmark
+    public String jsoupText() {
+        return Jsoup.parse(html).body().text();
+    }
+
+    @Benchmark
+    public String extract() {
+        return HtmlTextExtractor.extract(html);
+    }
+}
@@ -0,0 +1,34 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.util.ParameterParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ParameterParser.parse, 解析 Content-Type, Content-Disposition 的参数
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParameterParserBenchmark {
+    @Param({
+            "text/html; charset=\"utf-8\"",
+            "attachment; filename=\"report.pdf\"; size=102400; creation-date=\"Mon, 07 Mar 2022 10:15:30 +0800\"",
+            "attachment; filename*=utf-8''2022%E5%B9%B43%E6%9C%88%E5%8F%91%E7%A5%A8.pdf",
+            "attachment; filename*0*=utf-8''%E5%90%88%E5%90%8C; filename*1*=%E6%96%87%E4%BB%B6.docx"})
+    public String header;
+
+    @Benchmark
+    public Map<String, String> parse() {
+        ParameterParser parser = new ParameterParser();
+        parser.setLowerCaseNames(true);
+        return parser.parse(header, ';');
+    }
+}
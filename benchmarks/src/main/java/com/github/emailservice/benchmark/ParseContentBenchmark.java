@@ -0,0 +1,51 @@
+package com.github.emailservice.benchmark;
+
+import com.github.emailservice.EmailService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EmailService.parseContent, 解析整封邮件为 {@link EmailService.Content}
+ * 每次都重新创建MimeMessage (EmailMessage会缓存内容), 所以包含MIME头的解析
+ * <p>
+ * plain-gbk             GBK纯文本
+ * newsletter-html       multipart/alternative, quoted-printable的html
+ * invoice-attachment    pdf和docx附件, RFC2231编码的中文文件名
+ * inline-image          multipart/related, 内嵌图片
+ * forward               message/rfc822 转发
+ *
+ * @author wangzihao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseContentBenchmark {
+    @Param({"plain-gbk", "newsletter-html", "invoice-attachment", "inline-image", "forward"})
+    public String fixture;
+
+    private Session session;
+    private byte[] eml;
+
+    @Setup
+    public void setup() {
+        session = Session.getInstance(new Properties());
+        eml = Fixtures.eml(fixture);
+    }
+
+    @Benchmark
+    public EmailService.Content parseContent() throws MessagingException, IOException {
+        MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(eml));
+        EmailService.EmailMessage emailMessage = new EmailService.EmailMessage(message, null);
+        return emailMessage.getContent();
+    }
+}
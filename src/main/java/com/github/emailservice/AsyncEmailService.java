@@ -0,0 +1,312 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.Service;
+import javax.mail.search.SearchTerm;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+/**
+ * 异步邮箱服务, 不阻塞调用线程
+ * 1. 每个方法返回 {@link CompletableFuture}, 在指定的 {@link Executor} 里执行
+ * 2. 每次调用可以指定超时时间, 超时后按取消处理
+ * 3. 取消 {@link CompletableFuture#cancel(boolean)} 或超时, 会直接关闭这次调用的IMAP/SMTP socket, 中断正在进行的网络操作并释放连接
+ * <p>
+ * 用法 asyncEmailService.selectEmailList(account, query, true, 30, TimeUnit.SECONDS).thenAccept(list -> ...)
+ *
+ * @author wangzihao
+ * @see EmailService
+ */
+public class AsyncEmailService {
+    private static final Logger log = LoggerFactory.getLogger(AsyncEmailService.class);
+    private static final ScheduledThreadPoolExecutor TIMEOUT_SCHEDULER;
+
+    static {
+        TIMEOUT_SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "EmailService-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        TIMEOUT_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final EmailService emailService;
+    private final Executor executor;
+
+    public AsyncEmailService(EmailService emailService, Executor executor) {
+        this.emailService = Objects.requireNonNull(emailService, "emailService");
+        this.executor = Objects.requireNonNull(executor, "executor");
+    }
+
+    public EmailService getEmailService() {
+        return emailService;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 查询邮件 - 根据条件
+     *
+     * @param account  邮箱账号密码
+     * @param query    查询条件
+     * @param readOnly true=不改邮件状态和信息， false=可以改邮件状态
+     * @param timeout  超时时间, 小于等于0=不超时
+     * @param unit     超时时间单位
+     * @return 用完记得关闭，调用close方法
+     * @see EmailService#selectEmailList(EmailService.Account, SearchTerm, boolean)
+     */
+    public CompletableFuture<EmailService.EmailList<EmailService.EmailMessage>> selectEmailList(EmailService.Account account, SearchTerm query, boolean readOnly,
+                                                                                                long timeout, TimeUnit unit) {
+        return submit(call -> emailService.selectEmailList(account, query, readOnly, call), timeout, unit);
+    }
+
+    public CompletableFuture<EmailService.FolderList> selectFolderList(EmailService.Account account, long timeout, TimeUnit unit) {
+        return submit(call -> emailService.selectFolderList(account, call), timeout, unit);
+    }
+
+    public CompletableFuture<Boolean> sendSimpleMail(String to, String subject, String content, long timeout, TimeUnit unit) {
+        return submit(call -> emailService.sendSimpleMail(to, subject, content, call), timeout, unit);
+    }
+
+    public CompletableFuture<Boolean> sendHtmlMail(String to, String subject, String content, long timeout, TimeUnit unit) {
+        return submit(call -> emailService.sendHtmlMail(to, subject, content, call), timeout, unit);
+    }
+
+    public CompletableFuture<Boolean> testConnection(String host, String username, String password, long timeout, TimeUnit unit) {
+        return submit(call -> emailService.testConnection(host, username, password, call), timeout, unit);
+    }
+
+    protected <T> CompletableFuture<T> submit(CallFunction<T> function, long timeout, TimeUnit unit) {
+        Call call = new Call();
+        CallFuture<T> future = new CallFuture<>(call);
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    T result = function.apply(call);
+                    if (!future.complete(result)) {
+                        // 已经取消或超时, 释放结果持有的连接
+                        closeQuietly(result);
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (timeout > 0 && !future.isDone()) {
+            ScheduledFuture<?> timeoutFuture = TIMEOUT_SCHEDULER.schedule(() -> {
+                if (future.completeExceptionally(new TimeoutException("email operation timeout " + timeout + " " + unit))) {
+                    call.abort();
+                }
+            }, timeout, unit);
+            future.whenComplete((r, e) -> timeoutFuture.cancel(false));
+        }
+        return future;
+    }
+
+    private static void closeQuietly(Object result) {
+        if (result instanceof EmailService.Closeable) {
+            try {
+                ((EmailService.Closeable) result).close();
+            } catch (Exception e) {
+                log.warn("AsyncEmailService close result error = {}", e.toString(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    protected interface CallFunction<T> {
+        T apply(Call call) throws Exception;
+    }
+
+    private static class CallFuture<T> extends CompletableFuture<T> {
+        private final Call call;
+
+        private CallFuture(Call call) {
+            this.call = call;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancel = super.cancel(mayInterruptIfRunning);
+            if (cancel) {
+                call.abort();
+            }
+            return cancel;
+        }
+    }
+
+    /**
+     * 一次调用用到的连接. 取消时关闭这些socket
+     * javamail的 close() 会等待正在执行的命令结束, 所以取消时直接关socket
+     */
+    static class Call {
+        private final List<Socket> socketList = new ArrayList<>();
+        private final List<Service> serviceList = new ArrayList<>();
+        private boolean abortFlag = false;
+
+        /**
+         * 在创建 {@link javax.mail.Session} 之前调用, 替换socket工厂, 记录创建的socket
+         *
+         * @param properties session配置
+         * @param protocol   imap, imaps, smtp, smtps
+         */
+        void prepare(Properties properties, String protocol) {
+            String prefix = "mail." + protocol;
+            SocketFactory plain = properties.get(prefix + ".socketFactory") instanceof SocketFactory ?
+                    (SocketFactory) properties.get(prefix + ".socketFactory") : SocketFactory.getDefault();
+            SSLSocketFactory ssl = properties.get(prefix + ".ssl.socketFactory") instanceof SSLSocketFactory ?
+                    (SSLSocketFactory) properties.get(prefix + ".ssl.socketFactory") : (SSLSocketFactory) SSLSocketFactory.getDefault();
+            properties.put(prefix + ".socketFactory", new CallSocketFactory(plain));
+            properties.put(prefix + ".ssl.socketFactory", new CallSSLSocketFactory(ssl));
+            // 不允许失败后退回默认工厂, 否则取消后创建的socket不受控制
+            properties.put(prefix + ".socketFactory.fallback", "false");
+        }
+
+        synchronized void register(Service service) {
+            serviceList.add(service);
+        }
+
+        private synchronized Socket register(Socket socket) throws IOException {
+            if (abortFlag) {
+                socket.close();
+                throw new IOException("email operation aborted");
+            }
+            socketList.add(socket);
+            return socket;
+        }
+
+        synchronized boolean isAbort() {
+            return abortFlag;
+        }
+
+        void abort() {
+            List<Socket> socketList;
+            List<Service> serviceList;
+            synchronized (this) {
+                if (abortFlag) {
+                    return;
+                }
+                abortFlag = true;
+                socketList = new ArrayList<>(this.socketList);
+                serviceList = new ArrayList<>(this.serviceList);
+                this.socketList.clear();
+                this.serviceList.clear();
+            }
+            for (Socket socket : socketList) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("AsyncEmailService socket close error = {}", e.toString());
+                }
+            }
+            // socket已关闭, close()不会再等待网络
+            for (Service service : serviceList) {
+                try {
+                    service.close();
+                } catch (MessagingException e) {
+                    log.debug("AsyncEmailService service close error = {}", e.toString());
+                }
+            }
+        }
+
+        private class CallSocketFactory extends SocketFactory {
+            private final SocketFactory delegate;
+
+            private CallSocketFactory(SocketFactory delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public Socket createSocket() throws IOException {
+                return register(delegate.createSocket());
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return register(delegate.createSocket(host, port));
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                return register(delegate.createSocket(host, port, localHost, localPort));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return register(delegate.createSocket(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                return register(delegate.createSocket(address, port, localAddress, localPort));
+            }
+        }
+
+        private class CallSSLSocketFactory extends SSLSocketFactory {
+            private final SSLSocketFactory delegate;
+
+            private CallSSLSocketFactory(SSLSocketFactory delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public String[] getDefaultCipherSuites() {
+                return delegate.getDefaultCipherSuites();
+            }
+
+            @Override
+            public String[] getSupportedCipherSuites() {
+                return delegate.getSupportedCipherSuites();
+            }
+
+            @Override
+            public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+                return register(delegate.createSocket(s, host, port, autoClose));
+            }
+
+            @Override
+            public Socket createSocket() throws IOException {
+                return register(delegate.createSocket());
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return register(delegate.createSocket(host, port));
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+                return register(delegate.createSocket(host, port, localHost, localPort));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return register(delegate.createSocket(host, port));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+                return register(delegate.createSocket(address, port, localAddress, localPort));
+            }
+        }
+    }
+}
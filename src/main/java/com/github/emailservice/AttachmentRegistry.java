@@ -0,0 +1,234 @@
+package com.github.emailservice;
+
+import com.github.emailservice.util.FileMediaType;
+
+import javax.activation.FileTypeMap;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 发送附件的缓存, 同一个文件只做一次base64编码
+ * 1. 按内容的SHA-256存放, 编码后的字节写在目录里 (sha256.b64), 不占堆内存, 重启后还在
+ * 2. 发送时直接把编码好的字节复制到SMTP的DATA阶段, 不再读原文件和编码
+ * <p>
+ * 适合很多邮件都带的固定附件, 例如条款, 价格表
+ * <p>
+ * 用法 EncodedAttachment pdf = registry.register("价格表.pdf", bytes); message.addAttachment("价格表.pdf", pdf);
+ *
+ * @author wangzihao
+ * @see EmailService.MimeMessage#addAttachment(String, EncodedAttachment)
+ */
+public class AttachmentRegistry {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private final Path directory;
+    private final Map<String, EncodedAttachment> attachmentMap = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory 存放编码后文件的目录
+     * @throws IOException 目录创建失败
+     */
+    public AttachmentRegistry(File directory) throws IOException {
+        this.directory = Files.createDirectories(directory.toPath());
+    }
+
+    public EncodedAttachment register(String fileName, byte[] data) throws IOException {
+        return register(fileName, new ByteArrayInputStream(data));
+    }
+
+    public EncodedAttachment register(String fileName, File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return register(fileName, in);
+        }
+    }
+
+    /**
+     * 注册附件. 内容一样的只编码一次
+     *
+     * @param fileName 默认文件名, 用于推断类型
+     * @param in       内容, 不会关闭
+     * @return 编码好的附件
+     * @throws IOException 读写失败
+     */
+    public EncodedAttachment register(String fileName, InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        // 边读边算摘要边编码, 写到临时文件. 已经存在的直接删掉临时文件
+        Path temp = Files.createTempFile(directory, "register", ".tmp");
+        long size = 0;
+        try {
+            try (OutputStream out = MimeUtility.encode(new BufferedOutputStream(Files.newOutputStream(temp)), "base64")) {
+                DigestInputStream digestIn = new DigestInputStream(in, digest);
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = digestIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    size += n;
+                }
+            } catch (MessagingException e) {
+                throw new IOException(e);
+            }
+            String sha256 = toHex(digest.digest());
+            EncodedAttachment attachment = attachmentMap.get(sha256);
+            if (attachment != null) {
+                return attachment;
+            }
+            Path path = directory.resolve(sha256 + ".b64");
+            if (!Files.exists(path)) {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            String contentType = getContentType(fileName);
+            attachment = new EncodedAttachment(sha256, contentType, size, path.toFile());
+            EncodedAttachment old = attachmentMap.putIfAbsent(sha256, attachment);
+            return old != null ? old : attachment;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @param sha256 内容的SHA-256
+     * @return 已注册的附件, 没有返回null
+     */
+    public EncodedAttachment get(String sha256) {
+        return attachmentMap.get(sha256);
+    }
+
+    public int size() {
+        return attachmentMap.size();
+    }
+
+    /**
+     * 先按项目的扩展名表, 没有再按 javamail 的 mime.types
+     */
+    static String getContentType(String fileName) {
+        FileMediaType mediaType = FileMediaType.valueOfCantOpen(fileName);
+        return mediaType.isKnown() ? mediaType.toString() : FileTypeMap.getDefaultFileTypeMap().getContentType(fileName);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 编码好的附件, 可以给多封邮件共用
+     */
+    public static class EncodedAttachment {
+        private final String sha256;
+        private final String contentType;
+        private final long size;
+        private final File encodedFile;
+
+        private EncodedAttachment(String sha256, String contentType, long size, File encodedFile) {
+            this.sha256 = sha256;
+            this.contentType = contentType;
+            this.size = size;
+            this.encodedFile = encodedFile;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return 原文件大小
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return base64编码后的文件
+         */
+        public File getEncodedFile() {
+            return encodedFile;
+        }
+
+        @Override
+        public String toString() {
+            return sha256 + " " + contentType + " " + size;
+        }
+    }
+
+    /**
+     * 写出时直接复制编码好的字节, 不经过 DataHandler
+     */
+    static class PreencodedBodyPart extends MimeBodyPart {
+        private final EncodedAttachment attachment;
+        private final String fileName;
+
+        PreencodedBodyPart(String fileName, EncodedAttachment attachment) {
+            this.fileName = Objects.requireNonNull(fileName, "fileName");
+            this.attachment = Objects.requireNonNull(attachment, "attachment");
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            String name;
+            try {
+                name = MimeUtility.encodeText(fileName, "UTF-8", null);
+            } catch (UnsupportedEncodingException e) {
+                name = fileName;
+            }
+            setHeader("Content-Type", attachment.contentType + "; name=\"" + name + "\"");
+            setHeader("Content-Transfer-Encoding", "base64");
+            setHeader("Content-Disposition", "attachment; filename=\"" + name + "\"");
+        }
+
+        @Override
+        public String getContentType() {
+            return attachment.contentType;
+        }
+
+        @Override
+        public int getSize() {
+            long size = attachment.encodedFile.length();
+            return size > Integer.MAX_VALUE ? -1 : (int) size;
+        }
+
+        @Override
+        public InputStream getInputStream() throws MessagingException {
+            try {
+                return MimeUtility.decode(new BufferedInputStream(new FileInputStream(attachment.encodedFile)), "base64");
+            } catch (FileNotFoundException e) {
+                throw new MessagingException("attachment not found " + attachment.encodedFile, e);
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException, MessagingException {
+            Enumeration<String> headerLines = getAllHeaderLines();
+            while (headerLines.hasMoreElements()) {
+                os.write(headerLines.nextElement().getBytes(StandardCharsets.UTF_8));
+                os.write(CRLF);
+            }
+            os.write(CRLF);
+            Files.copy(attachment.encodedFile.toPath(), os);
+        }
+    }
+}
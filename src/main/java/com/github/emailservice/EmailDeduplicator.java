@@ -0,0 +1,262 @@
+package com.github.emailservice;
+
+import com.github.emailservice.util.LongHashSet;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.util.Date;
+
+/**
+ * 跨文件夹邮件去重, 可选
+ * 1. 同一封邮件放在多个文件夹(Gmail的标签)时, {@link EmailService#selectEmailList(EmailService.Account, javax.mail.search.SearchTerm, boolean)} 会查出多次
+ * 2. 按Message-ID去重, 没有Message-ID时用 发件时间+发件人+收件人+主题 的哈希. 只用信封, 不读取邮件内容
+ * 3. 每次查询用一个 {@link Batch}, 里面是long的哈希集合, 先查到的文件夹(收件箱)保留
+ * 4. 用 {@link #EmailDeduplicator(int, double)} 创建时, 另外用布隆过滤器记住以前查询返回过的邮件, 之后的查询不再返回.
+ * 布隆过滤器有误判, 极少数没返回过的邮件也会被当成重复的; 满了以后换一代, 只保留上一代
+ * <p>
+ * 用法 emailService.setDeduplicator(new EmailDeduplicator())
+ *
+ * @author wangzihao
+ */
+public class EmailDeduplicator {
+    /**
+     * 一代布隆过滤器记住多少封邮件, 0=只在一次查询里去重
+     */
+    private final int expectedInsertions;
+    private final double falsePositiveRate;
+    private BloomFilter current;
+    private BloomFilter previous;
+
+    /**
+     * 只在一次查询里去重
+     */
+    public EmailDeduplicator() {
+        this.expectedInsertions = 0;
+        this.falsePositiveRate = 0;
+    }
+
+    /**
+     * 一次查询里去重, 并且不再返回以前查询返回过的邮件
+     *
+     * @param expectedInsertions 一代布隆过滤器记住多少封邮件, 例: 100000 约120KB
+     * @param falsePositiveRate  误判率, 例: 0.001
+     */
+    public EmailDeduplicator(int expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0) {
+            throw new IllegalArgumentException("expectedInsertions must be > 0");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+        }
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveRate = falsePositiveRate;
+        this.current = new BloomFilter(expectedInsertions, falsePositiveRate);
+    }
+
+    /**
+     * 邮件的去重键, 只用信封 (IMAP预取 ENVELOPE 后不再访问服务器)
+     *
+     * @param message 邮件
+     * @return 64位哈希, 0=没有可以去重的信息
+     */
+    public static long key(Message message) throws MessagingException {
+        String messageId = message instanceof MimeMessage ? ((MimeMessage) message).getMessageID() : firstHeader(message, "Message-ID");
+        if (messageId != null) {
+            messageId = messageId.trim();
+            if (messageId.length() > 0) {
+                return nonZero(hash(0x4D49L, messageId));
+            }
+        }
+        Date sentDate = message.getSentDate();
+        Address[] from = message.getFrom();
+        Address[] to = message.getRecipients(Message.RecipientType.TO);
+        String subject = message.getSubject();
+        if (sentDate == null && from == null && subject == null) {
+            return 0L;
+        }
+        long h = 0x4844L;
+        h = hash(h, sentDate == null ? "" : Long.toString(sentDate.getTime()));
+        h = hash(h, addresses(from));
+        h = hash(h, addresses(to));
+        h = hash(h, subject == null ? "" : subject);
+        return nonZero(h);
+    }
+
+    /**
+     * @param account 邮箱账号, 跨查询时不同账号分开记
+     * @return 一次查询用的去重集合, 不是线程安全的
+     */
+    public Batch newBatch(String account) {
+        return new Batch(account);
+    }
+
+    /**
+     * @return true=跨查询去重
+     */
+    public boolean isCrossPoll() {
+        return expectedInsertions > 0;
+    }
+
+    /**
+     * 忘记以前查询返回过的邮件
+     */
+    public synchronized void clear() {
+        if (isCrossPoll()) {
+            current = new BloomFilter(expectedInsertions, falsePositiveRate);
+            previous = null;
+        }
+    }
+
+    private synchronized boolean mightContain(long key) {
+        return current.mightContain(key) || (previous != null && previous.mightContain(key));
+    }
+
+    private synchronized void put(LongHashSet keys, long accountHash) {
+        keys.forEach(key -> {
+            if (current.count >= expectedInsertions) {
+                previous = current;
+                current = new BloomFilter(expectedInsertions, falsePositiveRate);
+            }
+            current.put(mix(key ^ accountHash));
+        });
+    }
+
+    private static String firstHeader(Message message, String name) throws MessagingException {
+        String[] values = message.getHeader(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    private static String addresses(Address[] addresses) {
+        if (addresses == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Address address : addresses) {
+            builder.append(address).append(',');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * FNV-1a
+     */
+    private static long hash(long h, String value) {
+        h ^= 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // 字段分隔
+        h ^= 0xFFFF;
+        h *= 0x100000001b3L;
+        return mix(h);
+    }
+
+    /**
+     * murmur3 fmix64
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long nonZero(long h) {
+        return h == 0L ? 1L : h;
+    }
+
+    /**
+     * 一次查询的去重集合
+     */
+    public class Batch {
+        private final LongHashSet keys = new LongHashSet(256);
+        /**
+         * 这次才返回的, 提交时只记这些. 布隆过滤器里已有的不再放, 不然会提前换代
+         */
+        private final LongHashSet newKeys = new LongHashSet(256);
+        private final long accountHash;
+        private int duplicateCount;
+
+        private Batch(String account) {
+            this.accountHash = account == null ? 0L : hash(0L, account);
+        }
+
+        /**
+         * @param message 邮件, 需要先预取信封
+         * @return true=第一次出现, 保留. false=重复的
+         */
+        public boolean add(Message message) throws MessagingException {
+            long key = key(message);
+            if (key == 0L) {
+                return true;
+            }
+            if (!keys.add(key) || (isCrossPoll() && mightContain(mix(key ^ accountHash)))) {
+                duplicateCount++;
+                return false;
+            }
+            if (isCrossPoll()) {
+                newKeys.add(key);
+            }
+            return true;
+        }
+
+        /**
+         * @return 去掉了多少封
+         */
+        public int getDuplicateCount() {
+            return duplicateCount;
+        }
+
+        /**
+         * 查询成功后调用, 记住这次返回的邮件. 查询失败时不调用, 下次还能查到
+         */
+        public void commit() {
+            if (isCrossPoll() && !newKeys.isEmpty()) {
+                put(newKeys, accountHash);
+                newKeys.clear();
+            }
+        }
+    }
+
+    private static class BloomFilter {
+        private final long[] bits;
+        private final int bitCount;
+        private final int hashCount;
+        private int count;
+
+        private BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63L));
+            this.bits = new long[(int) ((m + 63) >>> 6)];
+            this.bitCount = bits.length << 6;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+        }
+
+        private void put(long key) {
+            int h1 = (int) key;
+            int h2 = (int) (key >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                bits[index >>> 6] |= 1L << index;
+            }
+            count++;
+        }
+
+        private boolean mightContain(long key) {
+            int h1 = (int) key;
+            int h2 = (int) (key >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                int index = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                if ((bits[index >>> 6] & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.emailservice;
+
+import com.github.emailservice.util.VirtualThreads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 执行账号或文件夹操作的线程池
+ * 1. {@link Mode#platform} 平台线程池, 线程数=最大并发数
+ * 2. {@link Mode#virtual} java21+ 每个任务一个虚拟线程, 用 {@link LimitedExecutor} 限制最大并发数. java21以下退回平台线程池
+ * <p>
+ * 虚拟线程的 pinning 问题 (java21 ~ java23, java24 JEP 491 已解决):
+ * javamail 在 synchronized 里做阻塞的socket读写, 虚拟线程在这里会钉住(pin)载体线程, 等网络返回时载体线程不能去跑别的虚拟线程.
+ * 主要位置:
+ * 1. {@code com.sun.mail.iap.Protocol#command} 和 IMAPProtocol 的方法 (synchronized), 所有IMAP命令都经过这里
+ * 2. {@code com.sun.mail.imap.IMAPFolder} 的 synchronized(messageCacheLock), 包括 open, search, getSortedMessages, fetch
+ * 3. {@code com.sun.mail.imap.IMAPStore#connect} 和连接池 synchronized(pool)
+ * 4. {@code com.sun.mail.smtp.SMTPTransport#sendMessage} (synchronized)
+ * 所以同一时刻真正在等网络的操作数 = 载体线程数 (默认CPU核数).
+ * 处理: 并发数大于载体线程数时打印警告, 请用 -Djdk.virtualThreadScheduler.parallelism=N 和 -Djdk.virtualThreadScheduler.maxPoolSize=N 把载体线程数调到和并发数一样,
+ * 这样每个连接都有自己的载体线程, 只是不再需要平台线程池的排队和上下文; 或者用java24+.
+ * 排查: -Djdk.tracePinnedThreads=short
+ *
+ * @author wangzihao
+ */
+public class EmailExecutors {
+    private static final Logger log = LoggerFactory.getLogger(EmailExecutors.class);
+
+    /**
+     * @param mode           执行方式
+     * @param maxConcurrency 最大并发数 (同时连接邮箱服务器的数量)
+     * @return 线程池, 用完记得 shutdown
+     */
+    public static ExecutorService newExecutor(Mode mode, int maxConcurrency) {
+        if (mode == Mode.virtual) {
+            return newVirtualExecutor(maxConcurrency);
+        } else {
+            return newPlatformExecutor(maxConcurrency);
+        }
+    }
+
+    public static ExecutorService newPlatformExecutor(int threads) {
+        AtomicInteger id = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "EmailService-platform-" + id.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * java21+ 虚拟线程, java21以下退回平台线程池
+     *
+     * @param maxConcurrency 最大并发数
+     * @return 线程池
+     */
+    public static ExecutorService newVirtualExecutor(int maxConcurrency) {
+        if (!VirtualThreads.isSupported()) {
+            log.warn("virtual thread requires java21+, fallback to platform thread. java.version={}", System.getProperty("java.version"));
+            return newPlatformExecutor(maxConcurrency);
+        }
+        int parallelism = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+        if (maxConcurrency > parallelism && !isPinningFree()) {
+            log.warn("virtual thread maxConcurrency({}) > carrier parallelism({}). javamail blocks inside synchronized and pins carrier threads, " +
+                    "set -Djdk.virtualThreadScheduler.parallelism and -Djdk.virtualThreadScheduler.maxPoolSize to {}", maxConcurrency, parallelism, maxConcurrency);
+        }
+        return new LimitedExecutor(VirtualThreads.newVirtualThreadPerTaskExecutor("EmailService-virtual-"), maxConcurrency);
+    }
+
+    /**
+     * java24+ synchronized 不再钉住载体线程 (JEP 491)
+     */
+    private static boolean isPinningFree() {
+        String version = System.getProperty("java.specification.version", "");
+        try {
+            return Integer.parseInt(version) >= 24;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public enum Mode {
+        /**/
+        platform,
+        virtual
+    }
+
+    /**
+     * 限制最大并发数的线程池. 超过并发数的任务排队, 不阻塞提交线程
+     */
+    public static class LimitedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final int maxConcurrency;
+        private final Deque<Runnable> queue = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile boolean shutdownFlag = false;
+
+        public LimitedExecutor(ExecutorService delegate, int maxConcurrency) {
+            if (maxConcurrency <= 0) {
+                throw new IllegalArgumentException("maxConcurrency must be > 0. maxConcurrency=" + maxConcurrency);
+            }
+            this.delegate = Objects.requireNonNull(delegate, "delegate");
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public int getRunning() {
+            return running.get();
+        }
+
+        public int getQueueSize() {
+            return queue.size();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            Objects.requireNonNull(command, "command");
+            if (shutdownFlag) {
+                throw new RejectedExecutionException("executor shutdown");
+            }
+            queue.offer(command);
+            if (shutdownFlag || delegate.isShutdown()) {
+                // 和shutdown()同时提交, shutdown可能已经看到空队列关闭了delegate. 还没被取走就拒绝, 不能留在队列里
+                if (queue.remove(command)) {
+                    throw new RejectedExecutionException("executor shutdown");
+                }
+                return;
+            }
+            drain(command);
+        }
+
+        /**
+         * @param command 提交线程自己的任务, 任务完成后调用时为null
+         */
+        private void drain(Runnable command) {
+            while (!queue.isEmpty()) {
+                if (delegate.isShutdown()) {
+                    return;
+                }
+                int current = running.get();
+                if (current >= maxConcurrency) {
+                    return;
+                }
+                if (!running.compareAndSet(current, current + 1)) {
+                    continue;
+                }
+                Runnable task = queue.poll();
+                if (task == null) {
+                    running.decrementAndGet();
+                    continue;
+                }
+                try {
+                    delegate.execute(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            running.decrementAndGet();
+                            drain(null);
+                            tryTerminate();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    running.decrementAndGet();
+                    // 放回队头, 等下一次提交或任务完成时再试. 只拒绝提交线程自己还在排队的任务, 任务完成时不抛异常
+                    queue.offerFirst(task);
+                    if (command != null && queue.remove(command)) {
+                        throw e;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * 排队的任务执行完后再关闭
+         */
+        @Override
+        public void shutdown() {
+            shutdownFlag = true;
+            tryTerminate();
+        }
+
+        private void tryTerminate() {
+            if (shutdownFlag && queue.isEmpty() && running.get() == 0) {
+                delegate.shutdown();
+            }
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdownFlag = true;
+            List<Runnable> list = delegate.shutdownNow();
+            Runnable task;
+            while ((task = queue.poll()) != null) {
+                list.add(task);
+            }
+            return list;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdownFlag;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return queue.isEmpty() && delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
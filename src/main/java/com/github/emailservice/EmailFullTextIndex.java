@@ -0,0 +1,1136 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 本地全文索引 (倒排索引), 代替服务器的IMAP SEARCH
+ * 1. 邮件经过 {@link EmailService.EmailMessage#getContent()} 时自动加入, 索引主题, 发件人, 纯文本正文和html提取的文字
+ * 2. 分词: 英文数字按单词并转小写; 中日韩文字按相邻两个字 (bigram). 查询用同样的方式分词后取交集, 所以能匹配中文子串
+ * 3. 新加的邮件先放内存, 达到 {@link #setFlushDocCount(int)} 封后交给后台线程写成一个段文件, 加入邮件的线程不等写盘. 写完之前也能查到.
+ * 段文件写完不再修改, 查询时内存映射读取, 不加载到堆
+ * 4. 段文件超过 {@link #setMaxSegmentCount(int)} 个时, 后台只把最小的几个合并成一个 (增量合并), 大段不重写. 写盘和合并都在 {@link #setFlushExecutor(Executor)} 里一个接一个执行
+ * 5. 查询返回 (账号, 文件夹, UIDVALIDITY, UID), 再用 {@link EmailService#selectEmailListByUid(EmailService.Account, String, long...)} 取回邮件
+ * 6. 每封邮件带着文件夹的UIDVALIDITY. 服务器重置UID后 (UIDVALIDITY变大), 旧的邮件查询时跳过, 合并段时删除, 同一个UID的新邮件重新加入
+ * <p>
+ * 同一个账号文件夹下的UID只加入一次. 还在内存里没写盘的邮件, 进程崩溃后丢失, 下次读邮件时会重新加入.
+ * 单个中文字的查询只能匹配单独出现的字. 单个段文件不超过 {@link #MAX_SEGMENT_BYTES}
+ * <p>
+ * 段文件格式
+ * 头: [int magic][int 版本][long 段号][int 来源段数][long 来源段号...][int 邮件数][邮件: 账号, 文件夹, long UIDVALIDITY, long UID ...]
+ * 倒排表: [int 段内邮件序号...] 按词的顺序连续存放
+ * 词典: 所有词的utf8字节, 按字节排序; 词表: 每个词 [int 词典偏移][int 倒排表位置][int 倒排表长度]
+ * 尾: [long 倒排表偏移][long 词典偏移][int 词典长度][long 词表偏移][int 词数][int magic]
+ * 版本1的邮件没有UIDVALIDITY, 按0读取, 都当作旧的跳过, 下次读邮件时重新加入
+ * <p>
+ * 用法 emailService.setFullTextIndex(new EmailFullTextIndex(dir)); emailService.selectEmailListByFullText(account, "发票", 100)
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailListByFullText(EmailService.Account, String, int)
+ */
+public class EmailFullTextIndex implements EmailService.Closeable {
+    public static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+    private static final Logger log = LoggerFactory.getLogger(EmailFullTextIndex.class);
+    private static final int MAGIC = 0x45465449;
+    private static final int VERSION = 2;
+    private static final int FOOTER_SIZE = 8 + 8 + 4 + 8 + 4 + 4;
+    private static final int TERM_ENTRY_SIZE = 4 + 4 + 4;
+    private static final int MAX_WORD_LENGTH = 32;
+    private static final String SEGMENT_PREFIX = "seg-";
+    private static final String SEGMENT_SUFFIX = ".fti";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int[] EMPTY = new int[0];
+    private static final ExecutorService FLUSH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "EmailService-EmailFullTextIndex-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    /**
+     * 查询用读锁, 加入,写盘,合并用写锁
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * 已经加入的邮件, 账号 + 文件夹 + UIDVALIDITY + UID. 只有当前UIDVALIDITY的
+     */
+    private final Set<String> keySet = new HashSet<>();
+    /**
+     * 每个账号文件夹当前的UIDVALIDITY, 账号 + 文件夹. 不等于它的邮件是UID重置之前的
+     */
+    private final Map<String, Long> uidValidityMap = new HashMap<>();
+    /**
+     * 已经交给后台写盘, 还没写完的, 按加入顺序. 查询时也要查
+     */
+    private final Deque<Buffer> flushingDeque = new ArrayDeque<>();
+    /**
+     * 按段号从小到大
+     */
+    private final List<Segment> segmentList = new ArrayList<>();
+    private Buffer buffer = new Buffer();
+    /**
+     * 最后一个后台写盘任务, 后台任务一个接一个执行
+     */
+    private CompletableFuture<Void> flushFuture = CompletableFuture.completedFuture(null);
+    private Executor flushExecutor = FLUSH_EXECUTOR;
+    private long nextGeneration = 1;
+    private int flushDocCount = 1000;
+    private int maxSegmentCount = 8;
+    private int mergeFactor = 4;
+    private int maxTextChars = 64 * 1024;
+    private boolean closeFlag = false;
+
+    /**
+     * 打开索引, 加载目录下已有的段文件
+     *
+     * @param directory 索引目录
+     * @throws IOException 读取失败
+     */
+    public EmailFullTextIndex(File directory) throws IOException {
+        this.directory = directory.toPath();
+        Files.createDirectories(this.directory);
+        load();
+    }
+
+    /**
+     * 分词, 英文数字按单词并转小写, 中日韩文字按相邻两个字, 单独出现的一个字按一个字
+     *
+     * @param text     文本
+     * @param consumer 词, 可能重复
+     */
+    public static void tokenize(CharSequence text, Consumer<String> consumer) {
+        if (text == null) {
+            return;
+        }
+        StringBuilder word = new StringBuilder();
+        int prevCjk = -1;
+        boolean prevCjkEmitted = false;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = Character.codePointAt(text, i);
+            i += Character.charCount(codePoint);
+            if (isCjk(codePoint)) {
+                emitWord(word, consumer);
+                if (prevCjk != -1) {
+                    consumer.accept(new StringBuilder(4).appendCodePoint(prevCjk).appendCodePoint(codePoint).toString());
+                    prevCjkEmitted = true;
+                }
+                prevCjk = codePoint;
+                continue;
+            }
+            if (prevCjk != -1 && !prevCjkEmitted) {
+                consumer.accept(new String(Character.toChars(prevCjk)));
+            }
+            prevCjk = -1;
+            prevCjkEmitted = false;
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (word.length() < MAX_WORD_LENGTH) {
+                    word.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else {
+                emitWord(word, consumer);
+            }
+        }
+        if (prevCjk != -1 && !prevCjkEmitted) {
+            consumer.accept(new String(Character.toChars(prevCjk)));
+        }
+        emitWord(word, consumer);
+    }
+
+    private static void emitWord(StringBuilder word, Consumer<String> consumer) {
+        if (word.length() > 0) {
+            consumer.accept(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+
+    private static String folderKey(String account, String folderName) {
+        return account + '\u0000' + folderName;
+    }
+
+    private static String key(String account, String folderName, long uidValidity, long uid) {
+        return folderKey(account, folderName) + '\u0000' + uidValidity + '\u0000' + uid;
+    }
+
+    /**
+     * 加入邮件, 已经加入过的跳过
+     *
+     * @param message 邮件, 需要文件夹支持UID
+     * @return true=加入了
+     * @throws IOException        写盘失败
+     * @throws MessagingException 读取邮件失败
+     */
+    public boolean add(EmailService.EmailMessage message) throws IOException, MessagingException {
+        long uid = message.getUid();
+        if (uid < 0) {
+            return false;
+        }
+        long uidValidity = message.getUidValidity();
+        if (contains(message.getUsername(), message.getFolderName(), uidValidity, uid)) {
+            return false;
+        }
+        StringBuilder text = new StringBuilder();
+        for (EmailService.TextContent content : message.getContentList(EmailService.TextContent.class)) {
+            if (text.length() >= maxTextChars) {
+                break;
+            }
+            String value;
+            if (content instanceof EmailService.HtmlContent) {
+                value = ((EmailService.HtmlContent) content).getPlainText(maxTextChars - text.length());
+            } else {
+                value = content.getText();
+            }
+            if (value != null) {
+                text.append(value, 0, Math.min(value.length(), maxTextChars - text.length())).append(' ');
+            }
+        }
+        EmailService.Address sender = message.getSender();
+        String from = sender != null ? Objects.toString(sender.getUsername(), "") + " " + Objects.toString(sender.getEmail(), "") : null;
+        return add(message.getUsername(), message.getFolderName(), uidValidity, uid, message.getSubject(), from, text);
+    }
+
+    /**
+     * 加入邮件, 已经加入过的跳过. UIDVALIDITY比当前的小的也跳过, 比当前的大说明UID重置了, 之前的邮件作废
+     *
+     * @param account     账号
+     * @param folderName  文件夹
+     * @param uidValidity 文件夹的UIDVALIDITY
+     * @param uid         文件夹内的UID
+     * @param subject     主题
+     * @param from        发件人
+     * @param text        正文文本
+     * @return true=加入了
+     * @throws IOException 不会抛出, 写盘在后台, 失败记日志, 下次写盘时重试
+     */
+    public boolean add(String account, String folderName, long uidValidity, long uid, String subject, String from, CharSequence text) throws IOException {
+        Set<String> termSet = new HashSet<>();
+        tokenize(subject, termSet::add);
+        tokenize(from, termSet::add);
+        tokenize(text, termSet::add);
+        lock.writeLock().lock();
+        try {
+            checkClose();
+            if (!putUidValidity(account, folderName, uidValidity) || !keySet.add(key(account, folderName, uidValidity, uid))) {
+                return false;
+            }
+            buffer.add(new Doc(account, folderName, uidValidity, uid), termSet);
+            if (buffer.docList.size() >= flushDocCount) {
+                scheduleFlush();
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String account, String folderName, long uidValidity, long uid) {
+        lock.readLock().lock();
+        try {
+            return keySet.contains(key(account, folderName, uidValidity, uid));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 服务器上的UIDVALIDITY变了 (UID重置), 之前加入的邮件作废, 查询不再返回
+     *
+     * @param account     账号
+     * @param folderName  文件夹
+     * @param uidValidity 文件夹现在的UIDVALIDITY
+     */
+    public void updateUidValidity(String account, String folderName, long uidValidity) {
+        lock.writeLock().lock();
+        try {
+            checkClose();
+            putUidValidity(account, folderName, uidValidity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 调用时要持有写锁
+     *
+     * @return false=比当前的UIDVALIDITY小, 是旧的
+     */
+    private boolean putUidValidity(String account, String folderName, long uidValidity) {
+        String folderKey = folderKey(account, folderName);
+        Long current = uidValidityMap.get(folderKey);
+        if (current != null && current >= uidValidity) {
+            return current == uidValidity;
+        }
+        uidValidityMap.put(folderKey, uidValidity);
+        if (current != null) {
+            // 旧的邮件留在段文件里, 查询时跳过, 合并时删除
+            String prefix = folderKey + '\u0000' + current + '\u0000';
+            keySet.removeIf(key -> key.startsWith(prefix));
+            log.info("EmailFullTextIndex uidValidity changed account = {}, folder = {}, {} -> {}", account, folderName, current, uidValidity);
+        }
+        return true;
+    }
+
+    /**
+     * @return true=UID重置之后加入的
+     */
+    private boolean isCurrent(String account, String folderName, long uidValidity) {
+        Long current = uidValidityMap.get(folderKey(account, folderName));
+        return current == null || current == uidValidity;
+    }
+
+    /**
+     * 查询所有账号
+     *
+     * @see #search(String, String, int)
+     */
+    public List<Hit> search(String query, int limit) {
+        return search(null, query, limit);
+    }
+
+    /**
+     * 查询, 所有词都出现的邮件. 同一段内后加入的在前
+     *
+     * @param account 账号, null=所有账号
+     * @param query   查询文本, 和邮件用同样的方式分词
+     * @param limit   最多返回几条
+     * @return 命中的邮件, 没有返回空列表
+     */
+    public List<Hit> search(String account, String query, int limit) {
+        Set<String> termSet = new LinkedHashSet<>();
+        tokenize(query, termSet::add);
+        List<Hit> result = new ArrayList<>();
+        if (termSet.isEmpty() || limit <= 0) {
+            return result;
+        }
+        byte[][] terms = new byte[termSet.size()][];
+        int i = 0;
+        for (String term : termSet) {
+            terms[i++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        lock.readLock().lock();
+        try {
+            checkClose();
+            // 内存里的最新, 然后是正在写盘的, 然后段号从大到小
+            search(buffer, account, terms, limit, result);
+            for (Iterator<Buffer> iterator = flushingDeque.descendingIterator(); iterator.hasNext() && result.size() < limit; ) {
+                search(iterator.next(), account, terms, limit, result);
+            }
+            for (int s = segmentList.size() - 1; s >= 0 && result.size() < limit; s--) {
+                Segment segment = segmentList.get(s);
+                int[] docs = intersect(terms, segment::postings);
+                for (int j = docs.length - 1; j >= 0 && result.size() < limit; j--) {
+                    int doc = docs[j];
+                    if ((account == null || account.equals(segment.accounts[doc]))
+                            && isCurrent(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc])) {
+                        result.add(new Hit(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc], segment.uids[doc]));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void search(Buffer buffer, String account, byte[][] terms, int limit, List<Hit> result) {
+        int[] docs = intersect(terms, term -> {
+            IntList list = buffer.postingMap.get(new String(term, StandardCharsets.UTF_8));
+            return list != null ? list.toArray() : EMPTY;
+        });
+        for (int j = docs.length - 1; j >= 0 && result.size() < limit; j--) {
+            Doc doc = buffer.docList.get(docs[j]);
+            if ((account == null || account.equals(doc.account)) && isCurrent(doc.account, doc.folderName, doc.uidValidity)) {
+                result.add(new Hit(doc.account, doc.folderName, doc.uidValidity, doc.uid));
+            }
+        }
+    }
+
+    private static int[] intersect(byte[][] terms, Function<byte[], int[]> postings) {
+        int[][] lists = new int[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            lists[i] = postings.apply(terms[i]);
+            if (lists[i].length == 0) {
+                return EMPTY;
+            }
+        }
+        // 从短的开始求交集
+        Arrays.sort(lists, Comparator.comparingInt(e -> e.length));
+        int[] result = lists[0];
+        for (int i = 1; i < lists.length && result.length > 0; i++) {
+            int[] other = lists[i];
+            int[] temp = new int[result.length];
+            int size = 0;
+            for (int a = 0, b = 0; a < result.length && b < other.length; ) {
+                if (result[a] < other[b]) {
+                    a++;
+                } else if (result[a] > other[b]) {
+                    b++;
+                } else {
+                    temp[size++] = result[a];
+                    a++;
+                    b++;
+                }
+            }
+            result = Arrays.copyOf(temp, size);
+        }
+        return result;
+    }
+
+    /**
+     * 把内存里的邮件写成段文件, 等后台写盘和合并完成
+     *
+     * @throws IOException 写盘失败
+     */
+    public void flush() throws IOException {
+        CompletableFuture<Void> future;
+        lock.writeLock().lock();
+        try {
+            checkClose();
+            future = scheduleFlush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        await(future);
+    }
+
+    /**
+     * 把内存里的邮件交给后台写盘, 调用时要持有写锁
+     *
+     * @return 写盘和合并完成
+     */
+    private CompletableFuture<Void> scheduleFlush() {
+        if (!buffer.docList.isEmpty()) {
+            flushingDeque.addLast(buffer);
+            buffer = new Buffer();
+        }
+        // 上一次失败了也继续, 没写成的还在flushingDeque里, 这次重试
+        CompletableFuture<Void> future = flushFuture.handle((v, e) -> (Void) null).thenRunAsync(this::drain, flushExecutor);
+        flushFuture = future;
+        return future;
+    }
+
+    private static void await(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("EmailFullTextIndex flush interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("EmailFullTextIndex flush error " + cause, cause);
+        }
+    }
+
+    /**
+     * 后台线程: 按顺序写盘, 然后合并. 写文件时不持有锁, 不挡加入和查询
+     */
+    private void drain() {
+        try {
+            while (true) {
+                Buffer flushing;
+                long generation;
+                lock.writeLock().lock();
+                try {
+                    flushing = flushingDeque.peekFirst();
+                    if (closeFlag || flushing == null) {
+                        break;
+                    }
+                    generation = nextGeneration++;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                Segment segment = writeSegment(generation, new long[0], flushing.docList, flushing.sortedTerms());
+                lock.writeLock().lock();
+                try {
+                    segmentList.add(segment);
+                    flushingDeque.removeFirst();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                log.debug("EmailFullTextIndex flush segment = {}, docs = {}", generation, segment.docCount);
+            }
+            mergeSegments();
+        } catch (IOException e) {
+            log.warn("EmailFullTextIndex flush error = {}", e.toString(), e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 增量合并: 段太多时, 合并最小的几个. 段文件不会修改, 合并时不持有锁
+     */
+    private void mergeSegments() throws IOException {
+        while (true) {
+            List<Segment> sourceList;
+            int[][] docMaps;
+            long generation;
+            lock.writeLock().lock();
+            try {
+                sourceList = closeFlag ? null : selectMergeSources();
+                if (sourceList == null) {
+                    return;
+                }
+                docMaps = mergeDocMaps(sourceList);
+                generation = nextGeneration++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            Segment merged = mergeSegments(generation, sourceList, docMaps);
+            lock.writeLock().lock();
+            try {
+                segmentList.removeAll(sourceList);
+                segmentList.add(merged);
+                for (Segment segment : sourceList) {
+                    segment.delete();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return 要合并的段, 按段号排序. null=不用合并
+     */
+    private List<Segment> selectMergeSources() {
+        if (segmentList.size() <= maxSegmentCount) {
+            return null;
+        }
+        List<Segment> sortedList = new ArrayList<>(segmentList);
+        sortedList.sort(Comparator.comparingLong(e -> e.fileSize));
+        List<Segment> sourceList = new ArrayList<>();
+        long totalSize = 0;
+        for (Segment segment : sortedList) {
+            if (sourceList.size() >= Math.max(2, mergeFactor) || totalSize + segment.fileSize > MAX_SEGMENT_BYTES) {
+                break;
+            }
+            sourceList.add(segment);
+            totalSize += segment.fileSize;
+        }
+        if (sourceList.size() < 2) {
+            return null;
+        }
+        // 保持加入的先后顺序
+        sourceList.sort(Comparator.comparingLong(e -> e.generation));
+        return sourceList;
+    }
+
+    /**
+     * 合并后的段内序号, 调用时要持有写锁
+     *
+     * @return [来源段][段内序号] = 合并后的序号, -1=UID重置之前的邮件, 合并时删除
+     */
+    private int[][] mergeDocMaps(List<Segment> sourceList) {
+        int[][] docMaps = new int[sourceList.size()][];
+        int next = 0;
+        for (int i = 0; i < sourceList.size(); i++) {
+            Segment segment = sourceList.get(i);
+            docMaps[i] = new int[segment.docCount];
+            for (int doc = 0; doc < segment.docCount; doc++) {
+                docMaps[i][doc] = isCurrent(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc]) ? next++ : -1;
+            }
+        }
+        return docMaps;
+    }
+
+    private Segment mergeSegments(long generation, List<Segment> sourceList, int[][] docMaps) throws IOException {
+        long[] sources = new long[sourceList.size()];
+        List<Doc> docList = new ArrayList<>();
+        for (int i = 0; i < sourceList.size(); i++) {
+            Segment segment = sourceList.get(i);
+            sources[i] = segment.generation;
+            for (int doc = 0; doc < segment.docCount; doc++) {
+                if (docMaps[i][doc] >= 0) {
+                    docList.add(new Doc(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc], segment.uids[doc]));
+                }
+            }
+        }
+        Segment merged = writeSegment(generation, sources, docList, new MergeIterator(sourceList, docMaps));
+        log.debug("EmailFullTextIndex merge segments = {} into {}, docs = {}", Arrays.toString(sources), merged.generation, merged.docCount);
+        return merged;
+    }
+
+    private Segment writeSegment(long generation, long[] sources, List<Doc> docList, Iterator<Map.Entry<byte[], int[]>> terms) throws IOException {
+        Path tempPath = directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX + TEMP_SUFFIX);
+        Path path = directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX);
+        try (FileOutputStream fileOut = new FileOutputStream(tempPath.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(sources.length);
+            for (long source : sources) {
+                out.writeLong(source);
+            }
+            out.writeInt(docList.size());
+            for (Doc doc : docList) {
+                writeString(out, doc.account);
+                writeString(out, doc.folderName);
+                out.writeLong(doc.uidValidity);
+                out.writeLong(doc.uid);
+            }
+            // 倒排表直接写文件, 词典和词表先放内存
+            long postingsOffset = out.size();
+            ByteArrayOutputStream termBytes = new ByteArrayOutputStream();
+            IntList termTable = new IntList();
+            int postingIndex = 0;
+            while (terms.hasNext()) {
+                Map.Entry<byte[], int[]> entry = terms.next();
+                if (entry.getValue().length == 0) {
+                    // 合并时邮件都删除了的词
+                    continue;
+                }
+                termTable.add(termBytes.size());
+                termTable.add(postingIndex);
+                termTable.add(entry.getValue().length);
+                termBytes.write(entry.getKey());
+                for (int doc : entry.getValue()) {
+                    out.writeInt(doc);
+                }
+                postingIndex += entry.getValue().length;
+            }
+            long termBytesOffset = out.size();
+            termBytes.writeTo(out);
+            long termTableOffset = out.size();
+            for (int i = 0; i < termTable.size; i++) {
+                out.writeInt(termTable.data[i]);
+            }
+            out.writeLong(postingsOffset);
+            out.writeLong(termBytesOffset);
+            out.writeInt(termBytes.size());
+            out.writeLong(termTableOffset);
+            out.writeInt(termTable.size / 3);
+            out.writeInt(MAGIC);
+            out.flush();
+            if (out.size() == Integer.MAX_VALUE) {
+                throw new IOException("segment too large. generation=" + generation);
+            }
+            fileOut.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+        return new Segment(path);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = Objects.toString(value, "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * 加载段文件, 删除合并过程中崩溃留下的临时文件和已被合并的旧段
+     */
+    private void load() throws IOException {
+        List<Segment> loadList = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (!fileName.startsWith(SEGMENT_PREFIX)) {
+                    continue;
+                }
+                if (fileName.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(path);
+                } else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        loadList.add(new Segment(path));
+                    } catch (IOException e) {
+                        log.warn("EmailFullTextIndex skip broken segment = {}, error = {}", path, e.toString());
+                    }
+                }
+            }
+        }
+        Set<Long> mergedSet = new HashSet<>();
+        for (Segment segment : loadList) {
+            for (long source : segment.sources) {
+                mergedSet.add(source);
+            }
+            nextGeneration = Math.max(nextGeneration, segment.generation + 1);
+        }
+        loadList.sort(Comparator.comparingLong(e -> e.generation));
+        for (Segment segment : loadList) {
+            if (mergedSet.contains(segment.generation)) {
+                segment.delete();
+                continue;
+            }
+            segmentList.add(segment);
+            for (int doc = 0; doc < segment.docCount; doc++) {
+                uidValidityMap.merge(folderKey(segment.accounts[doc], segment.folderNames[doc]), segment.uidValidities[doc], Math::max);
+            }
+        }
+        for (Segment segment : segmentList) {
+            for (int doc = 0; doc < segment.docCount; doc++) {
+                if (isCurrent(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc])) {
+                    keySet.add(key(segment.accounts[doc], segment.folderNames[doc], segment.uidValidities[doc], segment.uids[doc]));
+                }
+            }
+        }
+    }
+
+    private void checkClose() {
+        if (closeFlag) {
+            throw new IllegalStateException("EmailFullTextIndex closed");
+        }
+    }
+
+    /**
+     * @return 已加入的邮件数
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return keySet.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segmentList.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getFlushDocCount() {
+        return flushDocCount;
+    }
+
+    public void setFlushDocCount(int flushDocCount) {
+        this.flushDocCount = Math.max(1, flushDocCount);
+    }
+
+    public int getMaxSegmentCount() {
+        return maxSegmentCount;
+    }
+
+    public void setMaxSegmentCount(int maxSegmentCount) {
+        this.maxSegmentCount = Math.max(1, maxSegmentCount);
+    }
+
+    public int getMergeFactor() {
+        return mergeFactor;
+    }
+
+    /**
+     * @param mergeFactor 一次最多合并几个段, 最少2个
+     */
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = Math.max(2, mergeFactor);
+    }
+
+    public int getMaxTextChars() {
+        return maxTextChars;
+    }
+
+    /**
+     * @param maxTextChars 每封邮件最多索引多少个正文字符
+     */
+    public void setMaxTextChars(int maxTextChars) {
+        this.maxTextChars = maxTextChars;
+    }
+
+    public Executor getFlushExecutor() {
+        return flushExecutor;
+    }
+
+    /**
+     * @param flushExecutor 后台写盘和合并用的线程, 默认是所有索引共用的一个守护线程
+     */
+    public void setFlushExecutor(Executor flushExecutor) {
+        this.flushExecutor = Objects.requireNonNull(flushExecutor, "flushExecutor");
+    }
+
+    /**
+     * 等后台写盘完成后关闭
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Void> future;
+        lock.writeLock().lock();
+        try {
+            if (closeFlag) {
+                return;
+            }
+            future = scheduleFlush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            await(future);
+        } catch (IOException e) {
+            log.warn("EmailFullTextIndex flush error = {}", e.toString(), e);
+        }
+        lock.writeLock().lock();
+        try {
+            closeFlag = true;
+            segmentList.clear();
+            flushingDeque.clear();
+            buffer = new Buffer();
+            keySet.clear();
+            uidValidityMap.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EmailFullTextIndex{directory=" + directory + ", size=" + keySet.size() + ", segments=" + segmentList.size() + "}";
+    }
+
+    /**
+     * 命中的邮件
+     */
+    public static class Hit {
+        private final String account;
+        private final String folderName;
+        private final long uidValidity;
+        private final long uid;
+
+        public Hit(String account, String folderName, long uidValidity, long uid) {
+            this.account = account;
+            this.folderName = folderName;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public String getFolderName() {
+            return folderName;
+        }
+
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        public long getUid() {
+            return uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Hit)) {
+                return false;
+            }
+            Hit hit = (Hit) o;
+            return uidValidity == hit.uidValidity && uid == hit.uid && Objects.equals(account, hit.account) && Objects.equals(folderName, hit.folderName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(account, folderName, uidValidity, uid);
+        }
+
+        @Override
+        public String toString() {
+            return account + "/" + folderName + "/" + uidValidity + "/" + uid;
+        }
+    }
+
+    private static class Doc {
+        private final String account;
+        private final String folderName;
+        private final long uidValidity;
+        private final long uid;
+
+        private Doc(String account, String folderName, long uidValidity, long uid) {
+            this.account = account;
+            this.folderName = folderName;
+            this.uidValidity = uidValidity;
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * 内存里还没写成段文件的邮件. 交给后台写盘后不再修改
+     */
+    private static class Buffer {
+        private final List<Doc> docList = new ArrayList<>();
+        private final Map<String, IntList> postingMap = new HashMap<>();
+
+        private void add(Doc doc, Set<String> termSet) {
+            int docIndex = docList.size();
+            docList.add(doc);
+            for (String term : termSet) {
+                postingMap.computeIfAbsent(term, k -> new IntList()).add(docIndex);
+            }
+        }
+
+        private Iterator<Map.Entry<byte[], int[]>> sortedTerms() {
+            List<Map.Entry<byte[], int[]>> termList = new ArrayList<>(postingMap.size());
+            for (Map.Entry<String, IntList> entry : postingMap.entrySet()) {
+                termList.add(new AbstractMap.SimpleEntry<>(entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue().toArray()));
+            }
+            termList.sort((a, b) -> compareBytes(a.getKey(), b.getKey()));
+            return termList.iterator();
+        }
+    }
+
+    private static class IntList {
+        private int[] data = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size << 1);
+            }
+            data[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    /**
+     * 段文件, 邮件列表在堆里, 词典和倒排表用内存映射读取
+     */
+    private static class Segment {
+        private final Path path;
+        private final long fileSize;
+        private final ByteBuffer buffer;
+        private final long generation;
+        private final long[] sources;
+        private final int docCount;
+        private final String[] accounts;
+        private final String[] folderNames;
+        private final long[] uidValidities;
+        private final long[] uids;
+        private final int postingsOffset;
+        private final int termBytesOffset;
+        private final int termBytesLength;
+        private final int termTableOffset;
+        private final int termCount;
+
+        private Segment(Path path) throws IOException {
+            this.path = path;
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.fileSize = channel.size();
+                if (fileSize < FOOTER_SIZE || fileSize > MAX_SEGMENT_BYTES) {
+                    throw new IOException("bad segment size " + fileSize);
+                }
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            }
+            this.buffer = mapped;
+            int footer = (int) fileSize - FOOTER_SIZE;
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(footer + FOOTER_SIZE - 4) != MAGIC) {
+                throw new IOException("bad segment magic");
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > VERSION) {
+                throw new IOException("unsupported segment version " + version);
+            }
+            this.postingsOffset = (int) buffer.getLong(footer);
+            this.termBytesOffset = (int) buffer.getLong(footer + 8);
+            this.termBytesLength = buffer.getInt(footer + 16);
+            this.termTableOffset = (int) buffer.getLong(footer + 20);
+            this.termCount = buffer.getInt(footer + 28);
+
+            ByteBuffer header = buffer.duplicate();
+            header.position(8);
+            this.generation = header.getLong();
+            this.sources = new long[header.getInt()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = header.getLong();
+            }
+            this.docCount = header.getInt();
+            this.accounts = new String[docCount];
+            this.folderNames = new String[docCount];
+            this.uidValidities = new long[docCount];
+            this.uids = new long[docCount];
+            // 账号和文件夹重复很多, 共享同一个字符串
+            Map<String, String> stringPool = new HashMap<>();
+            for (int i = 0; i < docCount; i++) {
+                accounts[i] = stringPool.computeIfAbsent(readString(header), k -> k);
+                folderNames[i] = stringPool.computeIfAbsent(readString(header), k -> k);
+                uidValidities[i] = version >= 2 ? header.getLong() : 0L;
+                uids[i] = header.getLong();
+            }
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int termStart(int index) {
+            return buffer.getInt(termTableOffset + index * TERM_ENTRY_SIZE);
+        }
+
+        private int termEnd(int index) {
+            return index + 1 < termCount ? termStart(index + 1) : termBytesLength;
+        }
+
+        private byte[] term(int index) {
+            int start = termStart(index);
+            byte[] bytes = new byte[termEnd(index) - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(termBytesOffset + start + i);
+            }
+            return bytes;
+        }
+
+        private int compareTerm(int index, byte[] term) {
+            int start = termBytesOffset + termStart(index);
+            int length = termBytesOffset + termEnd(index) - start;
+            int min = Math.min(length, term.length);
+            for (int i = 0; i < min; i++) {
+                int diff = (buffer.get(start + i) & 0xFF) - (term[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return length - term.length;
+        }
+
+        private int[] postingsAt(int index) {
+            int entry = termTableOffset + index * TERM_ENTRY_SIZE;
+            int position = postingsOffset + buffer.getInt(entry + 4) * 4;
+            int[] docs = new int[buffer.getInt(entry + 8)];
+            for (int i = 0; i < docs.length; i++) {
+                docs[i] = buffer.getInt(position + i * 4);
+            }
+            return docs;
+        }
+
+        /**
+         * 二分查找词典
+         */
+        private int[] postings(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareTerm(mid, term);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return postingsAt(mid);
+                }
+            }
+            return EMPTY;
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // windows下映射中的文件删不掉, 下次打开时会按来源段号删除
+                log.warn("EmailFullTextIndex delete segment error = {}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * 多个段的词典按字节顺序归并, 倒排表按段的顺序拼接, 段内序号换成合并后的序号, 删除的邮件跳过
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<byte[], int[]>> {
+        private final List<Segment> sourceList;
+        private final int[][] docMaps;
+        private final int[] positions;
+        private final PriorityQueue<Integer> queue;
+        private final byte[][] currentTerms;
+
+        private MergeIterator(List<Segment> sourceList, int[][] docMaps) {
+            this.sourceList = sourceList;
+            this.docMaps = docMaps;
+            this.positions = new int[sourceList.size()];
+            this.currentTerms = new byte[sourceList.size()][];
+            this.queue = new PriorityQueue<>(Math.max(1, sourceList.size()), (a, b) -> {
+                int cmp = compareBytes(currentTerms[a], currentTerms[b]);
+                return cmp != 0 ? cmp : Integer.compare(a, b);
+            });
+            for (int i = 0; i < sourceList.size(); i++) {
+                advance(i);
+            }
+        }
+
+        private void advance(int source) {
+            Segment segment = sourceList.get(source);
+            if (positions[source] < segment.termCount) {
+                currentTerms[source] = segment.term(positions[source]);
+                queue.add(source);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<byte[], int[]> next() {
+            if (queue.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            byte[] term = currentTerms[queue.peek()];
+            // 同一个词的段按序号从小到大出队
+            IntList docs = new IntList();
+            while (!queue.isEmpty() && compareBytes(currentTerms[queue.peek()], term) == 0) {
+                int source = queue.poll();
+                for (int doc : sourceList.get(source).postingsAt(positions[source])) {
+                    if (docMaps[source][doc] >= 0) {
+                        docs.add(docMaps[source][doc]);
+                    }
+                }
+                positions[source]++;
+                advance(source);
+            }
+            return new AbstractMap.SimpleEntry<>(term, docs.toArray());
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.*;
+import javax.mail.internet.InternetAddress;
+import javax.mail.search.SearchTerm;
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+/**
+ * 邮件列式索引 (struct-of-arrays)
+ * 1. 几十万封邮件的元数据列表, 每封邮件只占几个基本类型数组的槽位, 不持有 {@link Message} 对象
+ * 2. 发件人, 文件夹名称去重后共享同一个字符串引用
+ * 3. 排序 {@link #sort(int[], IntToLongFunction, boolean)} 和过滤 {@link #filter(int[], IntPredicate)} 都在基本类型数组上进行, 不装箱
+ * 4. 需要邮件内容时, 再用 {@link #getEmailMessage(int)} 根据UID物化成 {@link EmailService.EmailMessage}
+ * <p>
+ * 行号row 就是添加的顺序, 0 ~ {@link #size()}-1
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailIndex(EmailService.Account, SearchTerm)
+ */
+public class EmailIndex implements EmailService.Closeable {
+    public static final int FLAG_ANSWERED = 1;
+    public static final int FLAG_DELETED = 1 << 1;
+    public static final int FLAG_DRAFT = 1 << 2;
+    public static final int FLAG_FLAGGED = 1 << 3;
+    public static final int FLAG_RECENT = 1 << 4;
+    public static final int FLAG_SEEN = 1 << 5;
+    public static final int FLAG_USER = 1 << 6;
+    private static final Logger log = LoggerFactory.getLogger(EmailIndex.class);
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final Store store;
+    private final String username;
+    /**
+     * 去重后的字符串 (发件人, 文件夹名称)
+     */
+    private final Map<String, String> stringPool = new HashMap<>();
+    private final Map<String, Folder> folderMap = new LinkedHashMap<>();
+    private int size;
+    private long[] uids = new long[DEFAULT_CAPACITY];
+    private long[] receivedDates = new long[DEFAULT_CAPACITY];
+    private int[] sizes = new int[DEFAULT_CAPACITY];
+    private int[] flags = new int[DEFAULT_CAPACITY];
+    private String[] senders = new String[DEFAULT_CAPACITY];
+    private String[] folderNames = new String[DEFAULT_CAPACITY];
+    /**
+     * 物化的邮件读取内容后加入全文索引, 同 {@link EmailService#setFullTextIndex(EmailFullTextIndex)}
+     */
+    private EmailFullTextIndex fullTextIndex;
+    private EmailMetrics metrics = EmailMetrics.NOOP;
+    private boolean closeFlag = false;
+
+    public EmailIndex() {
+        this(null, null);
+    }
+
+    public EmailIndex(Store store, String username) {
+        this.store = store;
+        this.username = username;
+    }
+
+    public static EmailIndex valueOf(List<? extends EmailService.EmailMessage> list) throws MessagingException {
+        EmailIndex index = new EmailIndex(null, null);
+        for (EmailService.EmailMessage message : list) {
+            Message email = message.getEmail();
+            index.folderMap.putIfAbsent(message.getFolderName(), email.getFolder());
+            index.add(message.getFolderName(), message.getUid(), email.getReceivedDate(), email.getSize(),
+                    toFlagBits(email.getFlags()), message.getSenderEmail());
+        }
+        return index;
+    }
+
+    public static int toFlagBits(Flags flags) {
+        int bits = 0;
+        for (Flags.Flag flag : flags.getSystemFlags()) {
+            if (flag == Flags.Flag.ANSWERED) {
+                bits |= FLAG_ANSWERED;
+            } else if (flag == Flags.Flag.DELETED) {
+                bits |= FLAG_DELETED;
+            } else if (flag == Flags.Flag.DRAFT) {
+                bits |= FLAG_DRAFT;
+            } else if (flag == Flags.Flag.FLAGGED) {
+                bits |= FLAG_FLAGGED;
+            } else if (flag == Flags.Flag.RECENT) {
+                bits |= FLAG_RECENT;
+            } else if (flag == Flags.Flag.SEEN) {
+                bits |= FLAG_SEEN;
+            } else if (flag == Flags.Flag.USER) {
+                bits |= FLAG_USER;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * 查询文件夹的邮件, 一次FETCH取回 UID,信封,标记,大小 后加入索引
+     *
+     * @param folder 已打开的文件夹
+     * @param query  查询条件, 可以为null
+     * @return 新增的行数
+     */
+    public int addFolder(Folder folder, SearchTerm query) throws MessagingException {
+        return addFolder(folder, SearchTermPlanner.Plan.serverOnly(query));
+    }
+
+    /**
+     * 按查询计划查询文件夹的邮件, 取回信封后再按计划在本地精确过滤
+     *
+     * @param folder 已打开的文件夹
+     * @param plan   查询计划 {@link SearchTermPlanner#plan(SearchTerm, Store, String)}
+     * @return 新增的行数
+     */
+    public int addFolder(Folder folder, SearchTermPlanner.Plan plan) throws MessagingException {
+        SearchTerm query = plan.getServerTerm();
+        Message[] messages = query != null ? folder.search(query) : folder.getMessages();
+        if (messages.length == 0) {
+            return 0;
+        }
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.SIZE);
+        if (folder instanceof UIDFolder) {
+            profile.add(UIDFolder.FetchProfileItem.UID);
+        }
+        folder.fetch(messages, profile);
+
+        String folderName = folder.getFullName();
+        folderMap.putIfAbsent(folderName, folder);
+        ensureCapacity(size + messages.length);
+        int count = 0;
+        for (Message message : messages) {
+            if (!plan.match(message)) {
+                continue;
+            }
+            count++;
+            long uid = folder instanceof UIDFolder ? ((UIDFolder) folder).getUID(message) : -1L;
+            Address[] froms = message.getFrom();
+            String sender = froms != null && froms.length > 0 && froms[0] instanceof InternetAddress ?
+                    ((InternetAddress) froms[0]).getAddress() : null;
+            add(folderName, uid, message.getReceivedDate(), message.getSize(), toFlagBits(message.getFlags()), sender);
+        }
+        return count;
+    }
+
+    public int add(String folderName, long uid, Date receivedDate, int size, int flagBits, String sender) {
+        return add(folderName, uid, receivedDate != null ? receivedDate.getTime() : 0L, size, flagBits, sender);
+    }
+
+    /**
+     * 加入一行
+     *
+     * @return 行号
+     */
+    public int add(String folderName, long uid, long receivedDate, int size, int flagBits, String sender) {
+        ensureCapacity(this.size + 1);
+        int row = this.size++;
+        uids[row] = uid;
+        receivedDates[row] = receivedDate;
+        sizes[row] = size;
+        flags[row] = flagBits;
+        senders[row] = intern(sender);
+        folderNames[row] = intern(folderName);
+        return row;
+    }
+
+    private String intern(String string) {
+        if (string == null) {
+            return null;
+        }
+        String exist = stringPool.putIfAbsent(string, string);
+        return exist != null ? exist : string;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= uids.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, uids.length + (uids.length >> 1));
+        uids = Arrays.copyOf(uids, newCapacity);
+        receivedDates = Arrays.copyOf(receivedDates, newCapacity);
+        sizes = Arrays.copyOf(sizes, newCapacity);
+        flags = Arrays.copyOf(flags, newCapacity);
+        senders = Arrays.copyOf(senders, newCapacity);
+        folderNames = Arrays.copyOf(folderNames, newCapacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getUid(int row) {
+        return uids[checkRow(row)];
+    }
+
+    public long getReceivedDate(int row) {
+        return receivedDates[checkRow(row)];
+    }
+
+    public int getSize(int row) {
+        return sizes[checkRow(row)];
+    }
+
+    public int getFlags(int row) {
+        return flags[checkRow(row)];
+    }
+
+    public boolean hasFlag(int row, int flagBit) {
+        return (flags[checkRow(row)] & flagBit) != 0;
+    }
+
+    public String getSender(int row) {
+        return senders[checkRow(row)];
+    }
+
+    public String getFolderName(int row) {
+        return folderNames[checkRow(row)];
+    }
+
+    public Store getStore() {
+        return store;
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row=" + row + ", size=" + size);
+        }
+        return row;
+    }
+
+    /**
+     * @return 所有行号 0 ~ size-1
+     */
+    public int[] rows() {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        return rows;
+    }
+
+    public int[] filter(int[] rows, IntPredicate predicate) {
+        int[] result = new int[rows.length];
+        int count = 0;
+        for (int row : rows) {
+            if (predicate.test(row)) {
+                result[count++] = row;
+            }
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    public int[] filterReceivedDate(int[] rows, long beginTime, long endTime) {
+        long[] receivedDates = this.receivedDates;
+        return filter(rows, row -> receivedDates[row] >= beginTime && receivedDates[row] <= endTime);
+    }
+
+    public int[] filterFlag(int[] rows, int flagBit, boolean set) {
+        int[] flags = this.flags;
+        return filter(rows, row -> ((flags[row] & flagBit) != 0) == set);
+    }
+
+    public int[] sortByReceivedDate(int[] rows, boolean desc) {
+        long[] receivedDates = this.receivedDates;
+        return sort(rows, row -> receivedDates[row], desc);
+    }
+
+    public int[] sortByUid(int[] rows, boolean desc) {
+        long[] uids = this.uids;
+        return sort(rows, row -> uids[row], desc);
+    }
+
+    public int[] sortBySize(int[] rows, boolean desc) {
+        int[] sizes = this.sizes;
+        return sort(rows, row -> sizes[row], desc);
+    }
+
+    /**
+     * 稳定排序 (归并), 返回排序后的新行号数组, 不修改入参
+     *
+     * @param rows 行号
+     * @param key  排序字段
+     * @param desc true=倒序
+     * @return 排序后的行号
+     */
+    public int[] sort(int[] rows, IntToLongFunction key, boolean desc) {
+        int n = rows.length;
+        long[] keys = new long[size];
+        for (int row : rows) {
+            keys[row] = desc ? ~key.applyAsLong(row) : key.applyAsLong(row);
+        }
+        int[] src = rows.clone();
+        int[] dst = new int[n];
+        for (int width = 1; width < n; width <<= 1) {
+            for (int lo = 0; lo < n; lo += width << 1) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + (width << 1), n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = keys[src[j]] < keys[src[i]] ? src[j++] : src[i++];
+                }
+                while (i < mid) {
+                    dst[k++] = src[i++];
+                }
+                while (j < hi) {
+                    dst[k++] = src[j++];
+                }
+            }
+            int[] temp = src;
+            src = dst;
+            dst = temp;
+        }
+        return src;
+    }
+
+    /**
+     * 物化成邮件对象, 需要文件夹支持UID
+     *
+     * @param row 行号
+     * @return 邮件, 邮件已被删除时返回null
+     */
+    public EmailService.EmailMessage getEmailMessage(int row) throws MessagingException {
+        UIDFolder folder = openFolder(getFolderName(row));
+        Message message = folder.getMessageByUID(getUid(row));
+        return message != null ? newEmailMessage(message) : null;
+    }
+
+    /**
+     * 批量物化, 按入参行号顺序. 每个文件夹只发一次 UID FETCH. 返回的列表关闭时不会关闭索引的连接
+     *
+     * @param rows 行号
+     * @return 邮件列表, 已被删除的邮件会跳过
+     */
+    public EmailService.EmailList<EmailService.EmailMessage> getEmailList(int[] rows) throws MessagingException {
+        // 文件夹 -> 这个文件夹的行号在rows里的下标
+        Map<String, List<Integer>> folderIndexMap = new LinkedHashMap<>();
+        for (int i = 0; i < rows.length; i++) {
+            folderIndexMap.computeIfAbsent(getFolderName(rows[i]), k -> new ArrayList<>()).add(i);
+        }
+        Message[] messages = new Message[rows.length];
+        for (Map.Entry<String, List<Integer>> entry : folderIndexMap.entrySet()) {
+            UIDFolder folder = openFolder(entry.getKey());
+            List<Integer> indexes = entry.getValue();
+            long[] uids = new long[indexes.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = getUid(rows[indexes.get(i)]);
+            }
+            Folder openFolder = (Folder) folder;
+            Message[] fetched = metrics.time(EmailMetrics.Operation.FETCH, EmailService.getHost(openFolder), openFolder.getFullName(),
+                    () -> folder.getMessagesByUID(uids));
+            for (int i = 0; i < uids.length; i++) {
+                messages[indexes.get(i)] = fetched[i];
+            }
+        }
+        EmailService.EmailList<EmailService.EmailMessage> list = new EmailService.EmailList<>();
+        for (Message message : messages) {
+            if (message != null) {
+                list.add(newEmailMessage(message));
+            }
+        }
+        return list;
+    }
+
+    private UIDFolder openFolder(String folderName) throws MessagingException {
+        Folder folder = folderMap.get(folderName);
+        if (!(folder instanceof UIDFolder)) {
+            throw new MessagingException("folder not support uid. folder=" + folderName);
+        }
+        if (!folder.isOpen()) {
+            folder.open(Folder.READ_ONLY);
+        }
+        return (UIDFolder) folder;
+    }
+
+    private EmailService.EmailMessage newEmailMessage(Message message) {
+        EmailService.EmailMessage emailMessage = new EmailService.EmailMessage(message, null);
+        emailMessage.setUsername(username);
+        emailMessage.setFullTextIndex(fullTextIndex);
+        emailMessage.setMetrics(metrics);
+        return emailMessage;
+    }
+
+    void setFullTextIndex(EmailFullTextIndex fullTextIndex) {
+        this.fullTextIndex = fullTextIndex;
+    }
+
+    void setMetrics(EmailMetrics metrics) {
+        this.metrics = metrics != null ? metrics : EmailMetrics.NOOP;
+    }
+
+    @Override
+    public void close() {
+        if (closeFlag) {
+            return;
+        }
+        closeFlag = true;
+        for (Folder folder : folderMap.values()) {
+            try {
+                if (folder != null && folder.isOpen()) {
+                    folder.close(false);
+                }
+            } catch (MessagingException e) {
+                log.warn("EmailIndex folder close error = {}", e.toString(), e);
+            }
+        }
+        if (store != null) {
+            try {
+                store.close();
+            } catch (MessagingException e) {
+                log.warn("EmailIndex store close error = {}", e.toString(), e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EmailIndex{size=" + size + ", folders=" + folderMap.keySet() + "}";
+    }
+}
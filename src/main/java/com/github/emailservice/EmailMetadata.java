@@ -0,0 +1,272 @@
+package com.github.emailservice;
+
+import com.sun.mail.imap.IMAPMessage;
+
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 邮件元数据 (信封, 标记, 大小, 时间), 不含正文
+ * 账号 + 文件夹 + UIDVALIDITY + UID 确定一封邮件
+ *
+ * @author wangzihao
+ * @see EmailMetadataStore
+ */
+public class EmailMetadata {
+    private static final String[] EMPTY = new String[0];
+
+    private String account;
+    private String folderName;
+    private long uidValidity;
+    private long uid;
+    private String messageId;
+    private String inReplyTo;
+    private String references;
+    private String subject;
+    /**
+     * 地址格式 "名称 &lt;邮箱&gt;", 已解码
+     */
+    private String[] from = EMPTY;
+    private String[] to = EMPTY;
+    private String[] cc = EMPTY;
+    /**
+     * 毫秒时间戳, 0=没有
+     */
+    private long sentDate;
+    private long receivedDate;
+    private int size;
+    /**
+     * {@link EmailIndex#FLAG_SEEN} 等
+     */
+    private int flagBits;
+    private String[] userFlags = EMPTY;
+
+    public EmailMetadata() {
+    }
+
+    /**
+     * 从已经FETCH过信封,标记,大小的邮件读取, 不会再访问服务器
+     */
+    public static EmailMetadata valueOf(String account, long uidValidity, long uid, Message message) throws MessagingException {
+        EmailMetadata metadata = new EmailMetadata();
+        metadata.account = account;
+        metadata.folderName = message.getFolder() != null ? message.getFolder().getFullName() : null;
+        metadata.uidValidity = uidValidity;
+        metadata.uid = uid;
+        if (message instanceof IMAPMessage) {
+            metadata.messageId = ((IMAPMessage) message).getMessageID();
+            metadata.inReplyTo = ((IMAPMessage) message).getInReplyTo();
+        } else {
+            metadata.messageId = firstHeader(message, "Message-ID");
+            metadata.inReplyTo = firstHeader(message, "In-Reply-To");
+        }
+        metadata.references = firstHeader(message, "References");
+        metadata.subject = message.getSubject();
+        metadata.from = toStrings(message.getFrom());
+        metadata.to = toStrings(message.getRecipients(Message.RecipientType.TO));
+        metadata.cc = toStrings(message.getRecipients(Message.RecipientType.CC));
+        metadata.sentDate = toTime(message.getSentDate());
+        metadata.receivedDate = toTime(message.getReceivedDate());
+        metadata.size = message.getSize();
+        metadata.setFlags(message.getFlags());
+        return metadata;
+    }
+
+    private static String firstHeader(Message message, String name) throws MessagingException {
+        String[] values = message.getHeader(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    private static String[] toStrings(Address[] addresses) {
+        if (addresses == null || addresses.length == 0) {
+            return EMPTY;
+        }
+        String[] strings = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            Address address = addresses[i];
+            strings[i] = address instanceof InternetAddress ? ((InternetAddress) address).toUnicodeString() : address.toString();
+        }
+        return strings;
+    }
+
+    private static long toTime(Date date) {
+        return date != null ? date.getTime() : 0L;
+    }
+
+    /**
+     * @param address "名称 &lt;邮箱&gt;" 或 "邮箱"
+     * @return 邮箱, 小写
+     */
+    public static String getEmail(String address) {
+        if (address == null) {
+            return null;
+        }
+        int begin = address.lastIndexOf('<');
+        int end = address.lastIndexOf('>');
+        String email = begin >= 0 && end > begin ? address.substring(begin + 1, end) : address;
+        return email.trim().toLowerCase();
+    }
+
+    public boolean hasFlag(int flagBit) {
+        return (flagBits & flagBit) != 0;
+    }
+
+    public void setFlags(Flags flags) {
+        this.flagBits = EmailIndex.toFlagBits(flags);
+        String[] userFlags = flags.getUserFlags();
+        this.userFlags = userFlags != null ? userFlags : EMPTY;
+    }
+
+    public String getAccount() {
+        return account;
+    }
+
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    public String getFolderName() {
+        return folderName;
+    }
+
+    public void setFolderName(String folderName) {
+        this.folderName = folderName;
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public void setUidValidity(long uidValidity) {
+        this.uidValidity = uidValidity;
+    }
+
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getInReplyTo() {
+        return inReplyTo;
+    }
+
+    public void setInReplyTo(String inReplyTo) {
+        this.inReplyTo = inReplyTo;
+    }
+
+    public String getReferences() {
+        return references;
+    }
+
+    public void setReferences(String references) {
+        this.references = references;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    public String[] getFrom() {
+        return from;
+    }
+
+    public void setFrom(String[] from) {
+        this.from = from != null ? from : EMPTY;
+    }
+
+    /**
+     * @return 第一个发件人的邮箱, 小写
+     */
+    public String getFromEmail() {
+        return from.length > 0 ? getEmail(from[0]) : null;
+    }
+
+    public String[] getTo() {
+        return to;
+    }
+
+    public void setTo(String[] to) {
+        this.to = to != null ? to : EMPTY;
+    }
+
+    public String[] getCc() {
+        return cc;
+    }
+
+    public void setCc(String[] cc) {
+        this.cc = cc != null ? cc : EMPTY;
+    }
+
+    public long getSentDate() {
+        return sentDate;
+    }
+
+    public void setSentDate(long sentDate) {
+        this.sentDate = sentDate;
+    }
+
+    public long getReceivedDate() {
+        return receivedDate;
+    }
+
+    public void setReceivedDate(long receivedDate) {
+        this.receivedDate = receivedDate;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public void setSize(int size) {
+        this.size = size;
+    }
+
+    public int getFlagBits() {
+        return flagBits;
+    }
+
+    public void setFlagBits(int flagBits) {
+        this.flagBits = flagBits;
+    }
+
+    public String[] getUserFlags() {
+        return userFlags;
+    }
+
+    public void setUserFlags(String[] userFlags) {
+        this.userFlags = userFlags != null ? userFlags : EMPTY;
+    }
+
+    @Override
+    public String toString() {
+        return "EmailMetadata{" +
+                "account='" + account + '\'' +
+                ", folderName='" + folderName + '\'' +
+                ", uid=" + uid +
+                ", subject='" + subject + '\'' +
+                ", from=" + Arrays.toString(from) +
+                ", receivedDate=" + receivedDate +
+                ", flagBits=" + flagBits +
+                '}';
+    }
+}
@@ -0,0 +1,819 @@
+package com.github.emailservice;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * 本地邮件元数据库, 列表查询不用每次都问服务器
+ * 1. 按 账号 + 文件夹 + UIDVALIDITY + UID 保存 {@link EmailMetadata} (信封, 标记, 大小, 时间, Message-ID)
+ * 2. 数据只追加写到日志文件, 内存里每个文件夹只保留 UID 和记录在日志里的位置 (有序的基本类型数组), 读取时再按位置解码
+ * 3. 同步 {@link #sync(Folder, String)} 先发一条 STATUS 取 UIDNEXT, HIGHESTMODSEQ, 邮件数. 都没变就不打开文件夹, 直接用本地的;
+ * 变了只取 UIDNEXT 之后的新邮件, 和 HIGHESTMODSEQ 之后改过标记的邮件. 服务器不支持CONDSTORE时, 超过 {@link #setFlagRefreshMillis(long)} 才重新取一次所有标记
+ * 4. UIDVALIDITY 变了, 丢弃这个文件夹的本地数据重新取
+ * 5. 被覆盖和删除的记录超过 {@link #setCompactThresholdBytes(long)} 时重写日志
+ * <p>
+ * 日志记录格式: [int 长度][byte 类型][数据][int crc32]. 末尾写了一半的记录在打开时截掉
+ * <p>
+ * 用法 emailService.setMetadataStore(new EmailMetadataStore(dir)); emailService.selectEmailMetadataList(account, e -> !e.hasFlag(EmailIndex.FLAG_SEEN))
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailMetadataList(EmailService.Account, Predicate)
+ */
+public class EmailMetadataStore implements EmailService.Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EmailMetadataStore.class);
+    private static final byte TYPE_FOLDER = 1;
+    private static final byte TYPE_PUT = 2;
+    private static final byte TYPE_REMOVE = 3;
+    /**
+     * 长度 + 类型
+     */
+    private static final int HEADER_SIZE = 4 + 1;
+    private static final int CRC_SIZE = 4;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path logPath;
+    private final Map<String, FolderEntry> folderMap = new LinkedHashMap<>();
+    /**
+     * 还没写到文件的记录
+     */
+    private final ByteArrayOutputStream pendingBuffer = new ByteArrayOutputStream();
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE);
+    private FileChannel channel;
+    private long writePosition;
+    /**
+     * 被覆盖和删除的记录大小
+     */
+    private long deadBytes;
+    private long compactThresholdBytes = 16L * 1024 * 1024;
+    private long flagRefreshMillis = 60_000L;
+    private boolean closeFlag = false;
+
+    /**
+     * 打开元数据库, 重放日志重建内存索引
+     *
+     * @param directory 日志目录
+     * @throws IOException 日志读写失败
+     */
+    public EmailMetadataStore(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        this.logPath = directory.toPath().resolve("metadata.log");
+        this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+        if (deadBytes >= compactThresholdBytes && deadBytes > writePosition / 2) {
+            compact();
+        }
+    }
+
+    private static String key(String account, String folderName) {
+        return account + '\u0000' + folderName;
+    }
+
+    /**
+     * 和服务器同步一个文件夹
+     *
+     * @param folder  IMAP文件夹, 没打开时只在有变化时打开, 同步后关闭
+     * @param account 账号
+     * @return true=本地数据有变化
+     * @throws MessagingException 读取服务器失败
+     * @throws IOException        写日志失败
+     */
+    public boolean sync(Folder folder, String account) throws MessagingException, IOException {
+        if (!(folder instanceof IMAPFolder)) {
+            throw new MessagingException("folder not support uid. folder=" + folder.getFullName());
+        }
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        String folderName = folder.getFullName();
+        boolean condstore = ((IMAPStore) folder.getStore()).hasCapability("CONDSTORE");
+        String[] items = condstore ? new String[]{"MESSAGES", "UIDNEXT", "UIDVALIDITY", "HIGHESTMODSEQ"}
+                : new String[]{"MESSAGES", "UIDNEXT", "UIDVALIDITY"};
+        Status status = (Status) imapFolder.doCommand(protocol -> protocol.status(folderName, items));
+        boolean modSeqKnown = condstore && status.highestmodseq > 0;
+        long now = System.currentTimeMillis();
+        FolderState local = getFolderState(account, folderName);
+        if (local != null && local.uidValidity == status.uidvalidity && local.uidNext == status.uidnext && local.size == status.total
+                && (modSeqKnown ? local.highestModSeq == status.highestmodseq : now - local.syncTime < flagRefreshMillis)) {
+            return false;
+        }
+        boolean open = !folder.isOpen();
+        if (open) {
+            folder.open(Folder.READ_ONLY);
+        }
+        try {
+            long uidValidity = imapFolder.getUIDValidity();
+            if (local == null || local.uidValidity != uidValidity) {
+                // 第一次同步, 或者UID失效
+                putFolderState(new FolderState(account, folderName, uidValidity, 0L, 0L, 0L));
+                putMessages(account, uidValidity, imapFolder, folder.getMessages());
+            } else {
+                if (status.uidnext > local.uidNext) {
+                    // 新邮件. UID范围 n:* 至少返回最后一封, 要过滤.
+                    // uidNext=0 是还没完整同步过 (第一次同步中途失败, 或只put过), UID从1开始, 0:* 服务器会报错
+                    long fromUid = Math.max(1L, local.uidNext);
+                    List<Message> newList = new ArrayList<>();
+                    for (Message message : imapFolder.getMessagesByUID(fromUid, UIDFolder.LASTUID)) {
+                        if (message != null && imapFolder.getUID(message) >= fromUid) {
+                            newList.add(message);
+                        }
+                    }
+                    putMessages(account, uidValidity, imapFolder, newList.toArray(new Message[0]));
+                }
+                if (modSeqKnown && local.highestModSeq > 0) {
+                    // 改过标记的邮件
+                    Message[] changed = imapFolder.getMessagesByUIDChangedSince(1L, UIDFolder.LASTUID, local.highestModSeq);
+                    fetchFlags(imapFolder, changed);
+                    for (Message message : changed) {
+                        updateFlags(account, folderName, imapFolder.getUID(message), message.getFlags());
+                    }
+                    if (folder.getMessageCount() != size(account, folderName)) {
+                        removeExpunged(account, imapFolder, folder.getMessages(), false);
+                    }
+                } else {
+                    removeExpunged(account, imapFolder, folder.getMessages(), true);
+                }
+            }
+            putFolderState(new FolderState(account, folderName, uidValidity, status.uidnext, modSeqKnown ? status.highestmodseq : 0L, now));
+            flush();
+        } finally {
+            if (open && folder.isOpen()) {
+                folder.close(false);
+            }
+        }
+        return true;
+    }
+
+    private void putMessages(String account, long uidValidity, IMAPFolder folder, Message[] messages) throws MessagingException, IOException {
+        if (messages.length == 0) {
+            return;
+        }
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(FetchProfile.Item.SIZE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add("References");
+        folder.fetch(messages, profile);
+        for (Message message : messages) {
+            put(EmailMetadata.valueOf(account, uidValidity, folder.getUID(message), message));
+        }
+    }
+
+    private static void fetchFlags(IMAPFolder folder, Message[] messages) throws MessagingException {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.FLAGS);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        folder.fetch(messages, profile);
+    }
+
+    /**
+     * 删除服务器上已经没有的邮件
+     *
+     * @param updateFlags 顺便更新标记
+     */
+    private void removeExpunged(String account, IMAPFolder folder, Message[] messages, boolean updateFlags) throws MessagingException, IOException {
+        String folderName = folder.getFullName();
+        fetchFlags(folder, messages);
+        Set<Long> uidSet = new HashSet<>(messages.length * 4 / 3 + 1);
+        for (Message message : messages) {
+            long uid = folder.getUID(message);
+            uidSet.add(uid);
+            if (updateFlags) {
+                updateFlags(account, folderName, uid, message.getFlags());
+            }
+        }
+        for (long uid : uids(account, folderName)) {
+            if (!uidSet.contains(uid)) {
+                remove(account, folderName, uid);
+            }
+        }
+    }
+
+    private synchronized void updateFlags(String account, String folderName, long uid, Flags flags) throws IOException {
+        EmailMetadata metadata = get(account, folderName, uid);
+        if (metadata == null) {
+            return;
+        }
+        String[] userFlags = metadata.getUserFlags();
+        int flagBits = metadata.getFlagBits();
+        metadata.setFlags(flags);
+        if (flagBits != metadata.getFlagBits() || !Arrays.equals(userFlags, metadata.getUserFlags())) {
+            put(metadata);
+        }
+    }
+
+    /**
+     * @return 文件夹的同步状态, 没同步过返回null
+     */
+    public synchronized FolderState getFolderState(String account, String folderName) {
+        FolderEntry entry = folderMap.get(key(account, folderName));
+        return entry != null ? entry.state.withSize(entry.size) : null;
+    }
+
+    /**
+     * 保存文件夹的同步状态. UIDVALIDITY和本地不同时, 清空这个文件夹的本地数据
+     */
+    public synchronized void putFolderState(FolderState state) throws IOException {
+        checkClose();
+        byte[] payload = encodeFolderState(state);
+        long offset = append(TYPE_FOLDER, payload);
+        applyFolderState(state, offset, recordSize(payload));
+    }
+
+    /**
+     * 保存一封邮件的元数据, 覆盖相同UID的. 文件夹没有同步状态时, 先用这封邮件的UIDVALIDITY建一个
+     */
+    public synchronized void put(EmailMetadata metadata) throws IOException {
+        checkClose();
+        FolderEntry entry = folderMap.get(key(metadata.getAccount(), metadata.getFolderName()));
+        if (entry == null || entry.state.uidValidity != metadata.getUidValidity()) {
+            putFolderState(new FolderState(metadata.getAccount(), metadata.getFolderName(), metadata.getUidValidity(), 0L, 0L, 0L));
+            entry = folderMap.get(key(metadata.getAccount(), metadata.getFolderName()));
+        }
+        byte[] payload = encodeMetadata(metadata);
+        long offset = append(TYPE_PUT, payload);
+        deadBytes += entry.put(metadata.getUid(), offset, recordSize(payload));
+    }
+
+    /**
+     * 删除一封邮件的元数据
+     *
+     * @return true=删除了
+     */
+    public synchronized boolean remove(String account, String folderName, long uid) throws IOException {
+        checkClose();
+        FolderEntry entry = folderMap.get(key(account, folderName));
+        if (entry == null || entry.indexOf(uid) < 0) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, account);
+        writeString(out, folderName);
+        out.writeLong(entry.state.uidValidity);
+        out.writeLong(uid);
+        byte[] payload = bytes.toByteArray();
+        append(TYPE_REMOVE, payload);
+        deadBytes += entry.remove(uid) + recordSize(payload);
+        return true;
+    }
+
+    public synchronized EmailMetadata get(String account, String folderName, long uid) throws IOException {
+        FolderEntry entry = folderMap.get(key(account, folderName));
+        int index = entry != null ? entry.indexOf(uid) : -1;
+        return index >= 0 ? read(entry, entry.offsets[index]) : null;
+    }
+
+    /**
+     * @return 文件夹里的邮件数
+     */
+    public synchronized int size(String account, String folderName) {
+        FolderEntry entry = folderMap.get(key(account, folderName));
+        return entry != null ? entry.size : 0;
+    }
+
+    /**
+     * @return 文件夹里的UID, 从小到大
+     */
+    public synchronized long[] uids(String account, String folderName) {
+        FolderEntry entry = folderMap.get(key(account, folderName));
+        return entry != null ? Arrays.copyOf(entry.uids, entry.size) : new long[0];
+    }
+
+    /**
+     * @return 账号下同步过的文件夹
+     */
+    public synchronized List<String> getFolderNames(String account) {
+        List<String> list = new ArrayList<>();
+        for (FolderEntry entry : folderMap.values()) {
+            if (entry.state.account.equals(account)) {
+                list.add(entry.state.folderName);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 本地查询, 不访问服务器
+     *
+     * @param account     账号
+     * @param folderNames 文件夹, null=所有同步过的文件夹
+     * @param filter      过滤, null=不过滤
+     * @return 按收件时间倒序
+     * @throws IOException 读日志失败
+     */
+    public synchronized List<EmailMetadata> list(String account, Collection<String> folderNames, Predicate<EmailMetadata> filter) throws IOException {
+        List<EmailMetadata> list = new ArrayList<>();
+        for (String folderName : folderNames != null ? folderNames : getFolderNames(account)) {
+            FolderEntry entry = folderMap.get(key(account, folderName));
+            if (entry == null) {
+                continue;
+            }
+            flushPending();
+            // 按日志位置顺序读, 减少随机读
+            long[] offsets = Arrays.copyOf(entry.offsets, entry.size);
+            Arrays.sort(offsets);
+            for (long offset : offsets) {
+                EmailMetadata metadata = read(entry, offset);
+                if (filter == null || filter.test(metadata)) {
+                    list.add(metadata);
+                }
+            }
+        }
+        list.sort(Comparator.comparingLong(EmailMetadata::getReceivedDate).reversed());
+        return list;
+    }
+
+    /**
+     * 把还在内存缓冲里的记录写到文件, 并刷盘
+     */
+    public synchronized void flush() throws IOException {
+        checkClose();
+        flushPending();
+        channel.force(false);
+        if (deadBytes >= compactThresholdBytes && deadBytes > writePosition / 2) {
+            compact();
+        }
+    }
+
+    private long append(byte type, byte[] payload) throws IOException {
+        long offset = writePosition + pendingBuffer.size();
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        DataOutputStream out = new DataOutputStream(pendingBuffer);
+        out.writeInt(1 + payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+        if (pendingBuffer.size() >= WRITE_BUFFER_SIZE) {
+            flushPending();
+        }
+        return offset;
+    }
+
+    private void flushPending() throws IOException {
+        if (pendingBuffer.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pendingBuffer.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, writePosition + buffer.position());
+        }
+        writePosition += buffer.limit();
+        pendingBuffer.reset();
+    }
+
+    private static int recordSize(byte[] payload) {
+        return HEADER_SIZE + payload.length + CRC_SIZE;
+    }
+
+    private EmailMetadata read(FolderEntry entry, long offset) throws IOException {
+        flushPending();
+        headerBuffer.clear();
+        readFully(channel, headerBuffer, offset);
+        headerBuffer.flip();
+        ByteBuffer payload = ByteBuffer.allocate(headerBuffer.getInt() - 1);
+        readFully(channel, payload, offset + HEADER_SIZE);
+        return decodeMetadata(new DataInputStream(new ByteArrayInputStream(payload.array())), entry.state.account, entry.state.folderName);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("EmailMetadataStore unexpected end of log");
+            }
+        }
+    }
+
+    private void applyFolderState(FolderState state, long offset, int recordSize) {
+        String key = key(state.account, state.folderName);
+        FolderEntry entry = folderMap.get(key);
+        if (entry == null || entry.state.uidValidity != state.uidValidity) {
+            if (entry != null) {
+                deadBytes += entry.liveBytes();
+            }
+            entry = new FolderEntry();
+            folderMap.put(key, entry);
+        } else {
+            deadBytes += entry.folderRecordSize;
+        }
+        entry.state = state;
+        entry.folderRecordOffset = offset;
+        entry.folderRecordSize = recordSize;
+    }
+
+    /**
+     * 顺序读日志, 重建内存索引. 遇到不完整或校验失败的记录, 从这里截掉
+     */
+    private void replay() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), WRITE_BUFFER_SIZE));
+        while (position + HEADER_SIZE + CRC_SIZE <= size) {
+            int length = in.readInt();
+            byte type = in.readByte();
+            int payloadLength = length - 1;
+            if (payloadLength < 0 || position + HEADER_SIZE + payloadLength + CRC_SIZE > size
+                    || type < TYPE_FOLDER || type > TYPE_REMOVE) {
+                break;
+            }
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(payload);
+            if ((int) crc.getValue() != in.readInt()) {
+                break;
+            }
+            int recordSize = recordSize(payload);
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+            if (type == TYPE_FOLDER) {
+                applyFolderState(decodeFolderState(data), position, recordSize);
+            } else {
+                String account = readString(data);
+                String folderName = readString(data);
+                long uidValidity = data.readLong();
+                long uid = data.readLong();
+                FolderEntry entry = folderMap.get(key(account, folderName));
+                if (entry == null || entry.state.uidValidity != uidValidity) {
+                    deadBytes += recordSize;
+                } else if (type == TYPE_PUT) {
+                    deadBytes += entry.put(uid, position, recordSize);
+                } else {
+                    deadBytes += entry.remove(uid) + recordSize;
+                }
+            }
+            position += recordSize;
+        }
+        if (position < size) {
+            log.warn("EmailMetadataStore truncate broken log tail. file = {}, position = {}, size = {}", logPath, position, size);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        writePosition = position;
+    }
+
+    /**
+     * 只保留有效的记录, 写到新文件后原子替换
+     */
+    private void compact() throws IOException {
+        flushPending();
+        Path compactPath = logPath.resolveSibling(logPath.getFileName() + ".compact");
+        Map<FolderEntry, long[]> newOffsetMap = new IdentityHashMap<>();
+        long[] newFolderOffsets = new long[folderMap.size()];
+        long position = 0;
+        try (FileChannel out = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int folderIndex = 0;
+            for (FolderEntry entry : folderMap.values()) {
+                newFolderOffsets[folderIndex++] = position;
+                position += copyRecord(out, entry.folderRecordOffset, entry.folderRecordSize, position);
+                long[] newOffsets = new long[entry.size];
+                for (int i = 0; i < entry.size; i++) {
+                    newOffsets[i] = position;
+                    position += copyRecord(out, entry.offsets[i], entry.lengths[i], position);
+                }
+                newOffsetMap.put(entry, newOffsets);
+            }
+            out.force(true);
+        }
+        channel.close();
+        Files.move(compactPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        int folderIndex = 0;
+        for (FolderEntry entry : folderMap.values()) {
+            entry.folderRecordOffset = newFolderOffsets[folderIndex++];
+            long[] newOffsets = newOffsetMap.get(entry);
+            System.arraycopy(newOffsets, 0, entry.offsets, 0, entry.size);
+        }
+        log.info("EmailMetadataStore compact. file = {}, before = {}, after = {}", logPath, writePosition, position);
+        writePosition = position;
+        deadBytes = 0;
+    }
+
+    private int copyRecord(FileChannel out, long offset, int size, long outPosition) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        readFully(channel, buffer, offset);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer, outPosition + buffer.position());
+        }
+        return size;
+    }
+
+    private static byte[] encodeFolderState(FolderState state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, state.account);
+        writeString(out, state.folderName);
+        out.writeLong(state.uidValidity);
+        out.writeLong(state.uidNext);
+        out.writeLong(state.highestModSeq);
+        out.writeLong(state.syncTime);
+        return bytes.toByteArray();
+    }
+
+    private static FolderState decodeFolderState(DataInputStream in) throws IOException {
+        return new FolderState(readString(in), readString(in), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static byte[] encodeMetadata(EmailMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        // 前4个字段和删除记录一样, 重放时只读这些
+        writeString(out, metadata.getAccount());
+        writeString(out, metadata.getFolderName());
+        out.writeLong(metadata.getUidValidity());
+        out.writeLong(metadata.getUid());
+        writeString(out, metadata.getMessageId());
+        writeString(out, metadata.getInReplyTo());
+        writeString(out, metadata.getReferences());
+        writeString(out, metadata.getSubject());
+        writeStrings(out, metadata.getFrom());
+        writeStrings(out, metadata.getTo());
+        writeStrings(out, metadata.getCc());
+        out.writeLong(metadata.getSentDate());
+        out.writeLong(metadata.getReceivedDate());
+        out.writeInt(metadata.getSize());
+        out.writeInt(metadata.getFlagBits());
+        writeStrings(out, metadata.getUserFlags());
+        return bytes.toByteArray();
+    }
+
+    private static EmailMetadata decodeMetadata(DataInputStream in, String account, String folderName) throws IOException {
+        EmailMetadata metadata = new EmailMetadata();
+        readString(in);
+        readString(in);
+        // 账号和文件夹用内存里的, 共享同一个字符串
+        metadata.setAccount(account);
+        metadata.setFolderName(folderName);
+        metadata.setUidValidity(in.readLong());
+        metadata.setUid(in.readLong());
+        metadata.setMessageId(readString(in));
+        metadata.setInReplyTo(readString(in));
+        metadata.setReferences(readString(in));
+        metadata.setSubject(readString(in));
+        metadata.setFrom(readStrings(in));
+        metadata.setTo(readStrings(in));
+        metadata.setCc(readStrings(in));
+        metadata.setSentDate(in.readLong());
+        metadata.setReceivedDate(in.readLong());
+        metadata.setSize(in.readInt());
+        metadata.setFlagBits(in.readInt());
+        metadata.setUserFlags(readStrings(in));
+        return metadata;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] values = new String[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    private void checkClose() {
+        if (closeFlag) {
+            throw new IllegalStateException("EmailMetadataStore closed");
+        }
+    }
+
+    public long getCompactThresholdBytes() {
+        return compactThresholdBytes;
+    }
+
+    public void setCompactThresholdBytes(long compactThresholdBytes) {
+        this.compactThresholdBytes = compactThresholdBytes;
+    }
+
+    public long getFlagRefreshMillis() {
+        return flagRefreshMillis;
+    }
+
+    /**
+     * @param flagRefreshMillis 服务器不支持CONDSTORE时, 多久重新取一次所有标记. 0=每次同步都取
+     */
+    public void setFlagRefreshMillis(long flagRefreshMillis) {
+        this.flagRefreshMillis = flagRefreshMillis;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closeFlag) {
+            return;
+        }
+        closeFlag = true;
+        try {
+            flushPending();
+            channel.force(false);
+        } catch (IOException e) {
+            log.warn("EmailMetadataStore flush error = {}", e.toString(), e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("EmailMetadataStore close error = {}", e.toString(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EmailMetadataStore{file=" + logPath + ", folders=" + folderMap.size() + "}";
+    }
+
+    /**
+     * 文件夹的同步状态
+     */
+    public static class FolderState {
+        private final String account;
+        private final String folderName;
+        private final long uidValidity;
+        /**
+         * 0=还没完整同步过, 下次同步从UID 1开始取
+         */
+        private final long uidNext;
+        /**
+         * 0=服务器不支持CONDSTORE
+         */
+        private final long highestModSeq;
+        private final long syncTime;
+        private final int size;
+
+        public FolderState(String account, String folderName, long uidValidity, long uidNext, long highestModSeq, long syncTime) {
+            this(account, folderName, uidValidity, uidNext, highestModSeq, syncTime, 0);
+        }
+
+        private FolderState(String account, String folderName, long uidValidity, long uidNext, long highestModSeq, long syncTime, int size) {
+            this.account = Objects.requireNonNull(account, "account");
+            this.folderName = Objects.requireNonNull(folderName, "folderName");
+            this.uidValidity = uidValidity;
+            this.uidNext = uidNext;
+            this.highestModSeq = highestModSeq;
+            this.syncTime = syncTime;
+            this.size = size;
+        }
+
+        private FolderState withSize(int size) {
+            return new FolderState(account, folderName, uidValidity, uidNext, highestModSeq, syncTime, size);
+        }
+
+        public String getAccount() {
+            return account;
+        }
+
+        public String getFolderName() {
+            return folderName;
+        }
+
+        public long getUidValidity() {
+            return uidValidity;
+        }
+
+        public long getUidNext() {
+            return uidNext;
+        }
+
+        public long getHighestModSeq() {
+            return highestModSeq;
+        }
+
+        public long getSyncTime() {
+            return syncTime;
+        }
+
+        /**
+         * @return 本地的邮件数
+         */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return "FolderState{" +
+                    "account='" + account + '\'' +
+                    ", folderName='" + folderName + '\'' +
+                    ", uidValidity=" + uidValidity +
+                    ", uidNext=" + uidNext +
+                    ", highestModSeq=" + highestModSeq +
+                    ", size=" + size +
+                    '}';
+        }
+    }
+
+    /**
+     * 一个文件夹的内存索引, UID从小到大, 和记录位置一一对应
+     */
+    private static class FolderEntry {
+        private FolderState state;
+        private long folderRecordOffset;
+        private int folderRecordSize;
+        private long[] uids = new long[16];
+        private long[] offsets = new long[16];
+        private int[] lengths = new int[16];
+        private int size;
+
+        private int indexOf(long uid) {
+            return Arrays.binarySearch(uids, 0, size, uid);
+        }
+
+        /**
+         * @return 被覆盖的记录大小
+         */
+        private int put(long uid, long offset, int length) {
+            int index = indexOf(uid);
+            if (index >= 0) {
+                int old = lengths[index];
+                offsets[index] = offset;
+                lengths[index] = length;
+                return old;
+            }
+            index = -index - 1;
+            if (size == uids.length) {
+                int capacity = size + (size >> 1);
+                uids = Arrays.copyOf(uids, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            // UID一般是递增的, 大多数时候直接追加在末尾
+            if (index < size) {
+                System.arraycopy(uids, index, uids, index + 1, size - index);
+                System.arraycopy(offsets, index, offsets, index + 1, size - index);
+                System.arraycopy(lengths, index, lengths, index + 1, size - index);
+            }
+            uids[index] = uid;
+            offsets[index] = offset;
+            lengths[index] = length;
+            size++;
+            return 0;
+        }
+
+        /**
+         * @return 被删除的记录大小
+         */
+        private int remove(long uid) {
+            int index = indexOf(uid);
+            if (index < 0) {
+                return 0;
+            }
+            int old = lengths[index];
+            System.arraycopy(uids, index + 1, uids, index, size - index - 1);
+            System.arraycopy(offsets, index + 1, offsets, index, size - index - 1);
+            System.arraycopy(lengths, index + 1, lengths, index, size - index - 1);
+            size--;
+            return old;
+        }
+
+        private long liveBytes() {
+            long bytes = folderRecordSize;
+            for (int i = 0; i < size; i++) {
+                bytes += lengths[i];
+            }
+            return bytes;
+        }
+    }
+}
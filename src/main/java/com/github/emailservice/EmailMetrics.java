@@ -0,0 +1,204 @@
+package com.github.emailservice;
+
+import javax.mail.MessagingException;
+
+/**
+ * 邮件操作的监控指标, 可选
+ * 默认是 {@link #NOOP}, 不计时不记录. 有Micrometer时用 {@link MicrometerEmailMetrics}, 用JFR时用 {@link JfrEmailMetrics}
+ * <p>
+ * 用法 emailService.setMetrics(new MicrometerEmailMetrics(meterRegistry))
+ *
+ * @author wangzihao
+ * @see EmailServiceAutoConfiguration
+ */
+public interface EmailMetrics {
+    /**
+     * 不记录, 直接执行
+     */
+    EmailMetrics NOOP = new EmailMetrics() {
+        @Override
+        public Span start(Operation operation, String host, String folderName) {
+            return Span.NOOP;
+        }
+
+        @Override
+        public <T> T time(Operation operation, String host, String folderName, Action<T> action) throws MessagingException {
+            return action.call();
+        }
+
+        @Override
+        public void run(Operation operation, String host, String folderName, VoidAction action) throws MessagingException {
+            action.call();
+        }
+    };
+
+    /**
+     * 记录一次操作的耗时
+     *
+     * @param operation 操作
+     * @param host      服务器
+     * @param nanos     耗时纳秒
+     * @param success   false=抛了异常
+     */
+    default void record(Operation operation, String host, long nanos, boolean success) {
+    }
+
+    /**
+     * 记录下载的邮件内容大小
+     *
+     * @param partType 内容类型 html,text,image,word,pdf,unknown
+     * @param bytes    字节数 (传输编码后的大小)
+     */
+    default void recordBytes(String partType, long bytes) {
+    }
+
+    /**
+     * 记录一次查询中一个文件夹查到的邮件数
+     *
+     * @param host         服务器
+     * @param folderType   文件夹类型 {@link EmailService.FolderEnum#name()}
+     * @param messageCount 邮件数
+     */
+    default void recordFolder(String host, String folderType, int messageCount) {
+    }
+
+    /**
+     * 设置到 {@link EmailService} 时调用一次, 用于注册连接池,缓存等的状态
+     *
+     * @param emailService 邮件服务
+     */
+    default void bind(EmailService emailService) {
+    }
+
+    /**
+     * 开始一次操作, 结束时调用 {@link Span#end(boolean)}. 默认结束时调用 {@link #record(Operation, String, long, boolean)}
+     *
+     * @param operation  操作
+     * @param host       服务器, 可以为null
+     * @param folderName 文件夹, 可以为null
+     * @return 这次操作
+     */
+    default Span start(Operation operation, String host, String folderName) {
+        return new TimerSpan(this, operation, host);
+    }
+
+    /**
+     * 执行并计时
+     */
+    default <T> T time(Operation operation, String host, Action<T> action) throws MessagingException {
+        return time(operation, host, null, action);
+    }
+
+    /**
+     * 执行并计时, 返回数组时记录数组长度为邮件数
+     */
+    default <T> T time(Operation operation, String host, String folderName, Action<T> action) throws MessagingException {
+        Span span = start(operation, host, folderName);
+        boolean success = false;
+        try {
+            T result = action.call();
+            if (result instanceof Object[]) {
+                span.setMessageCount(((Object[]) result).length);
+            }
+            success = true;
+            return result;
+        } finally {
+            span.end(success);
+        }
+    }
+
+    /**
+     * 执行并计时, 没有返回值
+     */
+    default void run(Operation operation, String host, VoidAction action) throws MessagingException {
+        run(operation, host, null, action);
+    }
+
+    /**
+     * 执行并计时, 没有返回值
+     */
+    default void run(Operation operation, String host, String folderName, VoidAction action) throws MessagingException {
+        Span span = start(operation, host, folderName);
+        boolean success = false;
+        try {
+            action.call();
+            success = true;
+        } finally {
+            span.end(success);
+        }
+    }
+
+    enum Operation {
+        /**
+         * 连接并登录, javamail的 Store.connect 里连接和登录是一步
+         */
+        CONNECT,
+        FOLDER_OPEN,
+        SEARCH,
+        SORT,
+        FETCH,
+        /**
+         * 读取一个邮件内容 {@link javax.mail.Part#getContent()}
+         */
+        PART_READ,
+        /**
+         * 附件写到临时文件
+         */
+        CACHE_FILE,
+        SEND;
+
+        private final String tag = name().toLowerCase();
+
+        public String getTag() {
+            return tag;
+        }
+    }
+
+    /**
+     * 一次操作
+     */
+    interface Span {
+        Span NOOP = success -> {
+        };
+
+        default void setMessageCount(int messageCount) {
+        }
+
+        default void setBytes(long bytes) {
+        }
+
+        /**
+         * @param success false=抛了异常
+         */
+        void end(boolean success);
+    }
+
+    /**
+     * 结束时调用 {@link EmailMetrics#record(Operation, String, long, boolean)}
+     */
+    class TimerSpan implements Span {
+        private final EmailMetrics metrics;
+        private final Operation operation;
+        private final String host;
+        private final long startNanos = System.nanoTime();
+
+        public TimerSpan(EmailMetrics metrics, Operation operation, String host) {
+            this.metrics = metrics;
+            this.operation = operation;
+            this.host = host;
+        }
+
+        @Override
+        public void end(boolean success) {
+            metrics.record(operation, host, System.nanoTime() - startNanos, success);
+        }
+    }
+
+    interface Action<T> {
+        T call() throws MessagingException;
+    }
+
+    interface VoidAction {
+        void call() throws MessagingException;
+    }
+}
@@ -0,0 +1,655 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.mail.javamail.JavaMailSender;
+
+import javax.mail.MessagingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 发件箱, 异步可靠发送
+ * 1. 入队 {@link #enqueue(javax.mail.internet.MimeMessage)} 只把邮件序列化后放进内存队列, 不等SMTP, 立即返回
+ * 2. 一个写线程把队列里的邮件批量追加到本地日志文件, 一批只fsync一次 (group commit). 返回的future在写盘后完成
+ * 3. 写盘后交给工作线程池发送, 失败按指数退避重试, 失败次数也写进日志. 超过 {@link #setMaxAttempts(int)} 次后
+ * 移到死信文件 outbox.dead, 并回调 {@link #setDeadLetterListener(DeadLetterListener)}, 不会悄悄丢掉. 可以用 {@link #readDeadLetters()} 读出来重新发送
+ * 4. 发送成功后追加一条确认记录. 已确认的数据超过 {@link #setCompactThresholdBytes(long)} 时重写日志, 只保留未确认的邮件
+ * 5. 进程重启后, 重放日志, {@link #start()} 后未确认的邮件继续发送, 失败次数接着算. 至少发送一次, 崩溃在发送成功和写确认之间时可能重复
+ * <p>
+ * 日志记录格式: [int 长度][byte 类型][long 编号][邮件原文或失败次数][int crc32]. 末尾写了一半的记录在打开时截掉. 死信文件格式相同
+ * <p>
+ * 用法 outbox.setMaxAttempts(..); outbox.start(); sender.setOutbox(outbox); sender.newMessage() ... .enqueue()
+ *
+ * @author wangzihao
+ * @see EmailService.MimeMessage#enqueue()
+ */
+public class EmailOutbox implements EmailService.Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EmailOutbox.class);
+    private static final byte TYPE_ADD = 1;
+    private static final byte TYPE_ACK = 2;
+    /**
+     * 发送失败, 内容是失败次数
+     */
+    private static final byte TYPE_RETRY = 3;
+    /**
+     * 放弃发送, 只在内存里. 写进死信文件, 日志里写确认
+     */
+    private static final byte TYPE_DEAD = 4;
+    /**
+     * 长度 + 类型 + 编号
+     */
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_BATCH = 1024;
+    private static final ScheduledThreadPoolExecutor RETRY_SCHEDULER;
+
+    static {
+        RETRY_SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "EmailService-outbox-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        RETRY_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Path journalPath;
+    private final Path deadLetterPath;
+    private final JavaMailSender mailSender;
+    private final Executor executor;
+    private final BlockingQueue<Record> writeQueue = new LinkedBlockingQueue<>();
+    private final Map<Long, Entry> entryMap = new ConcurrentHashMap<>();
+    /**
+     * 读邮件原文用读锁, 重写日志用写锁
+     */
+    private final ReadWriteLock channelLock = new ReentrantReadWriteLock();
+    private final FileChannel deadLetterChannel;
+    private volatile Thread writerThread;
+    private FileChannel channel;
+    // 下面的字段只在写线程里访问 (start之前在构造的线程里)
+    private long nextId = 1;
+    private long writePosition;
+    /**
+     * 可以回收的字节, 已确认的邮件和过期的失败次数
+     */
+    private long ackedBytes;
+    private long deadLetterPosition;
+    // 配置, 发送线程和写线程会读
+    private volatile int maxAttempts = 10;
+    private volatile long initialBackoffMillis = 1_000L;
+    private volatile long maxBackoffMillis = 300_000L;
+    private volatile long compactThresholdBytes = 16L * 1024 * 1024;
+    private volatile DeadLetterListener deadLetterListener;
+    private volatile boolean closeFlag = false;
+
+    /**
+     * 打开发件箱, 重放日志里未确认的邮件. 设置好参数后调用 {@link #start()} 开始写盘和发送
+     *
+     * @param directory  日志目录
+     * @param mailSender 发送用的, 例如 {@link EmailService#newSender(String, String, String)}
+     * @param executor   发送线程池, 例如 {@link EmailExecutors#newExecutor(EmailExecutors.Mode, int)}
+     * @throws IOException 日志读写失败
+     */
+    public EmailOutbox(File directory, JavaMailSender mailSender, Executor executor) throws IOException {
+        this.mailSender = Objects.requireNonNull(mailSender, "mailSender");
+        this.executor = Objects.requireNonNull(executor, "executor");
+        Files.createDirectories(directory.toPath());
+        this.journalPath = directory.toPath().resolve("outbox.journal");
+        this.deadLetterPath = directory.toPath().resolve("outbox.dead");
+        this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        replay();
+        if (ackedBytes > 0) {
+            compact();
+        }
+        this.deadLetterChannel = FileChannel.open(deadLetterPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.deadLetterPosition = truncateBrokenTail(deadLetterChannel, deadLetterPath, scan(deadLetterChannel, (type, id, offset, payload) -> {
+        }));
+    }
+
+    /**
+     * 开始写盘和发送, 重放出来的未确认邮件继续发送. start之前入队的邮件, start后才写盘
+     */
+    public synchronized void start() {
+        if (writerThread != null || closeFlag) {
+            return;
+        }
+        Thread thread = new Thread(this::writeLoop, "EmailService-outbox-writer");
+        thread.setDaemon(true);
+        this.writerThread = thread;
+        thread.start();
+        for (Entry entry : entryMap.values()) {
+            dispatch(entry);
+        }
+    }
+
+    /**
+     * 邮件入队, 不等待写盘和发送
+     *
+     * @param message 邮件
+     * @return 写盘后完成, 值是发件箱里的编号
+     * @throws MessagingException 邮件序列化失败
+     */
+    public CompletableFuture<Long> enqueue(javax.mail.internet.MimeMessage message) throws MessagingException {
+        if (closeFlag) {
+            throw new IllegalStateException("EmailOutbox closed");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            message.saveChanges();
+            message.writeTo(out);
+        } catch (IOException e) {
+            throw new MessagingException("EmailOutbox serialize error", e);
+        }
+        Record record = new Record(TYPE_ADD, 0, out.toByteArray(), new CompletableFuture<>());
+        writeQueue.add(record);
+        return record.future;
+    }
+
+    /**
+     * @return 还没发送成功的邮件数量
+     */
+    public int getPendingCount() {
+        return entryMap.size();
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public long getCompactThresholdBytes() {
+        return compactThresholdBytes;
+    }
+
+    public void setCompactThresholdBytes(long compactThresholdBytes) {
+        this.compactThresholdBytes = compactThresholdBytes;
+    }
+
+    public DeadLetterListener getDeadLetterListener() {
+        return deadLetterListener;
+    }
+
+    /**
+     * @param deadLetterListener 邮件超过最大次数放弃发送时回调, 在写线程里调用, 不要阻塞
+     */
+    public void setDeadLetterListener(DeadLetterListener deadLetterListener) {
+        this.deadLetterListener = deadLetterListener;
+    }
+
+    /**
+     * 读死信文件, 处理完后可以重新 {@link #enqueue(javax.mail.internet.MimeMessage)}
+     *
+     * @return 放弃发送的邮件, 编号 -> 邮件, 按放弃的先后顺序. 重启前后可能有重复的编号
+     * @throws IOException 读文件失败
+     */
+    public Map<Long, javax.mail.internet.MimeMessage> readDeadLetters() throws IOException {
+        Map<Long, javax.mail.internet.MimeMessage> map = new LinkedHashMap<>();
+        try (FileChannel in = FileChannel.open(deadLetterPath, StandardOpenOption.READ)) {
+            scan(in, (type, id, offset, payload) -> map.put(id, mailSender.createMimeMessage(new ByteArrayInputStream(payload))));
+        }
+        return map;
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Record first = writeQueue.poll(200, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closeFlag) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                writeQueue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // close() 会等队列写完, 这里继续
+            } catch (Throwable e) {
+                log.error("EmailOutbox write error = {}", e.toString(), e);
+                for (Record record : batch) {
+                    if (record.future != null) {
+                        record.future.completeExceptionally(e);
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<Record> batch) throws IOException {
+        int size = 0;
+        List<Record> deadList = new ArrayList<>();
+        for (Record record : batch) {
+            if (record.type == TYPE_ADD) {
+                record.id = nextId++;
+            } else if (record.type == TYPE_DEAD) {
+                deadList.add(record);
+            }
+            size += HEADER_SIZE + record.journalPayload().length + CRC_SIZE;
+        }
+        if (!deadList.isEmpty()) {
+            // 先写死信文件再在日志里确认. 两次写之间崩溃时, 重启后会再放一次死信
+            writeDeadLetters(deadList);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        List<Entry> addedList = new ArrayList<>();
+        channelLock.readLock().lock();
+        try {
+            long position = writePosition;
+            for (Record record : batch) {
+                byte[] payload = record.journalPayload();
+                putRecord(buffer, record.journalType(), record.id, payload);
+                if (record.type == TYPE_ADD) {
+                    addedList.add(new Entry(record.id, position + HEADER_SIZE, payload.length));
+                }
+                position += HEADER_SIZE + payload.length + CRC_SIZE;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, writePosition + buffer.position());
+            }
+            // 一批只fsync一次
+            channel.force(false);
+            writePosition = position;
+        } finally {
+            channelLock.readLock().unlock();
+        }
+        for (Record record : batch) {
+            if (record.type == TYPE_ACK || record.type == TYPE_DEAD) {
+                Entry entry = entryMap.remove(record.id);
+                if (entry != null) {
+                    ackedBytes += HEADER_SIZE + entry.length + CRC_SIZE;
+                }
+                ackedBytes += HEADER_SIZE + CRC_SIZE;
+            } else if (record.type == TYPE_RETRY) {
+                // 很小, 会被下一条失败次数或确认代替, 直接算作可回收
+                ackedBytes += HEADER_SIZE + record.payload.length + CRC_SIZE;
+            }
+        }
+        for (int i = 0, j = 0; i < batch.size(); i++) {
+            Record record = batch.get(i);
+            if (record.type == TYPE_ADD) {
+                Entry entry = addedList.get(j++);
+                entryMap.put(entry.id, entry);
+                record.future.complete(entry.id);
+                dispatch(entry);
+            }
+        }
+        for (Record record : deadList) {
+            notifyDeadLetter(record);
+        }
+        if (ackedBytes >= compactThresholdBytes && ackedBytes > writePosition / 2) {
+            compact();
+        }
+    }
+
+    private void writeDeadLetters(List<Record> deadList) throws IOException {
+        int size = 0;
+        for (Record record : deadList) {
+            size += HEADER_SIZE + record.payload.length + CRC_SIZE;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Record record : deadList) {
+            putRecord(buffer, TYPE_ADD, record.id, record.payload);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            deadLetterChannel.write(buffer, deadLetterPosition + buffer.position());
+        }
+        deadLetterChannel.force(false);
+        deadLetterPosition += size;
+    }
+
+    private void notifyDeadLetter(Record record) {
+        DeadLetterListener listener = this.deadLetterListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.onDeadLetter(record.id, mailSender.createMimeMessage(new ByteArrayInputStream(record.payload)), record.error);
+        } catch (Throwable e) {
+            log.warn("EmailOutbox onDeadLetter error id = {}, error = {}", record.id, e.toString(), e);
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, byte type, long id, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (id >>> i));
+        }
+        crc.update(payload);
+        buffer.putInt(1 + 8 + payload.length);
+        buffer.put(type);
+        buffer.putLong(id);
+        buffer.put(payload);
+        buffer.putInt((int) crc.getValue());
+    }
+
+    /**
+     * 顺序读日志, 重建未确认的邮件和失败次数. 遇到不完整或校验失败的记录, 从这里截掉
+     */
+    private void replay() throws IOException {
+        long position = scan(channel, (type, id, offset, payload) -> {
+            long recordSize = HEADER_SIZE + payload.length + CRC_SIZE;
+            if (type == TYPE_ADD) {
+                entryMap.put(id, new Entry(id, offset + HEADER_SIZE, payload.length));
+            } else if (type == TYPE_RETRY) {
+                Entry entry = entryMap.get(id);
+                if (entry != null && payload.length == 4) {
+                    entry.attempts = ByteBuffer.wrap(payload).getInt();
+                }
+                ackedBytes += recordSize;
+            } else {
+                Entry entry = entryMap.remove(id);
+                if (entry != null) {
+                    ackedBytes += HEADER_SIZE + entry.length + CRC_SIZE;
+                }
+                ackedBytes += recordSize;
+            }
+            nextId = Math.max(nextId, id + 1);
+        });
+        writePosition = truncateBrokenTail(channel, journalPath, position);
+    }
+
+    private static long truncateBrokenTail(FileChannel channel, Path path, long position) throws IOException {
+        long size = channel.size();
+        if (position < size) {
+            log.warn("EmailOutbox truncate broken journal tail. file = {}, position = {}, size = {}", path, position, size);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        return position;
+    }
+
+    /**
+     * 按顺序读完整的记录
+     *
+     * @return 最后一条完整记录的结尾
+     */
+    private static long scan(FileChannel channel, RecordVisitor visitor) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE + CRC_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            byte type = header.get();
+            long id = header.getLong();
+            int payloadLength = length - 1 - 8;
+            if (payloadLength < 0 || position + HEADER_SIZE + payloadLength + CRC_SIZE > size
+                    || (type != TYPE_ADD && type != TYPE_ACK && type != TYPE_RETRY)) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(payloadLength + CRC_SIZE);
+            readFully(channel, body, position + HEADER_SIZE);
+            body.flip();
+            byte[] payload = new byte[payloadLength];
+            body.get(payload);
+            ByteBuffer check = ByteBuffer.allocate(HEADER_SIZE + payloadLength + CRC_SIZE);
+            putRecord(check, type, id, payload);
+            if (check.getInt(HEADER_SIZE + payloadLength) != body.getInt()) {
+                break;
+            }
+            visitor.visit(type, id, position, payload);
+            position += HEADER_SIZE + payloadLength + CRC_SIZE;
+        }
+        return position;
+    }
+
+    /**
+     * 只保留未确认的邮件和它们的失败次数, 写到新文件后原子替换
+     */
+    private void compact() throws IOException {
+        Path compactPath = journalPath.resolveSibling(journalPath.getFileName() + ".compact");
+        channelLock.writeLock().lock();
+        try {
+            List<Entry> liveList = new ArrayList<>(entryMap.values());
+            liveList.sort((a, b) -> Long.compare(a.id, b.id));
+            long[] newOffsets = new long[liveList.size()];
+            long position = 0;
+            try (FileChannel out = FileChannel.open(compactPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (int i = 0; i < liveList.size(); i++) {
+                    Entry entry = liveList.get(i);
+                    byte[] payload = read(entry);
+                    int attempts = entry.attempts;
+                    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + CRC_SIZE + (attempts > 0 ? HEADER_SIZE + 4 + CRC_SIZE : 0));
+                    putRecord(buffer, TYPE_ADD, entry.id, payload);
+                    if (attempts > 0) {
+                        putRecord(buffer, TYPE_RETRY, entry.id, attemptsPayload(attempts));
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    newOffsets[i] = position + HEADER_SIZE;
+                    position += buffer.limit();
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(compactPath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            for (int i = 0; i < liveList.size(); i++) {
+                liveList.get(i).offset = newOffsets[i];
+            }
+            writePosition = position;
+            ackedBytes = 0;
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    private byte[] read(Entry entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+        readFully(channel, buffer, entry.offset);
+        return buffer.array();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("EmailOutbox unexpected end of journal");
+            }
+        }
+    }
+
+    private void dispatch(Entry entry) {
+        try {
+            executor.execute(() -> deliver(entry));
+        } catch (RejectedExecutionException e) {
+            log.warn("EmailOutbox dispatch rejected id = {}, error = {}", entry.id, e.toString());
+            retry(entry);
+        }
+    }
+
+    private void deliver(Entry entry) {
+        if (closeFlag) {
+            return;
+        }
+        byte[] payload;
+        try {
+            channelLock.readLock().lock();
+            try {
+                payload = read(entry);
+            } finally {
+                channelLock.readLock().unlock();
+            }
+        } catch (Exception e) {
+            log.warn("EmailOutbox read error id = {}, error = {}", entry.id, e.toString());
+            retry(entry);
+            return;
+        }
+        if (entry.attempts >= maxAttempts) {
+            // 重启前已经失败够了次数
+            giveUp(entry, payload, new IllegalStateException("EmailOutbox attempts " + entry.attempts + " >= maxAttempts " + maxAttempts));
+            return;
+        }
+        try {
+            mailSender.send(mailSender.createMimeMessage(new ByteArrayInputStream(payload)));
+            writeQueue.add(new Record(TYPE_ACK, entry.id, new byte[0], null));
+        } catch (Exception e) {
+            entry.attempts++;
+            if (entry.attempts >= maxAttempts) {
+                giveUp(entry, payload, e);
+            } else {
+                log.warn("EmailOutbox send error id = {}, attempts = {}, error = {}", entry.id, entry.attempts, e.toString());
+                writeQueue.add(new Record(TYPE_RETRY, entry.id, attemptsPayload(entry.attempts), null));
+                retry(entry);
+            }
+        }
+    }
+
+    private void giveUp(Entry entry, byte[] payload, Throwable error) {
+        log.error("EmailOutbox give up id = {}, attempts = {}, error = {}", entry.id, entry.attempts, error.toString(), error);
+        Record record = new Record(TYPE_DEAD, entry.id, payload, null);
+        record.error = error;
+        writeQueue.add(record);
+    }
+
+    private static byte[] attemptsPayload(int attempts) {
+        return ByteBuffer.allocate(4).putInt(attempts).array();
+    }
+
+    private void retry(Entry entry) {
+        if (closeFlag) {
+            return;
+        }
+        int shift = Math.min(Math.max(entry.attempts - 1, 0), 30);
+        long delay = Math.min(initialBackoffMillis << shift, maxBackoffMillis);
+        // 加减20%抖动, 避免同时重试
+        delay += (long) (delay * 0.2D * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        RETRY_SCHEDULER.schedule(() -> dispatch(entry), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 写完已入队的记录后关闭. 没发送成功的邮件留在日志里, 下次打开时继续发送
+     */
+    @Override
+    public synchronized void close() {
+        if (closeFlag) {
+            return;
+        }
+        closeFlag = true;
+        Thread writerThread = this.writerThread;
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 和close()同时入队的, 写线程已经退出
+        Record record;
+        while ((record = writeQueue.poll()) != null) {
+            if (record.future != null) {
+                record.future.completeExceptionally(new IllegalStateException("EmailOutbox closed"));
+            }
+        }
+        channelLock.writeLock().lock();
+        try {
+            channel.close();
+            deadLetterChannel.close();
+        } catch (IOException e) {
+            log.warn("EmailOutbox close error = {}", e.toString(), e);
+        } finally {
+            channelLock.writeLock().unlock();
+        }
+    }
+
+    private static class Record {
+        private final byte type;
+        private final byte[] payload;
+        private final CompletableFuture<Long> future;
+        private long id;
+        private Throwable error;
+
+        private Record(byte type, long id, byte[] payload, CompletableFuture<Long> future) {
+            this.type = type;
+            this.id = id;
+            this.payload = payload;
+            this.future = future;
+        }
+
+        private byte journalType() {
+            return type == TYPE_DEAD ? TYPE_ACK : type;
+        }
+
+        /**
+         * 死信的原文写在死信文件里, 日志里只写确认
+         */
+        private byte[] journalPayload() {
+            return type == TYPE_DEAD ? new byte[0] : payload;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, long id, long offset, byte[] payload) throws IOException;
+    }
+
+    public interface DeadLetterListener {
+        /**
+         * 邮件超过最大次数放弃发送, 已经写进死信文件
+         *
+         * @param id      发件箱里的编号
+         * @param message 邮件
+         * @param error   最后一次失败的原因
+         */
+        void onDeadLetter(long id, javax.mail.internet.MimeMessage message, Throwable error);
+    }
+
+    private static class Entry {
+        private final long id;
+        private final int length;
+        private volatile long offset;
+        private volatile int attempts;
+
+        private Entry(long id, long offset, int length) {
+            this.id = id;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.search.SearchTerm;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 多账号定时拉取邮件
+ * 1. 第一次拉取时间在 [0, 间隔) 里随机, 之后每次间隔加减 {@link #setJitter(double)} 的随机抖动, 避免同一时刻集中拉取
+ * 2. 每个IMAP服务器同时最多 {@link #setMaxConnectionsPerHost(int)} 个连接, 超过的排队
+ * 3. 公平: 按到期时间先后执行, 同一个账号上次没拉完不会再拉, 拉完后排到所有已到期账号的后面. 一个大邮箱只占一个连接
+ * 4. 只有一个调度线程和一个优先队列, 不给每个账号建线程, 单机可以调度几万个账号. 拉取在 {@link Executor} 里执行, 可以用 {@link EmailExecutors}
+ * <p>
+ * 拉取结果通过 {@link PollListener#onPoll(EmailService.Account, EmailService.EmailList)} 回调, 回调返回后自动关闭
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailList(EmailService.Account, SearchTerm, boolean)
+ */
+public class EmailPollScheduler implements EmailService.Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EmailPollScheduler.class);
+    private final EmailService emailService;
+    private final Executor executor;
+    private final PollListener listener;
+    private final Object lock = new Object();
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * 按到期时间排序. nanoTime可能溢出, 只能比较差值
+     */
+    private final PriorityQueue<PollTask> dueQueue = new PriorityQueue<>((a, b) -> {
+        long diff = a.nextPollTime - b.nextPollTime;
+        return diff != 0 ? (diff < 0 ? -1 : 1) : Long.compare(a.sequence, b.sequence);
+    });
+    private final Map<EmailService.Account, PollTask> taskMap = new IdentityHashMap<>();
+    /**
+     * 已删除但还在拉取或排队的账号. 这期间重新添加时复用, 同一个账号不会同时拉两次
+     */
+    private final Map<EmailService.Account, PollTask> removingMap = new IdentityHashMap<>();
+    private final Map<String, HostState> hostMap = new HashMap<>();
+    private int maxConnectionsPerHost = 4;
+    private double jitter = 0.1D;
+    private boolean readOnly = true;
+    /**
+     * 每次拉取的查询条件, 入参是上次成功拉取的开始时间 (第一次为null)
+     */
+    private Function<Date, SearchTerm> queryFunction = lastPollTime -> EmailService.buildUnreadQuery();
+    private volatile Thread thread;
+
+    public EmailPollScheduler(EmailService emailService, Executor executor, PollListener listener) {
+        this.emailService = Objects.requireNonNull(emailService, "emailService");
+        this.executor = Objects.requireNonNull(executor, "executor");
+        this.listener = Objects.requireNonNull(listener, "listener");
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be > 0. maxConnectionsPerHost=" + maxConnectionsPerHost);
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param jitter 间隔的抖动比例 0~1, 例如0.1 = 间隔的正负10%
+     */
+    public void setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in [0, 1]. jitter=" + jitter);
+        }
+        this.jitter = jitter;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public Function<Date, SearchTerm> getQueryFunction() {
+        return queryFunction;
+    }
+
+    public void setQueryFunction(Function<Date, SearchTerm> queryFunction) {
+        this.queryFunction = Objects.requireNonNull(queryFunction, "queryFunction");
+    }
+
+    /**
+     * 添加账号, 已存在时修改间隔. 删除后还没拉完又添加的, 等这次拉完再按间隔拉
+     *
+     * @param account  账号
+     * @param interval 拉取间隔
+     * @param unit     间隔单位
+     */
+    public void addAccount(EmailService.Account account, long interval, TimeUnit unit) {
+        long intervalNanos = unit.toNanos(interval);
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("interval must be > 0. interval=" + interval + " " + unit);
+        }
+        synchronized (lock) {
+            PollTask task = taskMap.get(account);
+            if (task != null) {
+                task.intervalNanos = intervalNanos;
+                return;
+            }
+            task = removingMap.remove(account);
+            if (task != null) {
+                // 拉完后自己排队
+                task.removed = false;
+                task.intervalNanos = intervalNanos;
+                taskMap.put(account, task);
+                return;
+            }
+            task = new PollTask(account, intervalNanos, sequence.getAndIncrement());
+            // 第一次在一个间隔内均匀打散
+            task.nextPollTime = System.nanoTime() + ThreadLocalRandom.current().nextLong(intervalNanos);
+            taskMap.put(account, task);
+            dueQueue.add(task);
+            lock.notifyAll();
+        }
+    }
+
+    public boolean removeAccount(EmailService.Account account) {
+        synchronized (lock) {
+            PollTask task = taskMap.remove(account);
+            if (task == null) {
+                return false;
+            }
+            task.removed = true;
+            if (!dueQueue.remove(task)) {
+                // 不在到期队列里, 就是正在拉或在服务器的队列里排队
+                removingMap.put(account, task);
+            }
+            return true;
+        }
+    }
+
+    public int getAccountCount() {
+        synchronized (lock) {
+            return taskMap.size();
+        }
+    }
+
+    /**
+     * @param host IMAP服务器
+     * @return 正在拉取的连接数
+     */
+    public int getRunningCount(String host) {
+        synchronized (lock) {
+            HostState state = hostMap.get(hostKey(host));
+            return state != null ? state.running : 0;
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        Thread thread = new Thread(this::loop, "EmailPollScheduler");
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+            thread.interrupt();
+        }
+    }
+
+    private void loop() {
+        Thread current = Thread.currentThread();
+        while (thread == current) {
+            PollTask task;
+            synchronized (lock) {
+                task = dueQueue.peek();
+                try {
+                    if (task == null) {
+                        lock.wait();
+                        continue;
+                    }
+                    long delay = task.nextPollTime - System.nanoTime();
+                    if (delay > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, delay);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                dueQueue.poll();
+                HostState host = hostMap.computeIfAbsent(hostKey(task.account.getHost()), HostState::new);
+                if (host.running >= maxConnectionsPerHost) {
+                    // 这个服务器的连接满了, 按到期顺序排队
+                    host.waitingQueue.addLast(task);
+                    continue;
+                }
+                host.running++;
+            }
+            dispatch(task);
+        }
+    }
+
+    private void dispatch(PollTask task) {
+        try {
+            executor.execute(() -> poll(task));
+        } catch (RejectedExecutionException e) {
+            log.warn("EmailPollScheduler dispatch rejected account = {}, error = {}", task.account, e.toString());
+            complete(task, false);
+        }
+    }
+
+    private void poll(PollTask task) {
+        // 给查询条件用的日期, 要系统时间
+        long startTime = System.currentTimeMillis();
+        boolean success = false;
+        try {
+            SearchTerm query = queryFunction.apply(task.lastPollTime);
+            try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(task.account, query, readOnly)) {
+                listener.onPoll(task.account, list);
+            }
+            task.lastPollTime = new Date(startTime);
+            success = true;
+        } catch (Throwable e) {
+            try {
+                listener.onError(task.account, e);
+            } catch (Throwable t) {
+                log.warn("EmailPollScheduler onError error = {}", t.toString(), t);
+            }
+        } finally {
+            complete(task, success);
+        }
+    }
+
+    private void complete(PollTask task, boolean success) {
+        PollTask next = null;
+        synchronized (lock) {
+            HostState host = hostMap.get(hostKey(task.account.getHost()));
+            if (task.removed) {
+                removingMap.remove(task.account, task);
+            } else {
+                long interval = task.intervalNanos;
+                long jitterNanos = (long) (interval * jitter);
+                long delay = jitterNanos > 0 ?
+                        interval + ThreadLocalRandom.current().nextLong(-jitterNanos, jitterNanos + 1) : interval;
+                task.nextPollTime = System.nanoTime() + delay;
+                task.sequence = sequence.getAndIncrement();
+                dueQueue.add(task);
+            }
+            // 把连接让给这个服务器排队最久的账号
+            while ((next = host.waitingQueue.pollFirst()) != null) {
+                if (!next.removed) {
+                    break;
+                }
+                removingMap.remove(next.account, next);
+            }
+            if (next == null) {
+                host.running--;
+                if (host.running == 0 && host.waitingQueue.isEmpty()) {
+                    hostMap.remove(host.host);
+                }
+            }
+            lock.notifyAll();
+        }
+        if (next != null) {
+            dispatch(next);
+        }
+    }
+
+    private static String hostKey(String host) {
+        return host == null ? "" : host.toLowerCase(Locale.ENGLISH);
+    }
+
+    public interface PollListener {
+        /**
+         * 拉取到邮件, 返回后列表会被关闭, 请在这里处理完
+         *
+         * @param account 账号
+         * @param list    邮件
+         * @throws Exception 异常会交给 {@link #onError(EmailService.Account, Throwable)}
+         */
+        void onPoll(EmailService.Account account, EmailService.EmailList<EmailService.EmailMessage> list) throws Exception;
+
+        default void onError(EmailService.Account account, Throwable error) {
+            log.warn("EmailPollScheduler poll error account = {}, error = {}", account, error.toString(), error);
+        }
+    }
+
+    private static class PollTask {
+        private final EmailService.Account account;
+        private volatile long intervalNanos;
+        private long sequence;
+        /**
+         * {@link System#nanoTime()}, 不受系统时钟调整影响
+         */
+        private long nextPollTime;
+        private volatile Date lastPollTime;
+        private volatile boolean removed;
+
+        private PollTask(EmailService.Account account, long intervalNanos, long sequence) {
+            this.account = account;
+            this.intervalNanos = intervalNanos;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class HostState {
+        private final String host;
+        private final Deque<PollTask> waitingQueue = new ArrayDeque<>();
+        private int running;
+
+        private HostState(String host) {
+            this.host = host;
+        }
+    }
+}
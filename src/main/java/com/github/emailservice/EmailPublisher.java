@@ -0,0 +1,357 @@
+package com.github.emailservice;
+
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.SortTerm;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.*;
+import javax.mail.search.SearchTerm;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询邮件 - Reactive Streams 方式, 支持背压
+ * 1. 下游 request(n) 时, 才向服务器FETCH后面n封邮件的信封和标记, 不会把全部结果放进内存
+ * 2. 文件夹是惰性打开的, 一个文件夹发完后关闭, 再打开下一个. 同一时间只打开一个文件夹
+ * 3. 取消时, 直接关闭正在使用的socket, 再关闭文件夹和连接
+ * 4. 所有网络操作在指定的 {@link Executor} 里执行, 不阻塞调用 request(n) 的线程
+ * 5. 和 {@link EmailService#selectEmailList(EmailService.Account, SearchTerm, boolean)} 一样: 查询条件经过 {@link SearchTermPlanner},
+ * 放宽过的部分每批预取信封后在本地精确过滤; 设置了 {@link EmailDeduplicator} 时去重, 完成后才记住返回过的邮件; 记录 {@link EmailMetrics}
+ * <p>
+ * 注意: 发出的 {@link EmailService.EmailMessage} 只在它的文件夹打开期间可用,
+ * 读取邮件内容 {@link EmailService.EmailMessage#getContent()} 请在 onNext 里完成 (或者 concatMap), 不要先缓存再读.
+ * <p>
+ * 排序: 服务器支持SORT时按收件时间排序, 否则按服务器返回的顺序
+ * <p>
+ * 用法 Flux.from(new EmailPublisher(emailService, account, query, true, executor))
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailList(EmailService.Account, SearchTerm, boolean)
+ */
+public class EmailPublisher implements Publisher<EmailService.EmailMessage> {
+    private static final Logger log = LoggerFactory.getLogger(EmailPublisher.class);
+    private final EmailService emailService;
+    private final EmailService.Account account;
+    private final SearchTerm query;
+    private final boolean readOnly;
+    private final Executor executor;
+    /**
+     * 一次FETCH最多取回的邮件数量
+     */
+    private int fetchSize = 100;
+
+    public EmailPublisher(EmailService emailService, EmailService.Account account, SearchTerm query, boolean readOnly, Executor executor) {
+        this.emailService = Objects.requireNonNull(emailService, "emailService");
+        this.account = Objects.requireNonNull(account, "account");
+        this.query = query;
+        this.readOnly = readOnly;
+        this.executor = Objects.requireNonNull(executor, "executor");
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be > 0. fetchSize=" + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super EmailService.EmailMessage> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new EmailSubscription(subscriber));
+    }
+
+    private class EmailSubscription implements Subscription, Runnable {
+        private final Subscriber<? super EmailService.EmailMessage> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AsyncEmailService.Call call = new AsyncEmailService.Call();
+        private final EmailMetrics metrics = emailService.getMetrics();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+        private final int fetchSize = EmailPublisher.this.fetchSize;
+        // 下面的字段只在run()里访问, wip保证串行
+        private boolean done;
+        private Store store;
+        private SearchTermPlanner.Plan plan;
+        private EmailDeduplicator.Batch deduplicateBatch;
+        private Iterator<Folder> folderIterator;
+        private Folder folder;
+        private Message[] messages;
+        private int messageIndex;
+        private boolean isSupportProtocolSort = true;
+
+        private EmailSubscription(Subscriber<? super EmailService.EmailMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("§3.9 violated: positive request amount required. n=" + n);
+            } else {
+                long r, u;
+                do {
+                    r = requested.get();
+                    u = r + n < 0 ? Long.MAX_VALUE : r + n;
+                } while (!requested.compareAndSet(r, u));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            // 中断正在进行的网络操作, 剩下的资源在run()里释放
+            call.abort();
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    invalidRequest = e;
+                    run();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            if (cancelled) {
+                done = true;
+                release();
+                return;
+            }
+            Throwable invalidRequest = this.invalidRequest;
+            if (invalidRequest != null) {
+                done = true;
+                release();
+                signalError(invalidRequest);
+                return;
+            }
+            long r = requested.get();
+            long emitted = 0;
+            while (emitted != r) {
+                Message[] batch;
+                try {
+                    batch = nextBatch((int) Math.min(r - emitted, fetchSize));
+                } catch (Throwable e) {
+                    // 只有邮箱本身的错误才发onError
+                    done = true;
+                    release();
+                    if (!cancelled) {
+                        signalError(e);
+                    }
+                    return;
+                }
+                if (cancelled) {
+                    done = true;
+                    release();
+                    return;
+                }
+                if (batch == null) {
+                    done = true;
+                    release();
+                    if (deduplicateBatch != null) {
+                        deduplicateBatch.commit();
+                    }
+                    signalComplete();
+                    return;
+                }
+                for (Message message : batch) {
+                    EmailService.EmailMessage emailMessage = new EmailService.EmailMessage(message, query);
+                    emailMessage.setUsername(account.getUsername());
+                    emailMessage.setFullTextIndex(emailService.getFullTextIndex());
+                    emailMessage.setMetrics(emailService.getMetrics());
+                    try {
+                        subscriber.onNext(emailMessage);
+                    } catch (Throwable e) {
+                        // §2.13 onNext抛异常时视为已取消, 不能再调用onError
+                        cancelled = true;
+                        done = true;
+                        release();
+                        log.error("EmailPublisher subscriber onNext error = {}, subscriber = {}", e.toString(), subscriber, e);
+                        return;
+                    }
+                    emitted++;
+                    if (cancelled) {
+                        done = true;
+                        release();
+                        return;
+                    }
+                }
+            }
+            if (r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        private void signalError(Throwable error) {
+            try {
+                subscriber.onError(error);
+            } catch (Throwable e) {
+                log.error("EmailPublisher subscriber onError error = {}, subscriber = {}", e.toString(), subscriber, e);
+            }
+        }
+
+        private void signalComplete() {
+            try {
+                subscriber.onComplete();
+            } catch (Throwable e) {
+                log.error("EmailPublisher subscriber onComplete error = {}, subscriber = {}", e.toString(), subscriber, e);
+            }
+        }
+
+        /**
+         * @param max 最多取回的数量
+         * @return 下一批邮件, 本地过滤和去重后可能是空的. null=没有了
+         */
+        private Message[] nextBatch(int max) throws MessagingException {
+            while (true) {
+                if (messages != null && messageIndex < messages.length) {
+                    int end = Math.min(messages.length, messageIndex + max);
+                    Message[] batch = Arrays.copyOfRange(messages, messageIndex, end);
+                    messageIndex = end;
+                    // 把这一批的信封和标记一次取回, 避免逐封请求
+                    FetchProfile profile = new FetchProfile();
+                    profile.add(FetchProfile.Item.ENVELOPE);
+                    profile.add(FetchProfile.Item.FLAGS);
+                    if (plan.hasLocalFilter()) {
+                        profile.add(FetchProfile.Item.SIZE);
+                    }
+                    fetch(batch, profile);
+                    return filter(batch);
+                }
+                closeFolder();
+                if (folderIterator == null) {
+                    store = emailService.connect(account, call);
+                    plan = emailService.getSearchTermPlanner().plan(query, store, account.getHost());
+                    EmailDeduplicator deduplicator = emailService.getDeduplicator();
+                    deduplicateBatch = deduplicator != null ? deduplicator.newBatch(account.getUsername()) : null;
+                    folderIterator = EmailService.selectMessageFolderList(store).iterator();
+                }
+                if (!folderIterator.hasNext()) {
+                    return null;
+                }
+                Folder next = folderIterator.next();
+                folder = next;
+                int mode = readOnly ? Folder.READ_ONLY : Folder.READ_WRITE;
+                metrics.run(EmailMetrics.Operation.FOLDER_OPEN, account.getHost(), next.getFullName(), () -> next.open(mode));
+                messages = search(next);
+                messageIndex = 0;
+            }
+        }
+
+        private void fetch(Message[] batch, FetchProfile profile) throws MessagingException {
+            EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.FETCH, account.getHost(), folder.getFullName());
+            boolean success = false;
+            try {
+                span.setMessageCount(batch.length);
+                folder.fetch(batch, profile);
+                success = true;
+            } finally {
+                span.end(success);
+            }
+        }
+
+        /**
+         * 服务器的结果是放宽过的, 在本地精确过滤, 然后去重. 都只用已经预取的信封
+         */
+        private Message[] filter(Message[] batch) throws MessagingException {
+            List<Message> list = new ArrayList<>(batch.length);
+            for (Message message : batch) {
+                if (plan.match(message) && (deduplicateBatch == null || deduplicateBatch.add(message))) {
+                    list.add(message);
+                }
+            }
+            return list.size() == batch.length ? batch : list.toArray(new Message[0]);
+        }
+
+        private Message[] search(Folder folder) throws MessagingException {
+            SearchTerm serverTerm = plan.getServerTerm();
+            String host = account.getHost();
+            if (isSupportProtocolSort && folder instanceof IMAPFolder) {
+                IMAPFolder imapFolder = (IMAPFolder) folder;
+                try {
+                    if (serverTerm != null) {
+                        return metrics.time(EmailMetrics.Operation.SORT, host, folder.getFullName(),
+                                () -> imapFolder.getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL}, serverTerm));
+                    } else {
+                        return metrics.time(EmailMetrics.Operation.SORT, host, folder.getFullName(),
+                                () -> imapFolder.getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL}));
+                    }
+                } catch (MessagingException e) {
+                    if (!(e.getNextException() instanceof ProtocolException)) {
+                        throw e;
+                    }
+                    // 不支持SORT
+                    isSupportProtocolSort = false;
+                }
+            }
+            if (serverTerm != null) {
+                return metrics.time(EmailMetrics.Operation.SEARCH, host, folder.getFullName(), () -> folder.search(serverTerm));
+            }
+            return folder.getMessages();
+        }
+
+        private void closeFolder() {
+            Folder folder = this.folder;
+            this.folder = null;
+            this.messages = null;
+            if (folder != null && folder.isOpen()) {
+                try {
+                    folder.close(false);
+                } catch (MessagingException e) {
+                    log.warn("EmailPublisher folder close error = {}", e.toString(), e);
+                }
+            }
+        }
+
+        private void release() {
+            closeFolder();
+            folderIterator = null;
+            Store store = this.store;
+            this.store = null;
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (MessagingException e) {
+                    log.warn("EmailPublisher store close error = {}", e.toString(), e);
+                }
+            }
+        }
+    }
+}
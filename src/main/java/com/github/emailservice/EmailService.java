@@ -3,15 +3,18 @@ package com.github.emailservice;
 import com.github.emailservice.util.FileMediaType;
 import com.github.emailservice.util.FileUtil;
 import com.github.emailservice.util.HtmlQuery;
+import com.github.emailservice.util.HtmlTextExtractor;
 import com.github.emailservice.util.ParameterParser;
 import com.sun.mail.iap.ProtocolException;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.SortTerm;
+import com.sun.mail.smtp.SMTPTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.mail.MailProperties;
 import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
@@ -24,8 +27,12 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -37,6 +44,7 @@ import java.util.stream.Collectors;
  * 功能5. 获取文件夹列表 {@link #selectFolderList(Account)}
  * 功能6. 获取附件 {@link EmailMessage#getContentList()} {@link FileContent,HtmlContent,PdfContent,ImageContent,TextContent,WordContent,UnkownContent}
  * 功能7. 处理html附件dom元素，类似JQuery {@link HtmlContent#getQuery()} 后链式操作处理
+ * 功能8. 本地全文索引查询邮件 {@link #selectEmailListByFullText(Account, String, int)}
  * <p>
  *
  * @author wangzihao 2021年9月6日19:56:22
@@ -72,6 +80,40 @@ public class EmailService {
      * @see #sendHtmlMail(String, String, String)
      */
     private JavaMailSender mailSender;
+    /**
+     * 可以为null, 不为null时发送邮件复用池里的SMTP连接
+     *
+     * @see TransportPool
+     */
+    private TransportPool transportPool;
+    /**
+     * 可以为null, 不为null时读取过内容的邮件会加入本地全文索引
+     *
+     * @see EmailFullTextIndex
+     */
+    private EmailFullTextIndex fullTextIndex;
+    /**
+     * 可以为null, 不为null时可以用 {@link #selectEmailMetadataList(Account, Predicate)} 本地查询邮件列表
+     *
+     * @see EmailMetadataStore
+     */
+    private EmailMetadataStore metadataStore;
+    /**
+     * 查询条件哪些发给服务器, 哪些在本地精确过滤
+     */
+    private SearchTermPlanner searchTermPlanner = new SearchTermPlanner();
+    /**
+     * 可以为null, 不为null时查询邮件列表去掉多个文件夹里重复的邮件
+     *
+     * @see EmailDeduplicator
+     */
+    private EmailDeduplicator deduplicator;
+    /**
+     * 监控指标, 默认不记录
+     *
+     * @see MicrometerEmailMetrics
+     */
+    private EmailMetrics metrics = EmailMetrics.NOOP;
 
     public EmailService() {
         this(null, null);
@@ -120,7 +162,9 @@ public class EmailService {
         return list;
     }
 
-    private static Content parseContent(Part part, String sectionId, String messageId) throws MessagingException, IOException {
+    private static Content parseContent(Part part, String sectionId, EmailMessage message) throws MessagingException, IOException {
+        String messageId = message.getMessageId();
+        EmailMetrics metrics = message.metrics;
         String transferEncoding;
         if (part instanceof MimePart) {
             transferEncoding = ((MimePart) part).getEncoding();
@@ -145,7 +189,20 @@ public class EmailService {
             fileName = part.getFileName();
         }
 
-        Object body = part.getContent();
+        Object body;
+        if (metrics == EmailMetrics.NOOP) {
+            body = part.getContent();
+        } else {
+            EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.PART_READ, message.getHost(), message.getFolderName());
+            boolean success = false;
+            try {
+                span.setBytes(part.getSize());
+                body = part.getContent();
+                success = true;
+            } finally {
+                span.end(success);
+            }
+        }
         FileMediaType mediaType;
         if (body instanceof InputStream) {
             InputStream inputStream = (InputStream) body;
@@ -166,14 +223,14 @@ public class EmailService {
                 String nextSectionId = sectionId == null ?
                         Integer.toString(i + 1) :
                         sectionId + "." + (i + 1);
-                contentList.add(parseContent(multipart.getBodyPart(i), nextSectionId, messageId));
+                contentList.add(parseContent(multipart.getBodyPart(i), nextSectionId, message));
             }
             result = new MultiPartContent(contentList);
         } else if (body instanceof javax.mail.internet.MimeMessage) {
             // 邮件转发
             javax.mail.internet.MimeMessage mimeMessage = (javax.mail.internet.MimeMessage) body;
             String nextSectionId = sectionId == null ? "1" : sectionId + ".1";
-            result = parseContent(mimeMessage, nextSectionId, messageId);
+            result = parseContent(mimeMessage, nextSectionId, message);
             result.setFromMessage(true);
         } else if (TYPE_TEXT_HTML.match(contentType)) {
             // html
@@ -207,6 +264,13 @@ public class EmailService {
             result = rejectParseEmailContent(body, mediaType, contentType);
         }
 
+        if (metrics != EmailMetrics.NOOP && !(body instanceof Multipart) && !(body instanceof javax.mail.internet.MimeMessage)) {
+            int size = part.getSize();
+            if (size > 0) {
+                metrics.recordBytes(getPartType(result), size);
+            }
+        }
+        result.metrics = metrics;
         result.setSectionId(sectionId);
         result.setMessageId(messageId);
         result.setEmailPart(part);
@@ -220,6 +284,39 @@ public class EmailService {
         return result;
     }
 
+    private static String getPartType(Content content) {
+        if (content instanceof HtmlContent) {
+            return "html";
+        } else if (content instanceof TextContent) {
+            return "text";
+        } else if (content instanceof ImageContent) {
+            return "image";
+        } else if (content instanceof WordContent) {
+            return "word";
+        } else if (content instanceof PdfContent) {
+            return "pdf";
+        } else {
+            return "unknown";
+        }
+    }
+
+    /**
+     * 文件夹类型, 用户文件夹都是other, 监控指标的tag不会太多
+     */
+    private static String getFolderType(Folder folder) {
+        for (FolderEnum folderEnum : FolderEnum.values()) {
+            if (folderEnum != FolderEnum.other && folderEnum.match(folder)) {
+                return folderEnum.name();
+            }
+        }
+        return FolderEnum.other.name();
+    }
+
+    static String getHost(Folder folder) {
+        URLName urlName = folder.getStore().getURLName();
+        return urlName != null ? urlName.getHost() : null;
+    }
+
     private static List<Folder> flatFolderList(Folder root) throws MessagingException {
         List<Folder> result = new LinkedList<>();
         List<Folder> visitFolderList = new LinkedList<>();
@@ -253,27 +350,115 @@ public class EmailService {
         this.mailSender = mailSender;
     }
 
-    private EmailList<EmailMessage> selectEmailList(Folder folder, SearchTerm query, boolean useProtocolSort) throws MessagingException {
+    public TransportPool getTransportPool() {
+        return transportPool;
+    }
+
+    @Autowired(required = false)
+    public void setTransportPool(TransportPool transportPool) {
+        this.transportPool = transportPool;
+    }
+
+    public EmailFullTextIndex getFullTextIndex() {
+        return fullTextIndex;
+    }
+
+    @Autowired(required = false)
+    public void setFullTextIndex(EmailFullTextIndex fullTextIndex) {
+        this.fullTextIndex = fullTextIndex;
+    }
+
+    public EmailMetadataStore getMetadataStore() {
+        return metadataStore;
+    }
+
+    @Autowired(required = false)
+    public void setMetadataStore(EmailMetadataStore metadataStore) {
+        this.metadataStore = metadataStore;
+    }
+
+    public SearchTermPlanner getSearchTermPlanner() {
+        return searchTermPlanner;
+    }
+
+    @Autowired(required = false)
+    public void setSearchTermPlanner(SearchTermPlanner searchTermPlanner) {
+        this.searchTermPlanner = Objects.requireNonNull(searchTermPlanner, "searchTermPlanner");
+    }
+
+    public EmailDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    @Autowired(required = false)
+    public void setDeduplicator(EmailDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+    }
+
+    public EmailMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(EmailMetrics metrics) {
+        this.metrics = metrics != null ? metrics : EmailMetrics.NOOP;
+        this.metrics.bind(this);
+    }
+
+    private EmailList<EmailMessage> selectEmailList(Folder folder, SearchTermPlanner.Plan plan, boolean useProtocolSort,
+                                                    EmailDeduplicator.Batch batch) throws MessagingException {
         EmailList<EmailMessage> list = new EmailList<>(folder);
+        SearchTerm query = plan.getServerTerm();
+        String host = getHost(folder);
         boolean isUnsorted;
         Message[] emails;
         if (useProtocolSort && folder instanceof IMAPFolder) {
             isUnsorted = false;
+            IMAPFolder imapFolder = (IMAPFolder) folder;
             if (query != null) {
-                emails = ((IMAPFolder) folder).getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL}, query);
+                emails = metrics.time(EmailMetrics.Operation.SORT, host, folder.getFullName(),
+                        () -> imapFolder.getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL}, query));
             } else {
-                emails = ((IMAPFolder) folder).getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL});
+                emails = metrics.time(EmailMetrics.Operation.SORT, host, folder.getFullName(),
+                        () -> imapFolder.getSortedMessages(new SortTerm[]{SortTerm.ARRIVAL}));
             }
         } else {
             isUnsorted = true;
             if (query != null) {
-                emails = folder.search(query);
+                emails = metrics.time(EmailMetrics.Operation.SEARCH, host, folder.getFullName(), () -> folder.search(query));
             } else {
                 emails = folder.getMessages();
             }
         }
+        if (plan.hasLocalFilter() && emails.length > 0) {
+            // 服务器的结果是放宽过的, 一次预取信封后在本地精确过滤
+            FetchProfile profile = new FetchProfile();
+            profile.add(FetchProfile.Item.ENVELOPE);
+            profile.add(FetchProfile.Item.FLAGS);
+            profile.add(FetchProfile.Item.SIZE);
+            fetch(folder, host, emails, profile);
+            emails = Arrays.stream(emails).filter(plan::match).toArray(Message[]::new);
+        }
+        if (batch != null && emails.length > 0) {
+            // 去重只用信封, 在读取内容之前去掉
+            if (!plan.hasLocalFilter()) {
+                FetchProfile profile = new FetchProfile();
+                profile.add(FetchProfile.Item.ENVELOPE);
+                fetch(folder, host, emails, profile);
+            }
+            List<Message> unique = new ArrayList<>(emails.length);
+            for (Message email : emails) {
+                if (batch.add(email)) {
+                    unique.add(email);
+                }
+            }
+            emails = unique.toArray(new Message[0]);
+        }
+        if (metrics != EmailMetrics.NOOP) {
+            metrics.recordFolder(host, getFolderType(folder), emails.length);
+        }
         for (Message email : emails) {
-            list.add(new EmailMessage(email, query));
+            list.add(new EmailMessage(email, plan.getQuery()));
         }
         if (isUnsorted) {
             list.sort(Comparator.comparing((Function<EmailMessage, Date>) m -> {
@@ -294,6 +479,18 @@ public class EmailService {
         return list;
     }
 
+    private void fetch(Folder folder, String host, Message[] emails, FetchProfile profile) throws MessagingException {
+        EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.FETCH, host, folder.getFullName());
+        boolean success = false;
+        try {
+            span.setMessageCount(emails.length);
+            folder.fetch(emails, profile);
+            success = true;
+        } finally {
+            span.end(success);
+        }
+    }
+
     /**
      * 查询邮件 - 根据条件
      *
@@ -303,76 +500,268 @@ public class EmailService {
      * @return 用完记得关闭，调用close方法
      */
     public EmailList<EmailMessage> selectEmailList(Account account, SearchTerm query, boolean readOnly) throws AuthenticationFailedException, MessagingException {
+        return selectEmailList(account, query, readOnly, null);
+    }
+
+    EmailList<EmailMessage> selectEmailList(Account account, SearchTerm query, boolean readOnly, AsyncEmailService.Call call) throws AuthenticationFailedException, MessagingException {
         log.info("selectEmailList start account = {} query = {}, readOnly = {}", account, query, readOnly);
         long startTimestamp = System.currentTimeMillis();
         EmailList<EmailMessage> resultList = new EmailList<>();
+        EmailDeduplicator.Batch batch = null;
         try {
-            Session session = Session.getInstance(new Properties());
-            Store store = session.getStore(account.getProtocol());
-            try {
-                store.connect(account.getHost(), account.getPort(), account.getUsername(), account.getPassword());
-            } catch (AuthenticationFailedException e) {
-                // 账号密码错误
-                throw e;
-            }
-
+            Store store = connect(account, call);
             boolean isSupportProtocolSort = true;
             try {
-                Folder defaultFolder = store.getDefaultFolder();
-                Folder[] systemFolders = defaultFolder.list();
-                // 系统根文件夹
-                for (Folder systemFolder : systemFolders) {
-                    Set<FolderEnum> skipFolders = EnumSet.of(FolderEnum.deleted, FolderEnum.sent, FolderEnum.junk, FolderEnum.drafts);
-                    if (skipFolders.stream().anyMatch(e -> e.match(systemFolder))) {
-                        continue;
-                    }
-
-                    // 用户文件夹
-                    List<Folder> flatFolderList = flatFolderList(systemFolder);
-                    for (Folder folder : flatFolderList) {
-                        if (folder.getType() == Folder.HOLDS_FOLDERS) {
-                            continue;
+                SearchTermPlanner.Plan plan = searchTermPlanner.plan(query, store, account.getHost());
+                log.debug("selectEmailList account = {}, {}", account, plan);
+                batch = deduplicator != null ? deduplicator.newBatch(account.getUsername()) : null;
+                for (Folder folder : selectMessageFolderList(store)) {
+                    int mode = readOnly ? Folder.READ_ONLY : Folder.READ_WRITE;
+                    metrics.run(EmailMetrics.Operation.FOLDER_OPEN, account.getHost(), folder.getFullName(), () -> folder.open(mode));
+                    EmailList<EmailMessage> list;
+                    // 查询
+                    try {
+                        // 优先用原生协议 如果支持。 按收件时间排序
+                        if (isSupportProtocolSort) {
+                            list = selectEmailList(folder, plan, true, batch);
+                        } else {
+                            // 在java内存里排序
+                            list = selectEmailList(folder, plan, false, batch);
                         }
-                        folder.open(readOnly ? Folder.READ_ONLY : Folder.READ_WRITE);
-                        EmailList<EmailMessage> list;
-                        // 查询
-                        try {
-                            // 优先用原生协议 如果支持。 按收件时间排序
-                            if (isSupportProtocolSort) {
-                                list = selectEmailList(folder, query, true);
-                            } else {
-                                // 在java内存里排序
-                                list = selectEmailList(folder, query, false);
-                            }
-                        } catch (MessagingException e) {
-                            isSupportProtocolSort = false;
-                            if (e.getNextException() instanceof ProtocolException) {
-                                // 在java内存里排序
-                                list = selectEmailList(folder, query, false);
-                            } else {
-                                // 查询报错
-                                try {
-                                    folder.close(false);
-                                } catch (MessagingException ignored) {
-                                }
-                                throw e;
+                    } catch (MessagingException e) {
+                        isSupportProtocolSort = false;
+                        if (e.getNextException() instanceof ProtocolException) {
+                            // 在java内存里排序
+                            list = selectEmailList(folder, plan, false, batch);
+                        } else {
+                            // 查询报错
+                            try {
+                                folder.close(false);
+                            } catch (MessagingException ignored) {
                             }
+                            throw e;
                         }
-                        resultList.addList(list);
                     }
+                    resultList.addList(list);
                 }
             } catch (Exception e) {
                 store.close();
                 resultList.close();
                 throw e;
             }
-            resultList.forEach(e -> e.username = account.getUsername());
+            resultList.forEach(e -> {
+                e.username = account.getUsername();
+                e.fullTextIndex = fullTextIndex;
+                e.metrics = metrics;
+            });
+            if (batch != null) {
+                batch.commit();
+            }
             return resultList;
         } finally {
-            log.info("selectEmailList end cost = {}/ms, account = {} query = {}, readOnly = {}, listSize = {}",
+            log.info("selectEmailList end cost = {}/ms, account = {} query = {}, readOnly = {}, listSize = {}, duplicateCount = {}",
                     System.currentTimeMillis() - startTimestamp,
-                    account, query, readOnly, resultList.size());
+                    account, query, readOnly, resultList.size(), batch != null ? batch.getDuplicateCount() : 0);
+        }
+    }
+
+    /**
+     * 查询邮件 - 列式索引, 适合几十万封邮件的元数据列表
+     * 只保留UID,收件时间,大小,标记,发件人,文件夹, 需要邮件内容时再调用 {@link EmailIndex#getEmailMessage(int)}
+     *
+     * @param account 邮箱账号密码
+     * @param query   查询条件
+     * @return 用完记得关闭，调用close方法
+     */
+    public EmailIndex selectEmailIndex(Account account, SearchTerm query) throws AuthenticationFailedException, MessagingException {
+        long startTimestamp = System.currentTimeMillis();
+        Store store = connect(account, null);
+        EmailIndex index = new EmailIndex(store, account.getUsername());
+        index.setFullTextIndex(fullTextIndex);
+        index.setMetrics(metrics);
+        try {
+            SearchTermPlanner.Plan plan = searchTermPlanner.plan(query, store, account.getHost());
+            for (Folder folder : selectMessageFolderList(store)) {
+                metrics.run(EmailMetrics.Operation.FOLDER_OPEN, account.getHost(), folder.getFullName(), () -> folder.open(Folder.READ_ONLY));
+                try {
+                    index.addFolder(folder, plan);
+                } finally {
+                    // 关闭后释放javamail缓存的Message对象, 物化时再打开
+                    folder.close(false);
+                }
+            }
+        } catch (Exception e) {
+            index.close();
+            throw e;
+        }
+        log.info("selectEmailIndex end cost = {}/ms, account = {} query = {}, indexSize = {}",
+                System.currentTimeMillis() - startTimestamp, account, query, index.size());
+        return index;
+    }
+
+    /**
+     * 查询邮件元数据 - 本地元数据库
+     * 每个文件夹只发一条STATUS, 没有变化时直接读本地, 有变化时只取变化的部分
+     *
+     * @param account 邮箱账号密码
+     * @param filter  过滤, null=不过滤
+     * @return 按收件时间倒序, 不需要关闭. 需要邮件内容时用 {@link #selectEmailListByUid(Account, String, long...)}
+     * @see #setMetadataStore(EmailMetadataStore)
+     */
+    public List<EmailMetadata> selectEmailMetadataList(Account account, Predicate<EmailMetadata> filter) throws AuthenticationFailedException, MessagingException {
+        if (metadataStore == null) {
+            throw new IllegalStateException("metadataStore is null");
+        }
+        long startTimestamp = System.currentTimeMillis();
+        List<String> folderNames = new ArrayList<>();
+        int changedCount = 0;
+        Store store = connect(account, null);
+        try {
+            for (Folder folder : selectMessageFolderList(store)) {
+                folderNames.add(folder.getFullName());
+                if (metadataStore.sync(folder, account.getUsername())) {
+                    changedCount++;
+                }
+            }
+            List<EmailMetadata> list = metadataStore.list(account.getUsername(), folderNames, filter);
+            log.info("selectEmailMetadataList end cost = {}/ms, account = {}, folders = {}, changedFolders = {}, listSize = {}",
+                    System.currentTimeMillis() - startTimestamp, account, folderNames.size(), changedCount, list.size());
+            return list;
+        } catch (IOException e) {
+            throw new MessagingException("EmailMetadataStore error " + e, e);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * 查询邮件 - 本地全文索引, 不走服务器的SEARCH
+     *
+     * @param account 邮箱账号密码
+     * @param query   查询文本, 中文可以是子串
+     * @param limit   最多返回几封
+     * @return 用完记得关闭，调用close方法
+     * @see #setFullTextIndex(EmailFullTextIndex)
+     */
+    public EmailList<EmailMessage> selectEmailListByFullText(Account account, String query, int limit) throws AuthenticationFailedException, MessagingException {
+        if (fullTextIndex == null) {
+            throw new IllegalStateException("fullTextIndex is null");
+        }
+        Map<String, List<Long>> folderUidMap = new LinkedHashMap<>();
+        Map<String, Long> uidValidityMap = new HashMap<>();
+        for (EmailFullTextIndex.Hit hit : fullTextIndex.search(account.getUsername(), query, limit)) {
+            folderUidMap.computeIfAbsent(hit.getFolderName(), k -> new ArrayList<>()).add(hit.getUid());
+            uidValidityMap.put(hit.getFolderName(), hit.getUidValidity());
+        }
+        Map<String, long[]> uidMap = new LinkedHashMap<>();
+        folderUidMap.forEach((folderName, uids) -> uidMap.put(folderName, uids.stream().mapToLong(Long::longValue).toArray()));
+        return selectEmailListByUid(account, uidMap, uidValidityMap);
+    }
+
+    /**
+     * 查询邮件 - 根据UID, 已被删除的邮件会跳过
+     *
+     * @param account    邮箱账号密码
+     * @param folderName 文件夹全名 {@link Folder#getFullName()}
+     * @param uids       文件夹内的UID
+     * @return 用完记得关闭，调用close方法
+     */
+    public EmailList<EmailMessage> selectEmailListByUid(Account account, String folderName, long... uids) throws AuthenticationFailedException, MessagingException {
+        return selectEmailListByUid(account, Collections.singletonMap(folderName, uids), Collections.emptyMap());
+    }
+
+    /**
+     * @param uidValidityMap 文件夹的UIDVALIDITY, 和服务器的不一样说明UID重置了, UID对应的是别的邮件, 跳过这个文件夹
+     */
+    private EmailList<EmailMessage> selectEmailListByUid(Account account, Map<String, long[]> uidMap, Map<String, Long> uidValidityMap) throws AuthenticationFailedException, MessagingException {
+        EmailList<EmailMessage> resultList = new EmailList<>();
+        Store store = connect(account, null);
+        try {
+            for (Map.Entry<String, long[]> entry : uidMap.entrySet()) {
+                Folder folder = store.getFolder(entry.getKey());
+                if (!folder.exists()) {
+                    continue;
+                }
+                if (!(folder instanceof UIDFolder)) {
+                    throw new MessagingException("folder not support uid. folder=" + entry.getKey());
+                }
+                Long uidValidity = uidValidityMap.get(entry.getKey());
+                if (uidValidity != null) {
+                    long current = ((UIDFolder) folder).getUIDValidity();
+                    if (current != uidValidity) {
+                        if (fullTextIndex != null) {
+                            fullTextIndex.updateUidValidity(account.getUsername(), entry.getKey(), current);
+                        }
+                        continue;
+                    }
+                }
+                metrics.run(EmailMetrics.Operation.FOLDER_OPEN, account.getHost(), folder.getFullName(), () -> folder.open(Folder.READ_ONLY));
+                EmailList<EmailMessage> list = new EmailList<>(folder);
+                for (Message email : ((UIDFolder) folder).getMessagesByUID(entry.getValue())) {
+                    if (email != null) {
+                        list.add(new EmailMessage(email, null));
+                    }
+                }
+                resultList.addList(list);
+            }
+        } catch (Exception e) {
+            store.close();
+            resultList.close();
+            throw e;
+        }
+        if (resultList.getFolderList().isEmpty()) {
+            store.close();
+        }
+        resultList.forEach(e -> {
+            e.username = account.getUsername();
+            e.fullTextIndex = fullTextIndex;
+            e.metrics = metrics;
+        });
+        return resultList;
+    }
+
+    Store connect(Account account, AsyncEmailService.Call call) throws AuthenticationFailedException, MessagingException {
+        Properties properties = new Properties();
+        if (call != null) {
+            call.prepare(properties, account.getProtocol());
+        }
+        Session session = Session.getInstance(properties);
+        Store store = session.getStore(account.getProtocol());
+        if (call != null) {
+            call.register(store);
+        }
+        try {
+            metrics.run(EmailMetrics.Operation.CONNECT, account.getHost(),
+                    () -> store.connect(account.getHost(), account.getPort(), account.getUsername(), account.getPassword()));
+        } catch (AuthenticationFailedException e) {
+            // 账号密码错误
+            throw e;
+        }
+        return store;
+    }
+
+    /**
+     * 需要查询邮件的文件夹, 跳过删除,发送,垃圾,草稿 和只能放子文件夹的文件夹
+     */
+    static List<Folder> selectMessageFolderList(Store store) throws MessagingException {
+        List<Folder> result = new ArrayList<>();
+        Set<FolderEnum> skipFolders = EnumSet.of(FolderEnum.deleted, FolderEnum.sent, FolderEnum.junk, FolderEnum.drafts);
+        Folder defaultFolder = store.getDefaultFolder();
+        Folder[] systemFolders = defaultFolder.list();
+        // 系统根文件夹
+        for (Folder systemFolder : systemFolders) {
+            if (skipFolders.stream().anyMatch(e -> e.match(systemFolder))) {
+                continue;
+            }
+            // 用户文件夹
+            for (Folder folder : flatFolderList(systemFolder)) {
+                if (folder.getType() == Folder.HOLDS_FOLDERS) {
+                    continue;
+                }
+                result.add(folder);
+            }
         }
+        return result;
     }
 
 
@@ -385,15 +774,17 @@ public class EmailService {
      * @throws MessagingException
      */
     public FolderList selectFolderList(Account account) throws AuthenticationFailedException, MessagingException {
-        Session session = Session.getInstance(new Properties());
-        Store store = session.getStore(account.getProtocol());
+        return selectFolderList(account, null);
+    }
+
+    FolderList selectFolderList(Account account, AsyncEmailService.Call call) throws AuthenticationFailedException, MessagingException {
+        Store store = connect(account, call);
         try {
-            store.connect(account.getHost(), account.getPort(), account.getUsername(), account.getPassword());
-        } catch (AuthenticationFailedException e) {
-            // 账号密码错误
+            return new FolderList(store);
+        } catch (MessagingException e) {
+            store.close();
             throw e;
         }
-        return new FolderList(store);
     }
 
     /**
@@ -404,13 +795,34 @@ public class EmailService {
      * @param content
      */
     public boolean sendSimpleMail(String to, String subject, String content) {
+        if (isPooledSend()) {
+            try {
+                return sendSimpleMail(to, subject, content, null);
+            } catch (MessagingException e) {
+                throw new MailSendException("发送简单邮件失败", e);
+            }
+        }
         SimpleMailMessage message = new SimpleMailMessage();
         message.setTo(to);
         message.setFrom(mailProperties.getUsername());
         message.setSubject(subject);
         message.setText(content);
 
-        mailSender.send(message);
+        sendBySpring(() -> mailSender.send(message));
+        return true;
+    }
+
+    boolean sendSimpleMail(String to, String subject, String content, AsyncEmailService.Call call) throws MessagingException {
+        if (call == null && !isPooledSend()) {
+            return sendSimpleMail(to, subject, content);
+        }
+        javax.mail.internet.MimeMessage message = mailSender.createMimeMessage();
+        MimeMessageHelper helper = new MimeMessageHelper(message);
+        helper.setTo(to);
+        helper.setFrom(mailProperties.getUsername());
+        helper.setSubject(subject);
+        helper.setText(content);
+        send(message, call);
         return true;
     }
 
@@ -422,6 +834,10 @@ public class EmailService {
      * @param content html内容
      */
     public boolean sendHtmlMail(String to, String subject, String content) {
+        return sendHtmlMail(to, subject, content, null);
+    }
+
+    boolean sendHtmlMail(String to, String subject, String content, AsyncEmailService.Call call) {
         javax.mail.internet.MimeMessage message = mailSender.createMimeMessage();
         try {
             MimeMessageHelper helper = new MimeMessageHelper(message, true);
@@ -429,12 +845,126 @@ public class EmailService {
             helper.setFrom(mailProperties.getUsername());
             helper.setSubject(subject);
             helper.setText(content, true);
-            mailSender.send(message);
-            return true;
         } catch (MessagingException e) {
             log.error("发送html邮件失败：{}", e.toString(), e);
             return false;
         }
+        send(message, call);
+        return true;
+    }
+
+    private boolean isPooledSend() {
+        return transportPool != null && mailSender instanceof JavaMailSenderImpl;
+    }
+
+    /**
+     * 发送邮件. call不为空时, 用单独的连接发送, 以便取消时可以关闭. 否则有连接池时用池里的连接
+     *
+     * @throws MailSendException 发送失败, 和 {@link JavaMailSender#send(javax.mail.internet.MimeMessage)} 一样
+     */
+    private void send(javax.mail.internet.MimeMessage message, AsyncEmailService.Call call) throws MailException {
+        if (call == null && !isPooledSend()) {
+            sendBySpring(() -> mailSender.send(message));
+            return;
+        }
+        if (call != null && !(mailSender instanceof JavaMailSenderImpl)) {
+            sendBySpring(() -> mailSender.send(message));
+            return;
+        }
+        JavaMailSenderImpl impl = (JavaMailSenderImpl) mailSender;
+        try {
+            if (call == null) {
+                sendPooled(transportPool, impl, message, metrics);
+                return;
+            }
+            String protocol = impl.getProtocol() != null ? impl.getProtocol() : JavaMailSenderImpl.DEFAULT_PROTOCOL;
+            Properties properties = new Properties();
+            properties.putAll(impl.getSession().getProperties());
+            call.prepare(properties, protocol);
+            Transport transport = Session.getInstance(properties).getTransport(protocol);
+            call.register(transport);
+            try {
+                transport.connect(impl.getHost(), impl.getPort(), impl.getUsername(), impl.getPassword());
+                sendMessage(transport, message, metrics);
+            } finally {
+                closeQuietly(transport);
+            }
+        } catch (MessagingException e) {
+            throw new MailSendException("发送邮件失败", e);
+        }
+    }
+
+    /**
+     * 用spring的mailSender发送, 计时
+     */
+    private void sendBySpring(Runnable send) {
+        String host = mailSender instanceof JavaMailSenderImpl ? ((JavaMailSenderImpl) mailSender).getHost() : null;
+        EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.SEND, host, null);
+        boolean success = false;
+        try {
+            send.run();
+            success = true;
+        } finally {
+            span.end(success);
+        }
+    }
+
+    /**
+     * 用池里的连接发送. 复用的连接可能已被服务器断开, 这时换一个新连接再发一次
+     */
+    private static void sendPooled(TransportPool pool, JavaMailSenderImpl impl, javax.mail.internet.MimeMessage message,
+                                   EmailMetrics metrics) throws MessagingException {
+        String protocol = impl.getProtocol() != null ? impl.getProtocol() : JavaMailSenderImpl.DEFAULT_PROTOCOL;
+        while (true) {
+            boolean reuse;
+            try (TransportPool.PooledTransport pooled = pool.borrow(impl.getSession(), protocol,
+                    impl.getHost(), impl.getPort(), impl.getUsername(), impl.getPassword())) {
+                reuse = pooled.getMessageCount() > 0;
+                try {
+                    sendMessage(pooled.getTransport(), message, metrics);
+                    pooled.incrementMessageCount();
+                    return;
+                } catch (SendFailedException e) {
+                    // 收件人被拒, 连接还可以用
+                    throw e;
+                } catch (MessagingException e) {
+                    pooled.markBroken();
+                    if (!reuse) {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 用已连接的transport发送, 和 {@link JavaMailSenderImpl} 一样补上发送时间, 保留调用方指定的Message-ID
+     */
+    private static void sendMessage(Transport transport, javax.mail.internet.MimeMessage message, EmailMetrics metrics) throws MessagingException {
+        if (message.getSentDate() == null) {
+            message.setSentDate(new Date());
+        }
+        String messageId = message.getMessageID();
+        message.saveChanges();
+        if (messageId != null) {
+            // 保留调用方指定的Message-ID
+            message.setHeader("Message-ID", messageId);
+        }
+        javax.mail.Address[] addresses = message.getAllRecipients();
+        URLName urlName = transport.getURLName();
+        metrics.run(EmailMetrics.Operation.SEND, urlName != null ? urlName.getHost() : null,
+                () -> transport.sendMessage(message, addresses != null ? addresses : new javax.mail.Address[0]));
+    }
+
+    private static void closeQuietly(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            log.debug("transport close error = {}", e.toString());
+        }
     }
 
     public Sender newSender(String host, String username, String password) {
@@ -460,12 +990,23 @@ public class EmailService {
         sender.setProtocol(protocol);
         sender.setUsername(username);
         sender.setPassword(password);
+        sender.setTransportPool(transportPool);
+        sender.setMetrics(metrics);
         return sender;
     }
 
     public boolean testConnection(String host, String username, String password) {
+        return testConnection(host, username, password, null);
+    }
+
+    boolean testConnection(String host, String username, String password, AsyncEmailService.Call call) {
         try {
-            newSender(host, username, password).testConnection();
+            Sender sender = newSender(host, username, password);
+            if (call != null) {
+                call.prepare(sender.getJavaMailProperties(), sender.getProtocol());
+                sender.call = call;
+            }
+            sender.testConnection();
             return true;
         } catch (MessagingException e) {
             return false;
@@ -548,42 +1089,413 @@ public class EmailService {
 
     public static class MimeMessage extends MimeMessageHelper {
         private final Sender sender;
+        /**
+         * 已被send, sendAll或enqueue取走, 保证只发送一次
+         */
+        private final AtomicBoolean takenFlag = new AtomicBoolean(false);
+        /**
+         * 创建邮件的线程, 这个线程调用sendAll时说明已经写完了
+         */
+        private final Thread ownerThread = Thread.currentThread();
+        /**
+         * 已经 {@link #submit()}, 可以被任何线程的sendAll发送
+         */
+        private volatile boolean readyFlag;
 
         private MimeMessage(Sender sender) throws MessagingException {
             super(sender.createMimeMessage(), true, "UTF-8");
             this.sender = sender;
         }
 
+        private MimeMessage(Sender sender, javax.mail.internet.MimeMessage mimeMessage) {
+            super(mimeMessage);
+            this.sender = sender;
+        }
+
         public void send() throws MailException {
             sender.send(this);
         }
+
+        /**
+         * 写完后提交, 之后任何线程的 {@link Sender#sendAll()} 都可以发送
+         */
+        public void submit() {
+            sender.submit(this);
+        }
+
+        /**
+         * 添加编码好的附件, 发送时直接复制字节, 不再编码
+         *
+         * @param attachmentFilename 附件名
+         * @param attachment         {@link AttachmentRegistry#register(String, byte[])}
+         * @throws MessagingException 不是multipart邮件
+         */
+        public void addAttachment(String attachmentFilename, AttachmentRegistry.EncodedAttachment attachment) throws MessagingException {
+            getRootMimeMultipart().addBodyPart(new AttachmentRegistry.PreencodedBodyPart(attachmentFilename, attachment));
+        }
+
+        /**
+         * 放进发件箱异步发送, 不等待SMTP. 需要先 {@link Sender#setOutbox(EmailOutbox)}
+         *
+         * @return 写入发件箱日志后完成
+         * @throws MessagingException 邮件序列化失败
+         */
+        public CompletableFuture<Long> enqueue() throws MessagingException {
+            return sender.enqueue(this);
+        }
     }
 
     public static class Sender extends JavaMailSenderImpl {
-        private final List<MimeMessage> messageList = new ArrayList<>();
+        /**
+         * 待发送的邮件 -> 创建顺序. 多线程共用一个Sender时, 添加和删除都是O(1)
+         * 没有 {@link MimeMessage#submit()} 的邮件只有创建它的线程sendAll时才发送, 正在写的邮件不会被其他线程的sendAll发出去
+         */
+        private final Map<MimeMessage, Long> pendingMap = new ConcurrentHashMap<>();
+        private final AtomicLong pendingSequence = new AtomicLong();
+        /**
+         * 异步调用时, 记录用到的连接
+         */
+        private AsyncEmailService.Call call;
+        /**
+         * sendAll时一个连接最多发送的邮件数, 超过后重新连接. 很多服务器限制了每个连接的邮件数. 小于等于0=不限制
+         */
+        private int batchSize = 50;
+        /**
+         * sendAll时两封邮件之间是否发送RSET, 清掉上一封的事务状态
+         */
+        private boolean rsetBetweenMessages = true;
+        /**
+         * 不为null时, 用池里的连接发送, 每个连接的邮件数由池控制
+         */
+        private TransportPool transportPool;
+        /**
+         * 不为null时, 可以用 {@link MimeMessage#enqueue()} 异步发送
+         */
+        private EmailOutbox outbox;
+        /**
+         * 监控指标, 默认不记录
+         */
+        private EmailMetrics metrics = EmailMetrics.NOOP;
+
+        public EmailMetrics getMetrics() {
+            return metrics;
+        }
+
+        public void setMetrics(EmailMetrics metrics) {
+            this.metrics = metrics != null ? metrics : EmailMetrics.NOOP;
+        }
+
+        public EmailOutbox getOutbox() {
+            return outbox;
+        }
+
+        public void setOutbox(EmailOutbox outbox) {
+            this.outbox = outbox;
+        }
 
+        public TransportPool getTransportPool() {
+            return transportPool;
+        }
+
+        public void setTransportPool(TransportPool transportPool) {
+            this.transportPool = transportPool;
+        }
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public boolean isRsetBetweenMessages() {
+            return rsetBetweenMessages;
+        }
+
+        public void setRsetBetweenMessages(boolean rsetBetweenMessages) {
+            this.rsetBetweenMessages = rsetBetweenMessages;
+        }
+
+        /**
+         * 新建一封邮件, 放进待发送队列. 写完后 {@link MimeMessage#send()} 立即发送, 或等 {@link #sendAll()} 一起发送
+         * 1. 同一个线程写完后调用 {@link #sendAll()}, 会发送这个线程创建的所有邮件
+         * 2. 在一个线程写, 由另一个线程sendAll时, 写完要调用 {@link MimeMessage#submit()}, 没有submit的不会被其他线程发出去
+         *
+         * @return 邮件
+         * @throws MessagingException 创建失败
+         */
         public MimeMessage newMessage() throws MessagingException {
             MimeMessage message = new MimeMessage(this);
             message.setFrom(getUsername());
-            messageList.add(message);
+            pendingMap.put(message, pendingSequence.getAndIncrement());
             return message;
         }
 
+        /**
+         * 标记写好了, 任何线程的 {@link #sendAll()} 都可以发送. 重复提交无效
+         *
+         * @param message 写好的邮件
+         * @throws IllegalStateException 邮件已经发送过
+         */
+        public void submit(MimeMessage message) {
+            if (message.takenFlag.get()) {
+                throw new IllegalStateException("message already sent");
+            }
+            message.readyFlag = true;
+            pendingMap.putIfAbsent(message, pendingSequence.getAndIncrement());
+            if (message.takenFlag.get()) {
+                // 同时被另一个线程send了
+                pendingMap.remove(message);
+            }
+        }
+
+        /**
+         * 立即发送. 已经被其他线程的sendAll发送过的不再发送
+         *
+         * @param message 邮件
+         * @throws MailException 发送失败
+         */
         public void send(MimeMessage message) throws MailException {
-            if (messageList.remove(message)) {
+            if (take(message)) {
                 send(message.getMimeMessage());
             }
         }
 
-        public int sendAll() {
-            int i = 0;
-            Iterator<MimeMessage> iterator = messageList.iterator();
-            while (iterator.hasNext()) {
-                send(iterator.next().getMimeMessage());
-                iterator.remove();
-                i++;
+        public CompletableFuture<Long> enqueue(MimeMessage message) throws MessagingException {
+            EmailOutbox outbox = this.outbox;
+            if (outbox == null) {
+                throw new IllegalStateException("Sender outbox is null, call setOutbox first");
+            }
+            if (!take(message)) {
+                throw new IllegalStateException("message already sent");
+            }
+            try {
+                return outbox.enqueue(message.getMimeMessage());
+            } catch (MessagingException | RuntimeException e) {
+                // 没有写进发件箱, 还可以再发
+                message.takenFlag.set(false);
+                throw e;
+            }
+        }
+
+        /**
+         * @return true=这个线程取到了邮件, 负责发送
+         */
+        private boolean take(MimeMessage message) {
+            if (!message.takenFlag.compareAndSet(false, true)) {
+                return false;
+            }
+            pendingMap.remove(message);
+            return true;
+        }
+
+        public EmailTemplate newTemplate(String subject, String html) {
+            return new EmailTemplate(subject, html);
+        }
+
+        /**
+         * 按模板群发, 共用SMTP连接 (同 {@link #sendAll()})
+         * 模板只编译一次, 每个收件人只替换邮件头和占位符
+         *
+         * @param template   模板
+         * @param recipients 每个收件人的占位符值, {@link EmailTemplate#FIELD_TO} 是收件人地址
+         * @return 每个收件人的发送结果, 顺序和参数一样. 收件人地址不正确时, 结果里的邮件为null
+         */
+        public List<SendResult> sendTemplate(EmailTemplate template, Collection<? extends Map<String, String>> recipients) {
+            Session session = getSession();
+            List<MimeMessage> list = new ArrayList<>(recipients.size());
+            List<SendResult> resultList = new ArrayList<>(recipients.size());
+            for (Map<String, String> fields : recipients) {
+                try {
+                    list.add(new MimeMessage(this, template.newMessage(session, getUsername(), fields)));
+                    resultList.add(null);
+                } catch (MessagingException e) {
+                    resultList.add(new SendResult(null, e));
+                }
             }
-            return i;
+            Iterator<SendResult> sendResults = sendBatch(list).iterator();
+            for (int i = 0; i < resultList.size(); i++) {
+                if (resultList.get(i) == null) {
+                    resultList.set(i, sendResults.next());
+                }
+            }
+            return resultList;
+        }
+
+        /**
+         * @return 待发送的邮件数量, 包括还没有submit的
+         */
+        public int getPendingCount() {
+            return pendingMap.size();
+        }
+
+        /**
+         * 发送已提交 ({@link MimeMessage#submit()}) 的邮件和当前线程创建的邮件, 共用一个登录好的SMTP连接
+         * 1. 每个连接最多发送 {@link #getBatchSize()} 封, 超过后重新连接
+         * 2. 连接出错时重新连接, 继续发送后面的邮件
+         * 3. 一封失败不影响其他邮件, 每封的结果在返回值里
+         *
+         * 4. 其他线程创建, 还没有submit的邮件可能还在写, 留在队列里不发送
+         *
+         * @return 每封邮件的发送结果, 顺序和创建顺序一样
+         */
+        public List<SendResult> sendAll() {
+            // 取当前的快照, 按创建顺序. 只发送自己取到的, 其他线程同时调用send或sendAll不会重复发送
+            List<Map.Entry<MimeMessage, Long>> snapshot = new ArrayList<>(pendingMap.entrySet());
+            snapshot.sort(Map.Entry.comparingByValue());
+            Thread current = Thread.currentThread();
+            List<MimeMessage> list = new ArrayList<>(snapshot.size());
+            int holdCount = 0;
+            for (Map.Entry<MimeMessage, Long> entry : snapshot) {
+                MimeMessage message = entry.getKey();
+                if (!message.readyFlag && message.ownerThread != current) {
+                    holdCount++;
+                } else if (take(message)) {
+                    list.add(message);
+                }
+            }
+            if (holdCount > 0) {
+                log.debug("Sender sendAll hold {} messages not submitted by other threads", holdCount);
+            }
+            return sendBatch(list);
+        }
+
+        List<SendResult> sendBatch(List<MimeMessage> list) {
+            if (isPooledSend()) {
+                return sendBatchPooled(list);
+            }
+            List<SendResult> resultList = new ArrayList<>(list.size());
+            Transport transport = null;
+            int sentCount = 0;
+            try {
+                for (MimeMessage message : list) {
+                    Exception error;
+                    while (true) {
+                        boolean reuse = transport != null;
+                        try {
+                            if (transport != null && batchSize > 0 && sentCount >= batchSize) {
+                                closeQuietly(transport);
+                                transport = null;
+                                reuse = false;
+                            }
+                            if (transport == null) {
+                                transport = connectTransport();
+                                sentCount = 0;
+                            } else if (rsetBetweenMessages && transport instanceof SMTPTransport) {
+                                ((SMTPTransport) transport).issueCommand("RSET", 250);
+                            }
+                            sendMessage(transport, message.getMimeMessage(), metrics);
+                            sentCount++;
+                            error = null;
+                        } catch (SendFailedException e) {
+                            // 收件人被拒, 连接还可以用
+                            error = e;
+                        } catch (MessagingException e) {
+                            closeQuietly(transport);
+                            transport = null;
+                            error = e;
+                            if (reuse) {
+                                // 复用的连接可能已被服务器断开, 重新连接再发一次
+                                continue;
+                            }
+                        }
+                        break;
+                    }
+                    if (error != null) {
+                        log.warn("Sender sendAll error = {}", error.toString(), error);
+                    }
+                    resultList.add(new SendResult(message, error));
+                }
+            } finally {
+                closeQuietly(transport);
+            }
+            return resultList;
+        }
+
+        private List<SendResult> sendBatchPooled(List<MimeMessage> list) {
+            List<SendResult> resultList = new ArrayList<>(list.size());
+            for (MimeMessage message : list) {
+                Exception error = null;
+                try {
+                    sendPooled(transportPool, this, message.getMimeMessage(), metrics);
+                } catch (MessagingException e) {
+                    error = e;
+                    log.warn("Sender sendAll error = {}", e.toString(), e);
+                }
+                resultList.add(new SendResult(message, error));
+            }
+            return resultList;
+        }
+
+        private boolean isPooledSend() {
+            // 异步调用要记录自己的连接, 不用池
+            return transportPool != null && call == null;
+        }
+
+        @Override
+        protected void doSend(javax.mail.internet.MimeMessage[] mimeMessages, Object[] originalMessages) throws MailException {
+            if (!isPooledSend()) {
+                EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.SEND, getHost(), null);
+                boolean success = false;
+                try {
+                    span.setMessageCount(mimeMessages.length);
+                    super.doSend(mimeMessages, originalMessages);
+                    success = true;
+                } finally {
+                    span.end(success);
+                }
+                return;
+            }
+            Map<Object, Exception> failedMessages = new LinkedHashMap<>();
+            for (int i = 0; i < mimeMessages.length; i++) {
+                try {
+                    sendPooled(transportPool, this, mimeMessages[i], metrics);
+                } catch (MessagingException e) {
+                    Object original = originalMessages != null ? originalMessages[i] : mimeMessages[i];
+                    failedMessages.put(original, e);
+                }
+            }
+            if (!failedMessages.isEmpty()) {
+                throw new MailSendException(failedMessages);
+            }
+        }
+
+        @Override
+        protected Transport getTransport(Session session) throws NoSuchProviderException {
+            Transport transport = super.getTransport(session);
+            AsyncEmailService.Call call = this.call;
+            if (call != null) {
+                call.register(transport);
+            }
+            return transport;
+        }
+    }
+
+    public static class SendResult {
+        private final MimeMessage message;
+        private final Exception exception;
+
+        public SendResult(MimeMessage message, Exception exception) {
+            this.message = message;
+            this.exception = exception;
+        }
+
+        public MimeMessage getMessage() {
+            return message;
+        }
+
+        public Exception getException() {
+            return exception;
+        }
+
+        public boolean isSuccess() {
+            return exception == null;
+        }
+
+        @Override
+        public String toString() {
+            return isSuccess() ? "success" : "fail: " + exception;
         }
     }
 
@@ -716,6 +1628,22 @@ public class EmailService {
          * 是否已读
          */
         private Boolean seenFlag;
+        /**
+         * 文件夹内的UID, -1=不支持UID
+         */
+        private Long uid;
+        /**
+         * 文件夹的UIDVALIDITY, -1=不支持UID
+         */
+        private Long uidValidity;
+        /**
+         * 不为null时, 读取内容后加入全文索引
+         */
+        private EmailFullTextIndex fullTextIndex;
+        /**
+         * 读取内容时记录下载的大小
+         */
+        private EmailMetrics metrics = EmailMetrics.NOOP;
 
         public EmailMessage(Message email, SearchTerm query) {
             this.folderName = Optional.ofNullable(email).map(Message::getFolder).map(Folder::getFullName).orElse(null);
@@ -739,6 +1667,42 @@ public class EmailService {
             return username;
         }
 
+        void setUsername(String username) {
+            this.username = username;
+        }
+
+        void setFullTextIndex(EmailFullTextIndex fullTextIndex) {
+            this.fullTextIndex = fullTextIndex;
+        }
+
+        void setMetrics(EmailMetrics metrics) {
+            this.metrics = metrics != null ? metrics : EmailMetrics.NOOP;
+        }
+
+        public long getUid() throws MessagingException {
+            if (uid == null) {
+                Folder folder = email.getFolder();
+                this.uid = folder instanceof UIDFolder ? ((UIDFolder) folder).getUID(email) : -1L;
+            }
+            return uid;
+        }
+
+        public long getUidValidity() throws MessagingException {
+            if (uidValidity == null) {
+                Folder folder = email.getFolder();
+                this.uidValidity = folder instanceof UIDFolder ? ((UIDFolder) folder).getUIDValidity() : -1L;
+            }
+            return uidValidity;
+        }
+
+        /**
+         * @return 服务器, 监控指标用
+         */
+        String getHost() {
+            Folder folder = email.getFolder();
+            return folder != null ? EmailService.getHost(folder) : null;
+        }
+
         public EmailMessage getNext() {
             return next;
         }
@@ -847,8 +1811,14 @@ public class EmailService {
 
         public Content getContent() throws IOException, MessagingException {
             if (content == null) {
-                String messageId = getMessageId();
-                this.content = parseContent(email, null, messageId);
+                this.content = parseContent(email, null, this);
+                if (fullTextIndex != null) {
+                    try {
+                        fullTextIndex.add(this);
+                    } catch (Exception e) {
+                        log.warn("EmailMessage fullTextIndex add error = {}, message = {}", e.toString(), this, e);
+                    }
+                }
             }
             return content;
         }
@@ -976,10 +1946,17 @@ public class EmailService {
             InputStream stream = this.stream;
             String ext = getExt();
             String cacheId = "EmailBody_" + id + "." + ext;
+            EmailMetrics.Span span = getMetrics().start(EmailMetrics.Operation.CACHE_FILE, null, null);
+            boolean success = false;
             try {
-                return FileUtil.cacheTempFile(cacheId, () -> stream, false);
+                File file = FileUtil.cacheTempFile(cacheId, () -> stream, false);
+                span.setBytes(file.length());
+                success = true;
+                return file;
             } catch (IOException e) {
                 return null;
+            } finally {
+                span.end(success);
             }
         }
 
@@ -1124,6 +2101,24 @@ public class EmailService {
             return query;
         }
 
+        /**
+         * 纯文本, 不生成dom, 用于建索引等只要文字的场景
+         *
+         * @return 可见文字, 空白合并成一个空格
+         * @see HtmlTextExtractor
+         */
+        public String getPlainText() {
+            return getPlainText(Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param maxChars 最多返回多少个字符
+         * @return 可见文字, 空白合并成一个空格
+         */
+        public String getPlainText(int maxChars) {
+            return HtmlTextExtractor.extract(getText(), maxChars);
+        }
+
         @Override
         public void close() {
             query = null;
@@ -1204,11 +2199,19 @@ public class EmailService {
          * 邮件ID
          */
         private String messageId;
+        /**
+         * 写临时文件时计时
+         */
+        private EmailMetrics metrics = EmailMetrics.NOOP;
 
         public Part getEmailPart() {
             return emailPart;
         }
 
+        EmailMetrics getMetrics() {
+            return metrics;
+        }
+
         public void setEmailPart(Part emailPart) {
             this.emailPart = emailPart;
         }
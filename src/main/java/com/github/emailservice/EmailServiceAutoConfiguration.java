@@ -1,15 +1,26 @@
 package com.github.emailservice;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 /**
  * 自动配置
+ * 有Micrometer的 MeterRegistry 时, 自动注册 {@link MicrometerEmailMetrics}
+ * 有JFR时, 自动注册 {@link JfrEmailMetrics}, 不录制时没有开销. email-service.jfr.enabled=false 关闭
  *
  * @author wangzihao
  */
 @Configuration(proxyBeanMethods = false)
+@AutoConfigureAfter(name = {
+        "org.springframework.boot.actuate.autoconfigure.metrics.MetricsAutoConfiguration",
+        "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration"})
 public class EmailServiceAutoConfiguration {
 
     @Bean("emailService")
@@ -17,4 +28,42 @@ public class EmailServiceAutoConfiguration {
     public EmailService emailService() {
         return new EmailService();
     }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+    static class MetricsConfiguration {
+
+        @Bean("emailMetrics")
+        @ConditionalOnBean(MeterRegistry.class)
+        @ConditionalOnMissingBean(EmailMetrics.class)
+        public EmailMetrics emailMetrics(MeterRegistry meterRegistry, Environment environment) {
+            EmailMetrics metrics = new MicrometerEmailMetrics(meterRegistry);
+            if (isJfrEnabled(environment)) {
+                metrics = new JfrEmailMetrics(metrics);
+            }
+            return metrics;
+        }
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = "jdk.jfr.Event")
+    @ConditionalOnProperty(prefix = "email-service.jfr", name = "enabled", havingValue = "true", matchIfMissing = true)
+    static class JfrConfiguration {
+
+        /**
+         * 有 MeterRegistry 时由 {@link MetricsConfiguration} 注册, 套在Micrometer外面
+         */
+        @Bean("emailMetrics")
+        @ConditionalOnMissingBean(value = EmailMetrics.class, type = "io.micrometer.core.instrument.MeterRegistry")
+        public EmailMetrics emailMetrics() {
+            return new JfrEmailMetrics();
+        }
+    }
+
+    /**
+     * {@link JfrEmailMetrics} 不引用jdk.jfr, 没有JFR的JVM上这里返回false, 不会加载事件类型
+     */
+    private static boolean isJfrEnabled(Environment environment) {
+        return JfrEmailMetrics.isSupported() && environment.getProperty("email-service.jfr.enabled", Boolean.class, true);
+    }
 }
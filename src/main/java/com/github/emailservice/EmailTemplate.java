@@ -0,0 +1,280 @@
+package com.github.emailservice;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 邮件模板, 群发用 (mail merge)
+ * 1. 第一次发送前编译一次: HTML正文按quoted-printable编码, 附件按base64编码, 分隔符和各部分的头都生成好, 存成共享的字节数组
+ * 2. 每个收件人只编码自己的占位符值和邮件头, 其他部分直接复制字节
+ * <p>
+ * 占位符格式 ${name}, 可以出现在标题和正文里. 值原样替换, 不做html转义
+ * <p>
+ * 正文的每一段字面量单独编码后用软换行 (=\r\n) 结尾, 所以可以和每个收件人单独编码的值直接拼接
+ * <p>
+ * 用法 sender.sendTemplate(sender.newTemplate(subject, html).addAttachment("a.pdf", bytes), recipientList)
+ *
+ * @author wangzihao
+ * @see EmailService.Sender#sendTemplate(EmailTemplate, Collection)
+ */
+public class EmailTemplate {
+    /**
+     * 收件人地址的字段名
+     */
+    public static final String FIELD_TO = "to";
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] SOFT_BREAK = {'=', '\r', '\n'};
+    private final String subject;
+    private final String html;
+    private final List<Attachment> attachmentList = new ArrayList<>();
+    private volatile Skeleton skeleton;
+
+    public EmailTemplate(String subject, String html) {
+        this.subject = Objects.requireNonNull(subject, "subject");
+        this.html = Objects.requireNonNull(html, "html");
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getHtml() {
+        return html;
+    }
+
+    /**
+     * 添加附件, 要在第一次发送前调用
+     *
+     * @param fileName 文件名
+     * @param data     文件内容
+     * @return this
+     */
+    public synchronized EmailTemplate addAttachment(String fileName, byte[] data) {
+        if (skeleton != null) {
+            throw new IllegalStateException("EmailTemplate already compiled");
+        }
+        attachmentList.add(new Attachment(fileName, data));
+        return this;
+    }
+
+    /**
+     * 生成一个收件人的邮件
+     *
+     * @param session 会话
+     * @param from    发件人
+     * @param fields  占位符的值, {@link #FIELD_TO} 是收件人地址
+     * @return 邮件
+     * @throws MessagingException 地址不正确
+     */
+    public javax.mail.internet.MimeMessage newMessage(Session session, String from, Map<String, String> fields) throws MessagingException {
+        String to = fields.get(FIELD_TO);
+        if (to == null) {
+            throw new MessagingException("EmailTemplate field '" + FIELD_TO + "' is required");
+        }
+        Skeleton skeleton = compile();
+        TemplateMimeMessage message = new TemplateMimeMessage(session, skeleton, fields);
+        if (from != null) {
+            message.setFrom(new InternetAddress(from));
+        }
+        message.setRecipients(javax.mail.Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(replace(subject, fields), "UTF-8");
+        message.setHeader("Content-Type", skeleton.contentType);
+        return message;
+    }
+
+    Skeleton compile() {
+        Skeleton skeleton = this.skeleton;
+        if (skeleton == null) {
+            synchronized (this) {
+                skeleton = this.skeleton;
+                if (skeleton == null) {
+                    try {
+                        skeleton = new Skeleton(html, attachmentList);
+                    } catch (IOException | MessagingException e) {
+                        throw new IllegalStateException("EmailTemplate compile error " + e, e);
+                    }
+                    this.skeleton = skeleton;
+                }
+            }
+        }
+        return skeleton;
+    }
+
+    static String replace(String text, Map<String, String> fields) {
+        int index = text.indexOf("${");
+        if (index == -1) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length() + 32);
+        int start = 0;
+        while (index != -1) {
+            int end = text.indexOf('}', index + 2);
+            if (end == -1) {
+                break;
+            }
+            builder.append(text, start, index);
+            String value = fields.get(text.substring(index + 2, end));
+            if (value != null) {
+                builder.append(value);
+            }
+            start = end + 1;
+            index = text.indexOf("${", start);
+        }
+        builder.append(text, start, text.length());
+        return builder.toString();
+    }
+
+    private static byte[] encode(byte[] bytes, String encoding) throws IOException, MessagingException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length * 4 / 3 + 16);
+        try (OutputStream out = MimeUtility.encode(buffer, encoding)) {
+            out.write(bytes);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static class Attachment {
+        private final String fileName;
+        private final byte[] data;
+
+        private Attachment(String fileName, byte[] data) {
+            this.fileName = Objects.requireNonNull(fileName, "fileName");
+            this.data = Objects.requireNonNull(data, "data");
+        }
+    }
+
+    /**
+     * 编译好的模板, 线程安全
+     * 正文 = prefix + 字面量和占位符交替 + suffix
+     */
+    static class Skeleton {
+        private final String contentType;
+        private final byte[] prefix;
+        private final byte[][] literals;
+        private final String[] fieldNames;
+        private final byte[] suffix;
+
+        private Skeleton(String html, List<Attachment> attachmentList) throws IOException, MessagingException {
+            String htmlType = "text/html; charset=UTF-8";
+            String boundary = attachmentList.isEmpty() ? null : "----=_Template_" + UUID.randomUUID().toString().replace("-", "");
+            ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+            ByteArrayOutputStream suffix = new ByteArrayOutputStream();
+            if (boundary == null) {
+                this.contentType = htmlType;
+            } else {
+                this.contentType = "multipart/mixed; boundary=\"" + boundary + "\"";
+                writeAscii(prefix, "--" + boundary + "\r\n");
+                writeAscii(prefix, "Content-Type: " + htmlType + "\r\n");
+                writeAscii(prefix, "Content-Transfer-Encoding: quoted-printable\r\n\r\n");
+            }
+            List<byte[]> literals = new ArrayList<>();
+            List<String> fieldNames = new ArrayList<>();
+            int start = 0;
+            int index = html.indexOf("${");
+            while (index != -1) {
+                int end = html.indexOf('}', index + 2);
+                if (end == -1) {
+                    break;
+                }
+                literals.add(encodeLiteral(html.substring(start, index)));
+                fieldNames.add(html.substring(index + 2, end));
+                start = end + 1;
+                index = html.indexOf("${", start);
+            }
+            literals.add(encodeLiteral(html.substring(start)));
+            suffix.write(CRLF);
+            if (boundary != null) {
+                for (Attachment attachment : attachmentList) {
+                    String type = AttachmentRegistry.getContentType(attachment.fileName);
+                    String fileName = MimeUtility.encodeText(attachment.fileName, "UTF-8", null);
+                    writeAscii(suffix, "--" + boundary + "\r\n");
+                    writeAscii(suffix, "Content-Type: " + type + "; name=\"" + fileName + "\"\r\n");
+                    writeAscii(suffix, "Content-Transfer-Encoding: base64\r\n");
+                    writeAscii(suffix, "Content-Disposition: attachment; filename=\"" + fileName + "\"\r\n\r\n");
+                    suffix.write(encode(attachment.data, "base64"));
+                    suffix.write(CRLF);
+                }
+                writeAscii(suffix, "--" + boundary + "--\r\n");
+            }
+            this.prefix = prefix.toByteArray();
+            this.literals = literals.toArray(new byte[0][]);
+            this.fieldNames = fieldNames.toArray(new String[0]);
+            this.suffix = suffix.toByteArray();
+        }
+
+        private static byte[] encodeLiteral(String text) throws IOException, MessagingException {
+            if (text.isEmpty()) {
+                return new byte[0];
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + 16);
+            out.write(encode(text.getBytes(StandardCharsets.UTF_8), "quoted-printable"));
+            out.write(SOFT_BREAK);
+            return out.toByteArray();
+        }
+
+        private static void writeAscii(ByteArrayOutputStream out, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        void writeBody(OutputStream out, Map<String, String> fields) throws IOException, MessagingException {
+            out.write(prefix);
+            for (int i = 0; i < fieldNames.length; i++) {
+                out.write(literals[i]);
+                String value = fields.get(fieldNames[i]);
+                if (value != null && !value.isEmpty()) {
+                    out.write(encodeLiteral(value));
+                }
+            }
+            out.write(literals[literals.length - 1]);
+            out.write(suffix);
+        }
+    }
+
+    /**
+     * 正文在写出时才拼接, 不经过 DataHandler
+     */
+    private static class TemplateMimeMessage extends javax.mail.internet.MimeMessage {
+        private final Skeleton skeleton;
+        private final Map<String, String> fields;
+
+        private TemplateMimeMessage(Session session, Skeleton skeleton, Map<String, String> fields) {
+            super(session);
+            this.skeleton = skeleton;
+            this.fields = fields;
+        }
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            setHeader("MIME-Version", "1.0");
+            setHeader("Content-Type", skeleton.contentType);
+            if (skeleton.prefix.length == 0) {
+                setHeader("Content-Transfer-Encoding", "quoted-printable");
+            }
+            if (getHeader("Message-ID") == null) {
+                updateMessageID();
+            }
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            if (!saved) {
+                saveChanges();
+            }
+            Enumeration<String> headerLines = getNonMatchingHeaderLines(ignoreList);
+            while (headerLines.hasMoreElements()) {
+                os.write(headerLines.nextElement().getBytes(StandardCharsets.UTF_8));
+                os.write(CRLF);
+            }
+            os.write(CRLF);
+            skeleton.writeBody(os, fields);
+            os.flush();
+        }
+    }
+}
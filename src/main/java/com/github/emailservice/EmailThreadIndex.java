@@ -0,0 +1,429 @@
+package com.github.emailservice;
+
+import javax.mail.FetchProfile;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.util.*;
+
+/**
+ * 邮件会话(线索)索引, JWZ算法 https://www.jwz.org/doc/threading.html
+ * 1. Message-ID 哈希表找到容器, References 和 In-Reply-To 把容器连成树, 每封邮件只处理自己的引用, 总共是线性的
+ * 2. 增量更新: 新邮件来了直接 {@link #add(Object, String, String, String, long)}, 回复比原邮件先到也能挂上去
+ * 3. 没收到的中间邮件是空容器, 取会话时去掉空容器, 子节点往上提
+ * 4. 不按主题合并会话 (JWZ第5步), 主题相同不一定是同一个会话
+ * <p>
+ * 用法
+ * EmailThreadIndex&lt;EmailMessage&gt; index = new EmailThreadIndex&lt;&gt;();
+ * EmailThreadIndex.addEmailMessages(index, emailService.selectEmailList(account, query, true));
+ * index.getThreads();
+ * <p>
+ * 不是线程安全的
+ *
+ * @param <T> 邮件类型, 例: {@link EmailService.EmailMessage}, {@link EmailMetadata}
+ * @author wangzihao
+ */
+public class EmailThreadIndex<T> {
+    /**
+     * 线索需要的邮件头, 和信封一起一次预取
+     */
+    private static final String[] THREAD_HEADERS = {"Message-ID", "In-Reply-To", "References"};
+    /**
+     * Message-ID -> 容器
+     */
+    private final Map<String, Container<T>> idTable = new HashMap<>();
+    /**
+     * 没有Message-ID或者Message-ID重复的邮件, 生成一个不会冲突的ID
+     */
+    private long syntheticId;
+    private int messageCount;
+
+    /**
+     * 加入EmailMessage, 先按文件夹一次预取线索需要的邮件头, 不会每封邮件访问一次服务器
+     *
+     * @param index 索引
+     * @param list  邮件, 文件夹需要是打开的
+     */
+    public static void addEmailMessages(EmailThreadIndex<EmailService.EmailMessage> index,
+                                        Collection<? extends EmailService.EmailMessage> list) throws MessagingException {
+        Map<Folder, List<Message>> folderMap = new IdentityHashMap<>();
+        for (EmailService.EmailMessage emailMessage : list) {
+            Message email = emailMessage.getEmail();
+            if (email.getFolder() != null) {
+                folderMap.computeIfAbsent(email.getFolder(), e -> new ArrayList<>()).add(email);
+            }
+        }
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        for (String header : THREAD_HEADERS) {
+            profile.add(header);
+        }
+        for (Map.Entry<Folder, List<Message>> entry : folderMap.entrySet()) {
+            entry.getKey().fetch(entry.getValue().toArray(new Message[0]), profile);
+        }
+        for (EmailService.EmailMessage emailMessage : list) {
+            Message email = emailMessage.getEmail();
+            Date receivedDate = emailMessage.getReceivedDate();
+            index.add(emailMessage, emailMessage.getMessageId(), firstHeader(email, "In-Reply-To"),
+                    firstHeader(email, "References"), receivedDate != null ? receivedDate.getTime() : 0L);
+        }
+    }
+
+    /**
+     * 加入本地元数据, 不访问服务器
+     *
+     * @param index 索引
+     * @param list  邮件元数据 {@link EmailMetadataStore#list(String, Collection, java.util.function.Predicate)}
+     */
+    public static void addMetadata(EmailThreadIndex<EmailMetadata> index, Collection<EmailMetadata> list) {
+        for (EmailMetadata metadata : list) {
+            index.add(metadata, metadata.getMessageId(), metadata.getInReplyTo(), metadata.getReferences(), metadata.getReceivedDate());
+        }
+    }
+
+    /**
+     * 加入一封邮件
+     *
+     * @param value      邮件
+     * @param messageId  Message-ID头, 可以为null
+     * @param inReplyTo  In-Reply-To头, 可以为null
+     * @param references References头, 可以为null
+     * @param date       收件时间, 用于排序
+     */
+    public void add(T value, String messageId, String inReplyTo, String references, long date) {
+        String id = firstId(messageId);
+        List<String> refs = parseIds(references);
+        String parentId = firstId(inReplyTo);
+        if (parentId != null && (refs.isEmpty() || !refs.get(refs.size() - 1).equals(parentId))) {
+            // In-Reply-To 比 References 的最后一个更准
+            refs.remove(parentId);
+            refs.add(parentId);
+        }
+        if (id != null) {
+            refs.remove(id);
+        }
+
+        Container<T> container = id != null ? idTable.get(id) : null;
+        if (container == null || container.value != null) {
+            // 没有ID, 或者ID重复(同一封邮件在两个文件夹), 当成另一封
+            if (id == null || container != null) {
+                id = "\0" + (++syntheticId);
+            }
+            container = new Container<>(id);
+            idTable.put(id, container);
+        }
+        container.value = value;
+        container.date = date;
+        messageCount++;
+
+        // References 里相邻的两个是父子, 已经有父节点的不改
+        Container<T> prev = null;
+        for (String ref : refs) {
+            Container<T> current = idTable.computeIfAbsent(ref, Container::new);
+            if (prev != null && current.parent == null && canLink(prev, current)) {
+                link(prev, current);
+            }
+            prev = current;
+        }
+        // 自己的父节点以自己的引用为准
+        if (prev != null && prev != container && canLink(prev, container)) {
+            if (container.parent != prev) {
+                unlink(container);
+                link(prev, container);
+            }
+        } else if (refs.isEmpty()) {
+            unlink(container);
+        }
+    }
+
+    /**
+     * @return 所有会话, 按最新邮件时间倒序. 每次调用重新生成, O(n)
+     */
+    public List<Node<T>> getThreads() {
+        List<Node<T>> threads = new ArrayList<>();
+        for (Container<T> container : idTable.values()) {
+            if (container.parent == null) {
+                Node<T> root = toRoot(container);
+                if (root != null) {
+                    threads.add(root);
+                }
+            }
+        }
+        threads.sort(Comparator.comparingLong((Node<T> e) -> e.latestDate).reversed());
+        return threads;
+    }
+
+    /**
+     * @param messageId 邮件的Message-ID
+     * @return 这封邮件所在的会话, null=没有这封邮件
+     */
+    public Node<T> getThread(String messageId) {
+        String id = firstId(messageId);
+        Container<T> container = id != null ? idTable.get(id) : null;
+        if (container == null) {
+            return null;
+        }
+        while (container.parent != null) {
+            container = container.parent;
+        }
+        return toRoot(container);
+    }
+
+    /**
+     * @return 邮件数量, 不含空容器
+     */
+    public int size() {
+        return messageCount;
+    }
+
+    public void clear() {
+        idTable.clear();
+        messageCount = 0;
+    }
+
+    private Node<T> toRoot(Container<T> container) {
+        List<Node<T>> nodes = toNodes(container);
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        if (nodes.size() == 1) {
+            return nodes.get(0);
+        }
+        // 根是空容器, 下面有多个回复, 保留一个空的根把它们放一起
+        Node<T> root = new Node<>(null, container.id, 0L);
+        nodes.sort(Comparator.comparingLong(e -> e.date));
+        for (Node<T> node : nodes) {
+            root.addChild(node);
+        }
+        return root;
+    }
+
+    /**
+     * 去掉空容器, 空容器的子节点往上提
+     * 不用递归, 很长的回复链不会栈溢出: 先序遍历一次, 再倒着处理, 子节点总是在父节点之前处理
+     */
+    private List<Node<T>> toNodes(Container<T> root) {
+        List<Container<T>> order = new ArrayList<>();
+        Deque<Container<T>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Container<T> container = stack.pop();
+            order.add(container);
+            for (Container<T> child = container.firstChild; child != null; child = child.nextSibling) {
+                stack.push(child);
+            }
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Container<T> container = order.get(i);
+            List<Node<T>> children = new ArrayList<>();
+            for (Container<T> child = container.firstChild; child != null; child = child.nextSibling) {
+                children.addAll(child.nodes);
+                child.nodes = null;
+            }
+            if (container.value == null) {
+                container.nodes = children;
+                continue;
+            }
+            // 生成的ID不对外
+            String messageId = container.id.charAt(0) == '\0' ? null : container.id;
+            Node<T> node = new Node<>(container.value, messageId, container.date);
+            children.sort(Comparator.comparingLong(e -> e.date));
+            for (Node<T> child : children) {
+                node.addChild(child);
+            }
+            container.nodes = Collections.singletonList(node);
+        }
+        List<Node<T>> nodes = root.nodes;
+        root.nodes = null;
+        return nodes;
+    }
+
+    /**
+     * child 不能是 parent 的祖先, 否则成环
+     */
+    private static <T> boolean canLink(Container<T> parent, Container<T> child) {
+        if (child.firstChild == null) {
+            // 没有子节点的不可能是祖先, 新邮件大多是这样, 不用往上找
+            return parent != child;
+        }
+        for (Container<T> c = parent; c != null; c = c.parent) {
+            if (c == child) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> void link(Container<T> parent, Container<T> child) {
+        unlink(child);
+        child.parent = parent;
+        child.nextSibling = parent.firstChild;
+        parent.firstChild = child;
+    }
+
+    private static <T> void unlink(Container<T> child) {
+        Container<T> parent = child.parent;
+        if (parent == null) {
+            return;
+        }
+        if (parent.firstChild == child) {
+            parent.firstChild = child.nextSibling;
+        } else {
+            Container<T> c = parent.firstChild;
+            while (c.nextSibling != child) {
+                c = c.nextSibling;
+            }
+            c.nextSibling = child.nextSibling;
+        }
+        child.parent = null;
+        child.nextSibling = null;
+    }
+
+    private static String firstHeader(Message message, String name) throws MessagingException {
+        String[] values = message.getHeader(name);
+        return values != null && values.length > 0 ? values[0] : null;
+    }
+
+    private static String firstId(String header) {
+        List<String> ids = parseIds(header);
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    /**
+     * 取出 &lt;...&gt; 里的ID, 没有尖括号时整个当成一个ID
+     */
+    static List<String> parseIds(String header) {
+        List<String> ids = new ArrayList<>();
+        if (header == null) {
+            return ids;
+        }
+        int i = 0;
+        while ((i = header.indexOf('<', i)) != -1) {
+            int end = header.indexOf('>', i + 1);
+            if (end == -1) {
+                break;
+            }
+            String id = header.substring(i + 1, end).trim();
+            if (id.length() > 0 && !ids.contains(id)) {
+                ids.add(id);
+            }
+            i = end + 1;
+        }
+        if (ids.isEmpty()) {
+            String id = header.trim();
+            if (id.length() > 0 && id.indexOf(' ') == -1) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    private static class Container<T> {
+        private final String id;
+        private T value;
+        private long date;
+        private Container<T> parent;
+        private Container<T> firstChild;
+        private Container<T> nextSibling;
+        /**
+         * 生成会话树时的临时结果
+         */
+        private List<Node<T>> nodes;
+
+        private Container(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * 会话树的节点
+     */
+    public static class Node<T> {
+        private final T value;
+        private final String messageId;
+        private final long date;
+        private final List<Node<T>> children = new ArrayList<>();
+        private Node<T> parent;
+        private long latestDate;
+        private int messageCount;
+
+        private Node(T value, String messageId, long date) {
+            this.value = value;
+            this.messageId = messageId;
+            this.date = date;
+            this.latestDate = date;
+            this.messageCount = value != null ? 1 : 0;
+        }
+
+        private void addChild(Node<T> child) {
+            child.parent = this;
+            children.add(child);
+            latestDate = Math.max(latestDate, child.latestDate);
+            messageCount += child.messageCount;
+        }
+
+        /**
+         * @return 邮件, null=没收到的邮件, 只有多个回复的根节点会是null
+         */
+        public T getValue() {
+            return value;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public long getDate() {
+            return date;
+        }
+
+        public Node<T> getParent() {
+            return parent;
+        }
+
+        /**
+         * @return 回复, 按时间正序
+         */
+        public List<Node<T>> getChildren() {
+            return children;
+        }
+
+        /**
+         * @return 会话里最新一封的时间
+         */
+        public long getLatestDate() {
+            return latestDate;
+        }
+
+        /**
+         * @return 这个节点和所有回复的邮件数量
+         */
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        /**
+         * @return 深度优先的所有邮件
+         */
+        public List<T> getValues() {
+            List<T> list = new ArrayList<>(messageCount);
+            Deque<Node<T>> stack = new ArrayDeque<>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                Node<T> node = stack.pop();
+                if (node.value != null) {
+                    list.add(node.value);
+                }
+                for (int i = node.children.size() - 1; i >= 0; i--) {
+                    stack.push(node.children.get(i));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return messageId + "(" + messageCount + ")";
+        }
+    }
+}
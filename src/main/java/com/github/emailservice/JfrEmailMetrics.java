@@ -0,0 +1,73 @@
+package com.github.emailservice;
+
+import org.springframework.util.ClassUtils;
+
+/**
+ * 用JDK Flight Recorder记录邮件操作, 和GC,CPU在同一个录制文件里对照
+ * 1. 每个 {@link EmailMetrics.Operation} 是一种事件, 在 "Email Service" 分类下, 带服务器,文件夹,邮件数,字节数
+ * 2. 事件在调用线程里开始和结束, 有调用栈
+ * 3. 没有在录制或者事件没开启时, 只判断一次 isEnabled, 不创建事件对象
+ * 4. 其他指标交给delegate, 可以和 {@link MicrometerEmailMetrics} 一起用
+ * <p>
+ * 需要jdk.jfr (java11+, 或8u262+). 用之前可以先用 {@link #isSupported()} 判断.
+ * 这个类不引用jdk.jfr, 没有JFR的JVM上也能加载; 事件类型都在 {@code JfrEvents} 里, 确认有JFR后才加载
+ * 用法 emailService.setMetrics(new JfrEmailMetrics(emailService.getMetrics()))
+ * 录制 java -XX:StartFlightRecording=filename=email.jfr ...
+ *
+ * @author wangzihao
+ */
+public class JfrEmailMetrics implements EmailMetrics {
+    private static final boolean SUPPORTED = ClassUtils.isPresent("jdk.jfr.Event", JfrEmailMetrics.class.getClassLoader());
+
+    private final EmailMetrics delegate;
+
+    public JfrEmailMetrics() {
+        this(NOOP);
+    }
+
+    /**
+     * @param delegate 其他指标也记录到这里, 例: {@link MicrometerEmailMetrics}
+     */
+    public JfrEmailMetrics(EmailMetrics delegate) {
+        if (!SUPPORTED) {
+            throw new UnsupportedOperationException("jdk.jfr not found. java.version=" + System.getProperty("java.version"));
+        }
+        this.delegate = delegate != null ? delegate : NOOP;
+    }
+
+    /**
+     * @return true=当前JVM有JFR
+     */
+    public static boolean isSupported() {
+        return SUPPORTED;
+    }
+
+    public EmailMetrics getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public void record(Operation operation, String host, long nanos, boolean success) {
+        delegate.record(operation, host, nanos, success);
+    }
+
+    @Override
+    public void recordBytes(String partType, long bytes) {
+        delegate.recordBytes(partType, bytes);
+    }
+
+    @Override
+    public void recordFolder(String host, String folderType, int messageCount) {
+        delegate.recordFolder(host, folderType, messageCount);
+    }
+
+    @Override
+    public void bind(EmailService emailService) {
+        delegate.bind(emailService);
+    }
+
+    @Override
+    public Span start(Operation operation, String host, String folderName) {
+        return JfrEvents.start(operation, host, folderName, delegate.start(operation, host, folderName));
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.emailservice;
+
+import jdk.jfr.*;
+
+/**
+ * {@link JfrEmailMetrics} 的JFR事件. 只有确认有jdk.jfr后才会加载这个类
+ * 每种操作缓存一个事件对象, 只用来判断 isEnabled, 没在录制时不创建新的事件
+ *
+ * @author wangzihao
+ */
+final class JfrEvents {
+    /**
+     * 下标是 {@link EmailMetrics.Operation#ordinal()}
+     */
+    private static final MailEvent[] PROTOTYPES;
+
+    static {
+        EmailMetrics.Operation[] operations = EmailMetrics.Operation.values();
+        PROTOTYPES = new MailEvent[operations.length];
+        for (EmailMetrics.Operation operation : operations) {
+            PROTOTYPES[operation.ordinal()] = newEvent(operation);
+        }
+    }
+
+    private JfrEvents() {
+    }
+
+    static EmailMetrics.Span start(EmailMetrics.Operation operation, String host, String folderName, EmailMetrics.Span span) {
+        if (!PROTOTYPES[operation.ordinal()].isEnabled()) {
+            return span;
+        }
+        MailEvent event = newEvent(operation);
+        event.host = host;
+        event.folder = folderName;
+        event.begin();
+        return new JfrSpan(event, span);
+    }
+
+    private static MailEvent newEvent(EmailMetrics.Operation operation) {
+        switch (operation) {
+            case CONNECT:
+                return new ConnectEvent();
+            case FOLDER_OPEN:
+                return new FolderOpenEvent();
+            case SEARCH:
+                return new SearchEvent();
+            case SORT:
+                return new SortEvent();
+            case FETCH:
+                return new FetchEvent();
+            case PART_READ:
+                return new PartReadEvent();
+            case CACHE_FILE:
+                return new CacheFileEvent();
+            case SEND:
+                return new SendEvent();
+            default:
+                throw new IllegalArgumentException("unknown operation " + operation);
+        }
+    }
+
+    private static class JfrSpan implements EmailMetrics.Span {
+        private final MailEvent event;
+        private final EmailMetrics.Span delegate;
+
+        private JfrSpan(MailEvent event, EmailMetrics.Span delegate) {
+            this.event = event;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setMessageCount(int messageCount) {
+            event.messageCount = messageCount;
+            delegate.setMessageCount(messageCount);
+        }
+
+        @Override
+        public void setBytes(long bytes) {
+            event.bytes = bytes;
+            delegate.setBytes(bytes);
+        }
+
+        @Override
+        public void end(boolean success) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.success = success;
+                event.commit();
+            }
+            delegate.end(success);
+        }
+    }
+
+    @Category("Email Service")
+    @StackTrace
+    abstract static class MailEvent extends Event {
+        @Label("Host")
+        String host;
+        @Label("Folder")
+        String folder;
+        @Label("Message Count")
+        int messageCount = -1;
+        @Label("Bytes")
+        @DataAmount
+        long bytes = -1L;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.github.emailservice.Connect")
+    @Label("Mail Connect")
+    @Description("Store.connect, 连接并登录")
+    static class ConnectEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.FolderOpen")
+    @Label("Mail Folder Open")
+    static class FolderOpenEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.Search")
+    @Label("Mail Search")
+    @Description("IMAP SEARCH")
+    static class SearchEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.Sort")
+    @Label("Mail Sort")
+    @Description("IMAP SORT")
+    static class SortEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.Fetch")
+    @Label("Mail Fetch")
+    @Description("预取信封,标记,大小")
+    static class FetchEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.PartRead")
+    @Label("Mail Part Read")
+    @Description("读取邮件内容 Part.getContent")
+    static class PartReadEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.CacheFile")
+    @Label("Mail Cache File")
+    @Description("附件写到临时文件 FileUtil.cacheTempFile")
+    static class CacheFileEvent extends MailEvent {
+    }
+
+    @Name("com.github.emailservice.Send")
+    @Label("Mail Send")
+    @Description("SMTP发送")
+    static class SendEvent extends MailEvent {
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.emailservice;
+
+import com.github.emailservice.util.SelectorCache;
+import io.micrometer.core.instrument.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 用Micrometer记录 {@link EmailMetrics}
+ * <p>
+ * email.operation         Timer, tag: operation(connect,folder_open,search,sort,fetch,part_read,cache_file,send), host, outcome(success,failure)
+ * email.content.bytes     DistributionSummary, tag: type(html,text,image,word,pdf,unknown)
+ * email.folder.messages   DistributionSummary, tag: host, folder(inbox,other...)
+ * email.transport.pool.*  SMTP连接池的空闲,使用中连接数, 创建,销毁次数
+ * email.selector.cache.*  css选择器缓存的大小,命中,未命中
+ * email.fulltext.index.*  全文索引的邮件数,段数
+ * <p>
+ * Meter按tag缓存, 记录时不再查找注册表
+ *
+ * @author wangzihao
+ */
+public class MicrometerEmailMetrics implements EmailMetrics {
+    private final MeterRegistry registry;
+    private final Map<String, Timer> timerMap = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> bytesMap = new ConcurrentHashMap<>();
+    private final Map<String, DistributionSummary> folderMap = new ConcurrentHashMap<>();
+
+    public MicrometerEmailMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    @Override
+    public void record(Operation operation, String host, long nanos, boolean success) {
+        String h = host != null ? host : "unknown";
+        String key = operation.getTag() + '|' + h + '|' + success;
+        Timer timer = timerMap.get(key);
+        if (timer == null) {
+            timer = timerMap.computeIfAbsent(key, k -> Timer.builder("email.operation")
+                    .description("IMAP/SMTP operation")
+                    .tag("operation", operation.getTag())
+                    .tag("host", h)
+                    .tag("outcome", success ? "success" : "failure")
+                    .register(registry));
+        }
+        timer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordBytes(String partType, long bytes) {
+        DistributionSummary summary = bytesMap.get(partType);
+        if (summary == null) {
+            summary = bytesMap.computeIfAbsent(partType, k -> DistributionSummary.builder("email.content.bytes")
+                    .description("downloaded content part size")
+                    .baseUnit("bytes")
+                    .tag("type", partType)
+                    .register(registry));
+        }
+        summary.record(bytes);
+    }
+
+    @Override
+    public void recordFolder(String host, String folderType, int messageCount) {
+        String h = host != null ? host : "unknown";
+        String key = h + '|' + folderType;
+        DistributionSummary summary = folderMap.get(key);
+        if (summary == null) {
+            summary = folderMap.computeIfAbsent(key, k -> DistributionSummary.builder("email.folder.messages")
+                    .description("messages found in one folder per query")
+                    .tag("host", h)
+                    .tag("folder", folderType)
+                    .register(registry));
+        }
+        summary.record(messageCount);
+    }
+
+    @Override
+    public void bind(EmailService emailService) {
+        poolGauge(emailService, "email.transport.pool.idle", TransportPool::getIdleCount);
+        poolGauge(emailService, "email.transport.pool.active", TransportPool::getActiveCount);
+        FunctionCounter.builder("email.transport.pool.created", emailService,
+                        s -> s.getTransportPool() != null ? s.getTransportPool().getCreateCount() : 0)
+                .register(registry);
+        FunctionCounter.builder("email.transport.pool.destroyed", emailService,
+                        s -> s.getTransportPool() != null ? s.getTransportPool().getDestroyCount() : 0)
+                .register(registry);
+
+        Gauge.builder("email.selector.cache.size", SelectorCache::size).register(registry);
+        FunctionCounter.builder("email.selector.cache.hits", SelectorCache.class, c -> SelectorCache.getHitCount()).register(registry);
+        FunctionCounter.builder("email.selector.cache.misses", SelectorCache.class, c -> SelectorCache.getMissCount()).register(registry);
+
+        Gauge.builder("email.fulltext.index.size", emailService,
+                        s -> s.getFullTextIndex() != null ? s.getFullTextIndex().size() : 0)
+                .register(registry);
+        Gauge.builder("email.fulltext.index.segments", emailService,
+                        s -> s.getFullTextIndex() != null ? s.getFullTextIndex().getSegmentCount() : 0)
+                .register(registry);
+    }
+
+    private void poolGauge(EmailService emailService, String name, Function<TransportPool, Number> function) {
+        Gauge.builder(name, emailService, s -> {
+            TransportPool pool = s.getTransportPool();
+            return pool != null ? function.apply(pool).doubleValue() : 0;
+        }).register(registry);
+    }
+}
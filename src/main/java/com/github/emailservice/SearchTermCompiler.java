@@ -0,0 +1,312 @@
+package com.github.emailservice;
+
+import javax.mail.Address;
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
+import javax.mail.search.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * 把 {@link SearchTerm} 编译成 {@link EmailMetadata} 的过滤条件, 在本地内存里过滤, 不访问服务器
+ * 1. {@link SearchTerm#match(Message)} 需要连着服务器的邮件, 客户端过滤时每封邮件都可能再FETCH一次
+ * 2. 编译一次, 之后对每封邮件只比较基本类型和字符串
+ * 3. And/Or 的子条件按代价排序, 先比较标记,时间,大小, 再比较字符串, 尽早短路
+ * <p>
+ * 支持 And, Or, Not, Flag, ReceivedDate, SentDate, Size, From, FromString, RecipientString, Subject, MessageID.
+ * 匹配规则和 {@link SearchTerm#match(Message)} 一样 (字符串不区分大小写包含, 时间精确到毫秒). 不支持的条件抛出 {@link IllegalArgumentException}, 可以先用 {@link #isSupported(SearchTerm)} 判断
+ * <p>
+ * 用法 emailService.selectEmailMetadataList(account, SearchTermCompiler.compile(EmailService.buildUnreadQuery()))
+ *
+ * @author wangzihao
+ * @see EmailMetadataStore#list(String, java.util.Collection, Predicate)
+ */
+public class SearchTermCompiler {
+    /**
+     * 比较基本类型
+     */
+    private static final int COST_NUMBER = 1;
+    /**
+     * 比较一个字符串
+     */
+    private static final int COST_STRING = 10;
+    /**
+     * 比较多个地址
+     */
+    private static final int COST_ADDRESS = 20;
+
+    private SearchTermCompiler() {
+    }
+
+    /**
+     * 编译
+     *
+     * @param term 查询条件, null=全部匹配
+     * @return 过滤条件, 可以多线程共用
+     * @throws IllegalArgumentException 有不支持的条件
+     */
+    public static Predicate<EmailMetadata> compile(SearchTerm term) {
+        return term != null ? compileNode(term).predicate : e -> true;
+    }
+
+    /**
+     * @param term 查询条件
+     * @return true=可以在本地过滤
+     */
+    public static boolean isSupported(SearchTerm term) {
+        if (term == null) {
+            return true;
+        }
+        if (term instanceof AndTerm) {
+            return Arrays.stream(((AndTerm) term).getTerms()).allMatch(SearchTermCompiler::isSupported);
+        }
+        if (term instanceof OrTerm) {
+            return Arrays.stream(((OrTerm) term).getTerms()).allMatch(SearchTermCompiler::isSupported);
+        }
+        if (term instanceof NotTerm) {
+            return isSupported(((NotTerm) term).getTerm());
+        }
+        return term instanceof FlagTerm
+                || term instanceof ReceivedDateTerm
+                || term instanceof SentDateTerm
+                || term instanceof SizeTerm
+                || term instanceof FromTerm
+                || term instanceof FromStringTerm
+                || term instanceof RecipientStringTerm
+                || term instanceof SubjectTerm
+                || term instanceof MessageIDTerm;
+    }
+
+    private static Node compileNode(SearchTerm term) {
+        if (term instanceof AndTerm) {
+            Node[] nodes = compileChildren(((AndTerm) term).getTerms());
+            return new Node(and(nodes), totalCost(nodes));
+        }
+        if (term instanceof OrTerm) {
+            Node[] nodes = compileChildren(((OrTerm) term).getTerms());
+            return new Node(or(nodes), totalCost(nodes));
+        }
+        if (term instanceof NotTerm) {
+            Node node = compileNode(((NotTerm) term).getTerm());
+            return new Node(node.predicate.negate(), node.cost);
+        }
+        if (term instanceof FlagTerm) {
+            return new Node(flag((FlagTerm) term), COST_NUMBER);
+        }
+        if (term instanceof ReceivedDateTerm) {
+            return new Node(date((DateTerm) term, EmailMetadata::getReceivedDate), COST_NUMBER);
+        }
+        if (term instanceof SentDateTerm) {
+            return new Node(date((DateTerm) term, EmailMetadata::getSentDate), COST_NUMBER);
+        }
+        if (term instanceof SizeTerm) {
+            SizeTerm sizeTerm = (SizeTerm) term;
+            int comparison = sizeTerm.getComparison();
+            long number = sizeTerm.getNumber();
+            return new Node(e -> e.getSize() >= 0 && compare(e.getSize(), number, comparison), COST_NUMBER);
+        }
+        if (term instanceof FromTerm) {
+            Address address = ((FromTerm) term).getAddress();
+            String email = address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+            return new Node(e -> {
+                for (String from : e.getFrom()) {
+                    if (email.equalsIgnoreCase(EmailMetadata.getEmail(from))) {
+                        return true;
+                    }
+                }
+                return false;
+            }, COST_ADDRESS);
+        }
+        if (term instanceof FromStringTerm) {
+            StringTerm stringTerm = (StringTerm) term;
+            return new Node(e -> containsAny(e.getFrom(), stringTerm.getPattern(), stringTerm.getIgnoreCase()), COST_ADDRESS);
+        }
+        if (term instanceof RecipientStringTerm) {
+            RecipientStringTerm recipientTerm = (RecipientStringTerm) term;
+            String pattern = recipientTerm.getPattern();
+            boolean ignoreCase = recipientTerm.getIgnoreCase();
+            Message.RecipientType type = recipientTerm.getRecipientType();
+            if (type == Message.RecipientType.TO) {
+                return new Node(e -> containsAny(e.getTo(), pattern, ignoreCase), COST_ADDRESS);
+            }
+            if (type == Message.RecipientType.CC) {
+                return new Node(e -> containsAny(e.getCc(), pattern, ignoreCase), COST_ADDRESS);
+            }
+            // 本地没有保存密送
+            return new Node(e -> false, COST_NUMBER);
+        }
+        if (term instanceof SubjectTerm) {
+            StringTerm stringTerm = (StringTerm) term;
+            return new Node(e -> contains(e.getSubject(), stringTerm.getPattern(), stringTerm.getIgnoreCase()), COST_STRING);
+        }
+        if (term instanceof MessageIDTerm) {
+            StringTerm stringTerm = (StringTerm) term;
+            return new Node(e -> contains(e.getMessageId(), stringTerm.getPattern(), stringTerm.getIgnoreCase()), COST_STRING);
+        }
+        throw new IllegalArgumentException("unsupported search term " + term.getClass().getName());
+    }
+
+    private static Node[] compileChildren(SearchTerm[] terms) {
+        Node[] nodes = new Node[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            nodes[i] = compileNode(terms[i]);
+        }
+        // 便宜的先比较
+        Arrays.sort(nodes, Comparator.comparingInt(e -> e.cost));
+        return nodes;
+    }
+
+    private static int totalCost(Node[] nodes) {
+        int cost = 0;
+        for (Node node : nodes) {
+            cost += node.cost;
+        }
+        return cost;
+    }
+
+    private static Predicate<EmailMetadata> and(Node[] nodes) {
+        if (nodes.length == 1) {
+            return nodes[0].predicate;
+        }
+        if (nodes.length == 2) {
+            Predicate<EmailMetadata> first = nodes[0].predicate;
+            Predicate<EmailMetadata> second = nodes[1].predicate;
+            return e -> first.test(e) && second.test(e);
+        }
+        Predicate<EmailMetadata>[] predicates = predicates(nodes);
+        return e -> {
+            for (Predicate<EmailMetadata> predicate : predicates) {
+                if (!predicate.test(e)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+    }
+
+    private static Predicate<EmailMetadata> or(Node[] nodes) {
+        if (nodes.length == 1) {
+            return nodes[0].predicate;
+        }
+        if (nodes.length == 2) {
+            Predicate<EmailMetadata> first = nodes[0].predicate;
+            Predicate<EmailMetadata> second = nodes[1].predicate;
+            return e -> first.test(e) || second.test(e);
+        }
+        Predicate<EmailMetadata>[] predicates = predicates(nodes);
+        return e -> {
+            for (Predicate<EmailMetadata> predicate : predicates) {
+                if (predicate.test(e)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Predicate<EmailMetadata>[] predicates(Node[] nodes) {
+        Predicate<EmailMetadata>[] predicates = new Predicate[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            predicates[i] = nodes[i].predicate;
+        }
+        return predicates;
+    }
+
+    /**
+     * set=true 所有标记都有; set=false 所有标记都没有. 和 {@link FlagTerm#match(Message)} 一样
+     */
+    private static Predicate<EmailMetadata> flag(FlagTerm term) {
+        Flags flags = term.getFlags();
+        int bits = EmailIndex.toFlagBits(flags);
+        String[] userFlags = flags.getUserFlags();
+        if (term.getTestSet()) {
+            if (userFlags.length == 0) {
+                return e -> (e.getFlagBits() & bits) == bits;
+            }
+            return e -> (e.getFlagBits() & bits) == bits && Arrays.stream(userFlags).allMatch(f -> hasUserFlag(e, f));
+        }
+        if (userFlags.length == 0) {
+            return e -> (e.getFlagBits() & bits) == 0;
+        }
+        return e -> (e.getFlagBits() & bits) == 0 && Arrays.stream(userFlags).noneMatch(f -> hasUserFlag(e, f));
+    }
+
+    private static boolean hasUserFlag(EmailMetadata metadata, String flag) {
+        for (String userFlag : metadata.getUserFlags()) {
+            if (userFlag.equalsIgnoreCase(flag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Predicate<EmailMetadata> date(DateTerm term, ToLongFunction<EmailMetadata> field) {
+        int comparison = term.getComparison();
+        Date date = term.getDate();
+        long time = date.getTime();
+        return e -> {
+            long value = field.applyAsLong(e);
+            // 0=没有时间, 和邮件返回null一样不匹配
+            return value != 0L && compare(value, time, comparison);
+        };
+    }
+
+    private static boolean compare(long value, long target, int comparison) {
+        switch (comparison) {
+            case ComparisonTerm.LE:
+                return value <= target;
+            case ComparisonTerm.LT:
+                return value < target;
+            case ComparisonTerm.EQ:
+                return value == target;
+            case ComparisonTerm.NE:
+                return value != target;
+            case ComparisonTerm.GT:
+                return value > target;
+            case ComparisonTerm.GE:
+                return value >= target;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean containsAny(String[] values, String pattern, boolean ignoreCase) {
+        for (String value : values) {
+            if (contains(value, pattern, ignoreCase)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 和 {@link StringTerm} 一样, 用regionMatches, 不生成小写字符串
+     */
+    private static boolean contains(String value, String pattern, boolean ignoreCase) {
+        if (value == null) {
+            return false;
+        }
+        int end = value.length() - pattern.length();
+        for (int i = 0; i <= end; i++) {
+            if (value.regionMatches(ignoreCase, i, pattern, 0, pattern.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Node {
+        private final Predicate<EmailMetadata> predicate;
+        private final int cost;
+
+        private Node(Predicate<EmailMetadata> predicate, int cost) {
+            this.predicate = predicate;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.github.emailservice;
+
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.OlderTerm;
+import com.sun.mail.imap.YoungerTerm;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Store;
+import javax.mail.search.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * 查询计划, 把 {@link SearchTerm} 拆成 发给服务器的部分 和 本地精确过滤的部分
+ * 1. 服务器的条件只会放宽, 不会漏邮件. 放宽过的那部分原条件, 预取信封后在本地精确过滤; 服务器能精确处理的部分本地不再比较
+ * 2. 时间: IMAP SEARCH 只比较到天, 还有时区差. 发给服务器时前后各放宽一天; 服务器支持 WITHIN 时收件时间改用 YOUNGER/OLDER (精确到秒)
+ * 本地再按毫秒过滤, 所以 {@link EmailService#buildTimeRangeQuery(Date, Date)} 的时间范围是精确的
+ * 3. 大小: IMAP 只有 LARGER/SMALLER, 其他比较换成等价的写法, javamail 就不会退回到逐封邮件匹配
+ * 4. 不能正确处理 OR/NOT 的服务器 {@link #addCompoundUnsupportedHost(String)}, 只下推 AND 里的简单条件;
+ * 不能搜索中文的服务器 {@link #addUnicodeUnsupportedHost(String)}, 非ASCII的字符串条件只在本地过滤
+ * <p>
+ * 计划不可变, 可以多线程共用
+ *
+ * @author wangzihao
+ * @see EmailService#selectEmailList(EmailService.Account, SearchTerm, boolean)
+ */
+public class SearchTermPlanner {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private final Set<String> compoundUnsupportedHosts = ConcurrentHashMap.newKeySet();
+    private final Set<String> unicodeUnsupportedHosts = ConcurrentHashMap.newKeySet();
+    /**
+     * YOUNGER/OLDER 按服务器的当前时间算, 多放宽一点, 防止两边时钟不一致
+     */
+    private int clockSkewSeconds = 300;
+
+    public SearchTermPlanner() {
+        // 中文子串经常搜不到
+        unicodeUnsupportedHosts.add("imap.exmail.qq.com");
+        unicodeUnsupportedHosts.add("imap.qq.com");
+    }
+
+    /**
+     * 按已连接的邮箱的能力生成计划
+     *
+     * @param query 查询条件, 可以为null
+     * @param store 已连接的邮箱
+     * @param host  邮箱服务器地址
+     * @return 计划
+     */
+    public Plan plan(SearchTerm query, Store store, String host) throws MessagingException {
+        if (!(store instanceof IMAPStore)) {
+            return Plan.serverOnly(query);
+        }
+        IMAPStore imapStore = (IMAPStore) store;
+        return plan(query, host, imapStore::hasCapability);
+    }
+
+    /**
+     * 生成计划
+     *
+     * @param query         查询条件, 可以为null
+     * @param host          邮箱服务器地址
+     * @param hasCapability 服务器是否支持某个能力, 例如 WITHIN
+     * @return 计划
+     */
+    public Plan plan(SearchTerm query, String host, Capability hasCapability) throws MessagingException {
+        if (query == null) {
+            return Plan.serverOnly(null);
+        }
+        String lowerHost = host != null ? host.toLowerCase(Locale.ENGLISH) : "";
+        Context context = new Context(System.currentTimeMillis(),
+                hasCapability.test("WITHIN"),
+                !compoundUnsupportedHosts.contains(lowerHost),
+                !unicodeUnsupportedHosts.contains(lowerHost) || hasCapability.test("UTF8=ACCEPT"));
+        Pushdown pushdown = pushdown(query, context);
+        return new Plan(query, pushdown.term, pushdown.local);
+    }
+
+    private Pushdown pushdown(SearchTerm term, Context context) {
+        if (term instanceof AndTerm) {
+            List<SearchTerm> serverList = new ArrayList<>();
+            List<SearchTerm> localList = new ArrayList<>();
+            for (SearchTerm child : ((AndTerm) term).getTerms()) {
+                Pushdown pushdown = pushdown(child, context);
+                if (pushdown.term != null) {
+                    serverList.add(pushdown.term);
+                }
+                // 服务器已经精确过滤的子条件, 本地不用再比较
+                if (pushdown.local != null) {
+                    localList.add(pushdown.local);
+                }
+            }
+            return new Pushdown(and(serverList), and(localList));
+        }
+        if (term instanceof OrTerm) {
+            if (!context.compound) {
+                return Pushdown.local(term);
+            }
+            List<SearchTerm> list = new ArrayList<>();
+            boolean exact = true;
+            for (SearchTerm child : ((OrTerm) term).getTerms()) {
+                Pushdown pushdown = pushdown(child, context);
+                if (pushdown.term == null) {
+                    // 有一个子条件匹配所有邮件, 整个OR都不用发给服务器
+                    return Pushdown.local(term);
+                }
+                exact &= pushdown.local == null;
+                list.add(pushdown.term);
+            }
+            return new Pushdown(list.size() == 1 ? list.get(0) : new OrTerm(list.toArray(new SearchTerm[0])), exact ? null : term);
+        }
+        if (term instanceof NotTerm) {
+            if (!context.compound) {
+                return Pushdown.local(term);
+            }
+            // 放宽过的条件取反不是放宽, 只下推精确的
+            Pushdown pushdown = pushdown(((NotTerm) term).getTerm(), context);
+            return pushdown.local == null && pushdown.term != null ? Pushdown.exact(new NotTerm(pushdown.term)) : Pushdown.local(term);
+        }
+        if (term instanceof ReceivedDateTerm) {
+            DateTerm dateTerm = (DateTerm) term;
+            if (context.within) {
+                return new Pushdown(within(dateTerm, context), term);
+            }
+            return new Pushdown(widenDate(dateTerm, ReceivedDateTerm::new), term);
+        }
+        if (term instanceof SentDateTerm) {
+            return new Pushdown(widenDate((DateTerm) term, SentDateTerm::new), term);
+        }
+        if (term instanceof SizeTerm) {
+            return size((SizeTerm) term);
+        }
+        if (term instanceof StringTerm) {
+            String pattern = ((StringTerm) term).getPattern();
+            return !context.unicode && !isAscii(pattern) ? Pushdown.local(term) : Pushdown.exact(term);
+        }
+        if (term instanceof FlagTerm || term instanceof AddressTerm
+                || term instanceof YoungerTerm || term instanceof OlderTerm) {
+            return Pushdown.exact(term);
+        }
+        // javamail 不能生成IMAP命令的条件, 在本地过滤
+        return Pushdown.local(term);
+    }
+
+    private static SearchTerm and(List<SearchTerm> list) {
+        if (list.isEmpty()) {
+            return null;
+        }
+        return list.size() == 1 ? list.get(0) : new AndTerm(list.toArray(new SearchTerm[0]));
+    }
+
+    /**
+     * 按天比较, 前后各放宽一天
+     */
+    private static SearchTerm widenDate(DateTerm term, DateTermFactory factory) {
+        long time = term.getDate().getTime();
+        Date lower = new Date(time - DAY_MILLIS);
+        // BEFORE 不包含当天, 再多加一天
+        Date upper = new Date(time + 2 * DAY_MILLIS);
+        switch (term.getComparison()) {
+            case ComparisonTerm.GE:
+            case ComparisonTerm.GT:
+                return factory.create(ComparisonTerm.GE, lower);
+            case ComparisonTerm.LE:
+            case ComparisonTerm.LT:
+                return factory.create(ComparisonTerm.LT, upper);
+            case ComparisonTerm.EQ:
+                return new AndTerm(factory.create(ComparisonTerm.GE, lower), factory.create(ComparisonTerm.LT, upper));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 收件时间换成 YOUNGER/OLDER 秒数, 按时钟误差放宽
+     */
+    private SearchTerm within(DateTerm term, Context context) {
+        long seconds = (context.now - term.getDate().getTime()) / 1000L;
+        switch (term.getComparison()) {
+            case ComparisonTerm.GE:
+            case ComparisonTerm.GT:
+                long younger = seconds + clockSkewSeconds + 1;
+                return younger > 0 && younger <= Integer.MAX_VALUE ? new YoungerTerm((int) younger) : null;
+            case ComparisonTerm.LE:
+            case ComparisonTerm.LT:
+                long older = seconds - clockSkewSeconds - 1;
+                return older > 0 && older <= Integer.MAX_VALUE ? new OlderTerm((int) older) : null;
+            case ComparisonTerm.EQ:
+                List<SearchTerm> list = new ArrayList<>(2);
+                for (int comparison : new int[]{ComparisonTerm.GE, ComparisonTerm.LE}) {
+                    SearchTerm bound = within(new ReceivedDateTerm(comparison, term.getDate()), context);
+                    if (bound != null) {
+                        list.add(bound);
+                    }
+                }
+                return and(list);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * IMAP 只有 LARGER(&gt;) 和 SMALLER(&lt;)
+     */
+    private static Pushdown size(SizeTerm term) {
+        int number = term.getNumber();
+        switch (term.getComparison()) {
+            case ComparisonTerm.GT:
+            case ComparisonTerm.LT:
+                return Pushdown.exact(term);
+            case ComparisonTerm.GE:
+                return number > 0 ? Pushdown.exact(new SizeTerm(ComparisonTerm.GT, number - 1)) : Pushdown.local(term);
+            case ComparisonTerm.LE:
+                return number < Integer.MAX_VALUE ? Pushdown.exact(new SizeTerm(ComparisonTerm.LT, number + 1)) : Pushdown.local(term);
+            case ComparisonTerm.EQ:
+                if (number > 0 && number < Integer.MAX_VALUE) {
+                    return Pushdown.exact(new AndTerm(new SizeTerm(ComparisonTerm.GT, number - 1), new SizeTerm(ComparisonTerm.LT, number + 1)));
+                }
+                return Pushdown.local(term);
+            default:
+                return Pushdown.local(term);
+        }
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7F) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param host 不能正确处理 OR/NOT 的服务器
+     */
+    public void addCompoundUnsupportedHost(String host) {
+        compoundUnsupportedHosts.add(host.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @param host 不能搜索非ASCII字符串的服务器
+     */
+    public void addUnicodeUnsupportedHost(String host) {
+        unicodeUnsupportedHosts.add(host.toLowerCase(Locale.ENGLISH));
+    }
+
+    public Set<String> getCompoundUnsupportedHosts() {
+        return compoundUnsupportedHosts;
+    }
+
+    public Set<String> getUnicodeUnsupportedHosts() {
+        return unicodeUnsupportedHosts;
+    }
+
+    public int getClockSkewSeconds() {
+        return clockSkewSeconds;
+    }
+
+    public void setClockSkewSeconds(int clockSkewSeconds) {
+        this.clockSkewSeconds = clockSkewSeconds;
+    }
+
+    /**
+     * 服务器能力, 例如 {@link IMAPStore#hasCapability(String)}
+     */
+    @FunctionalInterface
+    public interface Capability {
+        boolean test(String capability) throws MessagingException;
+    }
+
+    private interface DateTermFactory {
+        SearchTerm create(int comparison, Date date);
+    }
+
+    private static class Context {
+        private final long now;
+        private final boolean within;
+        private final boolean compound;
+        private final boolean unicode;
+
+        private Context(long now, boolean within, boolean compound, boolean unicode) {
+            this.now = now;
+            this.within = within;
+            this.compound = compound;
+            this.unicode = unicode;
+        }
+    }
+
+    private static class Pushdown {
+        /**
+         * null=不发给服务器, 所有邮件
+         */
+        private final SearchTerm term;
+        /**
+         * 服务器过滤后还要在本地比较的条件, null=服务器的结果就是精确的
+         */
+        private final SearchTerm local;
+
+        private Pushdown(SearchTerm term, SearchTerm local) {
+            this.term = term;
+            this.local = local;
+        }
+
+        private static Pushdown exact(SearchTerm term) {
+            return new Pushdown(term, null);
+        }
+
+        private static Pushdown local(SearchTerm term) {
+            return new Pushdown(null, term);
+        }
+    }
+
+    /**
+     * 查询计划. 结果 = 服务器按 serverTerm 查询, 再按 localTerm 过滤
+     */
+    public static class Plan {
+        private final SearchTerm query;
+        private final SearchTerm serverTerm;
+        private final SearchTerm localTerm;
+        private volatile Predicate<EmailMetadata> localPredicate;
+
+        public Plan(SearchTerm query, SearchTerm serverTerm, SearchTerm localTerm) {
+            this.query = query;
+            this.serverTerm = serverTerm;
+            this.localTerm = localTerm;
+        }
+
+        /**
+         * @param query 查询条件
+         * @return 全部发给服务器, 不在本地过滤
+         */
+        public static Plan serverOnly(SearchTerm query) {
+            return new Plan(query, query, null);
+        }
+
+        /**
+         * @return 原查询条件
+         */
+        public SearchTerm getQuery() {
+            return query;
+        }
+
+        /**
+         * @return 发给服务器的条件, null=所有邮件
+         */
+        public SearchTerm getServerTerm() {
+            return serverTerm;
+        }
+
+        /**
+         * @return 本地过滤的条件, null=不用过滤
+         */
+        public SearchTerm getLocalTerm() {
+            return localTerm;
+        }
+
+        public boolean hasLocalFilter() {
+            return localTerm != null;
+        }
+
+        /**
+         * 本地过滤, 邮件需要先预取信封,标记,大小, 否则会逐封访问服务器
+         */
+        public boolean match(Message message) {
+            return localTerm == null || localTerm.match(message);
+        }
+
+        /**
+         * @return 本地过滤条件编译后的版本, 用于 {@link EmailMetadataStore}
+         * @throws IllegalArgumentException 有 {@link SearchTermCompiler} 不支持的条件
+         */
+        public Predicate<EmailMetadata> getLocalPredicate() {
+            Predicate<EmailMetadata> predicate = localPredicate;
+            if (predicate == null) {
+                localPredicate = predicate = SearchTermCompiler.compile(localTerm);
+            }
+            return predicate;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{serverTerm=" + toString(serverTerm) + ", localTerm=" + toString(localTerm) + "}";
+        }
+
+        private static String toString(SearchTerm term) {
+            if (term == null) {
+                return "null";
+            }
+            if (term instanceof AndTerm || term instanceof OrTerm) {
+                SearchTerm[] terms = term instanceof AndTerm ? ((AndTerm) term).getTerms() : ((OrTerm) term).getTerms();
+                StringJoiner joiner = new StringJoiner(term instanceof AndTerm ? " AND " : " OR ", "(", ")");
+                for (SearchTerm child : terms) {
+                    joiner.add(toString(child));
+                }
+                return joiner.toString();
+            }
+            if (term instanceof NotTerm) {
+                return "NOT " + toString(((NotTerm) term).getTerm());
+            }
+            if (term instanceof DateTerm) {
+                return term.getClass().getSimpleName() + "(" + ((DateTerm) term).getComparison() + ", " + ((DateTerm) term).getDate().getTime() + ")";
+            }
+            if (term instanceof StringTerm) {
+                return term.getClass().getSimpleName() + "(" + ((StringTerm) term).getPattern() + ")";
+            }
+            if (term instanceof YoungerTerm) {
+                return "YOUNGER " + ((YoungerTerm) term).getInterval();
+            }
+            if (term instanceof OlderTerm) {
+                return "OLDER " + ((OlderTerm) term).getInterval();
+            }
+            return term.getClass().getSimpleName();
+        }
+    }
+}
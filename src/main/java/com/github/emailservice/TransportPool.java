@@ -0,0 +1,426 @@
+package com.github.emailservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP连接池, 线程安全
+ * 1. 按 协议+服务器+端口+账号+密码+session配置 分组, 多个线程可以同时借用, 每组最多 {@link #setMaxTotalPerKey(int)} 个连接.
+ * session配置在这个session第一次借用时复制, 之后修改不生效, 要用新的session
+ * 2. 空闲超过 {@link #setValidateAfterIdleMillis(long)} 的连接, 借出前发NOOP检查是否可用. 归还时不检查, 出错的连接由调用方 {@link PooledTransport#markBroken()}
+ * 3. 一个连接发送 {@link #setMaxMessagesPerConnection(int)} 封后关闭重建, 很多服务器限制每个连接的邮件数
+ * 4. 空闲超过 {@link #setMaxIdleMillis(long)} 的连接后台关闭, 没有连接的分组也删掉
+ * <p>
+ * 用法 emailService.setTransportPool(pool), 之后 sendHtmlMail, sendSimpleMail 和 newSender 创建的 Sender 都用池里的连接
+ *
+ * @author wangzihao
+ */
+public class TransportPool implements EmailService.Closeable {
+    private static final Logger log = LoggerFactory.getLogger(TransportPool.class);
+    private static final ScheduledThreadPoolExecutor EVICT_SCHEDULER;
+
+    static {
+        EVICT_SCHEDULER = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "EmailService-TransportPool-evict");
+            thread.setDaemon(true);
+            return thread;
+        });
+        EVICT_SCHEDULER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Map<Key, KeyPool> poolMap = new ConcurrentHashMap<>();
+    /**
+     * 每个session的分组key, 借用时不用每次复制和哈希session配置. session不用了自动删除
+     */
+    private final Map<Session, Key> keyCache = new WeakHashMap<>();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong destroyCount = new AtomicLong();
+    private final ScheduledFuture<?> evictFuture;
+    private int maxTotalPerKey = 8;
+    private int maxMessagesPerConnection = 100;
+    private long maxIdleMillis = 60_000L;
+    private long validateAfterIdleMillis = 2_000L;
+    private long borrowTimeoutMillis = 30_000L;
+    private volatile boolean closeFlag = false;
+
+    public TransportPool() {
+        this(10_000L);
+    }
+
+    /**
+     * @param evictIntervalMillis 多久检查一次空闲连接
+     */
+    public TransportPool(long evictIntervalMillis) {
+        this.evictFuture = EVICT_SCHEDULER.scheduleWithFixedDelay(this::evict, evictIntervalMillis, evictIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 借一个已连接的连接, 用完必须 {@link PooledTransport#close()} 归还
+     *
+     * @param session  创建连接用的session
+     * @param protocol smtp, smtps
+     * @param host     服务器
+     * @param port     端口, -1=默认
+     * @param username 账号
+     * @param password 密码
+     * @return 已连接的连接
+     * @throws MessagingException 连接失败, 或等待超时
+     */
+    public PooledTransport borrow(Session session, String protocol, String host, int port, String username, String password) throws MessagingException {
+        if (closeFlag) {
+            throw new MessagingException("TransportPool closed");
+        }
+        Key key = key(session, protocol, host, port, username, password);
+        KeyPool pool;
+        while (true) {
+            pool = poolMap.computeIfAbsent(key, KeyPool::new);
+            try {
+                if (!pool.permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new MessagingException("TransportPool borrow timeout " + borrowTimeoutMillis + "ms, key=" + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("TransportPool borrow interrupted, key=" + key, e);
+            }
+            if (!pool.removeFlag) {
+                break;
+            }
+            // 空的分组刚被后台删掉, 换新的分组
+            pool.permits.release();
+        }
+        try {
+            PooledTransport pooled;
+            while ((pooled = pool.idleDeque.pollFirst()) != null) {
+                if (validate(pooled)) {
+                    pooled.borrowFlag = true;
+                    pool.active.incrementAndGet();
+                    return pooled;
+                }
+                destroy(pooled);
+            }
+            Transport transport = session.getTransport(protocol);
+            transport.connect(host, port, username, password);
+            createCount.incrementAndGet();
+            pooled = new PooledTransport(this, pool, transport);
+            pooled.borrowFlag = true;
+            pool.active.incrementAndGet();
+            return pooled;
+        } catch (MessagingException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    private Key key(Session session, String protocol, String host, int port, String username, String password) {
+        synchronized (keyCache) {
+            Key key = keyCache.get(session);
+            if (key == null) {
+                Map<Object, Object> properties = new HashMap<>(session.getProperties());
+                key = new Key(protocol, host, port, username, password, properties, properties.hashCode());
+                keyCache.put(session, key);
+            } else if (!key.matches(protocol, host, port, username, password)) {
+                // 同一个session换了账号, 共用已复制的session配置
+                key = new Key(protocol, host, port, username, password, key.properties, key.propertiesHash);
+                keyCache.put(session, key);
+            }
+            return key;
+        }
+    }
+
+    private boolean validate(PooledTransport pooled) {
+        long idle = System.currentTimeMillis() - pooled.lastUsedTime;
+        if (idle > maxIdleMillis) {
+            return false;
+        }
+        if (idle < validateAfterIdleMillis) {
+            return true;
+        }
+        // SMTPTransport.isConnected() 会发送NOOP
+        try {
+            return pooled.transport.isConnected();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    void release(PooledTransport pooled) {
+        KeyPool pool = pooled.pool;
+        pooled.borrowFlag = false;
+        pool.active.decrementAndGet();
+        try {
+            pooled.lastUsedTime = System.currentTimeMillis();
+            // 不调用isConnected(), SMTPTransport会发NOOP, 每封邮件多一次往返. 借出时再按空闲时间检查
+            if (closeFlag || pooled.brokenFlag
+                    || (maxMessagesPerConnection > 0 && pooled.messageCount >= maxMessagesPerConnection)) {
+                destroy(pooled);
+            } else {
+                // 后进先出, 优先用刚用过的热连接
+                pool.idleDeque.offerFirst(pooled);
+            }
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    private void destroy(PooledTransport pooled) {
+        destroyCount.incrementAndGet();
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            log.debug("TransportPool close error = {}", e.toString());
+        }
+    }
+
+    private void evict() {
+        long now = System.currentTimeMillis();
+        for (KeyPool pool : poolMap.values()) {
+            Iterator<PooledTransport> iterator = pool.idleDeque.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledTransport pooled = iterator.next();
+                if (now - pooled.lastUsedTime > maxIdleMillis && pool.idleDeque.removeFirstOccurrence(pooled)) {
+                    destroy(pooled);
+                }
+            }
+            // 拿到全部许可说明没有借出和正在借的, 这时删掉空的分组
+            if (pool.idleDeque.isEmpty() && pool.permits.tryAcquire(pool.maxTotal)) {
+                try {
+                    if (pool.idleDeque.isEmpty()) {
+                        pool.removeFlag = true;
+                        poolMap.remove(pool.key, pool);
+                    }
+                } finally {
+                    pool.permits.release(pool.maxTotal);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 分组数
+     */
+    public int getKeyCount() {
+        return poolMap.size();
+    }
+
+    public int getIdleCount() {
+        int count = 0;
+        for (KeyPool pool : poolMap.values()) {
+            count += pool.idleDeque.size();
+        }
+        return count;
+    }
+
+    public int getActiveCount() {
+        int count = 0;
+        for (KeyPool pool : poolMap.values()) {
+            count += pool.active.get();
+        }
+        return count;
+    }
+
+    public long getCreateCount() {
+        return createCount.get();
+    }
+
+    public long getDestroyCount() {
+        return destroyCount.get();
+    }
+
+    public int getMaxTotalPerKey() {
+        return maxTotalPerKey;
+    }
+
+    /**
+     * 在第一次借用前设置
+     *
+     * @param maxTotalPerKey 每组最多连接数
+     */
+    public void setMaxTotalPerKey(int maxTotalPerKey) {
+        if (maxTotalPerKey <= 0) {
+            throw new IllegalArgumentException("maxTotalPerKey must be > 0. maxTotalPerKey=" + maxTotalPerKey);
+        }
+        this.maxTotalPerKey = maxTotalPerKey;
+    }
+
+    public int getMaxMessagesPerConnection() {
+        return maxMessagesPerConnection;
+    }
+
+    public void setMaxMessagesPerConnection(int maxMessagesPerConnection) {
+        this.maxMessagesPerConnection = maxMessagesPerConnection;
+    }
+
+    public long getMaxIdleMillis() {
+        return maxIdleMillis;
+    }
+
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    public long getValidateAfterIdleMillis() {
+        return validateAfterIdleMillis;
+    }
+
+    public void setValidateAfterIdleMillis(long validateAfterIdleMillis) {
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setBorrowTimeoutMillis(long borrowTimeoutMillis) {
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    @Override
+    public void close() {
+        closeFlag = true;
+        evictFuture.cancel(false);
+        for (KeyPool pool : poolMap.values()) {
+            PooledTransport pooled;
+            while ((pooled = pool.idleDeque.pollFirst()) != null) {
+                destroy(pooled);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransportPool{idle=" + getIdleCount() + ", active=" + getActiveCount() + ", create=" + createCount + ", destroy=" + destroyCount + "}";
+    }
+
+    /**
+     * 借出的连接, close()归还
+     */
+    public static class PooledTransport implements EmailService.Closeable {
+        private final TransportPool owner;
+        private final KeyPool pool;
+        private final Transport transport;
+        private int messageCount;
+        private volatile long lastUsedTime = System.currentTimeMillis();
+        private volatile boolean borrowFlag;
+        private boolean brokenFlag;
+
+        private PooledTransport(TransportPool owner, KeyPool pool, Transport transport) {
+            this.owner = owner;
+            this.pool = pool;
+            this.transport = transport;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        /**
+         * 发送成功一封后调用
+         */
+        public void incrementMessageCount() {
+            messageCount++;
+        }
+
+        /**
+         * 连接出错了, 归还时关闭
+         */
+        public void markBroken() {
+            brokenFlag = true;
+        }
+
+        @Override
+        public void close() {
+            if (borrowFlag) {
+                owner.release(this);
+            }
+        }
+    }
+
+    private class KeyPool {
+        private final Key key;
+        private final int maxTotal = maxTotalPerKey;
+        private final Semaphore permits = new Semaphore(maxTotal);
+        private final ConcurrentLinkedDeque<PooledTransport> idleDeque = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger active = new AtomicInteger();
+        /**
+         * 已从poolMap删除, 拿到许可后发现删除了要换新的分组
+         */
+        private volatile boolean removeFlag;
+
+        private KeyPool(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return key.toString();
+        }
+    }
+
+    private static class Key {
+        private final String protocol;
+        private final String host;
+        private final int port;
+        private final String username;
+        private final String password;
+        /**
+         * session配置的副本, 超时,SSL等配置不同的连接不能共用
+         */
+        private final Map<Object, Object> properties;
+        private final int propertiesHash;
+        private final int hash;
+
+        private Key(String protocol, String host, int port, String username, String password, Map<Object, Object> properties, int propertiesHash) {
+            this.protocol = protocol;
+            this.host = host;
+            this.port = port;
+            this.username = username;
+            this.password = password;
+            this.properties = properties;
+            this.propertiesHash = propertiesHash;
+            this.hash = Objects.hash(protocol, host, port, username, password) * 31 + propertiesHash;
+        }
+
+        private boolean matches(String protocol, String host, int port, String username, String password) {
+            return this.port == port && Objects.equals(this.protocol, protocol) && Objects.equals(this.host, host)
+                    && Objects.equals(this.username, username) && Objects.equals(this.password, password);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && key.matches(protocol, host, port, username, password) && properties.equals(key.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return protocol + "://" + username + "@" + host + ":" + port;
+        }
+    }
+}
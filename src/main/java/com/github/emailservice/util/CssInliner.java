@@ -0,0 +1,485 @@
+package com.github.emailservice.util;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+import org.jsoup.select.Selector;
+
+import java.util.*;
+
+/**
+ * css样式内联, 转行内样式
+ * 1. 样式表只解析一次, 按css内容缓存编译好的规则 (选择器编译成 {@link Evaluator})
+ * 2. 优先级按css规范计算 (id数, class/属性/伪类数, 标签数), 相同时后面的规则覆盖前面的
+ * 3. 只遍历一次dom. 规则按最右边的 id/class/标签 分桶, 每个元素只检查可能匹配的规则
+ * 4. 相同的html直接返回上次的结果
+ * <p>
+ * 层叠顺序: 普通规则 &lt; 元素原有的style &lt; !important规则 &lt; 原有style里的!important
+ * 带伪类的规则 (例如 a:hover) 不能内联, 跳过, 和原来一样
+ *
+ * @author wangzihao
+ * @see HtmlQuery#inlineCss(String)
+ */
+public class CssInliner {
+    private static final CssInliner DEFAULT = new CssInliner(64, 64);
+    private final Map<String, RuleSet> ruleSetCache;
+    private final Map<String, String> resultCache;
+
+    /**
+     * @param maxRuleSets 最多缓存多少份样式表
+     * @param maxResults  最多缓存多少个结果, 0=不缓存
+     */
+    public CssInliner(int maxRuleSets, int maxResults) {
+        this.ruleSetCache = newLruCache(maxRuleSets);
+        this.resultCache = maxResults > 0 ? newLruCache(maxResults) : null;
+    }
+
+    public static CssInliner getDefault() {
+        return DEFAULT;
+    }
+
+    public static String inline(String html) {
+        return DEFAULT.inlineCss(html);
+    }
+
+    private static <V> Map<String, V> newLruCache(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    public String inlineCss(String html) {
+        if (resultCache != null) {
+            String result = resultCache.get(html);
+            if (result != null) {
+                return result;
+            }
+        }
+        Document doc = Jsoup.parse(html);
+        StringBuilder css = new StringBuilder();
+        for (Element style : doc.select("style")) {
+            css.append(style.data()).append('\n');
+            style.remove();
+        }
+        if (css.length() > 0) {
+            RuleSet ruleSet = getRuleSet(css.toString());
+            ruleSet.apply(doc);
+        }
+        String result = doc.toString();
+        if (resultCache != null) {
+            resultCache.put(html, result);
+        }
+        return result;
+    }
+
+    RuleSet getRuleSet(String css) {
+        RuleSet ruleSet = ruleSetCache.get(css);
+        if (ruleSet == null) {
+            ruleSet = new RuleSet(css);
+            ruleSetCache.put(css, ruleSet);
+        }
+        return ruleSet;
+    }
+
+    /**
+     * 计算选择器优先级, 返回 a*10000 + b*100 + c
+     * a=id数, b=class/属性/伪类数, c=标签/伪元素数
+     *
+     * @param selector 单个选择器 (不含逗号)
+     * @return 优先级
+     */
+    public static int specificity(String selector) {
+        int a = 0;
+        int b = 0;
+        int c = 0;
+        boolean compoundStart = true;
+        int length = selector.length();
+        for (int i = 0; i < length; i++) {
+            char ch = selector.charAt(i);
+            switch (ch) {
+                case '#':
+                    a++;
+                    i = skipIdentifier(selector, i + 1) - 1;
+                    compoundStart = false;
+                    break;
+                case '.':
+                    b++;
+                    i = skipIdentifier(selector, i + 1) - 1;
+                    compoundStart = false;
+                    break;
+                case '[':
+                    b++;
+                    i = skipBlock(selector, i, '[', ']');
+                    compoundStart = false;
+                    break;
+                case ':':
+                    if (i + 1 < length && selector.charAt(i + 1) == ':') {
+                        c++;
+                        i++;
+                    } else {
+                        b++;
+                    }
+                    i = skipIdentifier(selector, i + 1) - 1;
+                    if (i + 1 < length && selector.charAt(i + 1) == '(') {
+                        i = skipBlock(selector, i + 1, '(', ')');
+                    }
+                    compoundStart = false;
+                    break;
+                case ' ':
+                case '>':
+                case '+':
+                case '~':
+                case '\t':
+                case '\n':
+                    compoundStart = true;
+                    break;
+                case '*':
+                    compoundStart = false;
+                    break;
+                default:
+                    if (compoundStart) {
+                        c++;
+                        i = skipIdentifier(selector, i) - 1;
+                        compoundStart = false;
+                    }
+                    break;
+            }
+        }
+        return a * 10000 + Math.min(b, 99) * 100 + Math.min(c, 99);
+    }
+
+    private static int skipIdentifier(String text, int start) {
+        int i = start;
+        while (i < text.length()) {
+            char ch = text.charAt(i);
+            if (Character.isLetterOrDigit(ch) || ch == '-' || ch == '_' || ch > 127) {
+                i++;
+            } else if (ch == '\\' && i + 1 < text.length()) {
+                i += 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @return 结束符的下标
+     */
+    private static int skipBlock(String text, int start, char open, char close) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = start; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == open) {
+                depth++;
+            } else if (ch == close && --depth == 0) {
+                return i;
+            }
+        }
+        return text.length() - 1;
+    }
+
+    /**
+     * 按分隔符切分, 忽略括号和引号里的
+     */
+    private static List<String> split(String text, char separator) {
+        List<String> list = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '(' || ch == '[') {
+                depth++;
+            } else if (ch == ')' || ch == ']') {
+                depth--;
+            } else if (ch == separator && depth == 0) {
+                list.add(text.substring(start, i));
+                start = i + 1;
+            }
+        }
+        list.add(text.substring(start));
+        return list;
+    }
+
+    static List<Declaration> parseDeclarations(String text) {
+        List<Declaration> list = new ArrayList<>();
+        for (String item : split(text, ';')) {
+            int index = item.indexOf(':');
+            if (index <= 0) {
+                continue;
+            }
+            String property = item.substring(0, index).trim().toLowerCase(Locale.ENGLISH);
+            String value = item.substring(index + 1).trim();
+            boolean important = false;
+            int importantIndex = value.toLowerCase(Locale.ENGLISH).lastIndexOf("!important");
+            if (importantIndex >= 0) {
+                important = true;
+                value = value.substring(0, importantIndex).trim();
+            }
+            if (!property.isEmpty() && !value.isEmpty()) {
+                list.add(new Declaration(property, value.replaceAll("\\s{2,}", " "), important));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 编译好的样式表, 线程安全
+     */
+    static class RuleSet {
+        private final List<Rule> ruleList = new ArrayList<>();
+        private final Map<String, List<Rule>> idMap = new HashMap<>();
+        private final Map<String, List<Rule>> classMap = new HashMap<>();
+        private final Map<String, List<Rule>> tagMap = new HashMap<>();
+        private final List<Rule> universalList = new ArrayList<>();
+
+        RuleSet(String css) {
+            parse(removeComments(css));
+            for (Rule rule : ruleList) {
+                String key = rule.key;
+                if (key == null) {
+                    universalList.add(rule);
+                } else if (key.startsWith("#")) {
+                    idMap.computeIfAbsent(key.substring(1), k -> new ArrayList<>()).add(rule);
+                } else if (key.startsWith(".")) {
+                    classMap.computeIfAbsent(key.substring(1), k -> new ArrayList<>()).add(rule);
+                } else {
+                    tagMap.computeIfAbsent(key, k -> new ArrayList<>()).add(rule);
+                }
+            }
+        }
+
+        int size() {
+            return ruleList.size();
+        }
+
+        private static String removeComments(String css) {
+            StringBuilder builder = new StringBuilder(css.length());
+            int start = 0;
+            int index;
+            while ((index = css.indexOf("/*", start)) != -1) {
+                builder.append(css, start, index);
+                int end = css.indexOf("*/", index + 2);
+                if (end == -1) {
+                    return builder.toString();
+                }
+                start = end + 2;
+            }
+            builder.append(css, start, css.length());
+            return builder.toString();
+        }
+
+        private void parse(String css) {
+            int i = 0;
+            int length = css.length();
+            while (i < length) {
+                int open = css.indexOf('{', i);
+                if (open == -1) {
+                    return;
+                }
+                String selectorText = css.substring(i, open).trim();
+                int close = skipBlock(css, open, '{', '}');
+                if (selectorText.startsWith("@")) {
+                    // @media, @font-face 等不能内联, 整块跳过
+                    i = close + 1;
+                    continue;
+                }
+                List<Declaration> declarations = parseDeclarations(css.substring(open + 1, close));
+                i = close + 1;
+                if (declarations.isEmpty()) {
+                    continue;
+                }
+                for (String selector : split(selectorText, ',')) {
+                    selector = selector.trim();
+                    if (selector.isEmpty() || selector.contains(":")) {
+                        continue;
+                    }
+                    Evaluator evaluator;
+                    try {
+                        evaluator = QueryParser.parse(selector);
+                    } catch (Selector.SelectorParseException e) {
+                        continue;
+                    }
+                    ruleList.add(new Rule(evaluator, specificity(selector), ruleList.size(), keyOf(selector), declarations));
+                }
+            }
+        }
+
+        /**
+         * 最右边的复合选择器里, 取一个元素必须有的 id, class 或标签, 用于分桶
+         */
+        private static String keyOf(String selector) {
+            int start = 0;
+            int depth = 0;
+            for (int i = 0; i < selector.length(); i++) {
+                char ch = selector.charAt(i);
+                if (ch == '[' || ch == '(') {
+                    depth++;
+                } else if (ch == ']' || ch == ')') {
+                    depth--;
+                } else if (depth == 0 && (ch == ' ' || ch == '>' || ch == '+' || ch == '~' || ch == '\t' || ch == '\n')) {
+                    start = i + 1;
+                }
+            }
+            String compound = selector.substring(start);
+            if (compound.indexOf('[') >= 0 || compound.indexOf('\\') >= 0) {
+                compound = compound.substring(0, compound.indexOf('[') >= 0 ? compound.indexOf('[') : compound.length());
+                if (compound.indexOf('\\') >= 0) {
+                    return null;
+                }
+            }
+            int id = compound.indexOf('#');
+            if (id >= 0) {
+                return "#" + compound.substring(id + 1, skipIdentifier(compound, id + 1));
+            }
+            int cls = compound.indexOf('.');
+            if (cls >= 0) {
+                return "." + compound.substring(cls + 1, skipIdentifier(compound, cls + 1));
+            }
+            int end = skipIdentifier(compound, 0);
+            if (end > 0) {
+                return compound.substring(0, end).toLowerCase(Locale.ENGLISH);
+            }
+            return null;
+        }
+
+        void apply(Document doc) {
+            List<Rule> candidates = new ArrayList<>();
+            for (Element element : doc.getAllElements()) {
+                candidates.clear();
+                addAll(candidates, tagMap.get(element.normalName()));
+                String id = element.id();
+                if (!id.isEmpty()) {
+                    addAll(candidates, idMap.get(id));
+                }
+                if (!classMap.isEmpty() && element.hasAttr("class")) {
+                    for (String className : element.classNames()) {
+                        addAll(candidates, classMap.get(className));
+                    }
+                }
+                candidates.addAll(universalList);
+                if (candidates.isEmpty()) {
+                    continue;
+                }
+                // 优先级从低到高, 同优先级按出现顺序, 后面的覆盖前面的
+                candidates.sort(null);
+                Map<String, Declaration> normal = new LinkedHashMap<>();
+                Map<String, Declaration> important = new LinkedHashMap<>();
+                Rule last = null;
+                for (Rule rule : candidates) {
+                    if (rule == last) {
+                        // 同一个规则可能从多个桶里来
+                        continue;
+                    }
+                    last = rule;
+                    if (!rule.evaluator.matches(doc, element)) {
+                        continue;
+                    }
+                    for (Declaration declaration : rule.declarations) {
+                        Map<String, Declaration> target = declaration.important ? important : normal;
+                        target.remove(declaration.property);
+                        target.put(declaration.property, declaration);
+                    }
+                }
+                if (normal.isEmpty() && important.isEmpty()) {
+                    continue;
+                }
+                String inlineStyle = element.attr("style");
+                List<Declaration> inlineList = inlineStyle.isEmpty() ? Collections.emptyList() : parseDeclarations(inlineStyle);
+                Map<String, Declaration> merged = new LinkedHashMap<>(normal);
+                for (Declaration declaration : inlineList) {
+                    if (!declaration.important) {
+                        merged.remove(declaration.property);
+                        merged.put(declaration.property, declaration);
+                    }
+                }
+                for (Declaration declaration : important.values()) {
+                    merged.remove(declaration.property);
+                    merged.put(declaration.property, declaration);
+                }
+                for (Declaration declaration : inlineList) {
+                    if (declaration.important) {
+                        merged.remove(declaration.property);
+                        merged.put(declaration.property, declaration);
+                    }
+                }
+                StringBuilder style = new StringBuilder();
+                for (Declaration declaration : merged.values()) {
+                    if (style.length() > 0) {
+                        style.append(' ');
+                    }
+                    style.append(declaration.property).append(": ").append(declaration.value);
+                    if (declaration.important) {
+                        style.append(" !important");
+                    }
+                    style.append(';');
+                }
+                element.attr("style", style.toString());
+            }
+        }
+
+        private static void addAll(List<Rule> candidates, List<Rule> rules) {
+            if (rules != null) {
+                candidates.addAll(rules);
+            }
+        }
+    }
+
+    private static class Rule implements Comparable<Rule> {
+        private final Evaluator evaluator;
+        private final int specificity;
+        private final int order;
+        private final String key;
+        private final List<Declaration> declarations;
+
+        private Rule(Evaluator evaluator, int specificity, int order, String key, List<Declaration> declarations) {
+            this.evaluator = evaluator;
+            this.specificity = specificity;
+            this.order = order;
+            this.key = key;
+            this.declarations = declarations;
+        }
+
+        @Override
+        public int compareTo(Rule o) {
+            int compare = Integer.compare(specificity, o.specificity);
+            return compare != 0 ? compare : Integer.compare(order, o.order);
+        }
+    }
+
+    static class Declaration {
+        private final String property;
+        private final String value;
+        private final boolean important;
+
+        Declaration(String property, String value, boolean important) {
+            this.property = property;
+            this.value = value;
+            this.important = important;
+        }
+
+        @Override
+        public String toString() {
+            return property + ": " + value + (important ? " !important" : "");
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.github.emailservice.util;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.NodeFilter;
+import org.jsoup.select.NodeTraversor;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * html批量提取计划
+ * 1. 字段只声明一次, 选择器在创建时编译
+ * 2. 提取时只遍历一次dom, 每个元素依次检查还没取到值的字段. 只剩单值字段且都取到后提前结束
+ * 3. 计划不可变, 可以多线程共用
+ * <p>
+ * 单值字段没找到时返回 "", 和 {@link HtmlQuery#selectText(String, int)} 一样; 多值字段返回 List
+ * <p>
+ * 用法
+ * <pre>
+ * HtmlExtractPlan plan = HtmlExtractPlan.builder()
+ *         .text("orderNo", "td.order-no")
+ *         .nextText("amount", "td:containsOwn(金额)", 0)
+ *         .attr("detailUrl", "a.detail", "href")
+ *         .texts("items", "td.name")
+ *         .build();
+ * Map&lt;String, Object&gt; result = htmlContent.getQuery().extract(plan);
+ * </pre>
+ *
+ * @author wangzihao
+ * @see HtmlQuery#extract(HtmlExtractPlan)
+ */
+public class HtmlExtractPlan {
+    private final Field[] fields;
+    private final boolean hasMultiple;
+
+    private HtmlExtractPlan(List<Field> fieldList) {
+        this.fields = fieldList.toArray(new Field[0]);
+        boolean hasMultiple = false;
+        for (Field field : fields) {
+            hasMultiple |= field.multiple;
+        }
+        this.hasMultiple = hasMultiple;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return 字段名, 按声明顺序
+     */
+    public List<String> getFieldNames() {
+        List<String> list = new ArrayList<>(fields.length);
+        for (Field field : fields) {
+            list.add(field.name);
+        }
+        return list;
+    }
+
+    /**
+     * 提取
+     *
+     * @param root 从这个元素开始 (包括自己), 和 {@link Element#select(String)} 的范围一样
+     * @return 字段名 -&gt; 值 (String 或 List&lt;String&gt;), 按声明顺序
+     */
+    public Map<String, Object> extract(Element root) {
+        Object[] values = new Object[fields.length];
+        if (root != null) {
+            new Visitor(root, values).run();
+        }
+        Map<String, Object> result = new LinkedHashMap<>(fields.length * 4 / 3 + 1);
+        for (int i = 0; i < fields.length; i++) {
+            Field field = fields[i];
+            Object value = values[i];
+            if (value == null) {
+                value = field.multiple ? new ArrayList<String>() : "";
+            }
+            result.put(field.name, value);
+        }
+        return result;
+    }
+
+    /**
+     * 同级下一个(step&gt;0)或上一个(step&lt;0)相同标签的元素, 直接走兄弟节点, 不生成列表
+     *
+     * @param element 当前元素
+     * @param step    移动几个
+     * @return 没有返回null
+     */
+    static Element siblingByTag(Element element, int step) {
+        String tagName = element.tagName();
+        Element current = element;
+        int remain = Math.abs(step);
+        while (remain > 0 && current != null) {
+            current = step > 0 ? current.nextElementSibling() : current.previousElementSibling();
+            if (current != null && tagName.equals(current.tagName())) {
+                remain--;
+            }
+        }
+        return current;
+    }
+
+    private class Visitor implements NodeFilter {
+        private final Element root;
+        private final Object[] values;
+        /**
+         * 每个字段已经匹配的次数
+         */
+        private final int[] matchCounts = new int[fields.length];
+        private int remainSingle;
+
+        private Visitor(Element root, Object[] values) {
+            this.root = root;
+            this.values = values;
+            for (Field field : fields) {
+                if (!field.multiple) {
+                    remainSingle++;
+                }
+            }
+        }
+
+        private void run() {
+            if (remainSingle == 0 && !hasMultiple) {
+                return;
+            }
+            NodeTraversor.filter(this, root);
+        }
+
+        @Override
+        public FilterResult head(Node node, int depth) {
+            if (!(node instanceof Element)) {
+                return FilterResult.CONTINUE;
+            }
+            Element element = (Element) node;
+            for (int i = 0; i < fields.length; i++) {
+                Field field = fields[i];
+                if (!field.multiple && values[i] != null) {
+                    continue;
+                }
+                if (!field.evaluator.matches(root, element)) {
+                    continue;
+                }
+                int count = matchCounts[i]++;
+                if (field.multiple) {
+                    @SuppressWarnings("unchecked")
+                    List<String> list = (List<String>) values[i];
+                    if (list == null) {
+                        values[i] = list = new ArrayList<>();
+                    }
+                    String value = field.value(element);
+                    if (value != null) {
+                        list.add(value);
+                    }
+                } else if (count == field.index) {
+                    String value = field.value(element);
+                    values[i] = value != null ? value : "";
+                    remainSingle--;
+                }
+            }
+            return remainSingle == 0 && !hasMultiple ? FilterResult.STOP : FilterResult.CONTINUE;
+        }
+
+        @Override
+        public FilterResult tail(Node node, int depth) {
+            return FilterResult.CONTINUE;
+        }
+    }
+
+    private static class Field {
+        private final String name;
+        private final Evaluator evaluator;
+        private final int index;
+        private final int siblingStep;
+        private final boolean multiple;
+        private final Function<Element, String> valueFunction;
+
+        private Field(String name, String cssQuery, int index, int siblingStep, boolean multiple, Function<Element, String> valueFunction) {
+            if (index < 0) {
+                throw new IllegalArgumentException("index must be >= 0. index=" + index);
+            }
+            this.name = Objects.requireNonNull(name, "name");
+            this.evaluator = SelectorCache.get(Objects.requireNonNull(cssQuery, "cssQuery"));
+            this.index = index;
+            this.siblingStep = siblingStep;
+            this.multiple = multiple;
+            this.valueFunction = Objects.requireNonNull(valueFunction, "valueFunction");
+        }
+
+        private String value(Element element) {
+            Element target = siblingStep == 0 ? element : siblingByTag(element, siblingStep);
+            return target != null ? valueFunction.apply(target) : null;
+        }
+    }
+
+    public static class Builder {
+        private final List<Field> fieldList = new ArrayList<>();
+        private final Set<String> nameSet = new HashSet<>();
+
+        private Builder() {
+        }
+
+        /**
+         * 通用字段
+         *
+         * @param name          字段名
+         * @param cssQuery      选择器
+         * @param index         取第几个匹配的元素, 多值字段忽略
+         * @param siblingStep   再移动到同级相同标签的第几个, 0=自己, 1=下一个 {@link HtmlQuery#nextByTagEq()}, -1=上一个
+         * @param multiple      true=所有匹配的元素, 值是List
+         * @param valueFunction 取值
+         * @return this
+         */
+        public Builder field(String name, String cssQuery, int index, int siblingStep, boolean multiple, Function<Element, String> valueFunction) {
+            if (!nameSet.add(name)) {
+                throw new IllegalArgumentException("duplicate field name " + name);
+            }
+            fieldList.add(new Field(name, cssQuery, index, siblingStep, multiple, valueFunction));
+            return this;
+        }
+
+        public Builder text(String name, String cssQuery) {
+            return text(name, cssQuery, 0);
+        }
+
+        public Builder text(String name, String cssQuery, int index) {
+            return field(name, cssQuery, index, 0, false, Element::text);
+        }
+
+        public Builder attr(String name, String cssQuery, String attr) {
+            return attr(name, cssQuery, attr, 0);
+        }
+
+        public Builder attr(String name, String cssQuery, String attr, int index) {
+            return field(name, cssQuery, index, 0, false, e -> e.attr(attr));
+        }
+
+        /**
+         * 匹配元素的同级下一个相同标签的文本, 例如 &lt;td&gt;金额&lt;/td&gt;&lt;td&gt;100&lt;/td&gt; 取100
+         */
+        public Builder nextText(String name, String cssQuery, int index) {
+            return field(name, cssQuery, index, 1, false, Element::text);
+        }
+
+        public Builder prevText(String name, String cssQuery, int index) {
+            return field(name, cssQuery, index, -1, false, Element::text);
+        }
+
+        public Builder texts(String name, String cssQuery) {
+            return field(name, cssQuery, 0, 0, true, Element::text);
+        }
+
+        public Builder attrs(String name, String cssQuery, String attr) {
+            return field(name, cssQuery, 0, 0, true, e -> e.attr(attr));
+        }
+
+        public HtmlExtractPlan build() {
+            return new HtmlExtractPlan(new ArrayList<>(fieldList));
+        }
+    }
+}
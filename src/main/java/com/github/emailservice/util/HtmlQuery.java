@@ -8,15 +8,16 @@ import org.jsoup.select.Elements;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.StringTokenizer;
 import java.util.function.ToIntBiFunction;
 import java.util.stream.Collectors;
 
 /**
  * html查询工具
  * 1. 类似JQuery操作, 链式调用, 不用考虑过程中有null, 下标越界
- * 2. 扩展了jsoup不支持的功能 {@link #moveIndexByTagEq} {@link #prevByTagEq()} {@link #nextByTagEq()} {@link #breakParentByTagName(String)}
+ * 2. 选择器编译后缓存 {@link SelectorCache}, 同一个选择器只解析一次
+ * 3. 扩展了jsoup不支持的功能 {@link #moveIndexByTagEq} {@link #prevByTagEq()} {@link #nextByTagEq()} {@link #breakParentByTagName(String)}
  *
  * @param <T>
  * @author hao
@@ -48,38 +49,10 @@ public class HtmlQuery<T extends Element> {
      *
      * @param html
      * @return 内联后
+     * @see CssInliner
      */
     public static String inlineCss(String html) {
-        final String style = "style";
-        org.jsoup.nodes.Document doc = Jsoup.parse(html);
-        Elements els = doc.select(style);// to get all the style elements
-        for (Element e : els) {
-            String styleRules = e.getAllElements().get(0).data().replaceAll("\n", "").trim();
-            String delims = "{}";
-            StringTokenizer st = new StringTokenizer(styleRules, delims);
-            while (st.countTokens() > 1) {
-                String selector = st.nextToken(), properties = st.nextToken();
-                if (!selector.contains(":")) { // skip a:hover rules, etc.
-                    Elements selectedElements = doc.select(selector);
-                    for (Element selElem : selectedElements) {
-                        String oldProperties = selElem.attr(style);
-                        selElem.attr(style,
-                                oldProperties.length() > 0 ? concatenateProperties(
-                                        oldProperties, properties) : properties);
-                    }
-                }
-            }
-            e.remove();
-        }
-        return doc.toString();
-    }
-
-    private static String concatenateProperties(String oldProp, String newProp) {
-        oldProp = oldProp.trim();
-        if (!oldProp.endsWith(";")) {
-            oldProp += ";";
-        }
-        return oldProp + newProp.replaceAll("\\s{2,}", "");
+        return CssInliner.inline(html);
     }
 
     public T getElement() {
@@ -97,9 +70,9 @@ public class HtmlQuery<T extends Element> {
         if (index < 0) {
             return EMPTY;
         } else if (index == 0) {
-            return valueOf(element.selectFirst(cssQuery));
+            return valueOf(element.selectFirst(SelectorCache.get(cssQuery)));
         } else {
-            Elements elements = element.select(cssQuery);
+            Elements elements = element.select(SelectorCache.get(cssQuery));
             if (index >= elements.size()) {
                 return EMPTY;
             } else {
@@ -168,11 +141,27 @@ public class HtmlQuery<T extends Element> {
     }
 
     public HtmlQuery<Element> prevByTagEq() {
-        return moveIndexByTagEq(((elements, element) -> elements.indexOf(element) - 1));
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        return valueOf(HtmlExtractPlan.siblingByTag(element, -1));
     }
 
     public HtmlQuery<Element> nextByTagEq() {
-        return moveIndexByTagEq(((elements, element) -> elements.indexOf(element) + 1));
+        if (isEmpty()) {
+            return EMPTY;
+        }
+        return valueOf(HtmlExtractPlan.siblingByTag(element, 1));
+    }
+
+    /**
+     * 按提取计划一次遍历取出所有字段
+     *
+     * @param plan 提取计划
+     * @return 字段名 -> 值
+     */
+    public Map<String, Object> extract(HtmlExtractPlan plan) {
+        return plan.extract(element);
     }
 
     public String selectTextValueContaining(String match, int index) {
@@ -206,7 +195,7 @@ public class HtmlQuery<T extends Element> {
         if (isEmpty()) {
             return new Elements();
         }
-        return getElement().select(cssQuery);
+        return getElement().select(SelectorCache.get(cssQuery));
     }
 
     @Override
@@ -0,0 +1,346 @@
+package com.github.emailservice.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * html转纯文本, 流式读取, 不生成dom
+ * 1. 跳过 script, style, template, title 和注释
+ * 2. 连续的空白合并成一个空格, 块级标签 (p, div, br, tr, td ...) 之间补空格, 结果和 jsoup 的 text() 接近
+ * 3. 只解码常用的实体 (&amp;amp; &amp;lt; &amp;nbsp; &amp;#123; 等), 其他原样保留
+ * 4. 达到字符上限后停止读取, 内存只有读缓冲和输出
+ * <p>
+ * 用于建索引等只要文字的场景, 需要查询元素请用 {@link HtmlQuery}
+ *
+ * @author wangzihao
+ */
+public class HtmlTextExtractor {
+    private static final Map<String, Character> ENTITY_MAP = new HashMap<>();
+    private static final String[] BLOCK_TAGS = {"address", "article", "aside", "blockquote", "br", "caption", "dd", "div", "dl", "dt",
+            "fieldset", "figcaption", "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li",
+            "main", "nav", "ol", "p", "pre", "section", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul"};
+    private static final String[] SKIP_TAGS = {"script", "style", "template", "title"};
+    private static final int MAX_ENTITY_LENGTH = 10;
+    private static final int MAX_TAG_NAME_LENGTH = 16;
+
+    static {
+        ENTITY_MAP.put("amp", '&');
+        ENTITY_MAP.put("lt", '<');
+        ENTITY_MAP.put("gt", '>');
+        ENTITY_MAP.put("quot", '"');
+        ENTITY_MAP.put("apos", '\'');
+        ENTITY_MAP.put("nbsp", '\u00a0');
+        ENTITY_MAP.put("copy", '\u00a9');
+        ENTITY_MAP.put("reg", '\u00ae');
+        ENTITY_MAP.put("yen", '\u00a5');
+        ENTITY_MAP.put("middot", '\u00b7');
+        ENTITY_MAP.put("mdash", '\u2014');
+        ENTITY_MAP.put("ndash", '\u2013');
+        ENTITY_MAP.put("hellip", '\u2026');
+        ENTITY_MAP.put("ldquo", '\u201c');
+        ENTITY_MAP.put("rdquo", '\u201d');
+        ENTITY_MAP.put("lsquo", '\u2018');
+        ENTITY_MAP.put("rsquo", '\u2019');
+    }
+
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private final StringBuilder out;
+    private final int maxChars;
+    private final StringBuilder name = new StringBuilder(MAX_TAG_NAME_LENGTH);
+    private int position;
+    private int limit;
+    private boolean pendingSpace;
+
+    private HtmlTextExtractor(Reader reader, int maxChars) {
+        this.reader = reader;
+        this.maxChars = maxChars;
+        this.out = new StringBuilder(Math.min(maxChars, 4096));
+    }
+
+    public static String extract(String html) {
+        return extract(html, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param html     html
+     * @param maxChars 最多返回多少个字符
+     * @return 纯文本
+     */
+    public static String extract(String html, int maxChars) {
+        if (html == null || html.isEmpty()) {
+            return "";
+        }
+        try {
+            return extract(new StringReader(html), maxChars);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param reader   html, 不会关闭
+     * @param maxChars 最多返回多少个字符
+     * @return 纯文本
+     * @throws IOException 读取失败
+     */
+    public static String extract(Reader reader, int maxChars) throws IOException {
+        if (maxChars <= 0) {
+            return "";
+        }
+        HtmlTextExtractor extractor = new HtmlTextExtractor(reader, maxChars);
+        extractor.run();
+        return extractor.out.toString();
+    }
+
+    private int read() throws IOException {
+        if (position >= limit) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    private void unread() {
+        position--;
+    }
+
+    private boolean isFull() {
+        return out.length() >= maxChars;
+    }
+
+    private void appendText(char ch) {
+        if (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == '\f' || ch == '\u00a0') {
+            pendingSpace = out.length() > 0;
+            return;
+        }
+        if (pendingSpace) {
+            pendingSpace = false;
+            out.append(' ');
+            if (isFull()) {
+                return;
+            }
+        }
+        out.append(ch);
+    }
+
+    private void run() throws IOException {
+        int ch;
+        while (!isFull() && (ch = read()) != -1) {
+            if (ch == '<') {
+                readMarkup();
+            } else if (ch == '&') {
+                readEntity();
+            } else {
+                appendText((char) ch);
+            }
+        }
+        if (out.length() > maxChars) {
+            out.setLength(maxChars);
+        }
+    }
+
+    private void readMarkup() throws IOException {
+        int ch = read();
+        if (ch == -1) {
+            appendText('<');
+            return;
+        }
+        if (ch == '!') {
+            skipComment();
+            return;
+        }
+        if (ch == '?') {
+            skipUntil('>');
+            return;
+        }
+        boolean endTag = ch == '/';
+        if (endTag) {
+            ch = read();
+        }
+        if (!isLetter(ch)) {
+            // 不是标签, 按文字处理
+            appendText('<');
+            if (endTag) {
+                appendText('/');
+            }
+            if (ch != -1) {
+                unread();
+            }
+            return;
+        }
+        name.setLength(0);
+        while (ch != -1 && !isTagNameEnd(ch)) {
+            if (name.length() < MAX_TAG_NAME_LENGTH) {
+                name.append(Character.toLowerCase((char) ch));
+            }
+            ch = read();
+        }
+        boolean selfClosing = false;
+        // 跳过属性, 引号里的 > 不算结束
+        int quote = 0;
+        int prev = 0;
+        while (ch != -1) {
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '"' || ch == '\'') {
+                quote = ch;
+            } else if (ch == '>') {
+                selfClosing = prev == '/';
+                break;
+            }
+            prev = ch;
+            ch = read();
+        }
+        String tagName = name.toString();
+        if (isBlock(tagName)) {
+            pendingSpace = out.length() > 0;
+        }
+        if (!endTag && !selfClosing && contains(SKIP_TAGS, tagName)) {
+            skipRawText(tagName);
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int ch = read();
+        if (ch == '-') {
+            ch = read();
+            if (ch == '-') {
+                // <!-- ... -->
+                int dashes = 0;
+                while ((ch = read()) != -1) {
+                    if (ch == '-') {
+                        dashes++;
+                    } else if (ch == '>' && dashes >= 2) {
+                        return;
+                    } else {
+                        dashes = 0;
+                    }
+                }
+                return;
+            }
+        }
+        if (ch != -1 && ch != '>') {
+            skipUntil('>');
+        }
+    }
+
+    private void skipUntil(char end) throws IOException {
+        int ch;
+        while ((ch = read()) != -1) {
+            if (ch == end) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 跳过 script/style 的内容, 直到对应的结束标签
+     */
+    private void skipRawText(String tagName) throws IOException {
+        int ch;
+        while ((ch = read()) != -1) {
+            if (ch != '<') {
+                continue;
+            }
+            ch = read();
+            if (ch != '/') {
+                if (ch != -1) {
+                    unread();
+                }
+                continue;
+            }
+            int matched = 0;
+            while (matched < tagName.length() && (ch = read()) != -1 && Character.toLowerCase((char) ch) == tagName.charAt(matched)) {
+                matched++;
+            }
+            if (matched == tagName.length()) {
+                skipUntil('>');
+                pendingSpace = out.length() > 0;
+                return;
+            }
+            if (ch != -1) {
+                unread();
+            }
+        }
+    }
+
+    private void readEntity() throws IOException {
+        name.setLength(0);
+        int ch;
+        while ((ch = read()) != -1 && name.length() < MAX_ENTITY_LENGTH && (isLetter(ch) || (ch >= '0' && ch <= '9') || ch == '#')) {
+            name.append((char) ch);
+        }
+        boolean semicolon = ch == ';';
+        if (ch != -1 && !semicolon) {
+            unread();
+        }
+        int codePoint = decodeEntity(name);
+        if (codePoint >= 0) {
+            for (char c : Character.toChars(codePoint)) {
+                appendText(c);
+            }
+            return;
+        }
+        appendText('&');
+        for (int i = 0; i < name.length(); i++) {
+            appendText(name.charAt(i));
+        }
+        if (semicolon) {
+            appendText(';');
+        }
+    }
+
+    private static int decodeEntity(CharSequence entity) {
+        if (entity.length() == 0) {
+            return -1;
+        }
+        if (entity.charAt(0) == '#') {
+            try {
+                int codePoint;
+                if (entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')) {
+                    codePoint = Integer.parseInt(entity.subSequence(2, entity.length()).toString(), 16);
+                } else {
+                    codePoint = Integer.parseInt(entity.subSequence(1, entity.length()).toString());
+                }
+                return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        Character ch = ENTITY_MAP.get(entity.toString().toLowerCase(Locale.ENGLISH));
+        return ch != null ? ch : -1;
+    }
+
+    private static boolean isLetter(int ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z');
+    }
+
+    private static boolean isTagNameEnd(int ch) {
+        return ch == '>' || ch == '/' || ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == '\f';
+    }
+
+    private static boolean isBlock(String tagName) {
+        return contains(BLOCK_TAGS, tagName);
+    }
+
+    private static boolean contains(String[] array, String value) {
+        for (String item : array) {
+            if (item.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
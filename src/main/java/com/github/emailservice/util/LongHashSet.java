@@ -0,0 +1,109 @@
+package com.github.emailservice.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * long的开放寻址哈希集合, 不装箱, 每个元素8字节
+ * 线性探测, 装载因子超过一半扩容. 不能放0, 调用方自己把0换成别的值. 不是线程安全的
+ *
+ * @author wangzihao
+ */
+public class LongHashSet {
+    private long[] table;
+    private int size;
+    private int mask;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize 预计元素个数
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+        this.table = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param value 不能是0
+     * @return true=新加入, false=已经有了
+     */
+    public boolean add(long value) {
+        if (value == 0L) {
+            throw new IllegalArgumentException("value must not be 0");
+        }
+        int i = index(value);
+        long current;
+        while ((current = table[i]) != 0L) {
+            if (current == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = value;
+        if (++size * 2 > table.length) {
+            resize();
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0L) {
+            return false;
+        }
+        int i = index(value);
+        long current;
+        while ((current = table[i]) != 0L) {
+            if (current == value) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(LongConsumer consumer) {
+        for (long value : table) {
+            if (value != 0L) {
+                consumer.accept(value);
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(table, 0L);
+        size = 0;
+    }
+
+    private int index(long value) {
+        // 高低位混合, 调用方传进来的可能不是均匀的哈希值
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private void resize() {
+        long[] old = table;
+        table = new long[old.length << 1];
+        mask = table.length - 1;
+        for (long value : old) {
+            if (value != 0L) {
+                int i = index(value);
+                while (table[i] != 0L) {
+                    i = (i + 1) & mask;
+                }
+                table[i] = value;
+            }
+        }
+    }
+}
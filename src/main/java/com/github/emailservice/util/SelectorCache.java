@@ -0,0 +1,84 @@
+package com.github.emailservice.util;
+
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编译好的css选择器缓存, 线程安全
+ * jsoup 每次 select(String) 都会重新解析选择器, 同一批选择器反复查询时, 用这里缓存的 {@link Evaluator}
+ * <p>
+ * 超过 {@link #setMaxSize(int)} 后随机淘汰一部分, 不维护访问顺序, 读不加锁
+ *
+ * @author wangzihao
+ * @see HtmlQuery
+ */
+public class SelectorCache {
+    private static final Map<String, Evaluator> CACHE = new ConcurrentHashMap<>();
+    private static final AtomicLong HIT_COUNT = new AtomicLong();
+    private static final AtomicLong MISS_COUNT = new AtomicLong();
+    private static volatile int maxSize = 1024;
+
+    /**
+     * @param cssQuery css选择器
+     * @return 编译好的选择器
+     * @throws org.jsoup.select.Selector.SelectorParseException 选择器语法错误
+     */
+    public static Evaluator get(String cssQuery) {
+        Evaluator evaluator = CACHE.get(cssQuery);
+        if (evaluator != null) {
+            HIT_COUNT.incrementAndGet();
+            return evaluator;
+        }
+        MISS_COUNT.incrementAndGet();
+        evaluator = QueryParser.parse(cssQuery);
+        if (CACHE.size() >= maxSize) {
+            evict();
+        }
+        CACHE.put(cssQuery, evaluator);
+        return evaluator;
+    }
+
+    /**
+     * 淘汰四分之一
+     */
+    private static void evict() {
+        int remove = Math.max(1, maxSize / 4);
+        Iterator<String> iterator = CACHE.keySet().iterator();
+        while (remove-- > 0 && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    public static void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be > 0. maxSize=" + maxSize);
+        }
+        SelectorCache.maxSize = maxSize;
+    }
+
+    public static int size() {
+        return CACHE.size();
+    }
+
+    public static long getHitCount() {
+        return HIT_COUNT.get();
+    }
+
+    public static long getMissCount() {
+        return MISS_COUNT.get();
+    }
+
+    public static void clear() {
+        CACHE.clear();
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.emailservice.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 虚拟线程 (java21+)
+ * 1. 这是java8版本, 通过反射调用, 在非multi-release的classpath (例如 target/classes) 下运行在java21+时也可用
+ * 2. multi-release jar 里 META-INF/versions/21 下有直接调用API的版本
+ *
+ * @author wangzihao
+ */
+public class VirtualThreads {
+    private static final MethodHandle NEW_THREAD_PER_TASK_EXECUTOR;
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle BUILDER_NAME;
+    private static final MethodHandle BUILDER_FACTORY;
+
+    static {
+        MethodHandle newThreadPerTaskExecutor = null;
+        MethodHandle ofVirtual = null;
+        MethodHandle builderName = null;
+        MethodHandle builderFactory = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            newThreadPerTaskExecutor = lookup.findStatic(java.util.concurrent.Executors.class, "newThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+            builderName = lookup.findVirtual(builderClass, "name", MethodType.methodType(builderClass, String.class, long.class));
+            builderFactory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // java21以下
+            newThreadPerTaskExecutor = null;
+        }
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    public static boolean isSupported() {
+        return NEW_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @param namePrefix 线程名称前缀
+     * @return 每个任务一个虚拟线程
+     * @throws UnsupportedOperationException java21以下
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("virtual thread requires java21+. java.version=" + System.getProperty("java.version"));
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke();
+            builder = BUILDER_NAME.invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(factory);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
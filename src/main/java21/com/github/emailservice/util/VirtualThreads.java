@@ -0,0 +1,25 @@
+package com.github.emailservice.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程 (java21+)
+ * multi-release jar 里 META-INF/versions/21 的版本, 直接调用API
+ *
+ * @author wangzihao
+ */
+public class VirtualThreads {
+
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * @param namePrefix 线程名称前缀
+     * @return 每个任务一个虚拟线程
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0L).factory());
+    }
+}
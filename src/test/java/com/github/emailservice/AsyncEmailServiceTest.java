@@ -0,0 +1,148 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.mail.MailProperties;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.*;
+
+/**
+ * 异步邮箱服务测试, 取消和超时要关闭正在等待服务器的socket
+ */
+class AsyncEmailServiceTest {
+    private NoDelayGreenMail greenMail;
+    private ExecutorService executor;
+    private SilentServer silentServer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        greenMail = new NoDelayGreenMail();
+        greenMail.start();
+        // 只有一个工作线程, 卡在网络读取上时后面的任务都不能执行
+        executor = Executors.newSingleThreadExecutor();
+        silentServer = new SilentServer();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        executor.shutdownNow();
+        silentServer.close();
+        greenMail.stop();
+    }
+
+    @Test
+    void sendHtmlMail() throws Exception {
+        AsyncEmailService asyncEmailService = new AsyncEmailService(newEmailService(greenMail.getPort(ServerSetup.PROTOCOL_SMTP)), executor);
+        Assertions.assertTrue(asyncEmailService.sendHtmlMail("to@localhost", "异步", "<p>异步</p>", 10, TimeUnit.SECONDS).get());
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+    }
+
+    @Test
+    void sendFailure() throws Exception {
+        int closedPort = greenMail.getPort(ServerSetup.PROTOCOL_SMTP);
+        greenMail.stop();
+        AsyncEmailService asyncEmailService = new AsyncEmailService(newEmailService(closedPort), executor);
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class,
+                () -> asyncEmailService.sendHtmlMail("to@localhost", "异步", "<p>异步</p>", 10, TimeUnit.SECONDS).get());
+        Assertions.assertTrue(e.getCause() instanceof MailSendException, e.toString());
+        greenMail.start();
+    }
+
+    @Test
+    void cancel() throws Exception {
+        AsyncEmailService asyncEmailService = new AsyncEmailService(new EmailService(), executor);
+        EmailService.Account account = new EmailService.Account();
+        account.setHost("127.0.0.1");
+        account.setPort(silentServer.getPort());
+        account.setUsername("user");
+        account.setPassword("password");
+        CompletableFuture<EmailService.EmailList<EmailService.EmailMessage>> future = asyncEmailService.selectEmailList(account, null, true, 0, TimeUnit.SECONDS);
+        // 客户端已连上, 在等服务器的欢迎语
+        Socket socket = silentServer.accept();
+        Assertions.assertTrue(future.cancel(true));
+        Assertions.assertTrue(future.isCancelled());
+        assertClosedByClient(socket);
+        assertExecutorIdle();
+    }
+
+    @Test
+    void timeout() throws Exception {
+        AsyncEmailService asyncEmailService = new AsyncEmailService(newEmailService(silentServer.getPort()), executor);
+        CompletableFuture<Boolean> future = asyncEmailService.sendHtmlMail("to@localhost", "异步", "<p>异步</p>", 200, TimeUnit.MILLISECONDS);
+        Socket socket = silentServer.accept();
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof TimeoutException, e.toString());
+        assertClosedByClient(socket);
+        assertExecutorIdle();
+    }
+
+    @Test
+    void executorShutdown() {
+        executor.shutdown();
+        AsyncEmailService asyncEmailService = new AsyncEmailService(newEmailService(greenMail.getPort(ServerSetup.PROTOCOL_SMTP)), executor);
+        CompletableFuture<Boolean> future = asyncEmailService.testConnection("127.0.0.1", "user", "password", 1, TimeUnit.SECONDS);
+        Assertions.assertTrue(future.isCompletedExceptionally());
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, future::get);
+        Assertions.assertTrue(e.getCause() instanceof RejectedExecutionException, e.toString());
+    }
+
+    private EmailService newEmailService(int smtpPort) {
+        MailProperties mailProperties = new MailProperties();
+        mailProperties.setUsername("from@localhost");
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("127.0.0.1");
+        mailSender.setPort(smtpPort);
+        return new EmailService(mailProperties, mailSender);
+    }
+
+    /**
+     * 服务器一直没有发数据, 客户端关闭socket后这边读到EOF
+     */
+    private static void assertClosedByClient(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        try (InputStream in = socket.getInputStream()) {
+            Assertions.assertEquals(-1, in.read());
+        }
+    }
+
+    /**
+     * 工作线程没有卡在网络读取上, 可以执行下一个任务
+     */
+    private void assertExecutorIdle() throws Exception {
+        Assertions.assertEquals("idle", executor.submit(() -> "idle").get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 只接受连接, 不发送任何数据, 客户端会一直等服务器的欢迎语
+     */
+    private static class SilentServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        private SilentServer() throws IOException {
+            serverSocket.setSoTimeout(5000);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        Socket accept() throws IOException {
+            return serverSocket.accept();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * 附件缓存测试, 登记后发送
+ */
+class AttachmentRegistryTest {
+
+    @Test
+    void registerAndSend() throws Exception {
+        File dir = Files.createTempDirectory("attachment").toFile();
+        byte[] pdf = new byte[100_000];
+        for (int i = 0; i < pdf.length; i++) {
+            pdf[i] = (byte) (i * 31);
+        }
+        AttachmentRegistry registry = new AttachmentRegistry(dir);
+        AttachmentRegistry.EncodedAttachment attachment = registry.register("terms.pdf", pdf);
+        Assertions.assertSame(attachment, registry.register("terms-copy.pdf", pdf.clone()));
+        Assertions.assertEquals(1, registry.size());
+        Assertions.assertEquals(1, dir.listFiles().length);
+        Assertions.assertEquals(pdf.length, attachment.getSize());
+        Assertions.assertEquals("application/pdf", attachment.getContentType());
+
+        EmailService.Sender sender = new EmailService().newSender("smtp", "UTF-8", 25, "localhost", "from@localhost", "");
+        EmailService.MimeMessage message = sender.newMessage();
+        message.setTo("to@localhost");
+        message.setSubject("subject");
+        message.setText("<p>hello</p>", true);
+        message.addAttachment("条款.pdf", attachment);
+        message.getMimeMessage().saveChanges();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.getMimeMessage().writeTo(out);
+        MimeMessage parsed = new MimeMessage(sender.getSession(), new ByteArrayInputStream(out.toByteArray()));
+        Multipart multipart = (Multipart) parsed.getContent();
+        Part part = multipart.getBodyPart(multipart.getCount() - 1);
+        Assertions.assertEquals("条款.pdf", javax.mail.internet.MimeUtility.decodeText(part.getFileName()));
+        Assertions.assertTrue(part.getContentType().startsWith("application/pdf"));
+        try (InputStream in = part.getInputStream()) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                data.write(buffer, 0, n);
+            }
+            Assertions.assertArrayEquals(pdf, data.toByteArray());
+        }
+    }
+}
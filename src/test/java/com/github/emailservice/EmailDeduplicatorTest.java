@@ -0,0 +1,128 @@
+package com.github.emailservice;
+
+import com.github.emailservice.util.LongHashSet;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * 邮件去重测试, 一次查询内和跨查询
+ */
+class EmailDeduplicatorTest {
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    @Test
+    void batch() throws Exception {
+        EmailDeduplicator deduplicator = new EmailDeduplicator();
+        EmailDeduplicator.Batch batch = deduplicator.newBatch("a@qq.com");
+        Assertions.assertTrue(batch.add(message("<1@qq.com>", "周报")));
+        Assertions.assertTrue(batch.add(message("<2@qq.com>", "周报")));
+        // 另一个文件夹里的同一封
+        Assertions.assertFalse(batch.add(message("<1@qq.com>", "周报")));
+        // 没有Message-ID, 按信封
+        Assertions.assertTrue(batch.add(message(null, "发票")));
+        Assertions.assertFalse(batch.add(message(null, "发票")));
+        Assertions.assertTrue(batch.add(message(null, "发票2")));
+        Assertions.assertEquals(2, batch.getDuplicateCount());
+        batch.commit();
+
+        // 不跨查询
+        Assertions.assertFalse(deduplicator.isCrossPoll());
+        Assertions.assertTrue(deduplicator.newBatch("a@qq.com").add(message("<1@qq.com>", "周报")));
+    }
+
+    @Test
+    void crossPoll() throws Exception {
+        EmailDeduplicator deduplicator = new EmailDeduplicator(1000, 0.001);
+        EmailDeduplicator.Batch batch = deduplicator.newBatch("a@qq.com");
+        Assertions.assertTrue(batch.add(message("<1@qq.com>", "周报")));
+        // 没提交的(查询失败), 下次还能查到
+        Assertions.assertTrue(deduplicator.newBatch("a@qq.com").add(message("<1@qq.com>", "周报")));
+        batch.commit();
+        Assertions.assertFalse(deduplicator.newBatch("a@qq.com").add(message("<1@qq.com>", "周报")));
+        // 不同账号分开记
+        Assertions.assertTrue(deduplicator.newBatch("b@qq.com").add(message("<1@qq.com>", "周报")));
+
+        // 换代后上一代还在, 误判率接近配置
+        for (int round = 0; round < 3; round++) {
+            batch = deduplicator.newBatch("a@qq.com");
+            for (int i = 0; i < 1000; i++) {
+                batch.add(message("<" + round + "-" + i + "@qq.com>", "x"));
+            }
+            batch.commit();
+        }
+        Assertions.assertFalse(deduplicator.newBatch("a@qq.com").add(message("<2-5@qq.com>", "x")));
+        int falsePositive = 0;
+        EmailDeduplicator.Batch other = deduplicator.newBatch("a@qq.com");
+        for (int i = 0; i < 10000; i++) {
+            if (!other.add(message("<new-" + i + "@qq.com>", "x"))) {
+                falsePositive++;
+            }
+        }
+        Assertions.assertTrue(falsePositive < 50, "falsePositive=" + falsePositive);
+
+        deduplicator.clear();
+        Assertions.assertTrue(deduplicator.newBatch("a@qq.com").add(message("<2-5@qq.com>", "x")));
+    }
+
+    @Test
+    void commitOnlyNewKeys() throws Exception {
+        EmailDeduplicator deduplicator = new EmailDeduplicator(1000, 0.001);
+        commit(deduplicator, "a", 600);
+        // 又查到了以前返回过的, 提交时不能再放进布隆过滤器, 不然会提前换代把它们忘掉
+        EmailDeduplicator.Batch batch = deduplicator.newBatch("a@qq.com");
+        for (int i = 0; i < 600; i++) {
+            Assertions.assertFalse(batch.add(message("<a-" + i + "@qq.com>", "x")));
+        }
+        batch.commit();
+        commit(deduplicator, "b", 600);
+        commit(deduplicator, "c", 600);
+        // 一共1800封, 只换过一代, a还在上一代里
+        Assertions.assertFalse(deduplicator.newBatch("a@qq.com").add(message("<a-0@qq.com>", "x")));
+        Assertions.assertFalse(deduplicator.newBatch("a@qq.com").add(message("<a-599@qq.com>", "x")));
+    }
+
+    @Test
+    void longHashSet() {
+        LongHashSet set = new LongHashSet(2);
+        for (long i = 1; i <= 10000; i++) {
+            Assertions.assertTrue(set.add(i * 31));
+        }
+        Assertions.assertFalse(set.add(31));
+        Assertions.assertEquals(10000, set.size());
+        Assertions.assertTrue(set.contains(310000));
+        Assertions.assertFalse(set.contains(32));
+        long[] sum = new long[1];
+        set.forEach(e -> sum[0] += e);
+        Assertions.assertEquals(31L * 10000 * 10001 / 2, sum[0]);
+        set.clear();
+        Assertions.assertTrue(set.isEmpty());
+        Assertions.assertFalse(set.contains(31));
+    }
+
+    private static void commit(EmailDeduplicator deduplicator, String prefix, int count) throws Exception {
+        EmailDeduplicator.Batch batch = deduplicator.newBatch("a@qq.com");
+        for (int i = 0; i < count; i++) {
+            Assertions.assertTrue(batch.add(message("<" + prefix + "-" + i + "@qq.com>", "x")));
+        }
+        batch.commit();
+    }
+
+    private static MimeMessage message(String messageId, String subject) throws Exception {
+        MimeMessage message = new MimeMessage(SESSION);
+        message.setFrom(new InternetAddress("zhangsan@qq.com"));
+        message.setRecipient(MimeMessage.RecipientType.TO, new InternetAddress("a@qq.com"));
+        message.setSubject(subject, "UTF-8");
+        message.setSentDate(new Date(1_600_000_000_000L));
+        message.setText("x");
+        if (messageId != null) {
+            message.setHeader("Message-ID", messageId);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,167 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 线程池测试, 并发数限制,关闭和拒绝
+ * 虚拟线程和平台线程池的耗时对比在 benchmarks 模块的 EmailExecutorsBenchmark
+ */
+class EmailExecutorsTest {
+
+    @Test
+    void limitConcurrency() throws InterruptedException {
+        ExecutorService delegate = Executors.newCachedThreadPool();
+        EmailExecutors.LimitedExecutor executor = new EmailExecutors.LimitedExecutor(delegate, 3);
+        int taskCount = 50;
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            executor.execute(() -> {
+                int current = running.incrementAndGet();
+                maxRunning.accumulateAndGet(current, Math::max);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        // 提交不阻塞, 超过并发数的排队
+        Assertions.assertTrue(executor.getRunning() <= 3);
+        Assertions.assertTrue(done.await(10, TimeUnit.SECONDS));
+        Assertions.assertTrue(maxRunning.get() <= 3, "maxRunning=" + maxRunning);
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(delegate.isShutdown());
+    }
+
+    @Test
+    void shutdownRunsQueuedTasks() throws InterruptedException {
+        EmailExecutors.LimitedExecutor executor = new EmailExecutors.LimitedExecutor(Executors.newCachedThreadPool(), 1);
+        CountDownLatch block = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+        executor.execute(() -> {
+            try {
+                block.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completed.incrementAndGet();
+        });
+        executor.execute(completed::incrementAndGet);
+        executor.execute(completed::incrementAndGet);
+        Assertions.assertEquals(2, executor.getQueueSize());
+
+        executor.shutdown();
+        Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(completed::incrementAndGet));
+        Assertions.assertFalse(executor.isTerminated());
+        block.countDown();
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(3, completed.get());
+    }
+
+    @Test
+    void shutdownRace() throws Exception {
+        ExecutorService submitter = Executors.newSingleThreadExecutor();
+        try {
+            for (int i = 0; i < 500; i++) {
+                EmailExecutors.LimitedExecutor executor = new EmailExecutors.LimitedExecutor(Executors.newCachedThreadPool(), 2);
+                AtomicInteger ran = new AtomicInteger();
+                CountDownLatch start = new CountDownLatch(1);
+                Future<Boolean> accepted = submitter.submit(() -> {
+                    start.await();
+                    try {
+                        executor.execute(ran::incrementAndGet);
+                        return true;
+                    } catch (RejectedExecutionException e) {
+                        return false;
+                    }
+                });
+                start.countDown();
+                executor.shutdown();
+                // 和shutdown同时提交的任务, 要么执行, 要么被拒绝, 不能悄悄丢掉
+                boolean result = accepted.get(5, TimeUnit.SECONDS);
+                Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+                Assertions.assertEquals(result ? 1 : 0, ran.get(), "round " + i);
+                Assertions.assertEquals(0, executor.getQueueSize());
+            }
+        } finally {
+            submitter.shutdownNow();
+        }
+    }
+
+    @Test
+    void delegateRejects() throws Exception {
+        // 只有一个线程, 没有队列: 任务完成时在这个线程里提交下一个会被拒绝
+        ThreadPoolExecutor delegate = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new SynchronousQueue<>());
+        EmailExecutors.LimitedExecutor executor = new EmailExecutors.LimitedExecutor(delegate, 1);
+        CountDownLatch block = new CountDownLatch(1);
+        CountDownLatch firstDone = new CountDownLatch(1);
+        CountDownLatch secondDone = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                block.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            firstDone.countDown();
+        });
+        executor.execute(secondDone::countDown);
+        Assertions.assertEquals(1, executor.getQueueSize());
+        block.countDown();
+        Assertions.assertTrue(firstDone.await(5, TimeUnit.SECONDS));
+        // 被拒绝的任务放回队列, 没有丢掉
+        long deadline = System.currentTimeMillis() + 5_000L;
+        while (executor.getRunning() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assertions.assertEquals(1, executor.getQueueSize());
+        Assertions.assertEquals(1, secondDone.getCount());
+
+        // 下一次提交时再试
+        CountDownLatch thirdDone = new CountDownLatch(1);
+        executor.execute(thirdDone::countDown);
+        Assertions.assertTrue(secondDone.await(5, TimeUnit.SECONDS));
+
+        // 提交线程自己的任务被拒绝时抛异常, 不留在队列里
+        EmailExecutors.LimitedExecutor wide = new EmailExecutors.LimitedExecutor(delegate, 2);
+        CountDownLatch hold = new CountDownLatch(1);
+        while (true) {
+            try {
+                wide.execute(() -> {
+                    try {
+                        hold.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+                break;
+            } catch (RejectedExecutionException e) {
+                Thread.sleep(1);
+            }
+        }
+        Assertions.assertThrows(RejectedExecutionException.class, () -> wide.execute(() -> {
+        }));
+        Assertions.assertEquals(0, wide.getQueueSize());
+        hold.countDown();
+        delegate.shutdownNow();
+    }
+
+        @Test
+    void newExecutor() throws Exception {
+        for (EmailExecutors.Mode mode : EmailExecutors.Mode.values()) {
+            ExecutorService executor = EmailExecutors.newExecutor(mode, 2);
+            Assertions.assertEquals("ok", executor.submit(() -> "ok").get(5, TimeUnit.SECONDS));
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 全文索引测试, 分词,查询,后台写盘和合并
+ */
+class EmailFullTextIndexTest {
+
+    @Test
+    void tokenize() {
+        List<String> list = new ArrayList<>();
+        EmailFullTextIndex.tokenize("增值税发票 Invoice-2024 a.b@QQ.com 票", list::add);
+        Assertions.assertEquals(Arrays.asList("增值", "值税", "税发", "发票", "invoice", "2024", "a", "b", "qq", "com", "票"), list);
+    }
+
+    @Test
+    void searchFlushMerge() throws Exception {
+        File dir = Files.createTempDirectory("fulltext").toFile();
+        EmailFullTextIndex index = new EmailFullTextIndex(dir);
+        index.setFlushDocCount(10);
+        index.setMaxSegmentCount(3);
+        index.setMergeFactor(2);
+        for (int i = 0; i < 100; i++) {
+            String subject = i % 10 == 0 ? "增值税电子普通发票" + i : "周报" + i;
+            Assertions.assertTrue(index.add("a@qq.com", i % 2 == 0 ? "INBOX" : "其他", 1L, i, subject, "财务 <finance@qq.com>", "金额 " + i * 100 + " 元"));
+        }
+        Assertions.assertFalse(index.add("a@qq.com", "INBOX", 1L, 0, "重复", null, null));
+        index.add("b@qq.com", "INBOX", 1L, 1, "发票", null, "另一个账号");
+        // 写盘和合并在后台, flush等它们完成
+        index.flush();
+        Assertions.assertTrue(index.getSegmentCount() <= 3);
+
+        // 中文子串
+        Assertions.assertEquals(expected(0, 10, 20, 30, 40, 50, 60, 70, 80, 90), hitUids(index.search("a@qq.com", "电子普通", 100)));
+        Assertions.assertEquals(expected(0, 10, 20, 30, 40, 50, 60, 70, 80, 90), hitUids(index.search("a@qq.com", "发票", 100)));
+        Assertions.assertEquals(11, index.search("发票", 100).size());
+        Assertions.assertEquals(expected(30), hitUids(index.search("FINANCE 3000 发票", 100)));
+        Assertions.assertEquals(0, index.search("不存在", 100).size());
+        Assertions.assertEquals(5, index.search("周报", 5).size());
+        Assertions.assertEquals(new EmailFullTextIndex.Hit("a@qq.com", "其他", 1L, 31L), index.search("3100", 1).get(0));
+        index.close();
+
+        // 重新打开, 段文件都还在
+        index = new EmailFullTextIndex(dir);
+        Assertions.assertEquals(101, index.size());
+        Assertions.assertEquals(expected(0, 10, 20, 30, 40, 50, 60, 70, 80, 90), hitUids(index.search("a@qq.com", "普通发票", 100)));
+        Assertions.assertTrue(index.contains("b@qq.com", "INBOX", 1L, 1));
+        index.close();
+    }
+
+    @Test
+    void backgroundFlush() throws Exception {
+        File dir = Files.createTempDirectory("fulltext").toFile();
+        EmailFullTextIndex index = new EmailFullTextIndex(dir);
+        // 后台任务手动执行, 加入邮件的线程不写盘
+        Deque<Runnable> tasks = new ArrayDeque<>();
+        index.setFlushExecutor(tasks::add);
+        index.setFlushDocCount(5);
+        index.setMaxSegmentCount(1);
+        for (int i = 0; i < 12; i++) {
+            Assertions.assertTrue(index.add("a@qq.com", "INBOX", 1L, i, "发票" + i, null, null));
+        }
+        Assertions.assertEquals(0, index.getSegmentCount());
+        Assertions.assertFalse(tasks.isEmpty());
+        // 写盘之前也能查到
+        Assertions.assertEquals(12, index.search("发票", 100).size());
+        Assertions.assertFalse(index.add("a@qq.com", "INBOX", 1L, 3, "重复", null, null));
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        // 两个段写完后合并成一个, 内存里还剩2封
+        Assertions.assertEquals(1, index.getSegmentCount());
+        Assertions.assertEquals(12, index.search("发票", 100).size());
+        Assertions.assertEquals(expected(7), hitUids(index.search("发票7", 100)));
+
+        index.setFlushExecutor(Runnable::run);
+        index.close();
+        index = new EmailFullTextIndex(dir);
+        Assertions.assertEquals(12, index.size());
+        Assertions.assertEquals(12, index.search("发票", 100).size());
+        index.close();
+    }
+
+    @Test
+    void uidValidityReset() throws Exception {
+        File dir = Files.createTempDirectory("fulltext").toFile();
+        EmailFullTextIndex index = new EmailFullTextIndex(dir);
+        index.setFlushExecutor(Runnable::run);
+        index.setFlushDocCount(2);
+        index.setMaxSegmentCount(1);
+        for (int i = 1; i <= 4; i++) {
+            Assertions.assertTrue(index.add("a@qq.com", "INBOX", 100L, i, "发票" + i, null, null));
+        }
+        index.add("a@qq.com", "其他", 100L, 1, "发票", null, null);
+        index.flush();
+        Assertions.assertEquals(5, index.search("发票", 100).size());
+
+        // 服务器重置了UID, 同一个UID是新邮件
+        Assertions.assertTrue(index.add("a@qq.com", "INBOX", 200L, 1, "合同1", null, null));
+        Assertions.assertFalse(index.add("a@qq.com", "INBOX", 100L, 2, "旧的", null, null));
+        Assertions.assertEquals(2, index.size());
+        Assertions.assertEquals(Arrays.asList(new EmailFullTextIndex.Hit("a@qq.com", "其他", 100L, 1L)), index.search("发票", 100));
+        Assertions.assertEquals(Arrays.asList(new EmailFullTextIndex.Hit("a@qq.com", "INBOX", 200L, 1L)), index.search("合同", 100));
+
+        // 只知道UIDVALIDITY变了, 还没有新邮件
+        index.updateUidValidity("a@qq.com", "其他", 300L);
+        Assertions.assertEquals(0, index.search("发票", 100).size());
+        Assertions.assertTrue(index.add("a@qq.com", "其他", 300L, 1, "周报", null, null));
+        index.flush();
+        Assertions.assertEquals(1, index.getSegmentCount());
+        index.close();
+
+        // 旧的邮件合并时删除了
+        index = new EmailFullTextIndex(dir);
+        Assertions.assertEquals(2, index.size());
+        Assertions.assertEquals(0, index.search("发票", 100).size());
+        Assertions.assertTrue(index.contains("a@qq.com", "其他", 300L, 1));
+        Assertions.assertFalse(index.contains("a@qq.com", "INBOX", 100L, 1));
+        index.close();
+    }
+
+    private static Set<Long> expected(long... uids) {
+        Set<Long> set = new HashSet<>();
+        for (long uid : uids) {
+            set.add(uid);
+        }
+        return set;
+    }
+
+    private static Set<Long> hitUids(List<EmailFullTextIndex.Hit> hits) {
+        Set<Long> set = new HashSet<>();
+        for (EmailFullTextIndex.Hit hit : hits) {
+            set.add(hit.getUid());
+        }
+        return set;
+    }
+}
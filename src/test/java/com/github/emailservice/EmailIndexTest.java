@@ -0,0 +1,89 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 列式索引测试
+ */
+class EmailIndexTest {
+
+    @Test
+    void sortAndFilter() {
+        EmailIndex index = new EmailIndex();
+        index.add("INBOX", 3L, 3000L, 30, EmailIndex.FLAG_SEEN, "a@qq.com");
+        index.add("INBOX", 1L, 1000L, 10, 0, "b@qq.com");
+        index.add("其他", 2L, 2000L, 20, EmailIndex.FLAG_SEEN | EmailIndex.FLAG_FLAGGED, new String("a@qq.com"));
+        index.add(new String("INBOX"), 4L, 2000L, 40, 0, "c@qq.com");
+
+        int[] rows = index.sortByReceivedDate(index.rows(), true);
+        Assertions.assertArrayEquals(new int[]{0, 2, 3, 1}, rows);
+
+        rows = index.sortByUid(index.rows(), false);
+        Assertions.assertArrayEquals(new int[]{1, 2, 0, 3}, rows);
+
+        int[] unread = index.filterFlag(index.rows(), EmailIndex.FLAG_SEEN, false);
+        Assertions.assertArrayEquals(new int[]{1, 3}, unread);
+
+        int[] range = index.filterReceivedDate(index.rows(), 1500L, 2500L);
+        Assertions.assertArrayEquals(new int[]{2, 3}, range);
+
+        // 发件人, 文件夹去重
+        Assertions.assertSame(index.getSender(0), index.getSender(2));
+        Assertions.assertSame(index.getFolderName(0), index.getFolderName(3));
+    }
+
+    @Test
+    void getEmailList() throws Exception {
+        NoDelayGreenMail greenMail = new NoDelayGreenMail();
+        greenMail.start();
+        try {
+            MailboxGenerator generator = new MailboxGenerator();
+            generator.setFolderCount(2);
+            generator.setMessagesPerFolder(5);
+            generator.setMaxAttachments(0);
+            generator.setMaxNestingDepth(0);
+            generator.populate(greenMail, greenMail.setUser("index@localhost", "index@localhost", "password"));
+
+            Map<EmailMetrics.Operation, AtomicInteger> counts = new ConcurrentHashMap<>();
+            EmailService emailService = new EmailService();
+            emailService.setMetrics(new EmailMetrics() {
+                @Override
+                public void record(Operation operation, String host, long nanos, boolean success) {
+                    counts.computeIfAbsent(operation, k -> new AtomicInteger()).incrementAndGet();
+                }
+            });
+            EmailService.Account account = new EmailService.Account();
+            account.setHost("127.0.0.1");
+            account.setPort(greenMail.getPort(ServerSetup.PROTOCOL_IMAP));
+            account.setUsername("index@localhost");
+            account.setPassword("password");
+            try (EmailIndex index = emailService.selectEmailIndex(account, null)) {
+                Assertions.assertEquals(10, index.size());
+                int[] rows = index.sortByReceivedDate(index.rows(), true);
+                counts.clear();
+                try (EmailService.EmailList<EmailService.EmailMessage> list = index.getEmailList(rows)) {
+                    // 每个文件夹一次 UID FETCH
+                    Assertions.assertEquals(2, counts.get(EmailMetrics.Operation.FETCH).get());
+                    Assertions.assertEquals(rows.length, list.size());
+                    for (int i = 0; i < rows.length; i++) {
+                        EmailService.EmailMessage message = list.get(i);
+                        Assertions.assertEquals(index.getUid(rows[i]), message.getUid());
+                        Assertions.assertEquals(index.getFolderName(rows[i]), message.getFolderName());
+                        Assertions.assertEquals("index@localhost", message.getUsername());
+                    }
+                    // 物化的邮件和selectEmailList一样记录监控指标
+                    list.get(0).getContent();
+                    Assertions.assertNotNull(counts.get(EmailMetrics.Operation.PART_READ));
+                }
+            }
+        } finally {
+            greenMail.stop();
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.sun.mail.iap.ParsingException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.Status;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.URLName;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * 邮件元数据存储测试, 日志回放,压缩和IMAP同步
+ */
+class EmailMetadataStoreTest {
+
+    @Test
+    void putRemoveReplay() throws Exception {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        EmailMetadataStore store = new EmailMetadataStore(dir);
+        store.putFolderState(new EmailMetadataStore.FolderState("a@qq.com", "INBOX", 100L, 11L, 0L, 1L));
+        for (int uid = 10; uid >= 1; uid--) {
+            store.put(metadata("INBOX", 100L, uid));
+        }
+        EmailMetadata seen = store.get("a@qq.com", "INBOX", 3L);
+        seen.setFlagBits(EmailIndex.FLAG_SEEN);
+        store.put(seen);
+        Assertions.assertTrue(store.remove("a@qq.com", "INBOX", 5L));
+        Assertions.assertFalse(store.remove("a@qq.com", "INBOX", 5L));
+        store.put(metadata("其他", 7L, 1L));
+        store.flush();
+
+        Assertions.assertArrayEquals(new long[]{1, 2, 3, 4, 6, 7, 8, 9, 10}, store.uids("a@qq.com", "INBOX"));
+        List<EmailMetadata> list = store.list("a@qq.com", null, null);
+        Assertions.assertEquals(10, list.size());
+        // 收件时间倒序
+        Assertions.assertEquals(10L, list.get(0).getUid());
+        Assertions.assertEquals("INBOX", list.get(0).getFolderName());
+        List<EmailMetadata> seenList = store.list("a@qq.com", Arrays.asList("INBOX"), e -> e.hasFlag(EmailIndex.FLAG_SEEN));
+        Assertions.assertEquals(1, seenList.size());
+        Assertions.assertEquals(3L, seenList.get(0).getUid());
+        store.close();
+
+        // 末尾写了一半的记录
+        File logFile = new File(dir, "metadata.log");
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.seek(file.length());
+            file.write(new byte[]{0, 0, 1, 0, 2, 9});
+        }
+        store = new EmailMetadataStore(dir);
+        Assertions.assertArrayEquals(new long[]{1, 2, 3, 4, 6, 7, 8, 9, 10}, store.uids("a@qq.com", "INBOX"));
+        EmailMetadata metadata = store.get("a@qq.com", "INBOX", 3L);
+        Assertions.assertTrue(metadata.hasFlag(EmailIndex.FLAG_SEEN));
+        Assertions.assertEquals("主题3", metadata.getSubject());
+        Assertions.assertEquals("张三 <zhangsan@qq.com>", metadata.getFrom()[0]);
+        Assertions.assertEquals("zhangsan@qq.com", metadata.getFromEmail());
+        Assertions.assertNull(metadata.getInReplyTo());
+        EmailMetadataStore.FolderState state = store.getFolderState("a@qq.com", "INBOX");
+        Assertions.assertEquals(11L, state.getUidNext());
+        Assertions.assertEquals(9, state.getSize());
+
+        // UIDVALIDITY变了, 清空文件夹
+        store.putFolderState(new EmailMetadataStore.FolderState("a@qq.com", "INBOX", 101L, 1L, 0L, 2L));
+        Assertions.assertEquals(0, store.size("a@qq.com", "INBOX"));
+        Assertions.assertEquals(1, store.size("a@qq.com", "其他"));
+        store.close();
+    }
+
+    @Test
+    void compact() throws Exception {
+        File dir = Files.createTempDirectory("metadata").toFile();
+        EmailMetadataStore store = new EmailMetadataStore(dir);
+        store.setCompactThresholdBytes(1024);
+        for (int round = 0; round < 20; round++) {
+            for (int uid = 1; uid <= 10; uid++) {
+                EmailMetadata metadata = metadata("INBOX", 1L, uid);
+                metadata.setFlagBits(round);
+                store.put(metadata);
+            }
+            store.flush();
+        }
+        File logFile = new File(dir, "metadata.log");
+        long size = logFile.length();
+        Assertions.assertTrue(size < 20 * 1024, "size=" + size);
+        Assertions.assertEquals(19, store.get("a@qq.com", "INBOX", 10L).getFlagBits());
+        store.close();
+
+        store = new EmailMetadataStore(dir);
+        Assertions.assertEquals(10, store.size("a@qq.com", "INBOX"));
+        Assertions.assertEquals(19, store.get("a@qq.com", "INBOX", 1L).getFlagBits());
+        store.close();
+    }
+
+    @Test
+    void sync() throws Exception {
+        NoDelayGreenMail greenMail = new NoDelayGreenMail();
+        greenMail.start();
+        EmailMetadataStore store = new EmailMetadataStore(Files.createTempDirectory("metadata").toFile());
+        store.setFlagRefreshMillis(60_000L);
+        try {
+            GreenMailUser user = greenMail.setUser("sync@localhost", "sync@localhost", "password");
+            Session session = Session.getInstance(new Properties());
+            for (int i = 1; i <= 3; i++) {
+                deliver(user, session, i);
+            }
+            Store imapStore = session.getStore("imap");
+            imapStore.connect("127.0.0.1", greenMail.getPort(ServerSetup.PROTOCOL_IMAP), "sync@localhost", "password");
+            try {
+                Folder inbox = imapStore.getFolder("INBOX");
+                Assertions.assertTrue(store.sync(inbox, "sync@localhost"));
+                Assertions.assertFalse(inbox.isOpen());
+                Assertions.assertEquals(3, store.size("sync@localhost", "INBOX"));
+                long[] uids = store.uids("sync@localhost", "INBOX");
+                Assertions.assertEquals("邮件1", store.get("sync@localhost", "INBOX", uids[0]).getSubject());
+                EmailMetadataStore.FolderState state = store.getFolderState("sync@localhost", "INBOX");
+                Assertions.assertEquals(uids[2] + 1, state.getUidNext());
+
+                // STATUS没变, 不打开文件夹
+                Assertions.assertFalse(store.sync(inbox, "sync@localhost"));
+
+                // 新邮件
+                deliver(user, session, 4);
+                deliver(user, session, 5);
+                Assertions.assertTrue(store.sync(inbox, "sync@localhost"));
+                Assertions.assertEquals(5, store.size("sync@localhost", "INBOX"));
+
+                // 服务器上删除了一封, 改了一封的标记
+                Folder other = imapStore.getFolder("INBOX");
+                other.open(Folder.READ_WRITE);
+                other.getMessage(2).setFlag(Flags.Flag.DELETED, true);
+                other.getMessage(4).setFlag(Flags.Flag.SEEN, true);
+                other.close(true);
+                uids = store.uids("sync@localhost", "INBOX");
+                Assertions.assertTrue(store.sync(inbox, "sync@localhost"));
+                Assertions.assertArrayEquals(new long[]{uids[0], uids[2], uids[3], uids[4]}, store.uids("sync@localhost", "INBOX"));
+                Assertions.assertTrue(store.get("sync@localhost", "INBOX", uids[3]).hasFlag(EmailIndex.FLAG_SEEN));
+                Assertions.assertFalse(store.get("sync@localhost", "INBOX", uids[4]).hasFlag(EmailIndex.FLAG_SEEN));
+                Assertions.assertEquals(4, store.getFolderState("sync@localhost", "INBOX").getSize());
+
+                // 不支持CONDSTORE, 只改标记时STATUS看不出来, 超过刷新时间才重新取
+                other.open(Folder.READ_WRITE);
+                other.getMessage(1).setFlag(Flags.Flag.FLAGGED, true);
+                other.close(false);
+                Assertions.assertFalse(store.sync(inbox, "sync@localhost"));
+                store.setFlagRefreshMillis(0L);
+                Assertions.assertTrue(store.sync(inbox, "sync@localhost"));
+                Assertions.assertTrue(store.get("sync@localhost", "INBOX", uids[0]).hasFlag(EmailIndex.FLAG_FLAGGED));
+            } finally {
+                imapStore.close();
+            }
+        } finally {
+            store.close();
+            greenMail.stop();
+        }
+    }
+
+    @Test
+    void syncAfterFailedFirstSync() throws Exception {
+        EmailMetadataStore store = new EmailMetadataStore(Files.createTempDirectory("metadata").toFile());
+        FakeImapFolder folder = new FakeImapFolder(false);
+        for (int uid = 1; uid <= 3; uid++) {
+            folder.add(uid);
+        }
+        // 第一次同步取邮件时断开, 只留下了 uidNext=0 的状态
+        folder.failFetch = true;
+        Assertions.assertThrows(MessagingException.class, () -> store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(0L, store.getFolderState("a@qq.com", "INBOX").getUidNext());
+        Assertions.assertFalse(folder.isOpen());
+
+        // 从UID 1开始取, 不能发 UID FETCH 0:*
+        folder.failFetch = false;
+        Assertions.assertTrue(store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(Arrays.asList(1L), folder.fetchFromUids);
+        Assertions.assertArrayEquals(new long[]{1, 2, 3}, store.uids("a@qq.com", "INBOX"));
+        Assertions.assertEquals(4L, store.getFolderState("a@qq.com", "INBOX").getUidNext());
+
+        // 只put过的文件夹也一样
+        EmailMetadataStore putStore = new EmailMetadataStore(Files.createTempDirectory("metadata").toFile());
+        EmailMetadata metadata = metadata("INBOX", folder.uidValidity, 2L);
+        putStore.put(metadata);
+        folder.fetchFromUids.clear();
+        Assertions.assertTrue(putStore.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(Arrays.asList(1L), folder.fetchFromUids);
+        Assertions.assertArrayEquals(new long[]{1, 2, 3}, putStore.uids("a@qq.com", "INBOX"));
+        putStore.close();
+        store.close();
+    }
+
+    @Test
+    void syncChangedSince() throws Exception {
+        EmailMetadataStore store = new EmailMetadataStore(Files.createTempDirectory("metadata").toFile());
+        FakeImapFolder folder = new FakeImapFolder(true);
+        for (int uid = 1; uid <= 5; uid++) {
+            folder.add(uid);
+        }
+        Assertions.assertTrue(store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(5, store.size("a@qq.com", "INBOX"));
+        Assertions.assertEquals(5L, store.getFolderState("a@qq.com", "INBOX").getHighestModSeq());
+
+        // HIGHESTMODSEQ没变, 不打开文件夹
+        int openCount = folder.openCount;
+        Assertions.assertFalse(store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(openCount, folder.openCount);
+
+        // 只取改过标记的邮件
+        folder.setFlag(2, Flags.Flag.SEEN);
+        folder.fetchCount = 0;
+        Assertions.assertTrue(store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(Arrays.asList(5L), folder.changedSince);
+        Assertions.assertEquals(1, folder.fetchCount);
+        Assertions.assertTrue(store.get("a@qq.com", "INBOX", 2L).hasFlag(EmailIndex.FLAG_SEEN));
+        Assertions.assertEquals(6L, store.getFolderState("a@qq.com", "INBOX").getHighestModSeq());
+
+        // 删除的邮件: 邮件数和本地不一样时才对一遍UID
+        folder.expunge(4);
+        folder.changedSince.clear();
+        Assertions.assertTrue(store.sync(folder, "a@qq.com"));
+        Assertions.assertEquals(Arrays.asList(6L), folder.changedSince);
+        Assertions.assertArrayEquals(new long[]{1, 2, 3, 5}, store.uids("a@qq.com", "INBOX"));
+        Assertions.assertTrue(store.get("a@qq.com", "INBOX", 2L).hasFlag(EmailIndex.FLAG_SEEN));
+
+        // 新邮件和标记一起变
+        folder.add(6);
+        folder.setFlag(1, Flags.Flag.FLAGGED);
+        Assertions.assertTrue(store.sync(folder, "a@qq.com"));
+        Assertions.assertArrayEquals(new long[]{1, 2, 3, 5, 6}, store.uids("a@qq.com", "INBOX"));
+        Assertions.assertTrue(store.get("a@qq.com", "INBOX", 1L).hasFlag(EmailIndex.FLAG_FLAGGED));
+        Assertions.assertEquals(7L, store.getFolderState("a@qq.com", "INBOX").getUidNext());
+        store.close();
+    }
+
+    private static void deliver(GreenMailUser user, Session session, int index) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom("zhangsan@localhost");
+        message.setRecipients(Message.RecipientType.TO, "sync@localhost");
+        message.setSubject("邮件" + index, "UTF-8");
+        message.setText("内容" + index, "UTF-8");
+        user.deliver(message);
+    }
+
+    private static EmailMetadata metadata(String folderName, long uidValidity, long uid) {
+        EmailMetadata metadata = new EmailMetadata();
+        metadata.setAccount("a@qq.com");
+        metadata.setFolderName(folderName);
+        metadata.setUidValidity(uidValidity);
+        metadata.setUid(uid);
+        metadata.setMessageId("<" + uid + "@qq.com>");
+        metadata.setSubject("主题" + uid);
+        metadata.setFrom(new String[]{"张三 <zhangsan@qq.com>"});
+        metadata.setTo(new String[]{"a@qq.com"});
+        metadata.setReceivedDate(uid * 1000L);
+        metadata.setSize((int) uid * 100);
+        return metadata;
+    }
+
+    /**
+     * 内存里的IMAP文件夹, 可以打开CONDSTORE, 记录取了哪些UID范围
+     */
+    private static class FakeImapFolder extends IMAPFolder {
+        private final boolean condstore;
+        private final long uidValidity = 100L;
+        private final TreeMap<Long, FakeMessage> messageMap = new TreeMap<>();
+        private final List<Long> fetchFromUids = new ArrayList<>();
+        private final List<Long> changedSince = new ArrayList<>();
+        private long uidNext = 1L;
+        private long highestModSeq;
+        private boolean open;
+        private boolean failFetch;
+        private int openCount;
+        private int fetchCount;
+
+        private FakeImapFolder(boolean condstore) throws NoSuchProviderException {
+            super("INBOX", '/', new FakeStore(condstore), false);
+            this.condstore = condstore;
+        }
+
+        void add(long uid) throws MessagingException {
+            FakeMessage message = new FakeMessage(this, uid);
+            message.setSubject("主题" + uid);
+            message.setFrom("zhangsan@qq.com");
+            message.modSeq = ++highestModSeq;
+            messageMap.put(uid, message);
+            uidNext = uid + 1;
+        }
+
+        void setFlag(long uid, Flags.Flag flag) throws MessagingException {
+            FakeMessage message = messageMap.get(uid);
+            message.setFlag(flag, true);
+            message.modSeq = ++highestModSeq;
+        }
+
+        void expunge(long uid) {
+            messageMap.remove(uid);
+            highestModSeq++;
+        }
+
+        @Override
+        public Object doCommand(ProtocolCommand cmd) throws MessagingException {
+            String items = "MESSAGES " + messageMap.size() + " UIDNEXT " + uidNext + " UIDVALIDITY " + uidValidity
+                    + (condstore ? " HIGHESTMODSEQ " + highestModSeq : "");
+            try {
+                return new Status(new Response("* STATUS INBOX (" + items + ")"));
+            } catch (ParsingException e) {
+                throw new MessagingException(e.toString(), e);
+            }
+        }
+
+        @Override
+        public synchronized void open(int mode) {
+            open = true;
+            openCount++;
+        }
+
+        @Override
+        public synchronized void close(boolean expunge) {
+            open = false;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized long getUIDValidity() {
+            return uidValidity;
+        }
+
+        @Override
+        public synchronized int getMessageCount() {
+            return messageMap.size();
+        }
+
+        @Override
+        public synchronized Message[] getMessages() {
+            return messageMap.values().toArray(new Message[0]);
+        }
+
+        @Override
+        public synchronized Message[] getMessagesByUID(long start, long end) throws MessagingException {
+            if (start < 1) {
+                throw new MessagingException("BAD invalid uid " + start);
+            }
+            fetchFromUids.add(start);
+            Collection<FakeMessage> values = messageMap.tailMap(start, true).values();
+            // n:* 至少返回最后一封
+            return values.isEmpty() ? new Message[]{messageMap.lastEntry().getValue()} : values.toArray(new Message[0]);
+        }
+
+        @Override
+        public synchronized Message[] getMessagesByUIDChangedSince(long start, long end, long modseq) {
+            changedSince.add(modseq);
+            List<Message> list = new ArrayList<>();
+            for (FakeMessage message : messageMap.values()) {
+                if (message.modSeq > modseq) {
+                    list.add(message);
+                }
+            }
+            return list.toArray(new Message[0]);
+        }
+
+        @Override
+        public synchronized void fetch(Message[] messages, FetchProfile profile) throws MessagingException {
+            if (failFetch) {
+                throw new FolderClosedException(this, "connection reset by test");
+            }
+            fetchCount++;
+        }
+
+        @Override
+        public synchronized long getUID(Message message) {
+            return ((FakeMessage) message).uid;
+        }
+    }
+
+    private static class FakeStore extends IMAPStore {
+        private final boolean condstore;
+
+        private FakeStore(boolean condstore) {
+            super(Session.getInstance(new Properties()), new URLName("imap://127.0.0.1"));
+            this.condstore = condstore;
+        }
+
+        @Override
+        public synchronized boolean hasCapability(String capability) {
+            return condstore && "CONDSTORE".equals(capability);
+        }
+    }
+
+    private static class FakeMessage extends MimeMessage {
+        private final long uid;
+        private long modSeq;
+
+        private FakeMessage(Folder folder, long uid) {
+            super(folder, (int) uid);
+            this.uid = uid;
+            this.headers = new InternetHeaders();
+        }
+    }
+}
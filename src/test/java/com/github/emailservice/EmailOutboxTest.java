@@ -0,0 +1,191 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发件箱测试, 投递,重启恢复,截断损坏的尾部和死信
+ */
+class EmailOutboxTest {
+
+    @Test
+    void deliverAndRecover() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            // 第一次打开: 发送一直失败, 邮件留在日志里
+            RecordSender failSender = new RecordSender(Integer.MAX_VALUE);
+            EmailOutbox outbox = new EmailOutbox(dir, failSender, executor);
+            outbox.setInitialBackoffMillis(10_000L);
+            outbox.start();
+            for (int i = 0; i < 20; i++) {
+                Long id = outbox.enqueue(newMessage(failSender, "subject" + i)).get(5, TimeUnit.SECONDS);
+                Assertions.assertEquals(i + 1, id.longValue());
+            }
+            outbox.close();
+
+            // 重新打开: 重放日志, 第一次失败后重试成功
+            RecordSender sender = new RecordSender(1);
+            outbox = new EmailOutbox(dir, sender, executor);
+            outbox.setInitialBackoffMillis(10L);
+            outbox.start();
+            long deadline = System.currentTimeMillis() + 10_000L;
+            while (outbox.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(0, outbox.getPendingCount());
+            Assertions.assertEquals(20, sender.subjects.size());
+            Assertions.assertTrue(sender.subjects.contains("subject7"));
+            outbox.close();
+
+            // 全部确认后, 再打开时日志被压缩为空
+            outbox = new EmailOutbox(dir, sender, executor);
+            outbox.start();
+            Assertions.assertEquals(0, outbox.getPendingCount());
+            Assertions.assertEquals(0, new File(dir, "outbox.journal").length());
+            outbox.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void truncateBrokenTail() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        // 不发送, 日志里只有两条邮件
+        Executor executor = command -> {
+        };
+        RecordSender failSender = new RecordSender(Integer.MAX_VALUE);
+        EmailOutbox outbox = new EmailOutbox(dir, failSender, executor);
+        outbox.start();
+        outbox.enqueue(newMessage(failSender, "a")).get(5, TimeUnit.SECONDS);
+        outbox.enqueue(newMessage(failSender, "b")).get(5, TimeUnit.SECONDS);
+        outbox.close();
+
+        // 模拟写到一半崩溃
+        File journal = new File(dir, "outbox.journal");
+        byte[] bytes = Files.readAllBytes(journal.toPath());
+        Files.write(journal.toPath(), java.util.Arrays.copyOf(bytes, bytes.length - 3));
+
+        outbox = new EmailOutbox(dir, failSender, executor);
+        Assertions.assertEquals(1, outbox.getPendingCount());
+        outbox.close();
+    }
+
+    @Test
+    void deadLetter() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordSender failSender = new RecordSender(Integer.MAX_VALUE);
+            EmailOutbox outbox = new EmailOutbox(dir, failSender, executor);
+            outbox.setMaxAttempts(3);
+            outbox.setInitialBackoffMillis(10L);
+            BlockingQueue<Object[]> deadQueue = new LinkedBlockingQueue<>();
+            outbox.setDeadLetterListener((id, message, error) -> deadQueue.add(new Object[]{id, message, error}));
+            outbox.start();
+            Long id = outbox.enqueue(newMessage(failSender, "dead")).get(5, TimeUnit.SECONDS);
+
+            // 失败3次后放弃, 回调并移到死信文件, 不会悄悄丢掉
+            Object[] dead = deadQueue.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(dead);
+            Assertions.assertEquals(id, dead[0]);
+            Assertions.assertEquals("dead", ((MimeMessage) dead[1]).getSubject());
+            Assertions.assertTrue(dead[2] instanceof MailSendException);
+            Assertions.assertEquals(3, failSender.failMap.get("dead").get());
+            Assertions.assertEquals(0, outbox.getPendingCount());
+            outbox.close();
+
+            outbox = new EmailOutbox(dir, failSender, executor);
+            Assertions.assertEquals(0, outbox.getPendingCount());
+            Map<Long, MimeMessage> deadLetters = outbox.readDeadLetters();
+            Assertions.assertEquals(1, deadLetters.size());
+            Assertions.assertEquals("dead", deadLetters.get(id).getSubject());
+            outbox.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void attemptsSurviveRestart() throws Exception {
+        File dir = Files.createTempDirectory("outbox").toFile();
+        File journal = new File(dir, "outbox.journal");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            RecordSender failSender = new RecordSender(Integer.MAX_VALUE);
+            // 发送任务手动执行, 只发一次
+            BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+            EmailOutbox outbox = new EmailOutbox(dir, failSender, tasks::add);
+            outbox.setInitialBackoffMillis(10_000L);
+            outbox.start();
+            outbox.enqueue(newMessage(failSender, "retry")).get(5, TimeUnit.SECONDS);
+            long length = journal.length();
+            tasks.poll(5, TimeUnit.SECONDS).run();
+            // 等第一次失败的次数写进日志
+            long deadline = System.currentTimeMillis() + 10_000L;
+            while (journal.length() == length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(1, failSender.failMap.get("retry").get());
+            outbox.close();
+
+            // 重启后失败次数接着算: 再失败1次就到2次, 放弃
+            outbox = new EmailOutbox(dir, failSender, executor);
+            outbox.setMaxAttempts(2);
+            outbox.setInitialBackoffMillis(10_000L);
+            BlockingQueue<Long> deadQueue = new LinkedBlockingQueue<>();
+            outbox.setDeadLetterListener((id, message, error) -> deadQueue.add(id));
+            outbox.start();
+            Assertions.assertEquals(Long.valueOf(1L), deadQueue.poll(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, failSender.failMap.get("retry").get());
+            outbox.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static MimeMessage newMessage(JavaMailSenderImpl sender, String subject) throws Exception {
+        MimeMessage message = sender.createMimeMessage();
+        message.setFrom("from@localhost");
+        message.setRecipients(javax.mail.Message.RecipientType.TO, "to@localhost");
+        message.setSubject(subject);
+        message.setText("content");
+        return message;
+    }
+
+    private static class RecordSender extends JavaMailSenderImpl {
+        private final List<String> subjects = new CopyOnWriteArrayList<>();
+        private final ConcurrentMap<String, AtomicInteger> failMap = new ConcurrentHashMap<>();
+        private final int failTimes;
+
+        private RecordSender(int failTimes) {
+            this.failTimes = failTimes;
+        }
+
+        @Override
+        protected void doSend(MimeMessage[] mimeMessages, Object[] originalMessages) {
+            for (MimeMessage message : mimeMessages) {
+                try {
+                    String subject = message.getSubject();
+                    if (failMap.computeIfAbsent(subject, k -> new AtomicInteger()).getAndIncrement() < failTimes) {
+                        throw new MailSendException("mock fail " + subject);
+                    }
+                    subjects.add(subject);
+                } catch (javax.mail.MessagingException e) {
+                    throw new MailSendException(e.toString(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.search.SearchTerm;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 定时拉取测试, 每个服务器的连接数限制,公平排队,删除和重新添加账号
+ */
+class EmailPollSchedulerTest {
+    private ExecutorService executor;
+    private StubEmailService emailService;
+    private EmailPollScheduler scheduler;
+    private final List<EmailService.Account> polls = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(16);
+        emailService = new StubEmailService();
+        scheduler = new EmailPollScheduler(emailService, executor, (account, list) -> polls.add(account));
+        scheduler.setJitter(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        scheduler.close();
+        emailService.release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void maxConnectionsPerHost() throws Exception {
+        emailService.release.countDown();
+        emailService.pollMillis = 30;
+        scheduler.setMaxConnectionsPerHost(2);
+        List<EmailService.Account> accounts = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            accounts.add(account("imap.a.com", "a" + i));
+        }
+        accounts.add(account("IMAP.B.COM", "b0"));
+        accounts.add(account("imap.b.com", "b1"));
+        accounts.add(account("imap.b.com", "b2"));
+        for (EmailService.Account account : accounts) {
+            scheduler.addAccount(account, 10, TimeUnit.MILLISECONDS);
+        }
+        scheduler.start();
+        waitPolls(accounts.size() * 3);
+
+        // 账号比连接多, 每个服务器都用满了连接, 但没有超过
+        Assertions.assertEquals(2, emailService.maxRunning("imap.a.com"));
+        Assertions.assertEquals(2, emailService.maxRunning("imap.b.com"));
+        Assertions.assertTrue(new HashSet<>(polls).containsAll(accounts));
+    }
+
+    @Test
+    void fairOrder() throws Exception {
+        emailService.release.countDown();
+        // 拉取比间隔慢, 所有账号一直是到期的
+        emailService.pollMillis = 50;
+        scheduler.setMaxConnectionsPerHost(1);
+        for (int i = 0; i < 4; i++) {
+            scheduler.addAccount(account("imap.a.com", "a" + i), 10, TimeUnit.MILLISECONDS);
+        }
+        scheduler.start();
+        waitPolls(12);
+
+        // 轮流拉取, 拉完的账号排到其他已到期账号的后面
+        List<EmailService.Account> order = new ArrayList<>(polls).subList(0, 12);
+        Assertions.assertEquals(4, new HashSet<>(order.subList(0, 4)).size());
+        for (int i = 4; i < order.size(); i++) {
+            Assertions.assertSame(order.get(i % 4), order.get(i), "poll " + i);
+        }
+    }
+
+    @Test
+    void removeAccount() throws Exception {
+        scheduler.setMaxConnectionsPerHost(1);
+        EmailService.Account a = account("imap.a.com", "a");
+        EmailService.Account b = account("imap.a.com", "b");
+        scheduler.addAccount(a, 10, TimeUnit.MILLISECONDS);
+        scheduler.addAccount(b, 10, TimeUnit.MILLISECONDS);
+        scheduler.start();
+
+        // 第一个账号卡在拉取上, 另一个在排队
+        Assertions.assertTrue(emailService.started.await(5, TimeUnit.SECONDS));
+        EmailService.Account running = emailService.firstAccount;
+        EmailService.Account waiting = running == a ? b : a;
+        Thread.sleep(50);
+        Assertions.assertEquals(1, scheduler.getRunningCount("imap.a.com"));
+        Assertions.assertTrue(scheduler.removeAccount(waiting));
+        Assertions.assertFalse(scheduler.removeAccount(waiting));
+        Assertions.assertTrue(scheduler.removeAccount(running));
+        Assertions.assertEquals(0, scheduler.getAccountCount());
+        emailService.release.countDown();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.getRunningCount("imap.a.com") > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        // 排队的没有再拉, 正在拉的拉完这一次就停了
+        Assertions.assertEquals(1, emailService.pollCount.get());
+        Assertions.assertEquals(0, scheduler.getRunningCount("imap.a.com"));
+    }
+
+    @Test
+    void addAccountWhileRunning() throws Exception {
+        EmailService.Account a = account("imap.a.com", "a");
+        scheduler.addAccount(a, 10, TimeUnit.MILLISECONDS);
+        scheduler.start();
+        Assertions.assertTrue(emailService.started.await(5, TimeUnit.SECONDS));
+
+        // 拉取中删除又添加, 不会再开一个同时拉
+        Assertions.assertTrue(scheduler.removeAccount(a));
+        scheduler.addAccount(a, 10, TimeUnit.MILLISECONDS);
+        Assertions.assertEquals(1, scheduler.getAccountCount());
+        Thread.sleep(100);
+        Assertions.assertEquals(1, emailService.pollCount.get());
+
+        // 拉完后接着按间隔拉
+        emailService.release.countDown();
+        waitPolls(3);
+        Assertions.assertEquals(1, emailService.maxRunning("imap.a.com"));
+    }
+
+    @Test
+    void close() throws Exception {
+        emailService.release.countDown();
+        scheduler.addAccount(account("imap.a.com", "a"), 10, TimeUnit.MILLISECONDS);
+        scheduler.start();
+        waitPolls(2);
+        scheduler.close();
+        Thread.sleep(50);
+        int count = emailService.pollCount.get();
+        Thread.sleep(100);
+        Assertions.assertEquals(count, emailService.pollCount.get());
+    }
+
+    @Test
+    void invalidArgument() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> scheduler.setMaxConnectionsPerHost(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> scheduler.setJitter(1.5));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> scheduler.addAccount(account("imap.a.com", "a"), 0, TimeUnit.SECONDS));
+    }
+
+    private void waitPolls(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (polls.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        Assertions.assertTrue(polls.size() >= count, "polls=" + polls.size());
+    }
+
+    private static EmailService.Account account(String host, String username) {
+        EmailService.Account account = new EmailService.Account();
+        account.setHost(host);
+        account.setUsername(username);
+        return account;
+    }
+
+    /**
+     * 不连服务器, 记录每个服务器同时拉取的数量
+     */
+    private static class StubEmailService extends EmailService {
+        private final Map<String, AtomicInteger> runningMap = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> maxRunningMap = new ConcurrentHashMap<>();
+        private final AtomicInteger pollCount = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile Account firstAccount;
+        private volatile long pollMillis;
+
+        @Override
+        public EmailList<EmailMessage> selectEmailList(Account account, SearchTerm query, boolean readOnly) {
+            String host = account.getHost().toLowerCase();
+            AtomicInteger running = runningMap.computeIfAbsent(host, k -> new AtomicInteger());
+            AtomicInteger maxRunning = maxRunningMap.computeIfAbsent(host, k -> new AtomicInteger());
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                if (pollCount.getAndIncrement() == 0) {
+                    firstAccount = account;
+                    started.countDown();
+                }
+                release.await();
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+            }
+            return new EmailList<>();
+        }
+
+        int maxRunning(String host) {
+            AtomicInteger maxRunning = maxRunningMap.get(host);
+            return maxRunning != null ? maxRunning.get() : 0;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.imap.ImapHostManager;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.SearchTerm;
+import javax.mail.search.SentDateTerm;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reactive Streams 查询测试, 背压,取消,完成,订阅者抛异常, 和selectEmailList结果一致
+ */
+class EmailPublisherTest {
+    private static final Object COMPLETE = "complete";
+    private NoDelayGreenMail greenMail;
+    private ExecutorService executor;
+    private EmailService.Account account;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        greenMail = new NoDelayGreenMail();
+        greenMail.start();
+        MailboxGenerator generator = new MailboxGenerator();
+        generator.setFolderCount(2);
+        generator.setMessagesPerFolder(5);
+        generator.setMaxAttachments(0);
+        generator.setMaxNestingDepth(0);
+        generator.populate(greenMail, greenMail.setUser("publisher@localhost", "publisher@localhost", "password"));
+        executor = Executors.newSingleThreadExecutor();
+        account = new EmailService.Account();
+        account.setHost("127.0.0.1");
+        account.setPort(greenMail.getPort(ServerSetup.PROTOCOL_IMAP));
+        account.setUsername("publisher@localhost");
+        account.setPassword("password");
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+        greenMail.stop();
+    }
+
+    @Test
+    void backpressure() throws Exception {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(2);
+        Set<String> subjects = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            subjects.add(subscriber.nextMessage().getSubject());
+        }
+        // 没有request时不再发送
+        subscriber.assertNoSignal();
+
+        // 跨过fetchSize和文件夹
+        subscriber.subscription.request(7);
+        for (int i = 0; i < 7; i++) {
+            subjects.add(subscriber.nextMessage().getSubject());
+        }
+        subscriber.assertNoSignal();
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subjects.add(subscriber.nextMessage().getSubject());
+        Assertions.assertSame(COMPLETE, subscriber.next());
+        Assertions.assertEquals(10, subjects.size());
+        subscriber.assertNoSignal();
+    }
+
+    @Test
+    void completeWithExactDemand() throws Exception {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(10);
+        for (int i = 0; i < 10; i++) {
+            subscriber.nextMessage();
+        }
+        // 发完最后一封后, 下一次request才知道没有了
+        subscriber.subscription.request(1);
+        Assertions.assertSame(COMPLETE, subscriber.next());
+    }
+
+    @Test
+    void cancel() throws Exception {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(1);
+        subscriber.nextMessage();
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(5);
+        subscriber.assertNoSignal();
+    }
+
+    @Test
+    void invalidRequest() throws Exception {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.subscription.request(0);
+        Assertions.assertTrue(subscriber.next() instanceof IllegalArgumentException);
+        subscriber.subscription.request(1);
+        subscriber.assertNoSignal();
+    }
+
+    @Test
+    void onNextThrows() throws Exception {
+        RecordingSubscriber subscriber = subscribe();
+        subscriber.throwOnNext = true;
+        subscriber.subscription.request(3);
+        subscriber.nextMessage();
+        // §2.13 onNext抛异常后视为取消, 不发onError
+        subscriber.assertNoSignal();
+        subscriber.subscription.request(1);
+        subscriber.assertNoSignal();
+    }
+
+    @Test
+    void sameAsSelectEmailList() throws Exception {
+        // 同一封邮件放进两个文件夹
+        GreenMailUser user = greenMail.getManagers().getUserManager().getUser("publisher@localhost");
+        ImapHostManager manager = greenMail.getManagers().getImapHostManager();
+        MailFolder inbox = manager.getInbox(user);
+        inbox.copyMessage(inbox.getMessageUids()[0], manager.getFolder(user, "Archive-1"));
+        EmailService emailService = new EmailService();
+        emailService.setDeduplicator(new EmailDeduplicator());
+
+        List<Date> dates = new ArrayList<>();
+        try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(account, null, true)) {
+            for (EmailService.EmailMessage message : list) {
+                dates.add(message.getEmail().getSentDate());
+            }
+        }
+        Assertions.assertEquals(10, dates.size());
+        // 精确到毫秒, 服务器只能按天查, 同一天更早的要在本地过滤掉
+        Collections.sort(dates);
+        SearchTerm query = new SentDateTerm(ComparisonTerm.GE, new Date(dates.get(4).getTime() + 1));
+
+        List<String> expected = new ArrayList<>();
+        try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(account, query, true)) {
+            for (EmailService.EmailMessage message : list) {
+                expected.add(message.getSubject());
+            }
+        }
+        Assertions.assertEquals(5, expected.size());
+
+        RecordingSubscriber subscriber = subscribe(emailService, query);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        List<String> actual = new ArrayList<>();
+        Object signal;
+        while ((signal = subscriber.next()) != COMPLETE) {
+            Assertions.assertTrue(signal instanceof EmailService.EmailMessage, String.valueOf(signal));
+            actual.add(((EmailService.EmailMessage) signal).getSubject());
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        Assertions.assertEquals(expected, actual);
+    }
+
+    private RecordingSubscriber subscribe() {
+        return subscribe(new EmailService(), null);
+    }
+
+    private RecordingSubscriber subscribe(EmailService emailService, SearchTerm query) {
+        EmailPublisher publisher = new EmailPublisher(emailService, account, query, true, executor);
+        publisher.setFetchSize(3);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        Assertions.assertNotNull(subscriber.subscription);
+        return subscriber;
+    }
+
+    /**
+     * 按顺序记录收到的信号
+     */
+    private static class RecordingSubscriber implements Subscriber<EmailService.EmailMessage> {
+        private final BlockingQueue<Object> signals = new LinkedBlockingQueue<>();
+        private Subscription subscription;
+        private volatile boolean throwOnNext;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(EmailService.EmailMessage message) {
+            signals.add(message);
+            if (throwOnNext) {
+                throw new IllegalStateException("test");
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            signals.add(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add(COMPLETE);
+        }
+
+        Object next() throws InterruptedException {
+            Object signal = signals.poll(10, TimeUnit.SECONDS);
+            Assertions.assertNotNull(signal, "no signal");
+            return signal;
+        }
+
+        EmailService.EmailMessage nextMessage() throws InterruptedException {
+            Object signal = next();
+            Assertions.assertTrue(signal instanceof EmailService.EmailMessage, String.valueOf(signal));
+            return (EmailService.EmailMessage) signal;
+        }
+
+        void assertNoSignal() throws InterruptedException {
+            Assertions.assertNull(signals.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.mail.search.SearchTerm;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在本地GreenMail上压测, 不需要真实的邮箱账号
+ * 场景: selectEmailList, 读取邮件内容, Sender发送 (每次新连接, 连接池, 批量)
+ * 结果写到 target/load-test/email-service-load.json, 并追加到 history.jsonl
+ * <p>
+ * 压测标记了 {@code @Tag("load")}, mvn test 默认不跑, 用 -Pload-test 运行. 加大压力用系统属性, 例:
+ * mvn test -Pload-test -Dloadtest.threads=16 -Dloadtest.messages=500 -Dloadtest.output=/data/email-load
+ * <p>
+ * loadtest.folders         文件夹数, 默认3
+ * loadtest.messages        每个文件夹的邮件数, 默认30
+ * loadtest.attachments     每封最多附件数, 默认2
+ * loadtest.depth           最大嵌套深度, 默认2
+ * loadtest.threads         并发线程数, 默认4
+ * loadtest.rounds          每个线程selectEmailList次数, 默认3
+ * loadtest.sends           每个线程发送的邮件数, 默认20
+ * loadtest.batch           批量发送时每批邮件数, 默认10
+ * loadtest.output          输出目录, 默认target/load-test
+ */
+class EmailServiceLoadTest {
+    private static final Logger log = LoggerFactory.getLogger(EmailServiceLoadTest.class);
+    private static final String USERNAME = "loadtest@localhost";
+    private static final String PASSWORD = "password";
+    private static final String RECIPIENT = "sink@localhost";
+
+    private final int threads = Integer.getInteger("loadtest.threads", 4);
+    private final int rounds = Integer.getInteger("loadtest.rounds", 3);
+    private final int sends = Integer.getInteger("loadtest.sends", 20);
+    private final int batch = Integer.getInteger("loadtest.batch", 10);
+    private NoDelayGreenMail greenMail;
+    private MailboxGenerator generator;
+    private LoadTestReport report;
+
+    /**
+     * 启动GreenMail并生成邮箱, 只有压测需要
+     */
+    private void setUp() throws Exception {
+        greenMail = new NoDelayGreenMail();
+        greenMail.start();
+        GreenMailUser user = greenMail.setUser(USERNAME, USERNAME, PASSWORD);
+
+        generator = new MailboxGenerator();
+        generator.setFolderCount(Integer.getInteger("loadtest.folders", 3));
+        generator.setMessagesPerFolder(Integer.getInteger("loadtest.messages", 30));
+        generator.setMaxAttachments(Integer.getInteger("loadtest.attachments", 2));
+        generator.setMaxNestingDepth(Integer.getInteger("loadtest.depth", 2));
+        generator.populate(greenMail, user);
+
+        report = new LoadTestReport();
+        Map<String, Object> config = report.getConfig();
+        config.put("mailbox", generator.toMap());
+        config.put("threads", threads);
+        config.put("rounds", rounds);
+        config.put("sends", sends);
+        config.put("batch", batch);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (greenMail != null) {
+            greenMail.stop();
+        }
+    }
+
+    @Test
+    @Tag("load")
+    void loadTest() throws Exception {
+        setUp();
+        EmailService emailService = new EmailService();
+        EmailService.Account account = new EmailService.Account();
+        account.setHost("127.0.0.1");
+        account.setPort(greenMail.getPort(ServerSetup.PROTOCOL_IMAP));
+        account.setUsername(USERNAME);
+        account.setPassword(PASSWORD);
+        SearchTerm query = EmailService.buildTimeRangeQuery(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365)), null);
+        int messageCount = generator.getMessageCount();
+
+        // 预热
+        try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(account, query, true)) {
+            Assertions.assertEquals(messageCount, list.size());
+            for (EmailService.EmailMessage message : list) {
+                message.getContent();
+            }
+        }
+
+        LoadTestReport.Scenario select = report.newScenario("selectEmailList", threads);
+        run(select, thread -> {
+            for (int i = 0; i < rounds; i++) {
+                select.time(() -> {
+                    try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(account, query, true)) {
+                        Assertions.assertEquals(messageCount, list.size());
+                        select.addItems(list.size());
+                    }
+                });
+            }
+        });
+
+        // 每个线程一个连接, 各自读取全部邮件的内容
+        LoadTestReport.Scenario parse = report.newScenario("parseContent", threads);
+        run(parse, thread -> {
+            try (EmailService.EmailList<EmailService.EmailMessage> list = emailService.selectEmailList(account, query, true)) {
+                for (EmailService.EmailMessage message : list) {
+                    parse.time(() -> {
+                        Assertions.assertNotNull(message.getContent());
+                        parse.addItems(1);
+                    });
+                }
+            }
+        });
+
+        int smtpPort = greenMail.getPort(ServerSetup.PROTOCOL_SMTP);
+        LoadTestReport.Scenario send = report.newScenario("send", threads);
+        runSend(send, emailService.newSender("smtp", "UTF-8", smtpPort, "127.0.0.1", USERNAME, PASSWORD));
+
+        EmailService pooledService = new EmailService();
+        try (TransportPool pool = new TransportPool()) {
+            pooledService.setTransportPool(pool);
+            LoadTestReport.Scenario pooled = report.newScenario("send-pooled", threads);
+            runSend(pooled, pooledService.newSender("smtp", "UTF-8", smtpPort, "127.0.0.1", USERNAME, PASSWORD));
+        }
+
+        LoadTestReport.Scenario sendAll = report.newScenario("sendAll", threads);
+        run(sendAll, thread -> {
+            EmailService.Sender sender = emailService.newSender("smtp", "UTF-8", smtpPort, "127.0.0.1", USERNAME, PASSWORD);
+            for (int i = 0; i < sends; i += batch) {
+                int size = Math.min(batch, sends - i);
+                int offset = i;
+                sendAll.time(() -> {
+                    for (int j = 0; j < size; j++) {
+                        newMessage(sender, thread, offset + j).submit();
+                    }
+                    List<EmailService.SendResult> results = sender.sendAll();
+                    for (EmailService.SendResult result : results) {
+                        Assertions.assertTrue(result.isSuccess(), result::toString);
+                    }
+                    sendAll.addItems(results.size());
+                });
+            }
+        });
+
+        File file = report.write(new File(System.getProperty("loadtest.output", "target/load-test")));
+        for (LoadTestReport.Scenario scenario : report.getScenarios()) {
+            log.info("{}", scenario);
+        }
+        log.info("load test report = {}", file.getAbsolutePath());
+        for (LoadTestReport.Scenario scenario : report.getScenarios()) {
+            Assertions.assertEquals(0, scenario.getErrorCount(), scenario.getName() + " " + scenario.getFirstError());
+        }
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, threads * sends * 3));
+    }
+
+    @Test
+    void percentile() {
+        LoadTestReport.Scenario scenario = new LoadTestReport.Scenario("test", 1);
+        for (int i = 1000; i >= 1; i--) {
+            scenario.record(i * 1000_000L);
+        }
+        scenario.error(new IllegalStateException("test"));
+        scenario.setWallNanos(TimeUnit.SECONDS.toNanos(2));
+        Assertions.assertEquals(500_000_000L, scenario.percentile(0.5));
+        Assertions.assertEquals(990_000_000L, scenario.percentile(0.99));
+        Assertions.assertEquals(1000_000_000L, scenario.percentile(1));
+
+        String json = LoadTestReport.toJson(scenario.toMap());
+        Assertions.assertTrue(json.startsWith("{\"name\":\"test\",\"threads\":1,\"operations\":1000,\"errors\":1,"), json);
+        Assertions.assertTrue(json.contains("\"operationsPerSecond\":500.000"), json);
+        Assertions.assertTrue(json.contains("\"p99\":990.000"), json);
+        Assertions.assertTrue(json.contains("\"firstError\":\"java.lang.IllegalStateException: test\""), json);
+    }
+
+    private void runSend(LoadTestReport.Scenario scenario, EmailService.Sender sender) throws InterruptedException {
+        run(scenario, thread -> {
+            for (int i = 0; i < sends; i++) {
+                int index = i;
+                scenario.time(() -> {
+                    newMessage(sender, thread, index).send();
+                    scenario.addItems(1);
+                });
+            }
+        });
+    }
+
+    private static EmailService.MimeMessage newMessage(EmailService.Sender sender, int thread, int index) throws Exception {
+        EmailService.MimeMessage message = sender.newMessage();
+        message.setTo(RECIPIENT);
+        message.setSubject("压测发送 " + thread + "-" + index);
+        message.setText("<html><body><p>压测发送</p><p>" + thread + "-" + index + "</p></body></html>", true);
+        return message;
+    }
+
+    /**
+     * threads个线程同时开始, 全部结束后记录总耗时
+     */
+    private void run(LoadTestReport.Scenario scenario, Task task) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            executor.execute(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    task.run(thread);
+                } catch (Throwable e) {
+                    scenario.error(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        ready.await();
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        scenario.setWallNanos(System.nanoTime() - startNanos);
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 邮件模板测试, 渲染后解析回来
+ */
+class EmailTemplateTest {
+
+    @Test
+    void renderAndParse() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            longText.append("很长的一段文字 with trailing space ");
+        }
+        String html = "<p>你好 ${name}, </p>\r\n<p>" + longText + "</p><b>${code}</b>";
+        byte[] pdf = new byte[3000];
+        for (int i = 0; i < pdf.length; i++) {
+            pdf[i] = (byte) i;
+        }
+        EmailTemplate template = new EmailTemplate("订单 ${code}", html)
+                .addAttachment("价格表.pdf", pdf);
+
+        Session session = Session.getInstance(new Properties());
+        for (int i = 0; i < 3; i++) {
+            Map<String, String> fields = new HashMap<>();
+            fields.put(EmailTemplate.FIELD_TO, "user" + i + "@localhost");
+            fields.put("name", "张三" + i + " =?");
+            fields.put("code", "A" + i);
+            MimeMessage message = template.newMessage(session, "from@localhost", fields);
+            message.saveChanges();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out);
+            MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+
+            Assertions.assertEquals("订单 A" + i, parsed.getSubject());
+            Assertions.assertEquals("user" + i + "@localhost", parsed.getAllRecipients()[0].toString());
+            Assertions.assertNotNull(parsed.getMessageID());
+            Multipart multipart = (Multipart) parsed.getContent();
+            Assertions.assertEquals(2, multipart.getCount());
+            String expected = "<p>你好 张三" + i + " =?, </p>\r\n<p>" + longText + "</p><b>A" + i + "</b>";
+            Assertions.assertEquals(expected, multipart.getBodyPart(0).getContent());
+            Part attachment = multipart.getBodyPart(1);
+            Assertions.assertEquals("价格表.pdf", javax.mail.internet.MimeUtility.decodeText(attachment.getFileName()));
+            try (InputStream in = attachment.getInputStream()) {
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    data.write(buffer, 0, n);
+                }
+                Assertions.assertArrayEquals(pdf, data.toByteArray());
+            }
+            for (String line : new String(out.toByteArray(), StandardCharsets.US_ASCII).split("\r\n")) {
+                Assertions.assertTrue(line.length() <= 998, line);
+            }
+        }
+    }
+}
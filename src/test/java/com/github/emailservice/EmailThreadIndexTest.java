@@ -0,0 +1,84 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 邮件会话索引测试, 按回复关系归组, 头部损坏和线性复杂度
+ */
+class EmailThreadIndexTest {
+
+    @Test
+    void thread() {
+        EmailThreadIndex<String> index = new EmailThreadIndex<>();
+        // 回复比原邮件先到, 中间的 <b> 没收到
+        index.add("c", "<c@qq.com>", "<b@qq.com>", "<a@qq.com> <b@qq.com>", 3);
+        Assertions.assertEquals(1, index.getThreads().size());
+        index.add("a", "<a@qq.com>", null, null, 1);
+        index.add("d", "<d@qq.com>", "<a@qq.com>", null, 4);
+        index.add("x", "<x@qq.com>", null, null, 2);
+
+        List<EmailThreadIndex.Node<String>> threads = index.getThreads();
+        Assertions.assertEquals(2, threads.size());
+        EmailThreadIndex.Node<String> root = threads.get(0);
+        Assertions.assertEquals("a", root.getValue());
+        Assertions.assertEquals(3, root.getMessageCount());
+        Assertions.assertEquals(4, root.getLatestDate());
+        // 空容器 <b> 去掉, c 提到 a 下面
+        Assertions.assertEquals(Arrays.asList("a", "c", "d"), root.getValues());
+        Assertions.assertEquals("a@qq.com", root.getChildren().get(0).getParent().getMessageId());
+        Assertions.assertEquals("x", threads.get(1).getValue());
+
+        // 后来收到 <b>
+        index.add("b", "<b@qq.com>", "<a@qq.com>", "<a@qq.com>", 2);
+        root = index.getThread("<c@qq.com>");
+        Assertions.assertEquals(Arrays.asList("a", "b", "c", "d"), root.getValues());
+        Assertions.assertEquals("b", root.getChildren().get(0).getValue());
+        Assertions.assertEquals("c", root.getChildren().get(0).getChildren().get(0).getValue());
+        Assertions.assertEquals(5, index.size());
+        Assertions.assertNull(index.getThread("<none@qq.com>"));
+    }
+
+    @Test
+    void brokenHeaders() {
+        EmailThreadIndex<String> index = new EmailThreadIndex<>();
+        // 原邮件没收到, 两个回复放在一个空的根下面
+        index.add("r1", "<r1@qq.com>", "<root@qq.com>", null, 2);
+        index.add("r2", "<r2@qq.com>", "<root@qq.com>", null, 1);
+        EmailThreadIndex.Node<String> root = index.getThread("<r1@qq.com>");
+        Assertions.assertNull(root.getValue());
+        Assertions.assertEquals(Arrays.asList("r2", "r1"), root.getValues());
+
+        // 互相引用成环
+        index.add("p", "<p@qq.com>", "<q@qq.com>", null, 3);
+        index.add("q", "<q@qq.com>", "<p@qq.com>", null, 4);
+        Assertions.assertEquals(2, index.getThread("<p@qq.com>").getMessageCount());
+        // 引用自己
+        index.add("s", "<s@qq.com>", "<s@qq.com>", "<s@qq.com>", 5);
+        Assertions.assertEquals(1, index.getThread("<s@qq.com>").getMessageCount());
+        // Message-ID重复, 没有Message-ID
+        index.add("s2", "<s@qq.com>", null, null, 6);
+        index.add("n", null, "<s@qq.com>", null, 7);
+        Assertions.assertEquals(Arrays.asList("s", "n"), index.getThread("<s@qq.com>").getValues());
+        Assertions.assertEquals(7, index.size());
+        Assertions.assertEquals(index.size(), index.getThreads().stream().mapToInt(EmailThreadIndex.Node::getMessageCount).sum());
+    }
+
+    @Test
+    void linear() {
+        // 一条很长的回复链, 每封只引用上一封
+        EmailThreadIndex<Integer> index = new EmailThreadIndex<>();
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            index.add(i, "<" + i + "@qq.com>", i > 0 ? "<" + (i - 1) + "@qq.com>" : null, null, i);
+        }
+        Assertions.assertEquals(count, index.size());
+        List<EmailThreadIndex.Node<Integer>> threads = index.getThreads();
+        Assertions.assertEquals(1, threads.size());
+        Assertions.assertEquals(count, threads.get(0).getMessageCount());
+        Assertions.assertEquals(count - 1, threads.get(0).getLatestDate());
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.emailservice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import org.springframework.util.StreamUtils;
+
+import javax.mail.MessagingException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * JFR事件测试
+ */
+class JfrEmailMetricsTest {
+
+    @Test
+    void record() throws Exception {
+        Assumptions.assumeTrue(JfrEmailMetrics.isSupported());
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        JfrEmailMetrics metrics = new JfrEmailMetrics(new MicrometerEmailMetrics(registry));
+        // 没有录制时不记录事件, 其他指标照常
+        metrics.time(EmailMetrics.Operation.SEARCH, "imap.qq.com", "INBOX", () -> new Object[3]);
+        // 不创建事件, 直接返回delegate的
+        EmailMetrics.Span noop = success -> {
+        };
+        JfrEmailMetrics noRecording = new JfrEmailMetrics(new EmailMetrics() {
+            @Override
+            public Span start(Operation operation, String host, String folderName) {
+                return noop;
+            }
+        });
+        Assertions.assertSame(noop, noRecording.start(EmailMetrics.Operation.FETCH, "imap.qq.com", "INBOX"));
+
+        Path file = Files.createTempFile("email", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("com.github.emailservice.Search");
+            recording.enable("com.github.emailservice.Connect");
+            recording.enable("com.github.emailservice.PartRead");
+            recording.disable("com.github.emailservice.Send");
+            recording.start();
+            metrics.time(EmailMetrics.Operation.SEARCH, "imap.qq.com", "INBOX", () -> new Object[5]);
+            Assertions.assertThrows(MessagingException.class, () -> metrics.run(EmailMetrics.Operation.CONNECT, "imap.qq.com", () -> {
+                throw new MessagingException("login fail");
+            }));
+            EmailMetrics.Span span = metrics.start(EmailMetrics.Operation.PART_READ, "imap.qq.com", "INBOX");
+            span.setBytes(1024);
+            span.end(true);
+            // 没开启的事件
+            metrics.run(EmailMetrics.Operation.SEND, "smtp.qq.com", () -> {
+            });
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+        Assertions.assertEquals(3, events.size(), events.stream().map(e -> e.getEventType().getName()).collect(Collectors.joining(",")));
+        RecordedEvent search = find(events, "com.github.emailservice.Search");
+        Assertions.assertEquals("imap.qq.com", search.getString("host"));
+        Assertions.assertEquals("INBOX", search.getString("folder"));
+        Assertions.assertEquals(5, search.getInt("messageCount"));
+        Assertions.assertTrue(search.getBoolean("success"));
+        Assertions.assertNotNull(search.getStackTrace());
+        Assertions.assertFalse(find(events, "com.github.emailservice.Connect").getBoolean("success"));
+        Assertions.assertEquals(1024L, find(events, "com.github.emailservice.PartRead").getLong("bytes"));
+
+        Assertions.assertEquals(2, registry.get("email.operation").tag("operation", "search").timer().count());
+        Assertions.assertEquals(1, registry.get("email.operation").tag("operation", "send").timer().count());
+    }
+
+    @Test
+    void loadWithoutJfr() throws Exception {
+        // 没有jdk.jfr的JVM上要能加载这个类, 调用isSupported, 所以不能引用jdk.jfr
+        byte[] bytes;
+        try (InputStream in = JfrEmailMetrics.class.getResourceAsStream("JfrEmailMetrics.class")) {
+            bytes = StreamUtils.copyToByteArray(in);
+        }
+        Assertions.assertFalse(new String(bytes, StandardCharsets.ISO_8859_1).contains("jdk/jfr"));
+    }
+
+    private static RecordedEvent find(List<RecordedEvent> events, String name) {
+        return events.stream().filter(e -> e.getEventType().getName().equals(name)).findFirst().orElseThrow(AssertionError::new);
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.emailservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 压测结果, 写成json用于看趋势
+ * 1. {@code <dir>/email-service-load.json} 本次的结果
+ * 2. {@code <dir>/history.jsonl} 每次追加一行, dir放在target外面时可以累积历史
+ * <p>
+ * 延迟是每次操作的耗时, 百分位按排序后取第 ceil(p*n) 个
+ *
+ * @author wangzihao
+ */
+class LoadTestReport {
+    private final Map<String, Object> config = new LinkedHashMap<>();
+    private final List<Scenario> scenarios = new ArrayList<>();
+
+    public Map<String, Object> getConfig() {
+        return config;
+    }
+
+    public Scenario newScenario(String name, int threads) {
+        Scenario scenario = new Scenario(name, threads);
+        scenarios.add(scenario);
+        return scenario;
+    }
+
+    public List<Scenario> getScenarios() {
+        return scenarios;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("timestamp", Instant.now().toString());
+        map.put("javaVersion", System.getProperty("java.version"));
+        map.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+        map.put("config", config);
+        List<Object> list = new ArrayList<>();
+        for (Scenario scenario : scenarios) {
+            list.add(scenario.toMap());
+        }
+        map.put("scenarios", list);
+        return map;
+    }
+
+    /**
+     * @param dir 输出目录
+     * @return 本次结果的文件
+     */
+    public File write(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("mkdirs fail " + dir);
+        }
+        String json = toJson(toMap());
+        File file = new File(dir, "email-service-load.json");
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "history.jsonl").toPath(), (json + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return file;
+    }
+
+    static String toJson(Object value) {
+        StringBuilder builder = new StringBuilder();
+        appendJson(builder, value);
+        return builder.toString();
+    }
+
+    private static void appendJson(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                appendJson(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                appendJson(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Collection) {
+            builder.append('[');
+            boolean first = true;
+            for (Object item : (Collection<?>) value) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                appendJson(builder, item);
+            }
+            builder.append(']');
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            builder.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.format(Locale.ROOT, "%.3f", d));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else {
+            builder.append('"');
+            String s = value.toString();
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    builder.append(String.format("\\u%04x", (int) c));
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+    }
+
+    /**
+     * 一个场景, 多线程同时调用 {@link #time(Operation)}
+     */
+    static class Scenario {
+        private final String name;
+        private final int threads;
+        private final AtomicInteger errorCount = new AtomicInteger();
+        private final AtomicLong itemCount = new AtomicLong();
+        private long[] latencies = new long[256];
+        private int size;
+        private long wallNanos;
+        private volatile String firstError;
+
+        Scenario(String name, int threads) {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        /**
+         * 执行一次操作并记录耗时, 抛异常时记为错误, 不记录耗时
+         */
+        public void time(Operation operation) {
+            long start = System.nanoTime();
+            try {
+                operation.run();
+                record(System.nanoTime() - start);
+            } catch (Exception e) {
+                error(e);
+            }
+        }
+
+        public synchronized void record(long nanos) {
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size << 1);
+            }
+            latencies[size++] = nanos;
+        }
+
+        public void error(Throwable e) {
+            errorCount.incrementAndGet();
+            if (firstError == null) {
+                firstError = e.toString();
+            }
+        }
+
+        /**
+         * @param items 这次操作处理的邮件数
+         */
+        public void addItems(long items) {
+            itemCount.addAndGet(items);
+        }
+
+        public void setWallNanos(long wallNanos) {
+            this.wallNanos = wallNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public synchronized int getOperationCount() {
+            return size;
+        }
+
+        public int getErrorCount() {
+            return errorCount.get();
+        }
+
+        public String getFirstError() {
+            return firstError;
+        }
+
+        /**
+         * @param percentile 0~1
+         * @return 耗时纳秒, 没有记录时返回0
+         */
+        public synchronized long percentile(double percentile) {
+            if (size == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * size) - 1;
+            return sorted[Math.max(0, Math.min(size - 1, index))];
+        }
+
+        public synchronized Map<String, Object> toMap() {
+            long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            long sum = 0;
+            for (long latency : sorted) {
+                sum += latency;
+            }
+            double seconds = wallNanos / 1e9;
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("min", millis(size == 0 ? 0 : sorted[0]));
+            latency.put("mean", size == 0 ? 0D : sum / (double) size / 1e6);
+            latency.put("p50", millis(percentile(0.5)));
+            latency.put("p90", millis(percentile(0.9)));
+            latency.put("p99", millis(percentile(0.99)));
+            latency.put("p999", millis(percentile(0.999)));
+            latency.put("max", millis(size == 0 ? 0 : sorted[size - 1]));
+
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("threads", threads);
+            map.put("operations", size);
+            map.put("errors", errorCount.get());
+            map.put("items", itemCount.get());
+            map.put("wallMillis", wallNanos / 1e6);
+            map.put("operationsPerSecond", seconds > 0 ? size / seconds : 0D);
+            map.put("itemsPerSecond", seconds > 0 ? itemCount.get() / seconds : 0D);
+            map.put("latencyMillis", latency);
+            if (firstError != null) {
+                map.put("firstError", firstError);
+            }
+            return map;
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return name + " threads = " + threads + ", operations = " + getOperationCount() + ", errors = " + getErrorCount()
+                    + ", p50 = " + millis(percentile(0.5)) + "ms, p99 = " + millis(percentile(0.99)) + "ms";
+        }
+    }
+
+    interface Operation {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,290 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.imap.ImapHostManager;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+
+import javax.activation.DataHandler;
+import javax.mail.Flags;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生成压测用的邮箱, 直接写到GreenMail的文件夹里
+ * 1. folderCount个文件夹, 第一个是收件箱, 其他是 Archive-n. 每个文件夹messagesPerFolder封
+ * 2. 每封0~maxAttachments个附件 (pdf,png,docx,bin), 大小按权重随机 {@link #setAttachmentSizes(int[], int[])}
+ * 3. 嵌套深度0~maxNestingDepth, 每层是 multipart/mixed 里再套一层 multipart/mixed
+ * 4. 收件时间在最近30天内, seed一样时生成的邮箱一样
+ * <p>
+ * GreenMail 1.6 不能FETCH message/rfc822 里面的段 (BODY[3.1.1] 报ClassCastException),
+ * 所以嵌套默认用multipart. 连真实服务器时可以 {@link #setForwardAsMessage(boolean)} 改成转发的邮件
+ *
+ * @author wangzihao
+ */
+class MailboxGenerator {
+    private static final String[] ATTACHMENT_TYPES = {"application/pdf", "image/png",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document", "application/octet-stream"};
+    private static final String[] ATTACHMENT_EXTENSIONS = {".pdf", ".png", ".docx", ".bin"};
+    private static final byte[][] ATTACHMENT_HEADERS = {
+            "%PDF-1.4\n".getBytes(),
+            {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'},
+            {'P', 'K', 0x03, 0x04, 0x14, 0x00, 0x06, 0x00},
+            {}};
+    private static final long DAYS_30 = TimeUnit.DAYS.toMillis(30);
+
+    private int folderCount = 3;
+    private int messagesPerFolder = 30;
+    private int maxAttachments = 2;
+    private int[] attachmentSizes = {4 * 1024, 64 * 1024, 512 * 1024};
+    private int[] attachmentWeights = {70, 25, 5};
+    private int maxNestingDepth = 2;
+    private boolean forwardAsMessage;
+    private long seed = 1L;
+
+    private int messageCount;
+    private int attachmentCount;
+    private long totalBytes;
+
+    /**
+     * 生成邮件, 写到用户的文件夹里
+     *
+     * @param greenMail 已经启动的GreenMail
+     * @param user      用户
+     * @return 生成的邮件数
+     */
+    public int populate(GreenMail greenMail, GreenMailUser user) throws Exception {
+        ImapHostManager manager = greenMail.getManagers().getImapHostManager();
+        Session session = Session.getInstance(new Properties());
+        Random random = new Random(seed);
+        long now = System.currentTimeMillis();
+        for (int f = 0; f < folderCount; f++) {
+            MailFolder folder = f == 0 ? manager.getInbox(user) : manager.createMailbox(user, "Archive-" + f);
+            for (int i = 0; i < messagesPerFolder; i++) {
+                Date date = new Date(now - (long) (random.nextDouble() * DAYS_30));
+                MimeMessage message = newMessage(session, random, user.getEmail(), "压测邮件 " + f + "-" + i, date,
+                        random.nextInt(maxNestingDepth + 1));
+                message.saveChanges();
+                CountingOutputStream out = new CountingOutputStream();
+                message.writeTo(out);
+                totalBytes += out.count;
+                messageCount++;
+                folder.appendMessage(message, new Flags(), date);
+            }
+        }
+        return messageCount;
+    }
+
+    private MimeMessage newMessage(Session session, Random random, String to, String subject, Date date, int depth) throws MessagingException, UnsupportedEncodingException {
+        MimeMessage message = new MimeMessage(session);
+        int sender = random.nextInt(20);
+        message.setFrom(new InternetAddress("sender" + sender + "@example.com", "发件人" + sender, "UTF-8"));
+        message.setRecipients(javax.mail.Message.RecipientType.TO, InternetAddress.parse(to));
+        message.setSubject(subject, "UTF-8");
+        message.setSentDate(date);
+        setBody(session, message, random, date, depth);
+        return message;
+    }
+
+    private void setBody(Session session, MimePart part, Random random, Date date, int depth) throws MessagingException, UnsupportedEncodingException {
+        int attachments = random.nextInt(maxAttachments + 1);
+        if (depth == 0 && attachments == 0) {
+            if (random.nextBoolean()) {
+                part.setText(html(random), "UTF-8", "html");
+            } else {
+                part.setText(text(random), "UTF-8");
+            }
+            return;
+        }
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(text(random), "UTF-8");
+        MimeBodyPart htmlPart = new MimeBodyPart();
+        htmlPart.setText(html(random), "UTF-8", "html");
+        MimeMultipart alternative = new MimeMultipart("alternative", textPart, htmlPart);
+        MimeBodyPart alternativePart = new MimeBodyPart();
+        alternativePart.setContent(alternative);
+
+        MimeMultipart mixed = new MimeMultipart("mixed", alternativePart);
+        for (int i = 0; i < attachments; i++) {
+            mixed.addBodyPart(newAttachment(random, i));
+        }
+        if (depth > 0) {
+            MimeBodyPart nestedPart = new MimeBodyPart();
+            if (forwardAsMessage) {
+                // 转发的邮件
+                MimeMessage forwarded = newMessage(session, random, "forward@example.com", "转发 " + depth, date, depth - 1);
+                forwarded.saveChanges();
+                nestedPart.setContent(forwarded, "message/rfc822");
+            } else {
+                setBody(session, nestedPart, random, date, depth - 1);
+            }
+            mixed.addBodyPart(nestedPart);
+        }
+        part.setContent(mixed);
+    }
+
+    private MimeBodyPart newAttachment(Random random, int index) throws MessagingException {
+        int type = random.nextInt(ATTACHMENT_TYPES.length);
+        byte[] bytes = new byte[Math.max(nextAttachmentSize(random), ATTACHMENT_HEADERS[type].length)];
+        random.nextBytes(bytes);
+        System.arraycopy(ATTACHMENT_HEADERS[type], 0, bytes, 0, ATTACHMENT_HEADERS[type].length);
+
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes, ATTACHMENT_TYPES[type])));
+        // 中文文件名, RFC2231编码
+        attachment.setFileName("附件" + index + ATTACHMENT_EXTENSIONS[type]);
+        attachmentCount++;
+        return attachment;
+    }
+
+    private int nextAttachmentSize(Random random) {
+        int total = 0;
+        for (int weight : attachmentWeights) {
+            total += weight;
+        }
+        int value = random.nextInt(total);
+        for (int i = 0; i < attachmentSizes.length; i++) {
+            value -= attachmentWeights[i];
+            if (value < 0) {
+                return attachmentSizes[i];
+            }
+        }
+        return attachmentSizes[attachmentSizes.length - 1];
+    }
+
+    private static String text(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int lines = 5 + random.nextInt(20);
+        for (int i = 0; i < lines; i++) {
+            builder.append("第").append(i).append("行, 订单号 ").append(random.nextInt(1000000))
+                    .append(", 金额 ").append(random.nextInt(10000)).append(".00 元\n");
+        }
+        return builder.toString();
+    }
+
+    private static String html(Random random) {
+        StringBuilder builder = new StringBuilder("<html><head><style>td.price{color:#c00}</style></head><body><table>");
+        int rows = 5 + random.nextInt(30);
+        for (int i = 0; i < rows; i++) {
+            builder.append("<tr><td class=\"name\">商品").append(i).append("</td><td class=\"price\">￥")
+                    .append(random.nextInt(10000)).append("</td><td><a href=\"https://shop.example.com/item/")
+                    .append(random.nextInt(1000000)).append("\">查看</a></td></tr>");
+        }
+        return builder.append("</table></body></html>").toString();
+    }
+
+    /**
+     * 写到压测结果里的配置
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("folderCount", folderCount);
+        map.put("messagesPerFolder", messagesPerFolder);
+        map.put("maxAttachments", maxAttachments);
+        map.put("attachmentSizes", toList(attachmentSizes));
+        map.put("attachmentWeights", toList(attachmentWeights));
+        map.put("maxNestingDepth", maxNestingDepth);
+        map.put("forwardAsMessage", forwardAsMessage);
+        map.put("seed", seed);
+        map.put("messageCount", messageCount);
+        map.put("attachmentCount", attachmentCount);
+        map.put("totalBytes", totalBytes);
+        return map;
+    }
+
+    private static List<Integer> toList(int[] array) {
+        List<Integer> list = new ArrayList<>(array.length);
+        for (int value : array) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    public int getFolderCount() {
+        return folderCount;
+    }
+
+    public void setFolderCount(int folderCount) {
+        this.folderCount = folderCount;
+    }
+
+    public int getMessagesPerFolder() {
+        return messagesPerFolder;
+    }
+
+    public void setMessagesPerFolder(int messagesPerFolder) {
+        this.messagesPerFolder = messagesPerFolder;
+    }
+
+    public int getMaxAttachments() {
+        return maxAttachments;
+    }
+
+    public void setMaxAttachments(int maxAttachments) {
+        this.maxAttachments = maxAttachments;
+    }
+
+    /**
+     * @param sizes   附件字节数
+     * @param weights 每种大小的权重, 和sizes一样长
+     */
+    public void setAttachmentSizes(int[] sizes, int[] weights) {
+        if (sizes.length == 0 || sizes.length != weights.length) {
+            throw new IllegalArgumentException("sizes.length != weights.length");
+        }
+        this.attachmentSizes = sizes;
+        this.attachmentWeights = weights;
+    }
+
+    public int getMaxNestingDepth() {
+        return maxNestingDepth;
+    }
+
+    public void setMaxNestingDepth(int maxNestingDepth) {
+        this.maxNestingDepth = maxNestingDepth;
+    }
+
+    public boolean isForwardAsMessage() {
+        return forwardAsMessage;
+    }
+
+    /**
+     * @param forwardAsMessage true=嵌套的每层是转发的 message/rfc822, false=multipart/mixed
+     */
+    public void setForwardAsMessage(boolean forwardAsMessage) {
+        this.forwardAsMessage = forwardAsMessage;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
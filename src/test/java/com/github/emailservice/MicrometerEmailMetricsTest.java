@@ -0,0 +1,65 @@
+package com.github.emailservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.AutoConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+
+import javax.mail.MessagingException;
+
+/**
+ * Micrometer指标测试, 记录和自动配置
+ */
+class MicrometerEmailMetricsTest {
+
+    @Test
+    void record() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        EmailService emailService = new EmailService();
+        emailService.setTransportPool(new TransportPool());
+        emailService.setMetrics(new MicrometerEmailMetrics(registry));
+        EmailMetrics metrics = emailService.getMetrics();
+
+        Assertions.assertEquals(3, (int) metrics.time(EmailMetrics.Operation.SEARCH, "imap.qq.com", () -> 3));
+        Assertions.assertThrows(MessagingException.class, () -> metrics.run(EmailMetrics.Operation.CONNECT, "imap.qq.com", () -> {
+            throw new MessagingException("login fail");
+        }));
+        metrics.recordBytes("html", 100);
+        metrics.recordBytes("html", 50);
+        metrics.recordFolder("imap.qq.com", "inbox", 7);
+
+        Timer search = registry.get("email.operation").tag("operation", "search").tag("host", "imap.qq.com").tag("outcome", "success").timer();
+        Assertions.assertEquals(1, search.count());
+        Timer connect = registry.get("email.operation").tag("operation", "connect").tag("outcome", "failure").timer();
+        Assertions.assertEquals(1, connect.count());
+        Assertions.assertEquals(150, registry.get("email.content.bytes").tag("type", "html").summary().totalAmount());
+        Assertions.assertEquals(7, registry.get("email.folder.messages").tag("folder", "inbox").summary().totalAmount());
+        Assertions.assertEquals(0, registry.get("email.transport.pool.idle").gauge().value());
+        Assertions.assertEquals(0, registry.get("email.fulltext.index.size").gauge().value());
+        emailService.getTransportPool().close();
+
+        // 默认不记录
+        Assertions.assertSame(EmailMetrics.NOOP, new EmailService().getMetrics());
+    }
+
+    @Test
+    void autoConfiguration() {
+        ApplicationContextRunner runner = new ApplicationContextRunner()
+                .withConfiguration(AutoConfigurations.of(EmailServiceAutoConfiguration.class));
+        runner.withPropertyValues("email-service.jfr.enabled=false")
+                .run(context -> Assertions.assertFalse(context.containsBean("emailMetrics")));
+        runner.withPropertyValues("email-service.jfr.enabled=false")
+                .withBean(MeterRegistry.class, SimpleMeterRegistry::new).run(context -> {
+                    Assertions.assertTrue(context.getBean(EmailService.class).getMetrics() instanceof MicrometerEmailMetrics);
+                    Assertions.assertNotNull(context.getBean(MeterRegistry.class).find("email.transport.pool.idle").gauge());
+                });
+        runner.withBean(MeterRegistry.class, SimpleMeterRegistry::new).run(context -> {
+            EmailMetrics metrics = context.getBean(EmailService.class).getMetrics();
+            Assertions.assertTrue(metrics instanceof JfrEmailMetrics);
+            Assertions.assertTrue(((JfrEmailMetrics) metrics).getDelegate() instanceof MicrometerEmailMetrics);
+        });
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.Managers;
+import com.icegreen.greenmail.imap.ImapHandler;
+import com.icegreen.greenmail.server.AbstractServer;
+import com.icegreen.greenmail.server.ProtocolHandler;
+import com.icegreen.greenmail.smtp.SmtpServer;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试用的本地SMTP+IMAP服务, 端口随机
+ * GreenMail的服务端socket没有开TCP_NODELAY, 多行的响应在本机回环上每次都要等40ms的延迟确认, 测试的耗时全是这个等待.
+ * 这里换成开了TCP_NODELAY的服务, 协议处理还是GreenMail的.
+ * 客户端连接空闲超时也从30秒改成10分钟, 读一个文件夹的内容时其他文件夹的连接是空闲的
+ *
+ * @author wangzihao
+ */
+class NoDelayGreenMail extends GreenMail {
+    private static final int CLIENT_SOCKET_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(10);
+
+    NoDelayGreenMail() {
+        this(ServerSetup.dynamicPort(ServerSetupTest.SMTP_IMAP));
+    }
+
+    NoDelayGreenMail(ServerSetup[] config) {
+        super(config);
+    }
+
+    @Override
+    protected Map<String, AbstractServer> createServices(ServerSetup[] config, Managers managers) {
+        Map<String, AbstractServer> services = new HashMap<>();
+        for (ServerSetup setup : config) {
+            AbstractServer server;
+            switch (setup.getProtocol()) {
+                case ServerSetup.PROTOCOL_IMAP:
+                    server = new AbstractServer(setup, managers) {
+                        @Override
+                        protected ProtocolHandler createProtocolHandler(Socket socket) {
+                            return new ImapHandler(managers.getUserManager(), managers.getImapHostManager(), socket);
+                        }
+
+                        @Override
+                        protected void handleClientSocket(Socket socket) throws SocketException {
+                            socket.setTcpNoDelay(true);
+                            super.handleClientSocket(socket);
+                        }
+                    };
+                    break;
+                case ServerSetup.PROTOCOL_SMTP:
+                    server = new SmtpServer(setup, managers) {
+                        @Override
+                        protected void handleClientSocket(Socket socket) throws SocketException {
+                            socket.setTcpNoDelay(true);
+                            super.handleClientSocket(socket);
+                        }
+                    };
+                    break;
+                default:
+                    throw new IllegalArgumentException("unsupported protocol " + setup.getProtocol());
+            }
+            server.setClientSocketTimeout(CLIENT_SOCKET_TIMEOUT);
+            services.put(setup.getProtocol(), server);
+        }
+        return services;
+    }
+
+    int getPort(String protocol) {
+        return services.get(protocol).getPort();
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.emailservice;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.URLName;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 记录连接和命令的SMTP连接, 测试用
+ * 用 {@link Recorder#install(Session)} 之后, session.getTransport("smtp") 创建的就是这个类
+ *
+ * @author wangzihao
+ */
+public class RecordingTransport extends SMTPTransport {
+    private static final String RECORDER = RecordingTransport.class.getName() + ".recorder";
+    private final Recorder recorder;
+    private boolean open;
+
+    public RecordingTransport(Session session, URLName urlname) {
+        super(session, urlname);
+        this.recorder = (Recorder) session.getProperties().get(RECORDER);
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        boolean connect = super.protocolConnect(host, port, user, password);
+        recorder.connectCount.incrementAndGet();
+        open = connect;
+        return connect;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        if (open) {
+            // 已连接时会发NOOP
+            recorder.noopCount.incrementAndGet();
+        }
+        return super.isConnected();
+    }
+
+    @Override
+    public synchronized void close() throws MessagingException {
+        open = false;
+        super.close();
+    }
+
+    @Override
+    public synchronized void issueCommand(String cmd, int expect) throws MessagingException {
+        recorder.commands.add(cmd);
+        super.issueCommand(cmd, expect);
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        int index = recorder.sendCount.getAndIncrement();
+        if (recorder.failSendIndexes.contains(index)) {
+            // 模拟服务器断开了连接
+            close();
+            throw new MessagingException("connection reset by test");
+        }
+        recorder.commands.add("DATA");
+        super.sendMessage(message, addresses);
+    }
+
+    /**
+     * 一个测试的记录
+     */
+    static class Recorder {
+        private final AtomicInteger connectCount = new AtomicInteger();
+        private final AtomicInteger noopCount = new AtomicInteger();
+        private final AtomicInteger sendCount = new AtomicInteger();
+        private final Set<Integer> failSendIndexes = ConcurrentHashMap.newKeySet();
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+
+        /**
+         * @param session 换掉smtp实现的session
+         * @return session
+         */
+        Session install(Session session) throws NoSuchProviderException {
+            session.getProperties().put(RECORDER, this);
+            session.setProvider(new Provider(Provider.Type.TRANSPORT, "smtp", RecordingTransport.class.getName(), "test", null));
+            return session;
+        }
+
+        int getConnectCount() {
+            return connectCount.get();
+        }
+
+        int getNoopCount() {
+            return noopCount.get();
+        }
+
+        /**
+         * @return sendMessage的调用次数, 包括失败的
+         */
+        int getSendCount() {
+            return sendCount.get();
+        }
+
+        /**
+         * @return 按顺序的 RSET, DATA (每封邮件一个)
+         */
+        List<String> getCommands() {
+            return commands;
+        }
+
+        /**
+         * @param indexes 第几次发送 (从0开始, 包括失败的) 断开连接并失败
+         */
+        void failSendsAt(Integer... indexes) {
+            failSendIndexes.addAll(Arrays.asList(indexes));
+        }
+    }
+}
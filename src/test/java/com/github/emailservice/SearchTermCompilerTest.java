@@ -0,0 +1,104 @@
+package com.github.emailservice;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Flags;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Predicate;
+
+/**
+ * 查询条件编译测试, 结果和SearchTerm.match一致
+ */
+class SearchTermCompilerTest {
+    private static final long BASE = 1_600_000_000_000L;
+
+    @Test
+    void sameAsMatch() throws Exception {
+        List<MimeMessage> messages = new ArrayList<>();
+        List<EmailMetadata> metadataList = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            MimeMessage message = message(i);
+            messages.add(message);
+            metadataList.add(EmailMetadata.valueOf("a@qq.com", 1L, i, message));
+        }
+        Date middle = new Date(BASE + 20_000L);
+        Flags userFlags = new Flags("待办");
+        SearchTerm[] terms = {
+                EmailService.buildUnreadQuery(),
+                new FlagTerm(new Flags(Flags.Flag.SEEN), true),
+                new FlagTerm(userFlags, true),
+                new FlagTerm(userFlags, false),
+                new ReceivedDateTerm(ComparisonTerm.GE, middle),
+                new ReceivedDateTerm(ComparisonTerm.LT, middle),
+                new ReceivedDateTerm(ComparisonTerm.EQ, middle),
+                new SentDateTerm(ComparisonTerm.GT, middle),
+                new SizeTerm(ComparisonTerm.GE, metadataList.get(10).getSize()),
+                new FromStringTerm("张三"),
+                new FromStringTerm("LISI@QQ"),
+                new FromTerm(new InternetAddress("zhangsan@qq.com")),
+                new RecipientStringTerm(Message.RecipientType.TO, "b@qq"),
+                new RecipientStringTerm(Message.RecipientType.CC, "c@qq"),
+                new SubjectTerm("发票"),
+                new NotTerm(new SubjectTerm("发票")),
+                new AndTerm(new SearchTerm[]{new FromStringTerm("张三"), new ReceivedDateTerm(ComparisonTerm.GE, middle), EmailService.buildUnreadQuery()}),
+                new OrTerm(new FromStringTerm("lisi"), new AndTerm(new SubjectTerm("发票"), new FlagTerm(new Flags(Flags.Flag.SEEN), true))),
+                EmailService.buildTimeRangeQuery(new Date(BASE + 5_000L), new Date(BASE + 30_000L)),
+        };
+        for (SearchTerm term : terms) {
+            Assertions.assertTrue(SearchTermCompiler.isSupported(term));
+            Predicate<EmailMetadata> predicate = SearchTermCompiler.compile(term);
+            int count = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                boolean expected = term.match(messages.get(i));
+                Assertions.assertEquals(expected, predicate.test(metadataList.get(i)), term + " " + i);
+                count += expected ? 1 : 0;
+            }
+            Assertions.assertTrue(count > 0 || term instanceof ReceivedDateTerm, term.toString());
+        }
+        SearchTerm body = new AndTerm(new BodyTerm("x"), new SubjectTerm("y"));
+        Assertions.assertFalse(SearchTermCompiler.isSupported(body));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SearchTermCompiler.compile(body));
+    }
+
+    private static MimeMessage message(int i) throws Exception {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(i % 3 == 0 ? "zhangsan@qq.com" : "lisi@qq.com", i % 3 == 0 ? "张三" : "李四", "UTF-8"));
+        message.setRecipients(Message.RecipientType.TO, i % 2 == 0 ? "b@qq.com" : "d@qq.com");
+        if (i % 5 == 0) {
+            message.setRecipients(Message.RecipientType.CC, "c@qq.com");
+        }
+        message.setSubject(i % 4 == 0 ? "增值税发票" + i : "周报" + i, "UTF-8");
+        message.setSentDate(new Date(BASE + i * 1000L - 500L));
+        message.setText("正文" + i, "UTF-8");
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        // 重新解析, 才有大小
+        Date receivedDate = new Date(BASE + i * 1000L);
+        message = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray())) {
+            @Override
+            public Date getReceivedDate() {
+                return receivedDate;
+            }
+        };
+        if (i % 2 == 0) {
+            message.setFlag(Flags.Flag.SEEN, true);
+        }
+        if (i % 7 == 0) {
+            message.setFlags(new Flags("待办"), true);
+        }
+        return message;
+    }
+}
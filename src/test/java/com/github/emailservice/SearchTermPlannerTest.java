@@ -0,0 +1,127 @@
+package com.github.emailservice;
+
+import com.sun.mail.imap.OlderTerm;
+import com.sun.mail.imap.YoungerTerm;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.Flags;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.search.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * 查询计划测试, 时间范围和下推到服务器
+ */
+class SearchTermPlannerTest {
+    private static final long HOUR = 60L * 60 * 1000;
+
+    @Test
+    void timeRange() throws Exception {
+        long now = System.currentTimeMillis();
+        Date begin = new Date(now - 50 * HOUR + 123);
+        Date end = new Date(now - 10 * HOUR + 456);
+        SearchTerm query = EmailService.buildTimeRangeQuery(begin, end);
+        SearchTermPlanner planner = new SearchTermPlanner();
+
+        // 不支持WITHIN: 按天放宽, 本地按毫秒过滤
+        SearchTermPlanner.Plan plan = planner.plan(query, "imap.example.com", capability -> false);
+        AndTerm server = (AndTerm) plan.getServerTerm();
+        Assertions.assertEquals(2, server.getTerms().length);
+        Assertions.assertEquals(ComparisonTerm.GE, ((DateTerm) server.getTerms()[0]).getComparison());
+        Assertions.assertTrue(((DateTerm) server.getTerms()[0]).getDate().before(begin));
+        Assertions.assertEquals(ComparisonTerm.LT, ((DateTerm) server.getTerms()[1]).getComparison());
+        Assertions.assertTrue(((DateTerm) server.getTerms()[1]).getDate().after(end));
+        Assertions.assertTrue(plan.hasLocalFilter());
+        assertPlan(query, plan, messages(now));
+
+        // 支持WITHIN: YOUNGER/OLDER
+        plan = planner.plan(query, "imap.example.com", "WITHIN"::equals);
+        server = (AndTerm) plan.getServerTerm();
+        Assertions.assertTrue(server.getTerms()[0] instanceof YoungerTerm);
+        Assertions.assertTrue(server.getTerms()[1] instanceof OlderTerm);
+        assertPlan(query, plan, messages(now));
+    }
+
+    @Test
+    void pushdown() throws Exception {
+        long now = System.currentTimeMillis();
+        SearchTermPlanner planner = new SearchTermPlanner();
+        FlagTerm unread = (FlagTerm) EmailService.buildUnreadQuery();
+
+        // 服务器能精确处理的, 不用本地过滤
+        SearchTerm query = new AndTerm(unread, new FromStringTerm("zhangsan"));
+        SearchTermPlanner.Plan plan = planner.plan(query, "imap.example.com", capability -> false);
+        Assertions.assertFalse(plan.hasLocalFilter());
+        Assertions.assertEquals(query, plan.getServerTerm());
+
+        // 大小换成 LARGER
+        plan = planner.plan(new SizeTerm(ComparisonTerm.GE, 100), "imap.example.com", capability -> false);
+        Assertions.assertFalse(plan.hasLocalFilter());
+        Assertions.assertEquals(new SizeTerm(ComparisonTerm.GT, 99), plan.getServerTerm());
+
+        // 中文主题在不支持的服务器上本地过滤, 只下推标记
+        SearchTerm subject = new SubjectTerm("发票");
+        query = new AndTerm(unread, subject);
+        plan = planner.plan(query, "IMAP.EXMAIL.QQ.COM", capability -> false);
+        Assertions.assertEquals(unread, plan.getServerTerm());
+        Assertions.assertEquals(subject, plan.getLocalTerm());
+        assertPlan(query, plan, messages(now));
+        Assertions.assertFalse(planner.plan(query, "imap.exmail.qq.com", "UTF8=ACCEPT"::equals).hasLocalFilter());
+
+        // 不支持OR的服务器
+        planner.addCompoundUnsupportedHost("imap.example.com");
+        query = new AndTerm(unread, new OrTerm(new FromStringTerm("zhangsan"), new SubjectTerm("周报")));
+        plan = planner.plan(query, "imap.example.com", capability -> false);
+        Assertions.assertEquals(unread, plan.getServerTerm());
+        assertPlan(query, plan, messages(now));
+        // 不是IMAP能生成的条件, 全部本地
+        plan = planner.plan(new AndTerm(unread, new MessageNumberTerm(3)), "imap.other.com", capability -> false);
+        Assertions.assertEquals(unread, plan.getServerTerm());
+        Assertions.assertTrue(plan.getLocalTerm() instanceof MessageNumberTerm);
+    }
+
+    /**
+     * 服务器的条件不会漏邮件, 服务器 + 本地 和原条件结果一样
+     */
+    private static void assertPlan(SearchTerm query, SearchTermPlanner.Plan plan, List<MimeMessage> messages) {
+        int matched = 0;
+        for (MimeMessage message : messages) {
+            boolean expected = query.match(message);
+            boolean server = plan.getServerTerm() == null || plan.getServerTerm().match(message);
+            if (expected) {
+                matched++;
+                Assertions.assertTrue(server, plan.toString());
+            }
+            Assertions.assertEquals(expected, server && plan.match(message), plan.toString());
+        }
+        Assertions.assertTrue(matched > 0);
+    }
+
+    private static List<MimeMessage> messages(long now) throws Exception {
+        List<MimeMessage> list = new ArrayList<>();
+        Session session = Session.getInstance(new Properties());
+        for (int i = 0; i < 80; i++) {
+            Date receivedDate = new Date(now - i * HOUR + (i % 3 - 1) * 500L);
+            MimeMessage message = new MimeMessage(session) {
+                @Override
+                public Date getReceivedDate() {
+                    return receivedDate;
+                }
+            };
+            message.setFrom(new InternetAddress(i % 2 == 0 ? "zhangsan@qq.com" : "lisi@qq.com"));
+            message.setSubject(i % 3 == 0 ? "发票" + i : "周报" + i, "UTF-8");
+            message.setText("x");
+            if (i % 4 == 0) {
+                message.setFlag(Flags.Flag.SEEN, true);
+            }
+            list.add(message);
+        }
+        return list;
+    }
+}
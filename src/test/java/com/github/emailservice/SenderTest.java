@@ -0,0 +1,227 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sender 测试, 创建,提交和群发, 群发时的连接复用,RSET和重试
+ */
+class SenderTest {
+    private NoDelayGreenMail greenMail;
+    private EmailService.Sender sender;
+
+    @BeforeEach
+    void setUp() {
+        greenMail = new NoDelayGreenMail();
+        greenMail.withConfiguration(GreenMailConfiguration.aConfig().withDisabledAuthentication());
+        greenMail.start();
+        sender = new EmailService().newSender("smtp", "UTF-8", greenMail.getPort(ServerSetup.PROTOCOL_SMTP), "127.0.0.1", "from@localhost", "password");
+    }
+
+    @AfterEach
+    void tearDown() {
+        greenMail.stop();
+    }
+
+    @Test
+    void newMessageQueued() throws Exception {
+        // 同一个线程写完后sendAll, 不用submit
+        EmailService.MimeMessage first = newMessage("第一封");
+        EmailService.MimeMessage second = newMessage("第二封");
+        Assertions.assertEquals(2, sender.getPendingCount());
+        List<EmailService.SendResult> results = sender.sendAll();
+        assertSuccess(results, 2);
+        Assertions.assertSame(first, results.get(0).getMessage());
+        Assertions.assertSame(second, results.get(1).getMessage());
+        Assertions.assertEquals(0, sender.getPendingCount());
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+    }
+
+    @Test
+    void submit() throws Exception {
+        EmailService.MimeMessage draft = newMessage("草稿");
+        Assertions.assertEquals(1, sender.getPendingCount());
+        // 其他线程sendAll时, 没有submit的可能还在写, 不发送
+        Assertions.assertTrue(sendAllOnOtherThread().isEmpty());
+        Assertions.assertEquals(1, sender.getPendingCount());
+
+        draft.submit();
+        draft.submit();
+        Assertions.assertEquals(1, sender.getPendingCount());
+        EmailService.MimeMessage sent = newMessage("已发送");
+        sent.submit();
+        sent.send();
+        Assertions.assertEquals(1, sender.getPendingCount());
+
+        List<EmailService.SendResult> results = sendAllOnOtherThread();
+        Assertions.assertEquals(1, results.size());
+        Assertions.assertSame(draft, results.get(0).getMessage());
+        // 已经发送过的不再发送, 也不能再提交
+        draft.send();
+        Assertions.assertThrows(IllegalStateException.class, draft::submit);
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+        Assertions.assertEquals(2, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void composeWhileSendAll() throws Exception {
+        int count = 30;
+        AtomicBoolean composing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<EmailService.SendResult> results = new ArrayList<>();
+        try {
+            // 另一个线程一直在sendAll, 正在写的邮件不能被发出去
+            Future<?> sendAll = executor.submit(() -> {
+                while (composing.get() || sender.getPendingCount() > 0) {
+                    results.addAll(sender.sendAll());
+                }
+                return null;
+            });
+            for (int i = 0; i < count; i++) {
+                EmailService.MimeMessage message = sender.newMessage();
+                message.setTo("to@localhost");
+                Thread.sleep(5);
+                message.setSubject("并发 " + i);
+                message.setText("<p>并发 " + i + "</p>", true);
+                message.submit();
+            }
+            composing.set(false);
+            sendAll.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assertions.assertEquals(count, results.size());
+        for (EmailService.SendResult result : results) {
+            Assertions.assertTrue(result.isSuccess(), result::toString);
+        }
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, count));
+        Set<String> subjects = new HashSet<>();
+        for (MimeMessage received : greenMail.getReceivedMessages()) {
+            Assertions.assertTrue(subjects.add(received.getSubject()), received.getSubject());
+        }
+        Assertions.assertEquals(count, subjects.size());
+        for (int i = 0; i < count; i++) {
+            Assertions.assertTrue(subjects.contains("并发 " + i));
+        }
+    }
+
+    @Test
+    void sendAllOneConnection() throws Exception {
+        RecordingTransport.Recorder recorder = install();
+        submit(4);
+        List<EmailService.SendResult> results = sender.sendAll();
+        assertSuccess(results, 4);
+        Assertions.assertEquals(1, recorder.getConnectCount());
+        // 复用连接时, 两封之间RSET
+        Assertions.assertEquals(Arrays.asList("DATA", "RSET", "DATA", "RSET", "DATA", "RSET", "DATA"), commands(recorder));
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 4));
+
+        sender.setRsetBetweenMessages(false);
+        submit(2);
+        assertSuccess(sender.sendAll(), 2);
+        Assertions.assertEquals(2, recorder.getConnectCount());
+        Assertions.assertEquals(Arrays.asList("DATA", "DATA"), commands(recorder).subList(7, 9));
+    }
+
+    @Test
+    void batchSize() throws Exception {
+        RecordingTransport.Recorder recorder = install();
+        sender.setBatchSize(2);
+        submit(5);
+        assertSuccess(sender.sendAll(), 5);
+        // 每个连接最多2封
+        Assertions.assertEquals(3, recorder.getConnectCount());
+        Assertions.assertEquals(Arrays.asList("DATA", "RSET", "DATA", "DATA", "RSET", "DATA", "DATA"), commands(recorder));
+    }
+
+    @Test
+    void reconnectAndRetry() throws Exception {
+        RecordingTransport.Recorder recorder = install();
+        // 第2封用复用的连接发送时连接断开
+        recorder.failSendsAt(1);
+        submit(3);
+        assertSuccess(sender.sendAll(), 3);
+        Assertions.assertEquals(2, recorder.getConnectCount());
+        Assertions.assertEquals(4, recorder.getSendCount());
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+        Assertions.assertEquals(3, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void retryOnlyOnce() throws Exception {
+        RecordingTransport.Recorder recorder = install();
+        // 复用的连接断开, 重新连接后还是失败, 不再重试, 后面的邮件继续发送
+        recorder.failSendsAt(1, 2);
+        submit(3);
+        List<EmailService.SendResult> results = sender.sendAll();
+        Assertions.assertEquals(3, results.size());
+        Assertions.assertTrue(results.get(0).isSuccess());
+        Assertions.assertFalse(results.get(1).isSuccess());
+        Assertions.assertTrue(results.get(2).isSuccess());
+        Assertions.assertEquals(3, recorder.getConnectCount());
+        Assertions.assertEquals(4, recorder.getSendCount());
+        Assertions.assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+        Assertions.assertEquals(2, greenMail.getReceivedMessages().length);
+    }
+
+    private RecordingTransport.Recorder install() throws Exception {
+        RecordingTransport.Recorder recorder = new RecordingTransport.Recorder();
+        recorder.install(sender.getSession());
+        return recorder;
+    }
+
+    private void submit(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            newMessage("群发 " + i).submit();
+        }
+    }
+
+    private static void assertSuccess(List<EmailService.SendResult> results, int count) {
+        Assertions.assertEquals(count, results.size());
+        for (EmailService.SendResult result : results) {
+            Assertions.assertTrue(result.isSuccess(), result::toString);
+        }
+    }
+
+    /**
+     * @return 只保留RSET和DATA
+     */
+    private static List<String> commands(RecordingTransport.Recorder recorder) {
+        List<String> list = new ArrayList<>();
+        for (String command : recorder.getCommands()) {
+            if ("RSET".equals(command) || "DATA".equals(command)) {
+                list.add(command);
+            }
+        }
+        return list;
+    }
+
+    private List<EmailService.SendResult> sendAllOnOtherThread() throws Exception {
+        return CompletableFuture.supplyAsync(sender::sendAll).get(30, TimeUnit.SECONDS);
+    }
+
+    private EmailService.MimeMessage newMessage(String subject) throws Exception {
+        EmailService.MimeMessage message = sender.newMessage();
+        message.setTo("to@localhost");
+        message.setSubject(subject);
+        message.setText("<p>" + subject + "</p>", true);
+        return message;
+    }
+}
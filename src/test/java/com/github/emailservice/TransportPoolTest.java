@@ -0,0 +1,206 @@
+package com.github.emailservice;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.util.ServerSetup;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.autoconfigure.mail.MailProperties;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.MessagingException;
+import javax.mail.NoSuchProviderException;
+import javax.mail.Session;
+import java.util.Properties;
+
+/**
+ * SMTP连接池测试
+ */
+class TransportPoolTest {
+    private NoDelayGreenMail greenMail;
+    private RecordingTransport.Recorder recorder;
+    private TransportPool pool;
+    private int port;
+
+    @BeforeEach
+    void setUp() {
+        greenMail = new NoDelayGreenMail();
+        // 不校验密码, 测试不同密码的分组
+        greenMail.withConfiguration(GreenMailConfiguration.aConfig().withDisabledAuthentication());
+        greenMail.start();
+        port = greenMail.getPort(ServerSetup.PROTOCOL_SMTP);
+        recorder = new RecordingTransport.Recorder();
+        pool = new TransportPool();
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+        greenMail.stop();
+    }
+
+    @Test
+    void borrowAndRelease() throws MessagingException {
+        TransportPool.PooledTransport first = borrow(newSession(), "password");
+        first.close();
+        Assertions.assertEquals(1, pool.getIdleCount());
+        // 归还时不发NOOP
+        Assertions.assertEquals(0, recorder.getNoopCount());
+
+        // 另一个session, 配置一样时共用连接
+        try (TransportPool.PooledTransport second = borrow(newSession(), "password")) {
+            Assertions.assertSame(first.getTransport(), second.getTransport());
+            Assertions.assertEquals(1, pool.getActiveCount());
+        }
+        Assertions.assertEquals(1, pool.getCreateCount());
+        Assertions.assertEquals(1, recorder.getConnectCount());
+        Assertions.assertEquals(0, recorder.getNoopCount());
+    }
+
+    @Test
+    void validateAfterIdle() throws MessagingException {
+        pool.setValidateAfterIdleMillis(0);
+        borrow(newSession(), "password").close();
+        borrow(newSession(), "password").close();
+        // 只在借出时检查
+        Assertions.assertEquals(1, recorder.getNoopCount());
+        Assertions.assertEquals(1, pool.getCreateCount());
+
+        // 连接已断开, 借出时发现并重建
+        TransportPool.PooledTransport pooled = borrow(newSession(), "password");
+        pooled.getTransport().close();
+        pooled.close();
+        borrow(newSession(), "password").close();
+        Assertions.assertEquals(2, pool.getCreateCount());
+        Assertions.assertEquals(1, pool.getDestroyCount());
+    }
+
+    @Test
+    void key() throws MessagingException {
+        try (TransportPool.PooledTransport a = borrow(newSession(), "password");
+             TransportPool.PooledTransport b = borrow(newSession(), "password")) {
+            Assertions.assertNotSame(a.getTransport(), b.getTransport());
+        }
+        Assertions.assertEquals(2, pool.getIdleCount());
+
+        // 密码不同
+        borrow(newSession(), "other").close();
+        Assertions.assertEquals(3, pool.getCreateCount());
+
+        // session配置不同
+        Session session = newSession();
+        session.getProperties().put("mail.smtp.timeout", "5000");
+        borrow(session, "password").close();
+        Assertions.assertEquals(4, pool.getCreateCount());
+        Assertions.assertEquals(4, pool.getIdleCount());
+    }
+
+    @Test
+    void maxMessagesPerConnection() throws MessagingException {
+        pool.setMaxMessagesPerConnection(2);
+        TransportPool.PooledTransport pooled = borrow(newSession(), "password");
+        pooled.incrementMessageCount();
+        pooled.close();
+        pooled = borrow(newSession(), "password");
+        pooled.incrementMessageCount();
+        pooled.close();
+        Assertions.assertEquals(0, pool.getIdleCount());
+        Assertions.assertEquals(1, pool.getDestroyCount());
+        Assertions.assertFalse(pooled.getTransport().isConnected());
+
+        borrow(newSession(), "password").close();
+        Assertions.assertEquals(2, pool.getCreateCount());
+    }
+
+    @Test
+    void markBroken() throws MessagingException {
+        TransportPool.PooledTransport pooled = borrow(newSession(), "password");
+        pooled.markBroken();
+        pooled.close();
+        Assertions.assertEquals(0, pool.getIdleCount());
+        Assertions.assertEquals(1, pool.getDestroyCount());
+    }
+
+    @Test
+    void borrowTimeout() throws MessagingException {
+        pool.setMaxTotalPerKey(1);
+        pool.setBorrowTimeoutMillis(50);
+        try (TransportPool.PooledTransport ignored = borrow(newSession(), "password")) {
+            Assertions.assertThrows(MessagingException.class, () -> borrow(newSession(), "password"));
+        }
+        borrow(newSession(), "password").close();
+        Assertions.assertEquals(1, pool.getCreateCount());
+    }
+
+    @Test
+    void evict() throws Exception {
+        try (TransportPool evictPool = new TransportPool(20)) {
+            evictPool.setMaxIdleMillis(50);
+            evictPool.borrow(newSession(), "smtp", "127.0.0.1", port, "user", "password").close();
+            Assertions.assertEquals(1, evictPool.getIdleCount());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (evictPool.getIdleCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(0, evictPool.getIdleCount());
+            Assertions.assertEquals(1, evictPool.getDestroyCount());
+
+            // 没有连接的分组也删掉, 再借时重建
+            while (evictPool.getKeyCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assertions.assertEquals(0, evictPool.getKeyCount());
+            evictPool.borrow(newSession(), "smtp", "127.0.0.1", port, "user", "password").close();
+            Assertions.assertEquals(1, evictPool.getKeyCount());
+            Assertions.assertEquals(2, evictPool.getCreateCount());
+        }
+    }
+
+    @Test
+    void keyCachedPerSession() throws MessagingException {
+        Session session = newSession();
+        borrow(session, "password").close();
+        // 同一个session第一次借用后改配置不生效, 还是同一组
+        session.getProperties().put("mail.smtp.timeout", "5000");
+        borrow(session, "password").close();
+        Assertions.assertEquals(1, pool.getKeyCount());
+        Assertions.assertEquals(1, pool.getCreateCount());
+
+        // 账号不同换一组
+        pool.borrow(session, "smtp", "127.0.0.1", port, "other", "password").close();
+        Assertions.assertEquals(2, pool.getKeyCount());
+        borrow(session, "password").close();
+        Assertions.assertEquals(2, pool.getCreateCount());
+    }
+
+    @Test
+    void sendFailure() throws Exception {
+        MailProperties mailProperties = new MailProperties();
+        mailProperties.setUsername("user@localhost");
+        JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+        mailSender.setHost("127.0.0.1");
+        mailSender.setPort(port);
+        EmailService emailService = new EmailService(mailProperties, mailSender);
+        emailService.setTransportPool(pool);
+        Assertions.assertTrue(emailService.sendHtmlMail("to@localhost", "subject", "<p>html</p>"));
+        Assertions.assertTrue(emailService.sendSimpleMail("to@localhost", "subject", "text"));
+        Assertions.assertEquals(1, pool.getCreateCount());
+
+        // 服务器不可用时, 和不用连接池一样抛出MailSendException
+        greenMail.stop();
+        pool.setValidateAfterIdleMillis(0);
+        Assertions.assertThrows(MailSendException.class, () -> emailService.sendHtmlMail("to@localhost", "subject", "<p>html</p>"));
+        Assertions.assertThrows(MailSendException.class, () -> emailService.sendSimpleMail("to@localhost", "subject", "text"));
+        greenMail.start();
+    }
+
+    private TransportPool.PooledTransport borrow(Session session, String password) throws MessagingException {
+        return pool.borrow(session, "smtp", "127.0.0.1", port, "user", password);
+    }
+
+    private Session newSession() throws NoSuchProviderException {
+        return recorder.install(Session.getInstance(new Properties()));
+    }
+}
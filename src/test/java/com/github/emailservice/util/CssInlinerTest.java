@@ -0,0 +1,57 @@
+package com.github.emailservice.util;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * CSS内联测试, 优先级和层叠
+ */
+class CssInlinerTest {
+
+    @Test
+    void specificity() {
+        Assertions.assertEquals(1, CssInliner.specificity("p"));
+        Assertions.assertEquals(2, CssInliner.specificity("div p"));
+        Assertions.assertEquals(101, CssInliner.specificity("p.note"));
+        Assertions.assertEquals(10000, CssInliner.specificity("#main"));
+        Assertions.assertEquals(10102, CssInliner.specificity("div#main > p[title]"));
+        Assertions.assertEquals(0, CssInliner.specificity("*"));
+        Assertions.assertEquals(201, CssInliner.specificity("a.b.c"));
+    }
+
+    @Test
+    void cascade() {
+        String html = "<html><head><style>\n" +
+                "/* comment { color: black } */\n" +
+                "#main p { color: red; }\n" +
+                "p { color: blue; font-size: 12px; }\n" +
+                "p.note { color: green; }\n" +
+                ".note, .tip { font-weight: bold; }\n" +
+                "a:hover { color: pink; }\n" +
+                "@media (max-width: 600px) { p { color: yellow; } }\n" +
+                "b { margin: 0 !important; }\n" +
+                "</style></head><body><div id=\"main\">" +
+                "<p class=\"note\">a</p>" +
+                "<p class=\"note\" style=\"color: gray\">b</p>" +
+                "<b style=\"margin: 1px\">c</b>" +
+                "<span class=\"tip\">d</span>" +
+                "</div><p>e</p></body></html>";
+        CssInliner inliner = new CssInliner(4, 4);
+        String result = inliner.inlineCss(html);
+        Document doc = Jsoup.parse(result);
+        Assertions.assertTrue(doc.select("style").isEmpty());
+        // #main p (1,0,1) 比 p.note (0,1,1) 优先
+        Assertions.assertEquals("font-size: 12px; font-weight: bold; color: red;", doc.select("p").get(0).attr("style"));
+        // 原有的style优先于普通规则
+        Assertions.assertEquals("font-size: 12px; font-weight: bold; color: gray;", doc.select("p").get(1).attr("style"));
+        // !important优先于原有的style
+        Assertions.assertEquals("margin: 0 !important;", doc.selectFirst("b").attr("style"));
+        Assertions.assertEquals("font-weight: bold;", doc.selectFirst("span").attr("style"));
+        Assertions.assertEquals("color: blue; font-size: 12px;", doc.select("p").get(2).attr("style"));
+
+        Assertions.assertSame(result, inliner.inlineCss(html));
+        Assertions.assertEquals(result, HtmlQuery.inlineCss(html));
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.emailservice.util;
+
+import org.jsoup.nodes.Document;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * html批量提取计划测试, 提取结果和多线程共用
+ */
+class HtmlExtractPlanTest {
+    private static final String HTML = "<html><body><table class=\"order\">" +
+            "<tr><td>订单号</td><td class=\"no\">A001</td></tr>" +
+            "<tr><td>金额</td><td>100.00</td></tr>" +
+            "<tr><td class=\"name\">苹果</td><td class=\"name\">香蕉</td></tr>" +
+            "</table><a class=\"detail\" href=\"http://example.com/a001\">详情</a></body></html>";
+    private static final HtmlExtractPlan PLAN = HtmlExtractPlan.builder()
+            .text("orderNo", "td.no")
+            .nextText("amount", "td:containsOwn(金额)", 0)
+            .prevText("orderLabel", "td.no", 0)
+            .text("secondName", "td.name", 1)
+            .attr("detailUrl", "a.detail", "href")
+            .texts("names", "td.name")
+            .text("missing", "td.none")
+            .build();
+
+    @Test
+    void extract() {
+        HtmlQuery<Document> query = HtmlQuery.valueOf(HTML);
+        Map<String, Object> result = query.extract(PLAN);
+
+        Assertions.assertEquals(PLAN.getFieldNames(), Arrays.asList(result.keySet().toArray()));
+        Assertions.assertEquals(query.selectText("td.no", 0), result.get("orderNo"));
+        Assertions.assertEquals(query.selectElement("td:containsOwn(金额)", 0).nextByTagEq().text(), result.get("amount"));
+        Assertions.assertEquals("100.00", result.get("amount"));
+        Assertions.assertEquals("订单号", result.get("orderLabel"));
+        Assertions.assertEquals("香蕉", result.get("secondName"));
+        Assertions.assertEquals(query.selectAttr("a.detail", "href", 0), result.get("detailUrl"));
+        Assertions.assertEquals(query.selectTexts("td.name"), result.get("names"));
+        Assertions.assertEquals("", result.get("missing"));
+
+        Assertions.assertEquals("", HtmlQuery.EMPTY.selectElement("td", 0).nextByTagEq().text());
+        Assertions.assertEquals("100.00", query.selectElement("td", 2).nextByTagEq().text());
+        Assertions.assertEquals("金额", query.selectElement("td", 3).prevByTagEq().text());
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        Map<String, Object> expected = HtmlQuery.valueOf(HTML).extract(PLAN);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new CopyOnWriteArrayList<>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                futures.add(executor.submit(() -> Assertions.assertEquals(expected, HtmlQuery.valueOf(HTML).extract(PLAN))));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
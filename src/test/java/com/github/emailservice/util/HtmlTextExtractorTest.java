@@ -0,0 +1,36 @@
+package com.github.emailservice.util;
+
+import org.jsoup.Jsoup;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * HTML正文提取测试, 和jsoup的结果一致
+ */
+class HtmlTextExtractorTest {
+
+    @Test
+    void extract() {
+        String html = "<!DOCTYPE html><html><head><title>标题</title>" +
+                "<style>p { color: red; }</style><script>var a = '<p>x</p>'; if (a < b) {}</script></head>" +
+                "<body><!-- 注释 <p>no</p> --><div>你好,\n\n   <b>张三</b></div><p>金额&nbsp;&lt;100&gt; &amp; &#36;1 &#x4E2D;</p>" +
+                "<table><tr><td>a</td><td>b</td></tr></table><br/>x < y &unknown; <img alt=\"a > b\">end</body></html>";
+        Assertions.assertEquals("你好, 张三 金额 <100> & $1 中 a b x < y &unknown; end", HtmlTextExtractor.extract(html));
+        Assertions.assertEquals(Jsoup.parse(html).body().text(), HtmlTextExtractor.extract(html));
+        Assertions.assertEquals("你好, 张三", HtmlTextExtractor.extract(html, 6));
+        Assertions.assertEquals("", HtmlTextExtractor.extract(html, 0));
+        Assertions.assertEquals("", HtmlTextExtractor.extract(null));
+    }
+
+    @Test
+    void largeTable() {
+        StringBuilder html = new StringBuilder("<html><head><style>td { padding: 0 }</style></head><body><table>");
+        for (int i = 0; i < 2000; i++) {
+            html.append("<tr><td class=\"name\">商品").append(i).append("</td><td style=\"color: red\">")
+                    .append(i).append(".00&nbsp;元</td></tr>");
+        }
+        html.append("</table></body></html>");
+        String text = html.toString();
+        Assertions.assertEquals(Jsoup.parse(text).body().text(), HtmlTextExtractor.extract(text));
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.emailservice.util;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.select.Evaluator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存的选择器和jsoup每次解析的结果一致, 计时在 benchmarks 的 HtmlQueryBenchmark
+ */
+class SelectorCacheTest {
+    private static final String[] SELECTORS = {"title", "p", "script", "body > p", "head meta[charset]",
+            "table.order tr", "table.order tr:nth-child(2) td", "td.name", "td.price", "td:eq(2)",
+            "div#header h1", "div#footer a[href]", "a[href^=http]", "a[href*=unsubscribe]", "span.label + span",
+            "tr:has(td.price)", "td:containsOwn(合计)", "div.item > span.value", "img[src$=.png]", "table tr td:last-child"};
+
+    @AfterEach
+    void tearDown() {
+        SelectorCache.setMaxSize(1024);
+    }
+
+    @Test
+    void sameAsSelectString() throws IOException {
+        List<Document> docs = new ArrayList<>();
+        docs.add(Jsoup.parse(resource("/com/github/emailservice/test1.html")));
+        docs.add(Jsoup.parse(orderHtml()));
+        for (Document doc : docs) {
+            for (String selector : SELECTORS) {
+                Assertions.assertEquals(doc.select(selector), doc.select(SelectorCache.get(selector)), selector);
+                Assertions.assertEquals(doc.select("body " + selector), HtmlQuery.valueOf(doc).getElement().select(SelectorCache.get("body " + selector)), selector);
+            }
+        }
+    }
+
+    @Test
+    void hitAndEvict() {
+        Evaluator evaluator = SelectorCache.get("td.cache-test");
+        long hit = SelectorCache.getHitCount();
+        Assertions.assertSame(evaluator, SelectorCache.get("td.cache-test"));
+        Assertions.assertEquals(hit + 1, SelectorCache.getHitCount());
+
+        SelectorCache.setMaxSize(8);
+        for (int i = 0; i < 20; i++) {
+            SelectorCache.get("td.evict-" + i);
+        }
+        Assertions.assertTrue(SelectorCache.size() <= 8, "size=" + SelectorCache.size());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> SelectorCache.setMaxSize(0));
+    }
+
+    private static String orderHtml() {
+        StringBuilder html = new StringBuilder("<html><head><meta charset=\"utf-8\"><title>订单</title></head><body>");
+        html.append("<div id=\"header\"><h1>订单通知</h1></div><table class=\"order\">");
+        for (int i = 0; i < 10; i++) {
+            html.append("<tr><td class=\"name\">商品").append(i).append("</td><td class=\"price\">")
+                    .append(i * 10).append(".00</td><td>").append(i).append("</td></tr>");
+        }
+        html.append("<tr><td>合计</td><td class=\"price\">450.00</td></tr></table>");
+        for (int i = 0; i < 5; i++) {
+            html.append("<div class=\"item\"><span class=\"label\">项目").append(i).append("</span><span class=\"value\">")
+                    .append(i).append("</span><img src=\"i").append(i).append(".png\"></div>");
+        }
+        html.append("<div id=\"footer\"><a href=\"http://example.com/unsubscribe\">退订</a></div></body></html>");
+        return html.toString();
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = SelectorCacheTest.class.getResourceAsStream(name)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}